@@ -11,6 +11,8 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.SessionConfiguration;
 import android.media.Image;
@@ -30,8 +32,22 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
 
+import com.nyu.video_imu_recorder.core.BurstRateController;
+import com.nyu.video_imu_recorder.core.CaptureLatencyTracker;
+import com.nyu.video_imu_recorder.core.CaptureMetadataWriter;
+import com.nyu.video_imu_recorder.core.ChannelIMUStorage;
+import com.nyu.video_imu_recorder.core.FramePackFormat;
+import com.nyu.video_imu_recorder.core.FramePackWriter;
+import com.nyu.video_imu_recorder.core.FrameSink;
+import com.nyu.video_imu_recorder.core.FrameWritePipeline;
+import com.nyu.video_imu_recorder.core.RecordingHealth;
+import com.nyu.video_imu_recorder.core.SessionClock;
+import com.nyu.video_imu_recorder.core.SessionIndexWriter;
+import com.nyu.video_imu_recorder.core.StartupTimeline;
+import com.nyu.video_imu_recorder.core.YuvConverter;
+import com.nyu.video_imu_recorder.core.YuvFrameEncoder;
+
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
@@ -42,12 +58,25 @@ import java.util.List;
 public class BurstImage extends IMUCapture {
     private static final int CAMERA_PERMISSION = new SecureRandom().nextInt(100);
     private static final String CAM = "Camera_configuration";
-    private HandlerThread callback_thread;
-    private Handler callback_handler;
+    private static final int DEFAULT_MAX_IMAGES = 4, DEFAULT_FRAME_POOL_SIZE = 8, DEFAULT_FRAME_WRITERS = 2;
+    private static final int LATENCY_TRACKING_CAPACITY = 64;
+    private static final int DEFAULT_JPEG_QUALITY = 95, DEFAULT_MIN_JPEG_QUALITY = 50, MAX_FRAME_INTERVAL_MS = 1000;
+    private HandlerThread callback_thread, capture_result_thread;
+    private Handler callback_handler, capture_result_handler;
     private ImageReader image_reader;
     private CameraDevice camera_device;
-    private File images_directory;
-    private long last_save_time = 0;
+    private FramePackWriter frame_pack;
+    private SessionIndexWriter.Stream frame_time_index;
+    private FrameWritePipeline frame_pipeline;
+    private CaptureMetadataWriter capture_metadata;
+    private CaptureLatencyTracker latency_tracker;
+    private BurstRateController rate_controller;
+    private CameraCaptureSession capture_session;
+    private CaptureRequest.Builder capture_request_builder;
+    // Where the camera goes once the permission is granted, if it had to be asked for
+    private SurfaceView pending_preview;
+    private String pending_camera_id;
+    private String[] pending_file_names;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -61,16 +90,24 @@ public class BurstImage extends IMUCapture {
         callback_thread = new HandlerThread("camera_callback_thread");
         callback_thread.start();
         callback_handler = new Handler(callback_thread.getLooper());
+        // Capture results are recorded on their own thread so they never wait behind image callbacks
+        capture_result_thread = new HandlerThread("capture_result_thread");
+        capture_result_thread.start();
+        capture_result_handler = new Handler(capture_result_thread.getLooper());
 
         SurfaceView preview = findViewById(R.id.preview);
         // Use a callback to ensure the preview element responsible for showing the camera footage is ready first
         preview.getHolder().addCallback(new SurfaceHolder.Callback() {
             @Override
             public void surfaceCreated(@NonNull SurfaceHolder holder) {
-                try {
-                    initiateCamera((CameraManager) getSystemService(Context.CAMERA_SERVICE), back_camera_id, preview, file_names);
-                } catch (CameraAccessException exception) {
-                    exception.printStackTrace();
+                if (ContextCompat.checkSelfPermission(BurstImage.this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
+                    openCamera(back_camera_id, preview, file_names);
+                } else {
+                    // MainActivity asks before launching, but the permission can be revoked in between
+                    pending_camera_id = back_camera_id;
+                    pending_preview = preview;
+                    pending_file_names = file_names;
+                    requestPermissions(new String[]{Manifest.permission.CAMERA}, CAMERA_PERMISSION);
                 }
             }
             @Override
@@ -84,24 +121,39 @@ public class BurstImage extends IMUCapture {
 
     @Override
     protected void onStop() {
-        super.onStop();
         broadcast_record_status(BurstImage.class.getName());
-        camera_device.close();
+        if (camera_device != null) camera_device.close();
         stopIMURecording();
         callback_thread.quitSafely();
+        capture_result_thread.quitSafely();
         try {
             callback_thread.join();
-        } catch (InterruptedException exception) {
+            capture_result_thread.join();
+            if (capture_metadata != null) capture_metadata.close();
+            // No more frames arrive once the callback thread has finished; write out whatever is still queued
+            if (frame_pipeline != null) {
+                frame_pipeline.close();
+                Log.i(CAM, "Burst finished with " + frame_pipeline);
+                Log.i(CAM, "Latency from " + latency_tracker);
+                // Closing the pack appends its index, and indexes the frames in the session's time index
+                if (frame_time_index != null) setCameraClock(frame_time_index);
+                frame_pack.close();
+            }
+        } catch (InterruptedException | IOException exception) {
             exception.printStackTrace();
         }
+        // Last, so the health summary written by IMUCapture covers every saved frame
+        super.onStop();
     }
 
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
         if (requestCode == CAMERA_PERMISSION) {
-            if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                 Toast.makeText(this, "camera permission granted", Toast.LENGTH_LONG).show();
+                if (pending_preview != null) openCamera(pending_camera_id, pending_preview, pending_file_names);
+                pending_preview = null;
             } else {
                 Toast.makeText(this, "camera permission denied, aborting", Toast.LENGTH_LONG).show();
                 finish();
@@ -109,29 +161,73 @@ public class BurstImage extends IMUCapture {
         }
     }
 
-    private void initiateCamera(CameraManager camera_manager, String camera_id, SurfaceView preview, String[] file_names) throws CameraAccessException {
-        // Use busy-waiting to ensure permission is granted before opening camera
-        boolean pending = true;
-        while (ContextCompat.checkSelfPermission(BurstImage.this, android.Manifest.permission.CAMERA) == PackageManager.PERMISSION_DENIED) {
-            if (pending) {
-                requestPermissions(new String[]{Manifest.permission.CAMERA}, CAMERA_PERMISSION);
-                pending = false;
-            }
+    private void openCamera(String camera_id, SurfaceView preview, String[] file_names) {
+        try {
+            initiateCamera((CameraManager) getSystemService(Context.CAMERA_SERVICE), camera_id, preview, file_names);
+        } catch (CameraAccessException exception) {
+            exception.printStackTrace();
         }
+    }
 
-        // Get the back camera's highest resolution and use it to create the image reader
-        Size[] sizes = camera_manager.getCameraCharacteristics(camera_id)
-                .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP).getOutputSizes(ImageFormat.JPEG);
-        final Size max_size = Arrays.stream(sizes).max(Comparator.comparing(size -> size.getWidth() * size.getHeight())).orElse(sizes[0]);
-        image_reader = ImageReader.newInstance(max_size.getWidth(), max_size.getHeight(), ImageFormat.JPEG, 2);
+    // Only called once the camera permission is granted
+    private void initiateCamera(CameraManager camera_manager, String camera_id, SurfaceView preview, String[] file_names) throws CameraAccessException {
+        // Capture JPEG (encoded by the camera's ISP) or raw YUV_420_888 frames at the requested resolution, choosing among
+        // the back camera's supported output sizes for that format
+        Intent intent = getIntent();
+        boolean yuv_mode = "YUV_420_888".equals(intent.getStringExtra("capture_format"));
+        int image_format = yuv_mode ? ImageFormat.YUV_420_888 : ImageFormat.JPEG;
+        // Usually already looked up while MainActivity was shown
+        CameraCharacteristics characteristics = CameraPrewarm.getCharacteristics(camera_manager, camera_id);
+        Size[] sizes = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP).getOutputSizes(image_format);
+        final Size capture_size = chooseCaptureSize(sizes, intent.getIntExtra("capture_width", 0), intent.getIntExtra("capture_height", 0));
+        Log.i(CAM, "Capturing " + (yuv_mode ? "YUV_420_888" : "JPEG") + " frames at " + capture_size);
+        // Enough images must be in flight to cover the time a frame spends being copied into the write pipeline
+        int max_images = intent.getIntExtra("max_images", DEFAULT_MAX_IMAGES);
+        image_reader = ImageReader.newInstance(capture_size.getWidth(), capture_size.getHeight(), image_format, max_images);
+        // Sensor timestamps only share the IMU's time base when the camera reports them as REALTIME
+        boolean realtime_timestamps = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE)
+                == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        if (!realtime_timestamps) Log.w(CAM, "Camera timestamps are not in the IMU's time base");
+        setCameraTimestampsRealtime(realtime_timestamps);
+        latency_tracker = new CaptureLatencyTracker(LATENCY_TRACKING_CAPACITY,
+                realtime_timestamps ? SystemClock::elapsedRealtimeNanos : System::nanoTime);
 
         // Callback passed to opening the camera to start using camera outputs once ready
         CameraDevice.StateCallback state_callback = new CameraDevice.StateCallback() {
             @Override
             public void onOpened(@NonNull CameraDevice camera) {
+                markStartup(StartupTimeline.Phase.CAMERA_OPENED);
                 camera_device = camera;
                 try {
-                    images_directory = setIMUFileAndGetMediaLocation(file_names[0], file_names[1]);
+                    File frame_pack_file = setIMUFileAndGetMediaLocation(file_names[0], file_names[1]);
+                    capture_metadata = new CaptureMetadataWriter(new ChannelIMUStorage(getSessionFile(".meta")));
+                    if (yuv_mode) {
+                        // Raw frames are stored as is or deflated on the writer threads, one per core
+                        boolean compress = intent.getBooleanExtra("yuv_compression", false);
+                        short format = compress ? FramePackFormat.FORMAT_YUV_I420_DEFLATE : FramePackFormat.FORMAT_YUV_I420;
+                        frame_pack = openFramePack(frame_pack_file, format, capture_size);
+                        // Live consumers get the frames as stored, once the pack has them
+                        FrameSink encoder = getHealth().track(new YuvFrameEncoder(streamFrames(frame_pack, format,
+                                capture_size.getWidth(), capture_size.getHeight()), compress));
+                        frame_pipeline = createFramePipeline(latency_tracker.track(encoder),
+                                YuvConverter.i420Size(capture_size.getWidth(), capture_size.getHeight()),
+                                Runtime.getRuntime().availableProcessors(), 0);
+                    } else {
+                        frame_pack = openFramePack(frame_pack_file, FramePackFormat.FORMAT_JPEG, capture_size);
+                        // Compressed frames are far smaller than one byte per pixel, and pooled buffers grow if one is not
+                        FrameSink stored = streamFrames(frame_pack, FramePackFormat.FORMAT_JPEG, capture_size.getWidth(),
+                                capture_size.getHeight());
+                        frame_pipeline = createFramePipeline(latency_tracker.track(getHealth().track(stored)),
+                                capture_size.getWidth() * capture_size.getHeight() / 2,
+                                intent.getIntExtra("frame_writers", DEFAULT_FRAME_WRITERS), max_images - 1);
+                    }
+                    if (getSessionIndex() != null) {
+                        frame_time_index = getSessionIndex().stream(SessionIndexWriter.FRAME_STREAM);
+                        frame_pack.setTimeIndex(frame_time_index);
+                    }
+                    // Frames the pipeline had to drop under its overflow policy
+                    getHealth().addCounter(RecordingHealth.FRAMES_DROPPED, frame_pipeline::getDroppedCount);
+                    rate_controller = createRateController(yuv_mode);
                     configureCameraOutputs(preview);
                 } catch (CameraAccessException | IOException exception) {
                     exception.printStackTrace();
@@ -150,21 +246,75 @@ public class BurstImage extends IMUCapture {
         camera_manager.openCamera(camera_id, state_callback, callback_handler);
     }
 
+    // Images can be held for in-place writes while one reader slot stays free, so acquireNextImage() can always take the
+    // next frame; frames needing conversion (direct_frames = 0) are always copied into the pool
+    private FrameWritePipeline createFramePipeline(FrameSink sink, int buffer_capacity, int writers, int direct_frames) {
+        Intent intent = getIntent();
+        FrameWritePipeline.OverflowPolicy policy = FrameWritePipeline.OverflowPolicy.valueOf(intent.hasExtra("frame_overflow_policy")
+                ? intent.getStringExtra("frame_overflow_policy") : FrameWritePipeline.OverflowPolicy.DROP_OLDEST.name());
+        return new FrameWritePipeline(sink, policy, intent.getIntExtra("frame_pool_size", DEFAULT_FRAME_POOL_SIZE),
+                buffer_capacity, writers, direct_frames);
+    }
+
+    // Each batch of frames becomes one block of the journal when the session is journaled
+    private FramePackWriter openFramePack(File file, short format, Size size) throws IOException {
+        if (isJournaled()) return new FramePackWriter(openSessionStorage(file), format, size.getWidth(), size.getHeight());
+        return new FramePackWriter(file, format, size.getWidth(), size.getHeight());
+    }
+
+    // Only with a target frame interval; raw frames have no JPEG quality to lower, so only their cadence is adjusted
+    private BurstRateController createRateController(boolean yuv_mode) {
+        Intent intent = getIntent();
+        long target_interval_ms = intent.getIntExtra("target_frame_interval_ms", 0);
+        if (target_interval_ms <= 0) return null;
+        int quality = intent.getIntExtra("jpeg_quality", DEFAULT_JPEG_QUALITY);
+        int min_quality = yuv_mode ? quality : Math.min(quality, intent.getIntExtra("min_jpeg_quality", DEFAULT_MIN_JPEG_QUALITY));
+        return new BurstRateController(target_interval_ms * 1_000_000, Math.max(target_interval_ms, MAX_FRAME_INTERVAL_MS) * 1_000_000,
+                intent.getIntExtra("frame_pool_size", DEFAULT_FRAME_POOL_SIZE), quality, min_quality,
+                BurstRateController.DEFAULT_WINDOW_NS, (timestamp, frame_interval_ns, jpeg_quality, write_bandwidth_bps) -> {
+                    Log.i(CAM, "Burst rate adjusted at " + timestamp + ": " + rate_controller);
+                    notifyBurstRate(timestamp, frame_interval_ns, jpeg_quality, write_bandwidth_bps);
+                });
+    }
+
+    // Called from the camera's callback thread after the controller lowered or raised the JPEG quality
+    private void updateJpegQuality() {
+        capture_request_builder.set(CaptureRequest.JPEG_QUALITY, (byte) rate_controller.getJpegQuality());
+        try {
+            capture_session.setRepeatingRequest(capture_request_builder.build(), capture_callback, capture_result_handler);
+        } catch (CameraAccessException | IllegalStateException exception) {
+            Log.e(CAM, "JPEG quality failed to be updated");
+            exception.printStackTrace();
+        }
+    }
+
+    // The supported size matching the request exactly, else the smallest one covering it, else the largest available
+    private static Size chooseCaptureSize(Size[] sizes, int width, int height) {
+        Comparator<Size> by_area = Comparator.comparing(size -> size.getWidth() * size.getHeight());
+        Size largest = Arrays.stream(sizes).max(by_area).orElse(sizes[0]);
+        if (width <= 0 || height <= 0) return largest;
+        return Arrays.stream(sizes).filter(size -> size.getWidth() >= width && size.getHeight() >= height)
+                .min(by_area).orElse(largest);
+    }
+
     private void configureCameraOutputs(SurfaceView preview) throws CameraAccessException {
         // Package the camera data destinations (device screen and image reader) into a capture request
-        CaptureRequest.Builder capture_request_builder = camera_device.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+        capture_request_builder = camera_device.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
         Surface surface = preview.getHolder().getSurface();
         capture_request_builder.addTarget(surface);
         capture_request_builder.addTarget(image_reader.getSurface());
+        if (rate_controller != null) capture_request_builder.set(CaptureRequest.JPEG_QUALITY, (byte) rate_controller.getJpegQuality());
 
         // Callback passed to the creation of the camera capture session; handles displaying preview and feeding to image reader
         CameraCaptureSession.StateCallback state_callback = new CameraCaptureSession.StateCallback() {
             @Override
             public void onConfigured(@NonNull CameraCaptureSession session) {
+                markStartup(StartupTimeline.Phase.SESSION_CONFIGURED);
+                capture_session = session;
                 image_reader.setOnImageAvailableListener(image_available_listener, callback_handler);
                 try {
                     startIMURecording();
-                    session.setRepeatingRequest(capture_request_builder.build(), null, null);
+                    session.setRepeatingRequest(capture_request_builder.build(), capture_callback, capture_result_handler);
                     Toast.makeText(BurstImage.this, "Configuration succeeded", Toast.LENGTH_LONG).show();
                 } catch (CameraAccessException exception) {
                     Toast.makeText(BurstImage.this, "Image capturing request failed", Toast.LENGTH_LONG).show();
@@ -184,44 +334,87 @@ public class BurstImage extends IMUCapture {
         camera_device.createCaptureSession(session_configuration);
     }
 
-    // Callback passed to image reader to save captured images
-    private final ImageReader.OnImageAvailableListener image_available_listener = reader -> {
-        Image image = reader.acquireLatestImage();
-        long timestamp = image.getTimestamp();
-        // Store bytes representing the image into a byte array
-        ByteBuffer image_buffer = image.getPlanes()[0].getBuffer();
-        byte[] image_bytes = new byte[image_buffer.remaining()];
-        image_buffer.get(image_bytes);
-        image.close();
+    // Records every frame's capture metadata keyed by its sensor timestamp; nothing is allocated here beyond the boxed
+    // values the capture result hands out
+    private final CameraCaptureSession.CaptureCallback capture_callback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            Long sensor_timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (sensor_timestamp == null) return;
+            observeCameraClock(sensor_timestamp);
+            latency_tracker.onCaptureResult(sensor_timestamp);
+            Float focus_distance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+            Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            try {
+                capture_metadata.write(sensor_timestamp, result.getFrameNumber(),
+                        valueOrMissing(result.get(CaptureResult.SENSOR_EXPOSURE_TIME)),
+                        valueOrMissing(result.get(CaptureResult.SENSOR_FRAME_DURATION)),
+                        valueOrMissing(result.get(CaptureResult.SENSOR_ROLLING_SHUTTER_SKEW)),
+                        focus_distance == null ? Float.NaN : focus_distance, sensitivity == null ? -1 : sensitivity);
+            } catch (IOException exception) {
+                Log.e(CAM, "Capture metadata failed to be written");
+                exception.printStackTrace();
+            }
+        }
+    };
 
-        File image_file = new File(images_directory, timestamp + ".jpeg");
-        try {
-            // Write the byte data into the image file
-            FileOutputStream image_output = new FileOutputStream(image_file);
-            image_output.write(image_bytes);
-            image_output.flush();
-            image_output.close();
-            // Note the start time of the recording in the imu data file
-            notifyVideoStart(timestamp);
-        } catch (IOException exception) {
-            exception.printStackTrace();
+    private static long valueOrMissing(Long value) {
+        return value == null ? -1 : value;
+    }
+
+    // Copies the planes of the current YUV image into a pooled buffer as packed I420; reused for every frame
+    private final YuvImageFiller yuv_filler = new YuvImageFiller();
+
+    private static class YuvImageFiller implements FrameWritePipeline.FrameFiller {
+        Image image;
+
+        @Override
+        public void fill(ByteBuffer destination) {
+            Image.Plane[] planes = image.getPlanes();
+            YuvConverter.packI420(planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                    image.getWidth(), image.getHeight(), destination);
         }
+    }
 
-        // Close and re-open the FileOutputStream object every 3 seconds to avoid overwhelming file write buffer
-        long current_time = SystemClock.elapsedRealtimeNanos();
-        if ((current_time - last_save_time > 3 * Math.pow(10, 9))) {
-            last_save_time = current_time;
-            stopIMURecording();
-            startIMURecording();
+    // Callback passed to image reader to hand captured images to the write pipeline
+    private final ImageReader.OnImageAvailableListener image_available_listener = reader -> {
+        // Take every image in order rather than the latest one, so frames are only ever dropped by the pipeline's policy
+        Image image = reader.acquireNextImage();
+        if (image == null) return;
+        markStartup(StartupTimeline.Phase.FIRST_FRAME);
+        long timestamp = image.getTimestamp();
+        // Frames between the ones the rate controller keeps are released right away
+        if (rate_controller != null && !rate_controller.shouldKeep(timestamp)) {
+            image.close();
+            notifySkippedFrame(timestamp);
+            return;
+        }
+        if (image.getFormat() == ImageFormat.YUV_420_888) {
+            yuv_filler.image = image;
+            frame_pipeline.submit(timestamp, YuvConverter.i420Size(image.getWidth(), image.getHeight()), yuv_filler);
+            yuv_filler.image = null;
+            image.close();
+        } else {
+            // The plane's direct buffer is written to the file as is; the pipeline closes the image once it is saved
+            frame_pipeline.submitDirect(timestamp, image.getPlanes()[0].getBuffer(), image);
+        }
+        // Note the start time of the recording in the imu data file, and have IMU values aligned with every frame
+        notifyVideoStart(SessionClock.Domain.CAMERA_SENSOR, timestamp);
+        notifyFrame(timestamp);
+        if (rate_controller != null && rate_controller.update(timestamp, getHealth().getCount(RecordingHealth.FRAME_BYTES_WRITTEN),
+                frame_pipeline.getWrittenCount(), frame_pipeline.getDroppedCount(), frame_pipeline.getQueueDepth())) {
+            updateJpegQuality();
         }
     };
 
     protected File setIMUFileAndGetMediaLocation(String imu_data_name, String media_name) throws IOException {
-        // Create a new folder to store captured images
-        File new_images_directory = super.setIMUFileAndGetMediaLocation(imu_data_name, media_name);
-        boolean dir_new = new_images_directory.mkdirs();
-        Log.i(CAM, "Image directory (newly created: " + dir_new + ") at " + new_images_directory.getAbsolutePath());
-        return new_images_directory;
+        // All captured images go into one frame pack file (see FramePackFormat) instead of a folder of JPEG files
+        File media_location = super.setIMUFileAndGetMediaLocation(imu_data_name, media_name);
+        File frame_pack_file = new File(media_location.getParentFile(), media_location.getName() + ".frames");
+        Log.i(CAM, "Frame pack at " + frame_pack_file.getAbsolutePath());
+        return frame_pack_file;
     }
 
     // The option to capture a singular image per method call, currently not used
@@ -0,0 +1,98 @@
+package com.nyu.video_imu_recorder;
+
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.util.Log;
+
+import androidx.camera.lifecycle.ProcessCameraProvider;
+import androidx.core.content.ContextCompat;
+import androidx.core.util.Consumer;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Camera lookups done in the background while MainActivity is shown, so that a tap on record_start goes straight to
+// opening the camera: the back camera's id and characteristics for BurstImage, and an initialized CameraX provider for
+// VideoRecord (ProcessCameraProvider hands every later caller the same instance)
+final class CameraPrewarm {
+
+    private static final String CAM = "Camera_prewarm";
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final Map<String, CameraCharacteristics> characteristics = new ConcurrentHashMap<>();
+    // Touched from the main thread only
+    private static Future<String> back_camera_id;
+
+    private CameraPrewarm() {}
+
+    // Called from the main thread; only the first call starts anything
+    static void start(Context context) {
+        if (back_camera_id != null) return;
+        Context application = context.getApplicationContext();
+        CameraManager camera_manager = (CameraManager) application.getSystemService(Context.CAMERA_SERVICE);
+        back_camera_id = executor.submit(() -> findBackCameraId(camera_manager));
+        ProcessCameraProvider.getInstance(application);
+    }
+
+    // Called from the main thread, which gets the back camera's id or the lookup's failure once the lookup started by
+    // start() is done, without waiting for it
+    static void getBackCameraId(Context context, Consumer<String> found, Consumer<CameraAccessException> failed) {
+        start(context);
+        Future<String> lookup = back_camera_id;
+        Executor main = ContextCompat.getMainExecutor(context);
+        // The executor runs one task at a time, so the lookup is done by the time this one runs
+        executor.execute(() -> {
+            try {
+                String camera_id = lookup.get();
+                main.execute(() -> found.accept(camera_id));
+            } catch (ExecutionException exception) {
+                main.execute(() -> {
+                    // Try again on the next tap, e.g. once the camera service is back
+                    if (back_camera_id == lookup) back_camera_id = null;
+                    Throwable cause = exception.getCause();
+                    if (!(cause instanceof CameraAccessException)) throw new IllegalStateException(cause);
+                    failed.accept((CameraAccessException) cause);
+                });
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                main.execute(() -> failed.accept(new CameraAccessException(CameraAccessException.CAMERA_ERROR,
+                        "Interrupted while finding the back camera")));
+            }
+        });
+    }
+
+    // Characteristics resolved during the lookup, or queried now for any other camera
+    static CameraCharacteristics getCharacteristics(CameraManager camera_manager, String camera_id) throws CameraAccessException {
+        CameraCharacteristics cached = characteristics.get(camera_id);
+        if (cached != null) return cached;
+        CameraCharacteristics queried = camera_manager.getCameraCharacteristics(camera_id);
+        characteristics.put(camera_id, queried);
+        return queried;
+    }
+
+    private static String findBackCameraId(CameraManager camera_manager) throws CameraAccessException {
+        /*
+        Locate back-facing camera (Technically this should be implemented like below, but it doesn't work because of emulator I think)
+        PackageManager package_manager = getPackageManager();
+        boolean has_back_camera = package_manager.hasSystemFeature(PackageManager.FEATURE_CAMERA_ANY);
+        This code seems to always produce false when run on emulator
+        */
+        String[] camera_IDs = camera_manager.getCameraIdList();
+        Log.v(CAM, "Camera-IDs: " + Arrays.toString(camera_IDs));
+        for (String camera_id : camera_IDs) {
+            if (getCharacteristics(camera_manager, camera_id).get(CameraCharacteristics.LENS_FACING) == CameraMetadata.LENS_FACING_BACK) {
+                Log.d(CAM, "Found back-facing camera with id " + camera_id);
+                return camera_id;
+            }
+        }
+        throw new CameraAccessException(CameraAccessException.CAMERA_DISCONNECTED, "No back-facing camera found.");
+    }
+}
@@ -8,28 +8,87 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 
+import com.nyu.video_imu_recorder.core.ChannelIMUStorage;
+import com.nyu.video_imu_recorder.core.ClockDomainEstimator;
+import com.nyu.video_imu_recorder.core.FrameSink;
+import com.nyu.video_imu_recorder.core.GroupCommitPolicy;
+import com.nyu.video_imu_recorder.core.GyroPreintegrator;
+import com.nyu.video_imu_recorder.core.IMUAlignmentEngine;
+import com.nyu.video_imu_recorder.core.IMURecorder;
+import com.nyu.video_imu_recorder.core.IMUStorage;
+import com.nyu.video_imu_recorder.core.LiveStreamFormat;
+import com.nyu.video_imu_recorder.core.LiveStreamServer;
+import com.nyu.video_imu_recorder.core.MappedIMUStorage;
+import com.nyu.video_imu_recorder.core.RecordingHealth;
+import com.nyu.video_imu_recorder.core.SegmentedJournalFormat;
+import com.nyu.video_imu_recorder.core.SegmentedJournalReader;
+import com.nyu.video_imu_recorder.core.SegmentedJournalWriter;
+import com.nyu.video_imu_recorder.core.SensorStreamRegistry;
+import com.nyu.video_imu_recorder.core.SensorStreamStats;
+import com.nyu.video_imu_recorder.core.SessionClock;
+import com.nyu.video_imu_recorder.core.SessionIndexWriter;
+import com.nyu.video_imu_recorder.core.StartupTimeline;
+
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class IMUCapture extends AppCompatActivity implements SensorEventListener {
 
     private static final String FILE = "IMU_data_file";
+    private static final long DEFAULT_COMMIT_INTERVAL_MS = 1000, DEFAULT_COMMIT_BYTES = 256 * 1024;
+    private static final long MIN_ALIGNMENT_WAIT_NS = 500_000_000;
+    private static final long OVERLAY_REFRESH_MS = 500;
+    // Sensors that the extra_sensors extra can add to a recording, each into a file of its own (see SensorStreamRegistry),
+    // with the number of values their events carry
+    private static final String[] EXTRA_SENSOR_KEYS = {"accelerometer", "accelerometer_uncalibrated", "gyroscope_uncalibrated",
+            "magnetometer", "magnetometer_uncalibrated", "rotation_vector", "game_rotation_vector", "barometer"};
+    private static final int[] EXTRA_SENSOR_TYPES = {Sensor.TYPE_ACCELEROMETER, Sensor.TYPE_ACCELEROMETER_UNCALIBRATED,
+            Sensor.TYPE_GYROSCOPE_UNCALIBRATED, Sensor.TYPE_MAGNETIC_FIELD, Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED,
+            Sensor.TYPE_ROTATION_VECTOR, Sensor.TYPE_GAME_ROTATION_VECTOR, Sensor.TYPE_PRESSURE};
+    private static final int[] EXTRA_SENSOR_VALUE_COUNTS = {3, 6, 6, 3, 6, 5, 4, 1};
     private SensorManager sensor_manager;
     private Sensor linear_accelerometer, gyroscope;
+    private HandlerThread sensor_thread;
+    private Handler sensor_handler;
     private File imu_data;
-    private FileOutputStream imu_output;
-    private long imu_start_time = -1;
+    private volatile IMURecorder imu_recorder;
+    private volatile SensorStreamRegistry sensor_streams;
+    // Extra sensors of this recording, by their index in EXTRA_SENSOR_KEYS, and the sampling period of each
+    private final List<Sensor> extra_sensors = new ArrayList<>();
+    private final List<Integer> extra_sensor_indices = new ArrayList<>(), extra_periods_us = new ArrayList<>();
+    private final SessionClock session_clock = new SessionClock();
+    private long commit_interval_ms, commit_bytes;
+    private boolean mapped_storage, compressed_storage, journaled_storage, frame_alignment, frame_preintegration, preintegrate_velocity;
+    private float[] gyroscope_bias, accelerometer_bias;
+    private int accelerometer_period_us, gyroscope_period_us, max_report_latency_us;
+    private RecordingHealth health;
+    private SensorStreamStats frame_stats;
+    // Frames left out of alignment and preintegration because the camera's clock could not be mapped yet
+    private final AtomicLong unmapped_frames = new AtomicLong();
+    private boolean health_overlay;
+    private final Handler overlay_handler = new Handler(Looper.getMainLooper());
+    private SessionIndexWriter session_index;
+    private SessionIndexWriter.Stream imu_time_index;
+    private StartupTimeline startup;
+    private LiveStreamServer live_stream;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -38,27 +97,217 @@ public abstract class IMUCapture extends AppCompatActivity implements SensorEven
         sensor_manager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
         linear_accelerometer = sensor_manager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
         gyroscope = sensor_manager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+
+        // Sensor callbacks are delivered on their own thread and handed to the writer thread through a lock-free ring
+        sensor_thread = new HandlerThread("sensor_thread");
+        sensor_thread.start();
+        sensor_handler = new Handler(sensor_thread.getLooper());
+
+        // Durability window of the IMU data file: buffered samples are synced after this long or this many bytes
+        commit_interval_ms = getIntent().getLongExtra("commit_interval_ms", DEFAULT_COMMIT_INTERVAL_MS);
+        commit_bytes = getIntent().getLongExtra("commit_bytes", DEFAULT_COMMIT_BYTES);
+        // Optionally write the IMU data file through a memory mapping instead of write() calls
+        mapped_storage = getIntent().getBooleanExtra("mapped_imu_storage", false);
+        // Optionally compress the IMU data file (see IMUStreamFormat); IMURecordReader reads either layout
+        compressed_storage = getIntent().getBooleanExtra("compressed_imu_data", false);
+        // Optionally record the session's data into crash-safe journals (see SegmentedJournalWriter) instead of plain files
+        journaled_storage = getIntent().getBooleanExtra("journaled_storage", false);
+        // Sampling period of each sensor in microseconds (or one of the SensorManager.SENSOR_DELAY_* presets), and how long
+        // the sensor hub may batch samples in its FIFO before delivering them (0 delivers every sample right away)
+        accelerometer_period_us = getIntent().getIntExtra("accelerometer_period_us", SensorManager.SENSOR_DELAY_FASTEST);
+        gyroscope_period_us = getIntent().getIntExtra("gyroscope_period_us", SensorManager.SENSOR_DELAY_FASTEST);
+        max_report_latency_us = getIntent().getIntExtra("max_report_latency_us", 0);
+        // Further sensors to record, each at the period of its <key>_period_us extra
+        String[] extra_sensor_keys = getIntent().getStringArrayExtra("extra_sensors");
+        for (String key : extra_sensor_keys == null ? new String[0] : extra_sensor_keys) {
+            int index = Arrays.asList(EXTRA_SENSOR_KEYS).indexOf(key);
+            Sensor sensor = index < 0 ? null : sensor_manager.getDefaultSensor(EXTRA_SENSOR_TYPES[index]);
+            if (sensor == null || extra_sensor_indices.contains(index)) {
+                Log.w(FILE, "Extra sensor " + key + (index < 0 ? " is unknown" : sensor == null ? " is not available" : " is repeated")
+                        + ", ignoring it");
+                continue;
+            }
+            extra_sensors.add(sensor);
+            extra_sensor_indices.add(index);
+            extra_periods_us.add(getIntent().getIntExtra(key + "_period_us", SensorManager.SENSOR_DELAY_FASTEST));
+        }
+        // Write interpolated IMU values at every camera frame to a sidecar next to the IMU data file
+        frame_alignment = getIntent().getBooleanExtra("frame_alignment", true);
+        // Optionally integrate the gyroscope (and linear acceleration) between consecutive frames into a .preint sidecar,
+        // with per-axis biases to subtract first
+        frame_preintegration = getIntent().getBooleanExtra("frame_preintegration", false);
+        preintegrate_velocity = getIntent().getBooleanExtra("preintegrate_velocity", true);
+        gyroscope_bias = getBiasExtra("gyroscope_bias");
+        accelerometer_bias = getBiasExtra("accelerometer_bias");
+
+        // Rates, latencies and drops of this session, optionally shown over the preview while recording
+        health = new RecordingHealth(SystemClock::elapsedRealtimeNanos);
+        frame_stats = health.stream(RecordingHealth.FRAMES, RecordingHealth.FRAME_GAP_FACTOR);
+        health_overlay = getIntent().getBooleanExtra("health_overlay", false);
+        // Startup milestones count from the tap in MainActivity, or from here when launched some other way
+        startup = new StartupTimeline(getIntent().getLongExtra("record_tap_time_ns", SystemClock.elapsedRealtimeNanos()));
+        health.setStartup(startup);
+
+        // Optionally publish samples and frames live to a consumer on the desktop (see LiveStreamServer)
+        if (getIntent().getBooleanExtra("live_stream", false)) startLiveStream();
+    }
+
+    private void startLiveStream() {
+        List<Short> sensor_ids = new ArrayList<>(Arrays.asList((short) linear_accelerometer.getType(), (short) gyroscope.getType()));
+        List<String> sensor_names = new ArrayList<>(Arrays.asList(linear_accelerometer.getName(), gyroscope.getName()));
+        for (int i = 0; i < extra_sensors.size(); ++i) {
+            sensor_ids.add((short) EXTRA_SENSOR_TYPES[extra_sensor_indices.get(i)]);
+            sensor_names.add(extra_sensors.get(i).getName());
+        }
+        short[] ids = new short[sensor_ids.size()];
+        for (int i = 0; i < ids.length; ++i) ids[i] = sensor_ids.get(i);
+        // Consumers reach the port after adb forward, and fall behind under the drop policy without slowing recording
+        int port = getIntent().getIntExtra("live_stream_port", LiveStreamFormat.DEFAULT_PORT);
+        LiveStreamServer.DropPolicy policy = LiveStreamServer.DropPolicy.valueOf(getIntent().hasExtra("live_stream_drop_policy")
+                ? getIntent().getStringExtra("live_stream_drop_policy") : LiveStreamServer.DropPolicy.DROP_OLDEST.name());
+        try {
+            live_stream = new LiveStreamServer(port, ids, sensor_names.toArray(new String[0]), policy,
+                    LiveStreamServer.DEFAULT_QUEUE_BYTES, LiveStreamServer.DEFAULT_RING_CAPACITY);
+            live_stream.start();
+            Log.i(FILE, "Live stream on port " + live_stream.getPort() + ", reachable after adb forward tcp:"
+                    + live_stream.getPort() + " tcp:" + live_stream.getPort());
+        } catch (IOException exception) {
+            Log.e(FILE, "Live stream failed to start on port " + port);
+            exception.printStackTrace();
+            Toast.makeText(this, "Live stream unavailable, recording without it", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // Frames handed to the returned sink go on to sink and, while a live stream consumer is connected, out to it as well
+    protected FrameSink streamFrames(FrameSink sink, short format, int width, int height) {
+        return live_stream == null ? sink : live_stream.tee(sink, format, width, height);
     }
 
     @Override
-    public void onSensorChanged(SensorEvent event) {
-        long imu_time = SystemClock.elapsedRealtimeNanos();
-        // Resume any suspended thread waiting for IMU's start timestamp to become available
-        if (imu_start_time == -1) {
-            synchronized (IMUCapture.this) {
-                imu_start_time = imu_time;
-                notifyAll();
-            }
+    protected void onResume() {
+        super.onResume();
+        if (health_overlay) overlay_handler.post(overlay_refresh);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        overlay_handler.removeCallbacks(overlay_refresh);
+    }
+
+    private final Runnable overlay_refresh = new Runnable() {
+        @Override
+        public void run() {
+            TextView overlay = findViewById(R.id.health_overlay);
+            if (overlay == null) return;
+            overlay.setVisibility(View.VISIBLE);
+            overlay.setText(health.toOverlayText());
+            overlay_handler.postDelayed(this, OVERLAY_REFRESH_MS);
+        }
+    };
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        writeHealthSummary();
+        if (session_index == null) return;
+        try {
+            session_index.close();
+        } catch (IOException exception) {
+            Log.e(FILE, "Session time index failed to close");
+            exception.printStackTrace();
         }
-        String data = imu_time + " " + event.sensor.getName() + " " + Arrays.toString(event.values) + '\n';
-        Log.v(FILE, "imu data: " + data);
+    }
+
+    // Writes the session's health next to the IMU data file; called once everything recording it has stopped
+    protected void writeHealthSummary() {
+        if (imu_data == null) return;
         try {
-            imu_output.write(data.getBytes(StandardCharsets.UTF_8));
+            File summary = getSessionFile(".health.json");
+            health.writeJson(summary);
+            Log.i(FILE, "Recording health summary at " + summary.getPath());
         } catch (IOException exception) {
+            Log.e(FILE, "Recording health summary failed to be written");
             exception.printStackTrace();
         }
     }
 
+    protected RecordingHealth getHealth() {
+        return health;
+    }
+
+    // Called from any thread as the recording gets going, and on every frame or sample, which then costs only the check;
+    // each phase is logged the first time it is reached
+    protected void markStartup(StartupTimeline.Phase phase) {
+        if (startup.isMarked(phase)) return;
+        if (startup.mark(phase, SystemClock.elapsedRealtimeNanos())) {
+            Log.i(FILE, "Startup: " + phase.key() + " after " + startup.getMillis(phase) + " ms");
+        }
+    }
+
+    // Null when the IMU data file was not new, since the index cannot cover data written before it
+    protected SessionIndexWriter getSessionIndex() {
+        return session_index;
+    }
+
+    // Notes how camera timestamps map onto the IMU samples' clock on a time index stream of frames, so its windows line up
+    // with the samples'; called as recording stops, when the mapping is at its best
+    protected void setCameraClock(SessionIndexWriter.Stream frame_time_index) throws IOException {
+        if (session_clock.isMapped(SessionClock.Domain.CAMERA_SENSOR)) {
+            frame_time_index.setClock(session_clock.getEstimate(SessionClock.Domain.CAMERA_SENSOR));
+        } else {
+            Log.w(FILE, "Camera clock was never mapped, so the session time index places no frames");
+        }
+    }
+
+    // Mapping of camera timestamps onto the IMU samples' clock, or null while the camera clock is unmapped
+    protected ClockDomainEstimator.Estimate getCameraClock() {
+        return session_clock.isMapped(SessionClock.Domain.CAMERA_SENSOR)
+                ? session_clock.getEstimate(SessionClock.Domain.CAMERA_SENSOR) : null;
+    }
+
+    private float[] getBiasExtra(String name) {
+        float[] bias = getIntent().getFloatArrayExtra(name);
+        if (bias != null && bias.length == 3) return bias;
+        if (bias != null) Log.w(FILE, name + " needs 3 values, ignoring it");
+        return new float[3];
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        sensor_thread.quitSafely();
+        if (live_stream == null) return;
+        Log.i(FILE, "Live stream: " + live_stream);
+        try {
+            live_stream.close();
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        IMURecorder recorder = imu_recorder;
+        // Events still queued on the sensor thread after recording stopped have nowhere to go
+        if (recorder == null) return;
+        markStartup(StartupTimeline.Phase.FIRST_IMU_SAMPLE);
+        // Sensor types double as the record's sensor id, so no string building happens per sample, and extra sensors are
+        // found by a single table lookup however many of them there are
+        short sensor_id = (short) event.sensor.getType();
+        if (live_stream != null) live_stream.offerSample(event.timestamp, sensor_id, event.values, event.accuracy);
+        SensorStreamRegistry streams = sensor_streams;
+        int stream = streams == null ? -1 : streams.streamOf(sensor_id);
+        if (stream >= 0) {
+            streams.onSample(stream, event.timestamp, event.values, event.accuracy);
+            return;
+        }
+        // The sensor's own timestamp marks when the sample was taken, not when a batch of them happened to be delivered.
+        // Pairing it with elapsedRealtime at delivery keeps the estimate of how the two clocks relate up to date.
+        long now = SystemClock.elapsedRealtimeNanos();
+        recorder.onSample(event.timestamp, now, sensor_id, event.values, event.accuracy);
+    }
+
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
         Log.v(FILE, sensor.getName() + " accuracy changed to " + accuracy);
@@ -66,11 +315,47 @@ public abstract class IMUCapture extends AppCompatActivity implements SensorEven
 
     protected void startIMURecording() {
         try {
-            imu_output = new FileOutputStream(imu_data, true);
-            sensor_manager.registerListener(this, linear_accelerometer, SensorManager.SENSOR_DELAY_NORMAL);
-            sensor_manager.registerListener(this, gyroscope, SensorManager.SENSOR_DELAY_NORMAL);
-        } catch (FileNotFoundException exception) {
-            Log.e(FILE, "FileOutputStream failed to be opened");
+            IMUStorage storage = mapped_storage && !journaled_storage
+                    ? new MappedIMUStorage(imu_data, MappedIMUStorage.DEFAULT_CHUNK_SIZE) : openSessionStorage(imu_data);
+            short[] sensor_ids = {(short) linear_accelerometer.getType(), (short) gyroscope.getType()};
+            // Batched samples can trail a frame by up to the report latency, so frames wait at least that long for them
+            long max_wait_ns = Math.max(MIN_ALIGNMENT_WAIT_NS, 2_000L * max_report_latency_us);
+            IMUAlignmentEngine alignment = null;
+            if (frame_alignment) {
+                alignment = new IMUAlignmentEngine(new ChannelIMUStorage(getSessionFile(".align")), sensor_ids, max_wait_ns);
+            }
+            GyroPreintegrator preintegration = null;
+            if (frame_preintegration) {
+                preintegration = new GyroPreintegrator(new ChannelIMUStorage(getSessionFile(".preint")),
+                        (short) gyroscope.getType(), gyroscope_bias, preintegrate_velocity
+                        ? (short) linear_accelerometer.getType() : GyroPreintegrator.NO_ACCELEROMETER,
+                        accelerometer_bias, max_wait_ns);
+            }
+            IMURecorder recorder = new IMURecorder(storage, compressed_storage, sensor_ids,
+                    new String[] {linear_accelerometer.getName(), gyroscope.getName()}, session_clock,
+                    new GroupCommitPolicy(commit_interval_ms, commit_bytes, System.nanoTime()), alignment, preintegration,
+                    health);
+            // One IMU stream for the whole session, so a paused and resumed recording keeps adding to it
+            if (imu_time_index != null) recorder.setTimeIndex(imu_time_index);
+            recorder.start();
+            // Published right away so that onStop closes it even if the extra sensor files fail to open
+            imu_recorder = recorder;
+            if (!extra_sensors.isEmpty()) {
+                SensorStreamRegistry streams = new SensorStreamRegistry(commit_interval_ms, commit_bytes, health);
+                for (int i = 0; i < extra_sensors.size(); ++i) {
+                    int index = extra_sensor_indices.get(i);
+                    streams.add((short) EXTRA_SENSOR_TYPES[index], extra_sensors.get(i).getName(), EXTRA_SENSOR_VALUE_COUNTS[index],
+                            openSessionStorage(getSessionFile("." + EXTRA_SENSOR_KEYS[index] + ".imu")),
+                            SensorStreamRegistry.DEFAULT_RING_CAPACITY);
+                }
+                streams.start();
+                sensor_streams = streams;
+            }
+            registerSensor(linear_accelerometer, accelerometer_period_us);
+            registerSensor(gyroscope, gyroscope_period_us);
+            for (int i = 0; i < extra_sensors.size(); ++i) registerSensor(extra_sensors.get(i), extra_periods_us.get(i));
+        } catch (IOException exception) {
+            Log.e(FILE, "IMU data file failed to be opened");
             exception.printStackTrace();
             Toast.makeText(this, "IMU data storage file cannot be opened", Toast.LENGTH_LONG).show();
             finish();
@@ -79,37 +364,151 @@ public abstract class IMUCapture extends AppCompatActivity implements SensorEven
 
     protected void stopIMURecording() {
         sensor_manager.unregisterListener(this);
+        IMURecorder recorder = imu_recorder;
+        SensorStreamRegistry streams = sensor_streams;
+        imu_recorder = null;
+        sensor_streams = null;
+        // Nothing was recorded if the camera never got as far as starting it, e.g. without the camera permission
+        if (recorder == null) return;
         try {
-            imu_output.flush();
-            imu_output.close();
+            if (streams != null) stopSensorStreams(streams);
         } catch (IOException exception) {
-            Log.e(FILE, "FileOutputStream failed to close");
+            Log.e(FILE, "Extra sensor files failed to close");
+            Toast.makeText(this, "Extra sensor data failed to save, data lost!", Toast.LENGTH_SHORT).show();
+            exception.printStackTrace();
+        }
+        try {
+            recorder.stop();
+            if (recorder.getOverflowCount() > 0) {
+                Log.w(FILE, recorder.getOverflowCount() + " IMU samples dropped because the writer fell behind");
+            }
+            Log.i(FILE, "Linear accelerometer: " + recorder.getStats((short) linear_accelerometer.getType()));
+            Log.i(FILE, "Gyroscope: " + recorder.getStats((short) gyroscope.getType()));
+            // Note the rates each sensor actually delivered next to the ones requested when it was registered
+            long stop_time = SystemClock.elapsedRealtimeNanos();
+            for (Sensor sensor : new Sensor[] {linear_accelerometer, gyroscope}) {
+                int sampling_period = sensor == gyroscope ? gyroscope_period_us : accelerometer_period_us;
+                recorder.writeSensorRate(stop_time, (short) sensor.getType(), requestedPeriodUs(sensor, sampling_period),
+                        max_report_latency_us, (float) recorder.getStats((short) sensor.getType()).getAchievedRateHz());
+            }
+            Log.i(FILE, "Clock drift of sensors: " + session_clock.getEstimate(SessionClock.Domain.SENSOR_EVENT).getDriftPpm()
+                    + " ppm, camera: " + session_clock.getEstimate(SessionClock.Domain.CAMERA_SENSOR).getDriftPpm() + " ppm");
+            recorder.close();
+            if (unmapped_frames.get() > 0) {
+                Log.w(FILE, unmapped_frames.get() + " frames left out of alignment before the camera clock was mapped");
+            }
+            if (recorder.getAlignment() != null) {
+                Log.i(FILE, "Frame alignment: " + recorder.getAlignment());
+                // A session that never delivered a frame, e.g. a video that failed to start, leaves no header-only sidecar
+                File sidecar = getSessionFile(".align");
+                if (sidecar.length() <= IMUAlignmentEngine.headerSize(2) && !sidecar.delete()) {
+                    Log.w(FILE, "Empty frame alignment sidecar could not be deleted");
+                }
+            }
+            if (recorder.getPreintegration() != null) Log.i(FILE, "Preintegration: " + recorder.getPreintegration());
+        } catch (IOException exception) {
+            Log.e(FILE, "IMU data file failed to close");
             Toast.makeText(this, "IMU data failed to save, data lost!", Toast.LENGTH_SHORT).show();
             exception.printStackTrace();
         }
     }
 
-    protected void notifyVideoStart(long video_start_time) {
-        if (imu_start_time == 0) return;
-        new Thread(() -> {
-            try {
-                // Wait in case IMU's starting timestamp is not yet available
-                synchronized (IMUCapture.this) {
-                    while (imu_start_time == -1) {
-                        wait();
-                    }
-                }
-                long latency = imu_start_time - video_start_time;
-                imu_start_time = 0;
-                // Calculate the time difference between the IMU starting and the camera starting
-                Log.i(FILE, "Latency: " + latency);
-                String latency_message = video_start_time + " video recording started. Latency between IMU and camera: "
-                        + Math.abs(latency) + " (" + (latency < 0 ? "IMU" : "camera") + " started sooner)\n";
-                imu_output.write(latency_message.getBytes(StandardCharsets.UTF_8));
-            } catch (InterruptedException | IOException exception) {
-                exception.printStackTrace();
+    private void stopSensorStreams(SensorStreamRegistry streams) throws IOException {
+        try {
+            streams.stop();
+            if (streams.getOverflowCount() > 0) {
+                Log.w(FILE, streams.getOverflowCount() + " extra sensor samples dropped because the writer fell behind");
+            }
+            long stop_time = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < extra_sensors.size(); ++i) {
+                Log.i(FILE, streams.getName(i) + ": " + streams.getStats(i));
+                streams.writeSensorRate(i, stop_time, requestedPeriodUs(extra_sensors.get(i), extra_periods_us.get(i)),
+                        max_report_latency_us, (float) streams.getStats(i).getAchievedRateHz());
             }
-        }).start();
+        } finally {
+            streams.close();
+        }
+    }
+
+    // Each sensor's rate request is noted in the file it is recorded to
+    private void registerSensor(Sensor sensor, int sampling_period) throws IOException {
+        if (max_report_latency_us > 0 && sensor.getFifoMaxEventCount() == 0) {
+            Log.w(FILE, sensor.getName() + " has no hardware FIFO, its samples will not be batched");
+        }
+        sensor_manager.registerListener(this, sensor, sampling_period, max_report_latency_us, sensor_handler);
+        short sensor_id = (short) sensor.getType();
+        SensorStreamRegistry streams = sensor_streams;
+        int stream = streams == null ? -1 : streams.streamOf(sensor_id);
+        if (stream >= 0) {
+            streams.writeSensorRate(stream, SystemClock.elapsedRealtimeNanos(), requestedPeriodUs(sensor, sampling_period),
+                    max_report_latency_us, Float.NaN);
+        } else {
+            imu_recorder.writeSensorRate(SystemClock.elapsedRealtimeNanos(), sensor_id,
+                    requestedPeriodUs(sensor, sampling_period), max_report_latency_us, Float.NaN);
+        }
+    }
+
+    // Translate the SensorManager.SENSOR_DELAY_* presets into the sampling period they stand for
+    private static int requestedPeriodUs(Sensor sensor, int sampling_period) {
+        switch (sampling_period) {
+            case SensorManager.SENSOR_DELAY_FASTEST:
+                return sensor.getMinDelay();
+            case SensorManager.SENSOR_DELAY_GAME:
+                return 20_000;
+            case SensorManager.SENSOR_DELAY_UI:
+                return 66_667;
+            case SensorManager.SENSOR_DELAY_NORMAL:
+                return 200_000;
+            default:
+                return sampling_period;
+        }
+    }
+
+    // Only the first call counts; the start latency is written from the writer thread once both clocks can be mapped
+    protected void notifyVideoStart(SessionClock.Domain domain, long video_start_time) {
+        session_clock.markVideoStart(domain, video_start_time);
+    }
+
+    // Called from a single camera thread with each frame's sensor timestamp as its capture result is delivered
+    protected void observeCameraClock(long sensor_timestamp) {
+        session_clock.observe(SessionClock.Domain.CAMERA_SENSOR, sensor_timestamp, SystemClock.elapsedRealtimeNanos());
+    }
+
+    protected void setCameraTimestampsRealtime(boolean realtime) {
+        session_clock.setCameraTimestampsRealtime(realtime);
+    }
+
+    // Called from the camera's callback thread with the timestamp of every captured frame
+    protected void notifyFrame(long frame_timestamp) {
+        // Gaps in the frame timestamps reveal frames the camera dropped before they reached the app
+        frame_stats.record(frame_timestamp);
+        IMURecorder recorder = imu_recorder;
+        if (recorder == null) return;
+        // IMU samples are stamped on elapsedRealtime, and so are frames of cameras with a realtime timestamp source; frames
+        // of any other camera are mapped onto it, and left out of alignment until the mapping is known
+        long realtime = session_clock.frameToRealtime(frame_timestamp);
+        if (realtime == -1) {
+            unmapped_frames.incrementAndGet();
+        } else if (!recorder.submitFrame(realtime)) {
+            Log.w(FILE, "Frame " + frame_timestamp + " dropped from IMU alignment or preintegration");
+        }
+    }
+
+    // Called from the camera's callback thread for frames captured but deliberately not saved
+    protected void notifySkippedFrame(long frame_timestamp) {
+        frame_stats.record(frame_timestamp);
+    }
+
+    // Notes an adjustment of the burst rate in the IMU data file, once the IMU recording has started
+    protected void notifyBurstRate(long timestamp, long frame_interval_ns, int jpeg_quality, double write_bandwidth_bps) {
+        IMURecorder recorder = imu_recorder;
+        if (recorder == null) return;
+        try {
+            recorder.writeBurstRate(timestamp, frame_interval_ns, jpeg_quality, write_bandwidth_bps);
+        } catch (IOException exception) {
+            Log.e(FILE, "Burst rate adjustment failed to be written");
+            exception.printStackTrace();
+        }
     }
 
     protected void broadcast_record_status(String status) {
@@ -127,6 +526,12 @@ public abstract class IMUCapture extends AppCompatActivity implements SensorEven
         try {
             boolean file_new = imu_data.createNewFile();
             Log.i(FILE, "IMU data file (new: " + file_new + "; exists: " + imu_data.exists() + ") at " + imu_data.getPath());
+            // Sparse time index of the IMU data and frames, for loading any window of the session without scanning it
+            if (file_new) {
+                session_index = new SessionIndexWriter(new ChannelIMUStorage(getSessionFile(".tidx")),
+                        SessionIndexWriter.DEFAULT_BUCKET_NS);
+                imu_time_index = session_index.stream(SessionIndexWriter.IMU_STREAM);
+            }
         } catch (IOException io_exception) {
             Log.e(FILE, "Creation failed: " + imu_data.getPath());
             Toast.makeText(this, "IMU data storage file cannot be created", Toast.LENGTH_LONG).show();
@@ -136,4 +541,28 @@ public abstract class IMUCapture extends AppCompatActivity implements SensorEven
         // Return the location for media
         return new File(ContextCompat.getExternalFilesDirs(this, Environment.DIRECTORY_DCIM)[0], media_name);
     }
+
+    // Storage for a data file of the session; with the journaled_storage extra the data goes into a <file>.journal
+    // directory instead, which SegmentedJournalReader turns back into the file
+    protected IMUStorage openSessionStorage(File file) throws IOException {
+        if (!journaled_storage) return new ChannelIMUStorage(file);
+        return new SegmentedJournalWriter(new File(file.getPath() + ".journal"), SegmentedJournalFormat.DEFAULT_SEGMENT_SIZE);
+    }
+
+    // Reads back the session's IMU data file, from its journal if it has one
+    protected InputStream openIMUData() throws IOException {
+        if (journaled_storage) return new SegmentedJournalReader(new File(imu_data.getPath() + ".journal"));
+        return new FileInputStream(imu_data);
+    }
+
+    protected boolean isJournaled() {
+        return journaled_storage;
+    }
+
+    // File of this recording session stored next to the IMU data file, named after it with a different extension
+    protected File getSessionFile(String extension) {
+        String name = imu_data.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(imu_data.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + extension);
+    }
 }
\ No newline at end of file
@@ -1,35 +1,48 @@
 package com.nyu.video_imu_recorder;
 
+import android.Manifest;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CameraMetadata;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.AppCompatButton;
 import androidx.appcompat.widget.SwitchCompat;
 import androidx.camera.video.VideoRecordEvent;
 import androidx.core.content.ContextCompat;
 
+import com.nyu.video_imu_recorder.core.SegmentedJournalReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String VID = "Recording_logistics";
+    private static final int CAMERA_PERMISSION = new SecureRandom().nextInt(100);
     private RecordStatusReceiver record_status_receiver;
     private static int record_count = 1;
+    private static boolean journals_recovered = false;
+    // When record_start was last tapped, on elapsedRealtime; recording activities time their startup from it
+    private long tap_time;
+    // Set while the back camera's id is awaited, so that further taps do not launch a second recording
+    private boolean launching = false;
 
     public class RecordStatusReceiver extends BroadcastReceiver {
         @Override
@@ -55,11 +68,19 @@ public class MainActivity extends AppCompatActivity {
     /*
     Currently, both imu and video data are stored under /sdcard/Android/data/com.nyu.video_imu_recorder
 
-    The IMU data is stored under the following format (A more sophisticated tabular format is also possible in Android)
-    <nano seconds elapsed since an external time instant> <sensor name> <[a comma-separated list with sensor data]>
-    Example:
-    1578699792815 Goldfish 3-axis Gyroscope [0.0, 0.0, 0.0]
-    TODO: try to set IMU sensor sampling period close to camera frame rate
+    Each recording holds, next to its video or frame pack:
+    - the IMU data file: binary records (IMURecordFormat), or compressed blocks (IMUStreamFormat) with the
+      compressed_imu_data extra; IMURecordReader converts both back to the original text format
+    - in burst mode, a frame pack (FramePackFormat), IMU values at every frame (IMUAlignmentEngine) and each frame's
+      capture metadata (CaptureMetadataWriter); in video mode, a frame timestamp index (FrameTimestampIndex) and an IMU
+      track inside the .mp4 (IMUTrackFormat)
+    - gyroscope preintegration between frames (GyroPreintegrator), a health summary (RecordingHealth), a time index of
+      the whole session (SessionIndexWriter) and a file per extra sensor (SensorStreamRegistry)
+    Recording options are intent extras, documented where IMUCapture, BurstImage and VideoRecord read them. Sessions can
+    be journaled (SegmentedJournalFormat) and streamed live to a desktop (LiveStreamFormat).
+
+    The formats live in the plain-Java recorder_core module, with JMH benchmarks run by ./gradlew :recorder_core:jmh;
+    session_converter turns sessions into columnar files (see SessionConverter).
     */
 
     @Override
@@ -67,56 +88,104 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // Look up the camera and start CameraX while the user is still on this screen, and ask for the camera permission
+        // now rather than after the tap
+        CameraPrewarm.start(this);
+        recoverJournals();
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_DENIED) {
+            requestPermissions(new String[] {Manifest.permission.CAMERA}, CAMERA_PERMISSION);
+        }
+
         // Prepare for launching data capturing activity
-        SwitchCompat record_mode = findViewById(R.id.record_mode);
         AppCompatButton record_start = findViewById(R.id.record_start);
         record_start.setOnClickListener(view -> {
-            // Set up broadcast receiver
-            record_status_receiver = new RecordStatusReceiver();
-            IntentFilter filter = new IntentFilter(getPackageName() + ".RECORD_STATUS");
-            ContextCompat.registerReceiver(this, record_status_receiver, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
-
-            Intent launch_record = new Intent(this, record_mode.isChecked() ? BurstImage.class : VideoRecord.class);
-            try {
-                launch_record.putExtra("back_camera_id", findBackCameraId());
-                // Create appropriate file names for video recording and imu data given number of recordings made
-                Pair<String, String> file_names = generateFileNames(record_count);
-                launch_record.putExtra("media_name", file_names.first);
-                launch_record.putExtra("imu_data_name", file_names.second);
-                startActivity(launch_record);
-            } catch (CameraAccessException exception) {
-                Toast.makeText(this, "The device does not have a usable back camera for recording.", Toast.LENGTH_LONG).show();
-                exception.printStackTrace();
-                finish();
+            tap_time = SystemClock.elapsedRealtimeNanos();
+            if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
+                launchRecording();
+            } else {
+                // The recording starts once the permission is granted (see onRequestPermissionsResult)
+                requestPermissions(new String[] {Manifest.permission.CAMERA}, CAMERA_PERMISSION);
             }
         });
     }
 
-    private String findBackCameraId() throws CameraAccessException {
-        /*
-        Locate back-facing camera (Technically this should be implemented like below, but it doesn't work because of emulator I think)
-        PackageManager package_manager = getPackageManager();
-        boolean has_back_camera = package_manager.hasSystemFeature(PackageManager.FEATURE_CAMERA_ANY);
-        This code seems to always produce false when run on emulator
-        */
-        CameraManager camera_manager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
-        String[] camera_IDs = camera_manager.getCameraIdList();
-        Log.v(VID, "Camera-IDs: " + Arrays.toString(camera_IDs));
-        for (String camera_id : camera_IDs) {
-            if (camera_manager.getCameraCharacteristics(camera_id).get(CameraCharacteristics.LENS_FACING) == CameraMetadata.LENS_FACING_BACK) {
-                Log.d(VID, "Found back-facing camera with id " + camera_id);
-                return camera_id;
+    // Journals left open by a session the app was killed in are made consistent again, once per process. They are listed
+    // here, before any recording can start, so that the background pass never touches the journal of a new session.
+    private void recoverJournals() {
+        if (journals_recovered) return;
+        journals_recovered = true;
+        List<File> journals = new ArrayList<>();
+        for (String type : new String[] {Environment.DIRECTORY_DOCUMENTS, Environment.DIRECTORY_DCIM}) {
+            File[] files = ContextCompat.getExternalFilesDirs(this, type)[0].listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                if (file.isDirectory() && file.getName().endsWith(".journal")) journals.add(file);
             }
         }
-        throw new CameraAccessException(CameraAccessException.CAMERA_DISCONNECTED, "No back-facing camera found.");
+        if (journals.isEmpty()) return;
+        new Thread(() -> {
+            for (File journal : journals) {
+                try {
+                    SegmentedJournalReader.Recovery recovery = SegmentedJournalReader.recover(journal);
+                    if (recovery.closed) continue;
+                    Log.w(VID, "Recovered " + journal.getName() + ": " + recovery.length + " bytes kept, "
+                            + recovery.discarded_bytes + " discarded, " + recovery.segments_scanned + " segments checked");
+                } catch (IOException exception) {
+                    Log.e(VID, "Journal " + journal.getName() + " failed to be recovered");
+                    exception.printStackTrace();
+                }
+            }
+        }, "journal_recovery").start();
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode != CAMERA_PERMISSION) return;
+        if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            // Only a request made by a tap goes on to record
+            if (tap_time != 0) launchRecording();
+        } else {
+            Toast.makeText(this, "camera permission denied, recording needs it", Toast.LENGTH_LONG).show();
+        }
+    }
+
+    // The recording is launched once the back camera's id is known, which is usually right away (see CameraPrewarm)
+    private void launchRecording() {
+        if (launching) return;
+        launching = true;
+        CameraPrewarm.getBackCameraId(this, this::launchRecording, exception -> {
+            launching = false;
+            Toast.makeText(this, "The device does not have a usable back camera for recording.", Toast.LENGTH_LONG).show();
+            exception.printStackTrace();
+            finish();
+        });
+    }
+
+    private void launchRecording(String back_camera_id) {
+        launching = false;
+        if (isDestroyed()) return;
+        // Set up broadcast receiver
+        record_status_receiver = new RecordStatusReceiver();
+        IntentFilter filter = new IntentFilter(getPackageName() + ".RECORD_STATUS");
+        ContextCompat.registerReceiver(this, record_status_receiver, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+
+        SwitchCompat record_mode = findViewById(R.id.record_mode);
+        Intent launch_record = new Intent(this, record_mode.isChecked() ? BurstImage.class : VideoRecord.class);
+        launch_record.putExtra("back_camera_id", back_camera_id);
+        // Create appropriate file names for video recording and imu data given number of recordings made
+        Pair<String, String> file_names = generateFileNames(record_count);
+        launch_record.putExtra("media_name", file_names.first);
+        launch_record.putExtra("imu_data_name", file_names.second);
+        launch_record.putExtra("record_tap_time_ns", tap_time);
+        tap_time = 0;
+        startActivity(launch_record);
     }
 
     private Pair<String, String> generateFileNames(int record_count) {
         SimpleDateFormat date_format = new SimpleDateFormat("MMM_dd_yyyy", Locale.US);
         String date = date_format.format(new Date());
         String media_name = date + "_media_" + record_count;
-        // TODO: migrate to a more organized format such as csv
-        String imu_data_name = date + "_IMU_data_" + record_count + ".txt";
+        String imu_data_name = date + "_IMU_data_" + record_count + ".imu";
         return new Pair<>(media_name, imu_data_name);
     }
 
@@ -2,8 +2,13 @@ package com.nyu.video_imu_recorder;
 
 import android.Manifest;
 import android.content.pm.PackageManager;
+import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.util.Log;
@@ -13,6 +18,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.OptIn;
 import androidx.camera.camera2.Camera2Config;
 import androidx.camera.camera2.interop.Camera2CameraInfo;
+import androidx.camera.camera2.interop.Camera2Interop;
 import androidx.camera.camera2.interop.ExperimentalCamera2Interop;
 import androidx.camera.core.CameraInfo;
 import androidx.camera.core.CameraSelector;
@@ -31,11 +37,22 @@ import androidx.core.content.ContextCompat;
 import androidx.core.util.Consumer;
 
 import com.google.common.util.concurrent.ListenableFuture;
+import com.nyu.video_imu_recorder.core.ChannelIMUStorage;
+import com.nyu.video_imu_recorder.core.ClockDomainEstimator;
+import com.nyu.video_imu_recorder.core.FrameTimestampIndex;
+import com.nyu.video_imu_recorder.core.FrameTimestampIndexWriter;
+import com.nyu.video_imu_recorder.core.IMUTrackEmbedder;
+import com.nyu.video_imu_recorder.core.IMUTrackFormat;
+import com.nyu.video_imu_recorder.core.SessionClock;
+import com.nyu.video_imu_recorder.core.StartupTimeline;
 
 import java.io.File;
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
@@ -47,36 +64,44 @@ public class VideoRecord extends IMUCapture implements CameraXConfig.Provider {
     private static final String CAM = "Capture_use_cases";
     private VideoCapture<Recorder> video_capture;
     private Recording video_recording;
-    private long last_save_time = 0;
+    private volatile FrameTimestampIndexWriter frame_index;
+    // Frames captured before the recording starts or while it is paused never reach the video file, so they are left out
+    // of the index; the camera and its capture callback run from the moment the use cases are bound
+    private volatile boolean frame_indexing = false;
+    // Index of the first frame of every stretch the video was recorded in, and whether the next indexed frame starts a
+    // stretch
+    private final List<Integer> stretch_first_frames = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean stretch_starting = false;
+    private PreviewView camera_preview;
+    private File video_file, frame_index_file;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_record);
-        String imu_data_name = getIntent().getStringExtra("imu_data_name");
-        String media_name = getIntent().getStringExtra("media_name");
+        camera_preview = findViewById(R.id.camera_preview);
 
-        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_DENIED) {
+        // The camera is only bound once the permission is there, which MainActivity normally asked for before launching
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
+            startCamera();
+        } else {
             requestPermissions(new String[] {Manifest.permission.CAMERA}, CAMERA_PERMISSION);
         }
 
-        // Establish camera controls and start recording
-        PreviewView camera_preview = findViewById(R.id.camera_preview);
-        ListenableFuture<ProcessCameraProvider> camera_provider_future = ProcessCameraProvider.getInstance(this);
-        camera_provider_future.addListener(() -> {
-            try {
-                ProcessCameraProvider camera_provider = camera_provider_future.get();
-                bindPreviewAndVideo(camera_provider, camera_preview);
-                startDataCollection(media_name, imu_data_name);
-            } catch (IOException | InterruptedException | ExecutionException | IllegalArgumentException exception) {
-                exception.printStackTrace();
-            }
-        }, ContextCompat.getMainExecutor(this));
-
         // Stop recording and save the video and imu data upon clicking camera preview
         camera_preview.setOnClickListener(view -> {
+            if (video_recording == null) return;
             video_recording.stop();
             stopIMURecording();
+            try {
+                if (frame_index != null) {
+                    frame_index.close();
+                    Log.i(CAM, frame_index.getFrameCount() + " frame timestamps indexed");
+                }
+            } catch (IOException exception) {
+                Log.e(CAM, "Frame timestamp index failed to close");
+                exception.printStackTrace();
+            }
             finish();
         });
     }
@@ -85,8 +110,9 @@ public class VideoRecord extends IMUCapture implements CameraXConfig.Provider {
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
         if (requestCode == CAMERA_PERMISSION) {
-            if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                 Toast.makeText(this, "camera permission granted", Toast.LENGTH_LONG).show();
+                startCamera();
             } else {
                 Toast.makeText(this, "camera permission denied, aborting", Toast.LENGTH_LONG).show();
                 finish();
@@ -94,6 +120,23 @@ public class VideoRecord extends IMUCapture implements CameraXConfig.Provider {
         }
     }
 
+    // Establish camera controls and start recording. MainActivity already initialized the camera provider, so its future
+    // is usually complete by now.
+    private void startCamera() {
+        String imu_data_name = getIntent().getStringExtra("imu_data_name");
+        String media_name = getIntent().getStringExtra("media_name");
+        ListenableFuture<ProcessCameraProvider> camera_provider_future = ProcessCameraProvider.getInstance(this);
+        camera_provider_future.addListener(() -> {
+            try {
+                ProcessCameraProvider camera_provider = camera_provider_future.get();
+                bindPreviewAndVideo(camera_provider, camera_preview);
+                startDataCollection(media_name, imu_data_name);
+            } catch (IOException | InterruptedException | ExecutionException | IllegalArgumentException exception) {
+                exception.printStackTrace();
+            }
+        }, ContextCompat.getMainExecutor(this));
+    }
+
     @NonNull
     @Override
     public CameraXConfig getCameraXConfig() {
@@ -107,6 +150,10 @@ public class VideoRecord extends IMUCapture implements CameraXConfig.Provider {
         CameraInfo back_camera_info = camera_provider.getAvailableCameraInfos().stream().filter(camera_info ->
                 Camera2CameraInfo.from(camera_info).getCameraCharacteristic(CameraCharacteristics.LENS_FACING) == CameraMetadata.LENS_FACING_BACK
         ).collect(Collectors.toList()).get(0);
+        Integer timestamp_source = Camera2CameraInfo.from(back_camera_info)
+                .getCameraCharacteristic(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        setCameraTimestampsRealtime(timestamp_source != null
+                && timestamp_source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME);
         Stream<Quality> available_qualities = QualitySelector.getSupportedQualities(back_camera_info).stream().filter(
                 quality -> Arrays.asList(Quality.UHD, Quality.FHD, Quality.HD, Quality.SD).contains(quality)
         );
@@ -118,9 +165,15 @@ public class VideoRecord extends IMUCapture implements CameraXConfig.Provider {
         return VideoCapture.withOutput(recorder);
     }
 
+    @OptIn(markerClass = ExperimentalCamera2Interop.class)
     private void bindPreviewAndVideo(ProcessCameraProvider camera_provider, PreviewView camera_preview) {
-        // Prepare screen to display camera preview
-        Preview preview = new Preview.Builder().build();
+        // Prepare screen to display camera preview. Preview and video capture share one repeating request, so the session
+        // capture callback attached here sees the capture result of every frame the video is encoded from.
+        Preview.Builder preview_builder = new Preview.Builder();
+        // The device and session callbacks only time the startup (see StartupTimeline)
+        new Camera2Interop.Extender<>(preview_builder).setSessionCaptureCallback(frame_timestamp_callback)
+                .setDeviceStateCallback(startup_device_callback).setSessionStateCallback(startup_session_callback);
+        Preview preview = preview_builder.build();
         CameraSelector camera_selector = new CameraSelector.Builder().requireLensFacing(CameraSelector.LENS_FACING_BACK).build();
         preview.setSurfaceProvider(camera_preview.getSurfaceProvider());
 
@@ -141,7 +194,12 @@ public class VideoRecord extends IMUCapture implements CameraXConfig.Provider {
 
         // Configure video output file location
         File video_location = setIMUFileAndGetMediaLocation(imu_data_name, media_name);
+        // Every frame's sensor timestamp goes into an index next to the video (see FrameTimestampIndexWriter)
+        frame_index_file = new File(video_location.getParentFile(), video_location.getName() + ".ftix");
+        frame_index = new FrameTimestampIndexWriter(new ChannelIMUStorage(frame_index_file),
+                FrameTimestampIndexWriter.DEFAULT_CHECKPOINT_INTERVAL);
         video_location = new File(video_location.getParentFile(), video_location.getName() + ".mp4");
+        video_file = video_location;
         FileOutputOptions output_options = new FileOutputOptions.Builder(video_location).build();
         // Enable writing to IMU data file, start recording, and listen for sensor data
         startIMURecording();
@@ -149,18 +207,94 @@ public class VideoRecord extends IMUCapture implements CameraXConfig.Provider {
                 .start(ContextCompat.getMainExecutor(this), record_event_listener);
     }
 
+    // Records the sensor timestamp of every captured frame, and has IMU values aligned with it
+    private final CameraCaptureSession.CaptureCallback frame_timestamp_callback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            FrameTimestampIndexWriter index = frame_index;
+            Long sensor_timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (sensor_timestamp == null) return;
+            markStartup(StartupTimeline.Phase.FIRST_FRAME);
+            observeCameraClock(sensor_timestamp);
+            if (index == null || !frame_indexing) return;
+            try {
+                index.append(sensor_timestamp);
+                if (stretch_starting) {
+                    stretch_starting = false;
+                    stretch_first_frames.add((int) index.getFrameCount() - 1);
+                }
+            } catch (IOException exception) {
+                Log.e(CAM, "Frame timestamp failed to be indexed");
+                exception.printStackTrace();
+            }
+            notifyFrame(sensor_timestamp);
+        }
+    };
+
+    private final CameraDevice.StateCallback startup_device_callback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(@NonNull CameraDevice camera) {
+            markStartup(StartupTimeline.Phase.CAMERA_OPENED);
+        }
+        @Override
+        public void onDisconnected(@NonNull CameraDevice camera) {}
+        @Override
+        public void onError(@NonNull CameraDevice camera, int error) {}
+    };
+
+    private final CameraCaptureSession.StateCallback startup_session_callback = new CameraCaptureSession.StateCallback() {
+        @Override
+        public void onConfigured(@NonNull CameraCaptureSession session) {
+            markStartup(StartupTimeline.Phase.SESSION_CONFIGURED);
+        }
+        @Override
+        public void onConfigureFailed(@NonNull CameraCaptureSession session) {}
+    };
+
+    // Adds the IMU samples to the finalized video as a timed metadata track (see IMUTrackEmbedder), starting at its first
+    // indexed frame and leaving out the pauses, with the frames placed on the samples' clock through the camera clock
+    private void embedIMUTrack() {
+        try {
+            ClockDomainEstimator.Estimate camera_clock = getCameraClock();
+            int[] first_frames;
+            synchronized (stretch_first_frames) {
+                first_frames = stretch_first_frames.stream().mapToInt(Integer::intValue).toArray();
+            }
+            long[][] segments = camera_clock == null || first_frames.length == 0 ? null
+                    : IMUTrackEmbedder.segments(new FrameTimestampIndex(frame_index_file), first_frames, camera_clock);
+            if (segments == null) {
+                Log.w(CAM, "No frames on the samples' clock, IMU track not embedded");
+                return;
+            }
+            // How much IMU data each track sample holds
+            long interval_ns = getIntent().getLongExtra("imu_track_interval_ms", IMUTrackFormat.DEFAULT_SAMPLE_INTERVAL_NS / 1_000_000)
+                    * 1_000_000;
+            IMUTrackEmbedder.Result result = IMUTrackEmbedder.embed(video_file, openIMUData(), segments[0], segments[1], interval_ns);
+            Log.i(CAM, result == null ? "No IMU data to embed in " + video_file.getName() : "Embedded " + result);
+        } catch (IOException exception) {
+            Log.e(CAM, "IMU track failed to be embedded in " + video_file.getPath());
+            exception.printStackTrace();
+        }
+    }
+
     // This is the callback handed to video capture to handle recording related events
     private final Consumer<VideoRecordEvent> record_event_listener = video_record_event -> {
 
         if (video_record_event instanceof VideoRecordEvent.Start) {
+            stretch_starting = true;
+            frame_indexing = true;
             // Note the start time of the recording in the imu data file
-            notifyVideoStart(SystemClock.elapsedRealtimeNanos());
+            notifyVideoStart(SessionClock.Domain.ELAPSED_REALTIME, SystemClock.elapsedRealtimeNanos());
             Toast.makeText(this, "Recording started", Toast.LENGTH_SHORT).show();
 
         } else if (video_record_event instanceof VideoRecordEvent.Pause) {
+            frame_indexing = false;
             stopIMURecording();
             Toast.makeText(this, "Recording paused", Toast.LENGTH_SHORT).show();
         } else if (video_record_event instanceof VideoRecordEvent.Resume) {
+            stretch_starting = true;
+            frame_indexing = true;
             startIMURecording();
             Toast.makeText(this, "Recording resumed", Toast.LENGTH_SHORT).show();
 
@@ -175,18 +309,11 @@ public class VideoRecord extends IMUCapture implements CameraXConfig.Provider {
                 Log.e(CAM, finalize_event.getCause().getMessage());
             } else {
                 Toast.makeText(this, "Recording success", Toast.LENGTH_SHORT).show();
+                // Off the main thread, as it reads the whole IMU data file; the imu_track extra turns it off
+                if (getIntent().getBooleanExtra("imu_track", true)) new Thread(this::embedIMUTrack, "imu_track_thread").start();
             }
             broadcast_record_status(final_message);
             Log.i(CAM, "Video path: " + finalize_event.getOutputResults().getOutputUri().getPath());
-            return;
-        }
-
-        // Close and re-open the FileOutputStream object every 3 seconds to avoid overwhelming file write buffer
-        long current_time = video_record_event.getRecordingStats().getRecordedDurationNanos();
-        if ((current_time - last_save_time > 3 * Math.pow(10, 9))) {
-            last_save_time = current_time;
-            stopIMURecording();
-            startIMURecording();
         }
     };
 }
\ No newline at end of file
@@ -0,0 +1,26 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.nio.ByteBuffer;
+
+// Storage that only counts what it is given, so benchmarks measure serialization without the disk
+public class DiscardingStorage implements IMUStorage {
+
+    private long size = 0;
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void write(ByteBuffer data) {
+        size += data.remaining();
+        data.position(data.limit());
+    }
+
+    @Override
+    public void sync() {}
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,79 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Frames per second written to a frame pack, one at a time and through the pooled write pipeline. Multiply by the
+// frame size for bytes per second.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FramePackWriterBenchmark {
+
+    private static final int BATCH = 4;
+
+    // A compressed 1080p JPEG and a 12 MP one
+    @Param({"262144", "2097152"})
+    public int frame_size;
+
+    private File file;
+    private FramePackWriter pack;
+    private FrameWritePipeline pipeline;
+    private final long[] timestamps = new long[BATCH];
+    private final ByteBuffer[] frames = new ByteBuffer[BATCH];
+    private long timestamp = 0;
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        file = File.createTempFile("burst", ".frames");
+        pack = new FramePackWriter(file, FramePackFormat.FORMAT_JPEG, 1920, 1080);
+        pipeline = new FrameWritePipeline(pack, FrameWritePipeline.OverflowPolicy.THROTTLE, 8, frame_size, 2);
+        for (int i = 0; i < BATCH; ++i) {
+            frames[i] = ByteBuffer.allocateDirect(frame_size);
+            for (int j = 0; j < frame_size; j += 4096) frames[i].put(j, (byte) (i + j));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException, InterruptedException {
+        pipeline.close();
+        pack.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void writeFrame() throws IOException {
+        pack.writeFrame(++timestamp, frames[0].duplicate());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void writeBatch() throws IOException {
+        for (int i = 0; i < BATCH; ++i) {
+            timestamps[i] = ++timestamp;
+            frames[i].clear();
+        }
+        pack.writeFrames(timestamps, frames, BATCH);
+    }
+
+    // Throttled, so the measured rate is what the writer threads sustain rather than how fast frames can be dropped
+    @Benchmark
+    public boolean submitToPipeline() {
+        frames[0].clear();
+        return pipeline.submit(++timestamp, frames[0]);
+    }
+}
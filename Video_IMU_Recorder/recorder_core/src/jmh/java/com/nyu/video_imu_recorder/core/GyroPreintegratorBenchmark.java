@@ -0,0 +1,54 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Writer-thread cost per sample of integrating rotation (and velocity) between 30 fps frames reported 80 ms late
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GyroPreintegratorBenchmark {
+
+    private static final short ACCELEROMETER = 10, GYROSCOPE = 4;
+    private static final long PERIOD = 2_500_000, FRAME_PERIOD = 33_333_333, FRAME_DELAY = 80_000_000;
+
+    @Param({"false", "true"})
+    public boolean velocity;
+
+    private GyroPreintegrator preintegrator;
+    private final float[] values = {0.3f, -0.2f, 1};
+    private long timestamp = 0, next_frame = 0;
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        preintegrator = new GyroPreintegrator(new DiscardingStorage(), GYROSCOPE, new float[3],
+                velocity ? ACCELEROMETER : GyroPreintegrator.NO_ACCELEROMETER, new float[3], 500_000_000);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        preintegrator.close();
+    }
+
+    @Benchmark
+    public void onSample() throws IOException {
+        timestamp += PERIOD / 2;
+        if (next_frame + FRAME_DELAY <= timestamp) {
+            preintegrator.submitFrame(next_frame);
+            next_frame += FRAME_PERIOD;
+        }
+        // Gyroscope and accelerometer alternate at 400 Hz each
+        preintegrator.onSample(timestamp, (timestamp / (PERIOD / 2)) % 2 == 0 ? GYROSCOPE : ACCELEROMETER, values, 0, 3);
+    }
+}
@@ -0,0 +1,69 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Cost of serializing one IMU sample, in memory and through each storage backend, as fixed-width records or compressed;
+// IMUSessionBenchmark measures whole sessions with their commits
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+public class IMURecordWriterBenchmark {
+
+    @Param({"discard", "channel", "mapped"})
+    public String storage;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private File file;
+    private IMURecordWriter writer;
+    private final float[] values = {0.1f, -9.81f, 0.02f};
+    private long timestamp = 0;
+    private int sample = 0;
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        file = File.createTempFile("imu", ".imu");
+        IMUStorage backend;
+        switch (storage) {
+            case "channel":
+                backend = new ChannelIMUStorage(file);
+                break;
+            case "mapped":
+                backend = new MappedIMUStorage(file, MappedIMUStorage.DEFAULT_CHUNK_SIZE);
+                break;
+            default:
+                backend = new DiscardingStorage();
+        }
+        writer = new IMURecordWriter(backend, new short[] {10, 4}, new String[] {"Linear Acceleration", "Gyroscope"},
+                compressed);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        writer.close();
+        file.delete();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void writeSample() throws IOException {
+        timestamp += 2_500_000;
+        // A slowly changing value keeps the compressed case honest
+        values[0] = (timestamp >>> 16) * 1e-6f;
+        // The two sensors the writer is declared for, interleaved as they arrive while recording
+        writer.onSample(timestamp, (++sample & 1) == 0 ? (short) 10 : (short) 4, values, 0, 3);
+    }
+}
@@ -0,0 +1,63 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// What the sensor thread pays per sample on the full recording path, with the writer thread, clock logging and frame
+// alignment running behind it
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+public class IMURecorderBenchmark {
+
+    private static final short ACCELEROMETER = 10, GYROSCOPE = 4;
+
+    @Param({"false", "true"})
+    public boolean alignment;
+
+    private File file, sidecar;
+    private IMURecorder recorder;
+    private final float[] values = {0.1f, -9.81f, 0.02f};
+    private long timestamp = 0;
+
+    @Setup(Level.Iteration)
+    public void start() throws IOException {
+        file = File.createTempFile("imu", ".imu");
+        sidecar = File.createTempFile("imu", ".align");
+        short[] sensor_ids = {ACCELEROMETER, GYROSCOPE};
+        IMUAlignmentEngine engine = alignment
+                ? new IMUAlignmentEngine(new ChannelIMUStorage(sidecar), sensor_ids, 500_000_000) : null;
+        recorder = new IMURecorder(new ChannelIMUStorage(file), sensor_ids, new String[] {"Linear Acceleration", "Gyroscope"},
+                new SessionClock(), new GroupCommitPolicy(1000, 256 * 1024, System.nanoTime()), engine, null);
+        recorder.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() throws IOException {
+        recorder.stop();
+        recorder.close();
+        file.delete();
+        sidecar.delete();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean onSample() {
+        timestamp += 1_250_000;
+        // Interleave both sensors and a 30 fps camera the way a recording does
+        if (timestamp % 33_750_000 == 0) recorder.submitFrame(timestamp);
+        return recorder.onSample(timestamp, timestamp + 100_000, timestamp % 2_500_000 == 0 ? GYROSCOPE : ACCELEROMETER,
+                values, 3);
+    }
+}
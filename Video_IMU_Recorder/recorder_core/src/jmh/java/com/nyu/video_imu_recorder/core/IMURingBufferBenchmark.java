@@ -0,0 +1,39 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Hand-off rate of the sensor-to-writer ring with a producer and a consumer on their own threads, as on the device
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IMURingBufferBenchmark {
+
+    private final IMURingBuffer ring = new IMURingBuffer(8192);
+    private final float[] values = {0.1f, -9.81f, 0.02f};
+    private long timestamp = 0;
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean offer() {
+        return ring.offer(++timestamp, (short) 4, values, 3);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public int drain(Blackhole blackhole) throws IOException {
+        return ring.drain((sample_timestamp, sensor_id, sample_values, offset, accuracy) -> blackhole.consume(sample_timestamp), 512);
+    }
+}
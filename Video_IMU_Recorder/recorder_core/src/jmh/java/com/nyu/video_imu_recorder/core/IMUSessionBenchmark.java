@@ -0,0 +1,72 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Time to record a whole simulated session through each storage backend: an accelerometer and a gyroscope interleaved
+// at 1 kHz each, committed every second of sensor time as the writer thread does by default, so the stream backend's
+// fsync and the mapped backend's force of every chunk are part of the cost. Each measurement is one session.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class IMUSessionBenchmark {
+
+    private static final int RATE_HZ = 1000;
+    private static final short ACCELEROMETER = 10, GYROSCOPE = 4;
+
+    @Param({"channel", "mapped"})
+    public String storage;
+
+    // A minute and a 30 minute session
+    @Param({"60", "1800"})
+    public int session_seconds;
+
+    private File file;
+    private IMURecordWriter writer;
+    private final float[] values = new float[3];
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        file = File.createTempFile("imu", ".imu");
+        IMUStorage backend = storage.equals("mapped") ? new MappedIMUStorage(file, MappedIMUStorage.DEFAULT_CHUNK_SIZE)
+                : new ChannelIMUStorage(file);
+        writer = new IMURecordWriter(backend, new short[] {ACCELEROMETER, GYROSCOPE},
+                new String[] {"Linear Acceleration", "Gyroscope"});
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long recordSession() throws IOException {
+        long period = 1_000_000_000L / RATE_HZ;
+        for (long sample = 0; sample < (long) session_seconds * RATE_HZ; ++sample) {
+            long timestamp = sample * period;
+            values[0] = sample % 977;
+            writer.writeSample(timestamp, ACCELEROMETER, values, 3);
+            writer.writeSample(timestamp + period / 2, GYROSCOPE, values, 3);
+            if (sample % RATE_HZ == RATE_HZ - 1) writer.commit();
+        }
+        // Closing syncs what is left, so it belongs to the session
+        writer.close();
+        return file.length();
+    }
+}
@@ -0,0 +1,40 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Samples per second the compressed stream encoder takes on its own, with Gaussian noise at jittered timestamps, the
+// hardest input for its codecs. Two sensors at the fastest common 1 kHz need only 2000 samples/s of it.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IMUStreamEncoderBenchmark {
+
+    private final IMUStreamEncoder encoder = new IMUStreamEncoder();
+    private final IMUStorage storage = new DiscardingStorage();
+    private final float[] values = new float[3 * 1024];
+    private long timestamp = 0;
+    private int sample = 0;
+
+    public IMUStreamEncoderBenchmark() {
+        Random random = new Random(7);
+        for (int i = 0; i < values.length; ++i) values[i] = (float) random.nextGaussian();
+    }
+
+    @Benchmark
+    public int addSample() throws IOException {
+        timestamp += 2_500_000 + (sample & 31);
+        int written = encoder.addSample(storage, timestamp, (sample & 1) == 0 ? (short) 10 : (short) 4, values,
+                3 * (sample & 1023), 3);
+        ++sample;
+        return written;
+    }
+}
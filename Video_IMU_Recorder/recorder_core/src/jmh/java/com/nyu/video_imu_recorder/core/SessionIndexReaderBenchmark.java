@@ -0,0 +1,80 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Time to load the 2-second window of IMU samples and frames around a random point of a synthetic session, which should
+// not grow with the session's length
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionIndexReaderBenchmark {
+
+    private static final long SECOND = 1_000_000_000L, SAMPLE_INTERVAL_NS = 5_000_000, FRAME_INTERVAL_NS = 100_000_000;
+    private static final short ACCELEROMETER = 10, GYROSCOPE = 4;
+
+    @Param({"1", "4"})
+    public int session_hours;
+
+    private File index_file, imu_file, frame_file;
+    private SessionIndexReader reader;
+    private final Random random = new Random(1);
+    private long duration_ns;
+
+    // Accelerometer and gyroscope at 200 Hz each with frames at 10 fps, about 45 MB per hour
+    @Setup(Level.Trial)
+    public void record() throws IOException {
+        index_file = File.createTempFile("session", ".tidx");
+        imu_file = File.createTempFile("session", ".imu");
+        frame_file = File.createTempFile("session", ".frames");
+        duration_ns = session_hours * 3600 * SECOND;
+        SessionIndexWriter index = new SessionIndexWriter(new ChannelIMUStorage(index_file), SessionIndexWriter.DEFAULT_BUCKET_NS);
+        FramePackWriter frame_pack = new FramePackWriter(frame_file, FramePackFormat.FORMAT_JPEG, 64, 48);
+        SessionIndexWriter.Stream frame_stream = index.stream(SessionIndexWriter.FRAME_STREAM);
+        frame_pack.setTimeIndex(frame_stream);
+        // Frames stamped on the samples' clock
+        frame_stream.setClock(ClockDomainEstimator.IDENTITY);
+        ByteBuffer frame = ByteBuffer.allocate(256);
+        float[] values = {0.1f, 0.2f, 9.8f};
+        try (IMURecordWriter writer = new IMURecordWriter(new ChannelIMUStorage(imu_file), new short[] {ACCELEROMETER, GYROSCOPE},
+                new String[] {"Accelerometer", "Gyroscope"})) {
+            writer.setTimeIndex(index.stream(SessionIndexWriter.IMU_STREAM));
+            for (long timestamp = 0; timestamp < duration_ns; timestamp += SAMPLE_INTERVAL_NS) {
+                writer.writeSample(timestamp, ACCELEROMETER, values, 3);
+                writer.writeSample(timestamp + 1000, GYROSCOPE, values, 3);
+                if (timestamp % FRAME_INTERVAL_NS == 0) frame_pack.writeFrame(timestamp, frame.duplicate());
+            }
+        }
+        frame_pack.close();
+        index.close();
+        reader = new SessionIndexReader(index_file, imu_file, frame_file);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        reader.close();
+        index_file.delete();
+        imu_file.delete();
+        frame_file.delete();
+    }
+
+    @Benchmark
+    public SessionIndexReader.Window window() throws IOException {
+        long center = (long) (random.nextDouble() * duration_ns);
+        return reader.window(center - SECOND, center + SECOND);
+    }
+}
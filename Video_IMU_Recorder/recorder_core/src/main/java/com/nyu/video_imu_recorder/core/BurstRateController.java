@@ -0,0 +1,137 @@
+package com.nyu.video_imu_recorder.core;
+
+// Keeps a burst capture within what the storage can sustain. Frames are only kept at the current frame interval (at
+// least the target one, skipping the rest), and every window the controller looks at the frame write queue: once it
+// backs up or frames get dropped, the JPEG quality is lowered first and the frame interval stretched to what the measured
+// write bandwidth allows after that; once the queue has stayed nearly empty for a while, the frame interval returns to
+// the target first and the quality after it. Called from the camera's callback thread only.
+public class BurstRateController {
+
+    // Receives every adjustment, with the timestamp of the frame that triggered it
+    public interface Listener {
+        void onAdjusted(long timestamp, long frame_interval_ns, int jpeg_quality, double write_bandwidth_bps);
+    }
+
+    public static final long DEFAULT_WINDOW_NS = 500_000_000;
+    static final int QUALITY_STEP = 10, RECOVERY_WINDOWS = 3;
+    // Share of the measured bandwidth the kept frames may use when the interval is derived from it
+    static final double HEADROOM = 0.8;
+    private static final double SMOOTHING = 0.5;
+
+    private final long target_interval_ns, max_interval_ns, window_ns;
+    private final int queue_capacity, max_quality, min_quality;
+    private final Listener listener;
+    private long frame_interval_ns;
+    private int jpeg_quality;
+    private long next_due = Long.MIN_VALUE;
+    // Window in progress: where it started, and the most the queue held during it
+    private long window_start = Long.MIN_VALUE, window_bytes, window_frames, window_dropped;
+    private int window_max_depth = 0, calm_windows = 0;
+    // Smoothed bytes per written frame and write bandwidth while the writers were busy; NaN until measured
+    private double frame_bytes = Double.NaN, write_bandwidth_bps = Double.NaN;
+
+    // max_quality is also the starting quality; pass min_quality = max_quality to only ever adjust the frame interval
+    public BurstRateController(long target_interval_ns, long max_interval_ns, int queue_capacity, int max_quality,
+                               int min_quality, long window_ns, Listener listener) {
+        if (target_interval_ns <= 0 || max_interval_ns < target_interval_ns) {
+            throw new IllegalArgumentException("Frame interval bounds must be positive and ordered");
+        }
+        if (min_quality > max_quality) throw new IllegalArgumentException("Minimum JPEG quality exceeds the maximum");
+        this.target_interval_ns = target_interval_ns;
+        this.max_interval_ns = max_interval_ns;
+        this.queue_capacity = queue_capacity;
+        this.max_quality = max_quality;
+        this.min_quality = min_quality;
+        this.window_ns = window_ns;
+        this.listener = listener;
+        frame_interval_ns = target_interval_ns;
+        jpeg_quality = max_quality;
+    }
+
+    // Whether the frame with this timestamp should be saved. Kept frames are spaced by the frame interval on average,
+    // even when it is not a multiple of the camera's own frame interval.
+    public boolean shouldKeep(long timestamp) {
+        // Camera timestamps jitter a little around their nominal spacing
+        long slack = frame_interval_ns / 16;
+        if (next_due != Long.MIN_VALUE && timestamp < next_due - slack) return false;
+        // After a stall, start counting again from this frame instead of catching up
+        next_due = next_due == Long.MIN_VALUE || timestamp - next_due > frame_interval_ns ? timestamp + frame_interval_ns
+                : next_due + frame_interval_ns;
+        return true;
+    }
+
+    // Called with every frame: totals of bytes and frames written so far, frames dropped by the write pipeline so far and
+    // its queue depth (counting the frame just queued, so 1 means the writers keep up); returns true if the JPEG quality
+    // changed and the capture request needs updating
+    public boolean update(long timestamp, long bytes_written, long frames_written, long frames_dropped, int queue_depth) {
+        if (window_start == Long.MIN_VALUE) {
+            startWindow(timestamp, bytes_written, frames_written, frames_dropped);
+            return false;
+        }
+        window_max_depth = Math.max(window_max_depth, queue_depth);
+        long duration = timestamp - window_start;
+        if (duration < window_ns) return false;
+
+        long bytes = bytes_written - window_bytes, frames = frames_written - window_frames;
+        boolean dropped = frames_dropped > window_dropped;
+        if (frames > 0) frame_bytes = smooth(frame_bytes, (double) bytes / frames);
+        // Only a window in which frames piled up behind the writers measures what the storage can sustain
+        if (window_max_depth > 1 && frames > 0) write_bandwidth_bps = smooth(write_bandwidth_bps, bytes * 1e9 / duration);
+
+        int quality = jpeg_quality;
+        long interval = frame_interval_ns;
+        if (dropped || window_max_depth * 2 >= queue_capacity) {
+            calm_windows = 0;
+            if (jpeg_quality > min_quality) {
+                jpeg_quality = Math.max(min_quality, jpeg_quality - QUALITY_STEP);
+            } else {
+                long sustainable = Double.isNaN(write_bandwidth_bps) ? 0
+                        : (long) (frame_bytes * 1e9 / (write_bandwidth_bps * HEADROOM));
+                frame_interval_ns = Math.min(max_interval_ns, Math.max(frame_interval_ns * 5 / 4, sustainable));
+            }
+        } else if (window_max_depth <= 1 && ++calm_windows >= RECOVERY_WINDOWS) {
+            calm_windows = 0;
+            if (frame_interval_ns > target_interval_ns) {
+                frame_interval_ns = Math.max(target_interval_ns, frame_interval_ns * 4 / 5);
+            } else if (jpeg_quality < max_quality) {
+                jpeg_quality = Math.min(max_quality, jpeg_quality + QUALITY_STEP / 2);
+            }
+        }
+        if (quality != jpeg_quality || interval != frame_interval_ns) {
+            listener.onAdjusted(timestamp, frame_interval_ns, jpeg_quality, write_bandwidth_bps);
+        }
+        startWindow(timestamp, bytes_written, frames_written, frames_dropped);
+        return quality != jpeg_quality;
+    }
+
+    private void startWindow(long timestamp, long bytes_written, long frames_written, long frames_dropped) {
+        window_start = timestamp;
+        window_bytes = bytes_written;
+        window_frames = frames_written;
+        window_dropped = frames_dropped;
+        window_max_depth = 0;
+    }
+
+    private static double smooth(double previous, double sample) {
+        return Double.isNaN(previous) ? sample : previous + SMOOTHING * (sample - previous);
+    }
+
+    public long getFrameIntervalNs() {
+        return frame_interval_ns;
+    }
+
+    public int getJpegQuality() {
+        return jpeg_quality;
+    }
+
+    // Bytes per second the storage sustained while the writers were busy, NaN until measured
+    public double getWriteBandwidthBps() {
+        return write_bandwidth_bps;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frame interval %.1f ms, JPEG quality %d, write bandwidth %.2f MB/s",
+                frame_interval_ns / 1e6, jpeg_quality, write_bandwidth_bps / 1e6);
+    }
+}
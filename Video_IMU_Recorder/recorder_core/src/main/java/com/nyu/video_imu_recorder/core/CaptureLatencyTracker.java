@@ -0,0 +1,103 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+// Joins capture results with the completion of each frame's write by sensor timestamp, measuring how long frames take
+// from exposure to their capture result and to being saved. The clock must share the sensor timestamps' time base.
+public class CaptureLatencyTracker {
+
+    private final LongSupplier clock;
+    private final int mask;
+    // Sensor timestamps of recent capture results not yet matched with a save, oldest overwritten first
+    private final long[] pending_timestamps;
+    private long next_slot = 0;
+    private final Latency result_latency = new Latency(), save_latency = new Latency();
+    private long unmatched_saves = 0;
+
+    private static class Latency {
+        long count = 0, total_ns = 0, max_ns = 0;
+
+        void record(long latency_ns) {
+            ++count;
+            total_ns += latency_ns;
+            max_ns = Math.max(max_ns, latency_ns);
+        }
+
+        @Override
+        public String toString() {
+            return count == 0 ? "none" : String.format("mean %.1f ms, max %.1f ms over %d frames",
+                    total_ns / 1e6 / count, max_ns / 1e6, count);
+        }
+    }
+
+    public CaptureLatencyTracker(int min_capacity, LongSupplier clock) {
+        this.clock = clock;
+        int capacity = Integer.highestOneBit(Math.max(2, min_capacity - 1)) << 1;
+        mask = capacity - 1;
+        pending_timestamps = new long[capacity];
+        Arrays.fill(pending_timestamps, Long.MIN_VALUE);
+    }
+
+    // Called from the capture callback thread when a frame's capture result arrives
+    public synchronized void onCaptureResult(long sensor_timestamp) {
+        result_latency.record(clock.getAsLong() - sensor_timestamp);
+        pending_timestamps[(int) next_slot++ & mask] = sensor_timestamp;
+    }
+
+    // Called from a writer thread once a frame is saved; frames without a (recent) capture result are only counted
+    public synchronized void onFrameSaved(long sensor_timestamp) {
+        long now = clock.getAsLong();
+        // Saves complete in roughly capture order, so the match is usually among the oldest pending results
+        for (long sequence = Math.max(0, next_slot - mask - 1); sequence < next_slot; ++sequence) {
+            int slot = (int) sequence & mask;
+            if (pending_timestamps[slot] == sensor_timestamp) {
+                pending_timestamps[slot] = Long.MIN_VALUE;
+                save_latency.record(now - sensor_timestamp);
+                return;
+            }
+        }
+        ++unmatched_saves;
+    }
+
+    // Sink reporting each frame to this tracker once the destination has written it
+    public FrameSink track(FrameSink destination) {
+        return new FrameSink() {
+            @Override
+            public void writeFrame(long timestamp, ByteBuffer data) throws IOException {
+                destination.writeFrame(timestamp, data);
+                onFrameSaved(timestamp);
+            }
+
+            @Override
+            public void writeFrames(long[] timestamps, ByteBuffer[] data, int count) throws IOException {
+                destination.writeFrames(timestamps, data, count);
+                for (int i = 0; i < count; ++i) onFrameSaved(timestamps[i]);
+            }
+        };
+    }
+
+    public synchronized long getSavedCount() {
+        return save_latency.count;
+    }
+
+    public synchronized double getMeanSaveLatencyMs() {
+        return save_latency.count == 0 ? 0 : save_latency.total_ns / 1e6 / save_latency.count;
+    }
+
+    public synchronized double getMaxSaveLatencyMs() {
+        return save_latency.max_ns / 1e6;
+    }
+
+    public synchronized long getUnmatchedSaveCount() {
+        return unmatched_saves;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "capture to result: " + result_latency + "; capture to save: " + save_latency + "; saves without result: "
+                + unmatched_saves;
+    }
+}
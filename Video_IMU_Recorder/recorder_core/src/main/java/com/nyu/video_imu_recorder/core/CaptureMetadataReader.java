@@ -0,0 +1,51 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads per-frame capture metadata files (see CaptureMetadataWriter) record by record
+public class CaptureMetadataReader implements Closeable {
+
+    private final DataInputStream input;
+    private final int record_size;
+
+    // Fields of the record most recently returned by next()
+    public long sensor_timestamp, frame_number, exposure_time_ns, frame_duration_ns, rolling_shutter_skew_ns;
+    public float focus_distance;
+    public int sensitivity;
+
+    public CaptureMetadataReader(InputStream stream) throws IOException {
+        input = new DataInputStream(new BufferedInputStream(stream));
+        if (input.readInt() != CaptureMetadataWriter.MAGIC) throw new IOException("Not a capture metadata file");
+        short version = input.readShort();
+        if (version > CaptureMetadataWriter.VERSION) throw new IOException("Unsupported capture metadata version " + version);
+        record_size = input.readShort();
+    }
+
+    // Advance to the next record, returning false once the end of the file is reached
+    public boolean next() throws IOException {
+        try {
+            sensor_timestamp = input.readLong();
+        } catch (EOFException end) {
+            return false;
+        }
+        frame_number = input.readLong();
+        exposure_time_ns = input.readLong();
+        frame_duration_ns = input.readLong();
+        rolling_shutter_skew_ns = input.readLong();
+        focus_distance = input.readFloat();
+        sensitivity = input.readInt();
+        // Records written by a newer version may carry extra trailing fields
+        input.skipBytes(record_size - CaptureMetadataWriter.RECORD_SIZE);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
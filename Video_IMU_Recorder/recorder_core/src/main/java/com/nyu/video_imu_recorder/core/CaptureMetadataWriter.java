@@ -0,0 +1,57 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+Per-frame capture metadata written next to the IMU data file (all values big-endian)
+
+Header:
+<int magic "CMTA"> <short version> <short record size>
+
+Records (fixed width, RECORD_SIZE bytes each, in capture order):
+<long sensor timestamp ns> <long frame number> <long exposure time ns> <long frame duration ns>
+<long rolling shutter skew ns> <float focus distance diopters> <int sensitivity ISO>
+
+Values the camera did not report are written as -1 (NaN for the focus distance).
+*/
+// Appends one record per capture result through a reused direct buffer, so recording a frame allocates nothing
+public class CaptureMetadataWriter implements Closeable {
+
+    public static final int MAGIC = 0x434D5441;
+    public static final short VERSION = 1;
+    public static final int RECORD_SIZE = 5 * Long.BYTES + Float.BYTES + Integer.BYTES;
+    private static final int BUFFER_RECORDS = 512;
+    private final IMUStorage storage;
+    private final ByteBuffer buffer;
+
+    public CaptureMetadataWriter(IMUStorage storage) throws IOException {
+        this.storage = storage;
+        buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE);
+        if (storage.size() == 0) buffer.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE);
+    }
+
+    public synchronized void write(long sensor_timestamp, long frame_number, long exposure_time_ns, long frame_duration_ns,
+                                   long rolling_shutter_skew_ns, float focus_distance, int sensitivity) throws IOException {
+        if (buffer.remaining() < RECORD_SIZE) drain();
+        buffer.putLong(sensor_timestamp).putLong(frame_number).putLong(exposure_time_ns).putLong(frame_duration_ns)
+                .putLong(rolling_shutter_skew_ns).putFloat(focus_distance).putInt(sensitivity);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            drain();
+            storage.sync();
+        } finally {
+            storage.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        storage.write(buffer);
+        buffer.clear();
+    }
+}
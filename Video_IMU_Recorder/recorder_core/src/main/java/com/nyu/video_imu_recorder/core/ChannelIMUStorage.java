@@ -0,0 +1,50 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Stream path: every write is a write() call on the file
+public class ChannelIMUStorage implements IMUStorage {
+
+    private final FileChannel channel;
+
+    public ChannelIMUStorage(File file) throws IOException {
+        this(file, true);
+    }
+
+    // Without append, whatever the file held is discarded
+    public ChannelIMUStorage(File file, boolean append) throws IOException {
+        channel = new FileOutputStream(file, append).getChannel();
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) channel.write(data);
+    }
+
+    // One gathering write() call for all of them
+    @Override
+    public void write(ByteBuffer[] data, int offset, int length) throws IOException {
+        long remaining = 0;
+        for (int i = offset; i < offset + length; ++i) remaining += data[i].remaining();
+        while (remaining > 0) remaining -= channel.write(data, offset, length);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
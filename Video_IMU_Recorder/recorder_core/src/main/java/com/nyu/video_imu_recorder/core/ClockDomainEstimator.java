@@ -0,0 +1,118 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+// Estimates how one clock maps onto a reference clock from pairs of (time in this clock, reference time when the pair was
+// observed). Observations arrive late by a varying delivery latency, never early, so only the earliest-arriving pair of
+// each bucket is kept; drift is fitted over those lower-envelope points and the mapping is pushed down onto the lowest
+// of them. The offset therefore includes the smallest delivery latency seen, while drift is unaffected by it.
+public class ClockDomainEstimator {
+
+    public static final long DEFAULT_BUCKET_NS = 1_000_000_000;
+    public static final int DEFAULT_BUCKET_COUNT = 64;
+
+    // Published mapping: reference = time + offset_ns + drift * (time - anchor_time)
+    public static final class Estimate {
+        public final long anchor_time, offset_ns;
+        public final double drift;
+        // Lower-envelope points the estimate is based on; 0 until the first bucket closes
+        public final int points;
+
+        public Estimate(long anchor_time, long offset_ns, double drift, int points) {
+            this.anchor_time = anchor_time;
+            this.offset_ns = offset_ns;
+            this.drift = drift;
+            this.points = points;
+        }
+
+        public long toReference(long time) {
+            return time + offset_ns + Math.round(drift * (time - anchor_time));
+        }
+
+        // Inverse of toReference, to within a nanosecond over any realistic drift
+        public long fromReference(long reference) {
+            return anchor_time + Math.round((reference - offset_ns - anchor_time) / (1 + drift));
+        }
+
+        public double getDriftPpm() {
+            return drift * 1e6;
+        }
+    }
+
+    public static final Estimate IDENTITY = new Estimate(0, 0, 0, 0);
+
+    private final long bucket_ns;
+    private final int mask;
+    // Lowest-offset observation of each closed bucket, oldest overwritten first
+    private final long[] envelope_times, envelope_offsets;
+    private long envelope_count = 0;
+    private long bucket_start = Long.MIN_VALUE, bucket_time, bucket_offset;
+    private final AtomicReference<Estimate> estimate = new AtomicReference<>(IDENTITY);
+
+    public ClockDomainEstimator() {
+        this(DEFAULT_BUCKET_NS, DEFAULT_BUCKET_COUNT);
+    }
+
+    public ClockDomainEstimator(long bucket_ns, int min_bucket_count) {
+        this.bucket_ns = bucket_ns;
+        int capacity = Integer.highestOneBit(Math.max(2, min_bucket_count - 1)) << 1;
+        mask = capacity - 1;
+        envelope_times = new long[capacity];
+        envelope_offsets = new long[capacity];
+    }
+
+    // Called from a single thread per domain; allocates only when a bucket closes and a new estimate is published
+    public void observe(long time, long reference_time) {
+        long offset = reference_time - time;
+        if (bucket_start == Long.MIN_VALUE) {
+            bucket_start = time;
+        } else if (time - bucket_start >= bucket_ns) {
+            closeBucket();
+            bucket_start = time;
+        } else if (offset >= bucket_offset) {
+            return;
+        }
+        bucket_time = time;
+        bucket_offset = offset;
+    }
+
+    private void closeBucket() {
+        int slot = (int) envelope_count++ & mask;
+        envelope_times[slot] = bucket_time;
+        envelope_offsets[slot] = bucket_offset;
+        estimate.set(fit());
+    }
+
+    // Least-squares drift over the envelope points, with the line then lowered until no point lies below it
+    private Estimate fit() {
+        int count = (int) Math.min(envelope_count, mask + 1);
+        long anchor = bucket_time, base_offset = bucket_offset;
+        double drift = 0;
+        if (count > 1) {
+            double mean_x = 0, mean_y = 0;
+            for (int i = 0; i < count; ++i) {
+                mean_x += envelope_times[i] - anchor;
+                mean_y += envelope_offsets[i] - base_offset;
+            }
+            mean_x /= count;
+            mean_y /= count;
+            double covariance = 0, variance = 0;
+            for (int i = 0; i < count; ++i) {
+                double dx = envelope_times[i] - anchor - mean_x;
+                covariance += dx * (envelope_offsets[i] - base_offset - mean_y);
+                variance += dx * dx;
+            }
+            if (variance > 0) drift = covariance / variance;
+        }
+        double lowest = Double.MAX_VALUE;
+        for (int i = 0; i < count; ++i) {
+            lowest = Math.min(lowest, envelope_offsets[i] - base_offset - drift * (envelope_times[i] - anchor));
+        }
+        return new Estimate(anchor, base_offset + Math.round(lowest), drift, count);
+    }
+
+    // Lock-free view of the latest estimate, safe to read from any thread
+    public Estimate getEstimate() {
+        return estimate.get();
+    }
+}
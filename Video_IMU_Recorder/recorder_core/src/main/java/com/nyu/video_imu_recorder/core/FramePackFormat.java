@@ -0,0 +1,40 @@
+package com.nyu.video_imu_recorder.core;
+
+/*
+Layout of a frame pack file, which stores a burst's frames back to back in one append-only file (all values big-endian)
+
+File header:
+<int magic "FPAK"> <short version> <short reserved>
+
+Frames, one after another, in the order they were written (parallel writers can leave them slightly out of timestamp
+order):
+<int magic "FRME"> <long timestamp ns> <int payload length> <short format> <short width> <short height> <short reserved>
+<int CRC32 of the payload> <payload bytes>
+
+Trailer, written when the pack is closed:
+<int magic "FIDX"> <int frame count> then <long timestamp> <long frame offset> for every frame, in timestamp order
+<long index offset> <int frame count> <int magic "FEND">
+
+A pack without a valid trailer (e.g. after a crash) is read by scanning the frames forward up to the first incomplete or
+corrupt one.
+*/
+public final class FramePackFormat {
+
+    public static final int MAGIC = 0x4650414B;
+    public static final short VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 8;
+    public static final int FRAME_MAGIC = 0x46524D45;
+    public static final int FRAME_HEADER_SIZE = 28;
+    public static final int INDEX_MAGIC = 0x46494458;
+    public static final int INDEX_ENTRY_SIZE = 16;
+    public static final int FOOTER_MAGIC = 0x46454E44;
+    public static final int FOOTER_SIZE = 16;
+
+    // Payload formats
+    public static final short FORMAT_JPEG = 1;
+    // Packed I420 (see YuvConverter), stored raw or deflated (see YuvFrameEncoder)
+    public static final short FORMAT_YUV_I420 = 2;
+    public static final short FORMAT_YUV_I420_DEFLATE = 3;
+
+    private FramePackFormat() {}
+}
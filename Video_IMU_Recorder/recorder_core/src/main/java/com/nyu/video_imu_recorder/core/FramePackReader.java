@@ -0,0 +1,179 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Random access to the frames of a frame pack file (see FramePackFormat), by position in timestamp order or by timestamp
+public class FramePackReader implements Closeable {
+
+    private final FileChannel channel;
+    private long[] timestamps, offsets;
+    private int frame_count;
+    private final boolean recovered;
+    // Header fields of the frame most recently returned by readFrame()
+    public short frame_format, frame_width, frame_height;
+
+    public FramePackReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ByteBuffer header = read(0, FramePackFormat.FILE_HEADER_SIZE);
+        if (header.getInt() != FramePackFormat.MAGIC) throw new IOException("Not a frame pack file");
+        short version = header.getShort();
+        if (version > FramePackFormat.VERSION) throw new IOException("Unsupported frame pack version " + version);
+        // Fall back to scanning the frames when the pack was never closed properly
+        recovered = !readIndex();
+        if (recovered) scanFrames();
+        sortIndex();
+    }
+
+    private boolean readIndex() throws IOException {
+        long size = channel.size();
+        if (size < FramePackFormat.FILE_HEADER_SIZE + 8 + FramePackFormat.FOOTER_SIZE) return false;
+        ByteBuffer footer = read(size - FramePackFormat.FOOTER_SIZE, FramePackFormat.FOOTER_SIZE);
+        long index_offset = footer.getLong();
+        int count = footer.getInt();
+        if (footer.getInt() != FramePackFormat.FOOTER_MAGIC || index_offset < FramePackFormat.FILE_HEADER_SIZE
+                || index_offset + 8 + (long) count * FramePackFormat.INDEX_ENTRY_SIZE + FramePackFormat.FOOTER_SIZE != size) {
+            return false;
+        }
+        ByteBuffer index = read(index_offset, 8 + count * FramePackFormat.INDEX_ENTRY_SIZE);
+        if (index.getInt() != FramePackFormat.INDEX_MAGIC || index.getInt() != count) return false;
+        timestamps = new long[count];
+        offsets = new long[count];
+        for (int i = 0; i < count; ++i) {
+            timestamps[i] = index.getLong();
+            offsets[i] = index.getLong();
+        }
+        frame_count = count;
+        return true;
+    }
+
+    // Rebuild the index by walking frame headers from the start, stopping at the first incomplete or corrupt frame
+    private void scanFrames() throws IOException {
+        timestamps = new long[1024];
+        offsets = new long[1024];
+        frame_count = 0;
+        long size = channel.size(), offset = FramePackFormat.FILE_HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (offset + FramePackFormat.FRAME_HEADER_SIZE <= size) {
+            ByteBuffer header = read(offset, FramePackFormat.FRAME_HEADER_SIZE);
+            if (header.getInt() != FramePackFormat.FRAME_MAGIC) break;
+            long timestamp = header.getLong();
+            int length = header.getInt();
+            int expected_crc = header.getInt(FramePackFormat.FRAME_HEADER_SIZE - 4);
+            if (length < 0 || offset + FramePackFormat.FRAME_HEADER_SIZE + length > size) break;
+            crc.reset();
+            crc.update(read(offset + FramePackFormat.FRAME_HEADER_SIZE, length));
+            if ((int) crc.getValue() != expected_crc) break;
+            if (frame_count == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, 2 * frame_count);
+                offsets = Arrays.copyOf(offsets, 2 * frame_count);
+            }
+            timestamps[frame_count] = timestamp;
+            offsets[frame_count++] = offset;
+            offset += FramePackFormat.FRAME_HEADER_SIZE + length;
+        }
+    }
+
+    // Frames written by parallel writer threads sit in the file slightly out of timestamp order, and so do the index entries
+    // of packs written before the trailer was kept sorted; an insertion sort puts them back in a few steps each
+    private void sortIndex() {
+        for (int i = 1; i < frame_count; ++i) {
+            long timestamp = timestamps[i], offset = offsets[i];
+            int position = i;
+            for (; position > 0 && timestamps[position - 1] > timestamp; --position) {
+                timestamps[position] = timestamps[position - 1];
+                offsets[position] = offsets[position - 1];
+            }
+            timestamps[position] = timestamp;
+            offsets[position] = offset;
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of frame pack");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public int getFrameCount() {
+        return frame_count;
+    }
+
+    // Whether the index had to be rebuilt by scanning because the pack had no valid trailer
+    public boolean wasRecovered() {
+        return recovered;
+    }
+
+    public long getTimestamp(int frame) {
+        return timestamps[frame];
+    }
+
+    // Position of the frame with the given timestamp, or of the last frame before it; -1 if every frame is later
+    public int findFrame(long timestamp) {
+        int position = Arrays.binarySearch(timestamps, 0, frame_count, timestamp);
+        return position >= 0 ? position : -position - 2;
+    }
+
+    // Payload of a frame, verified against its checksum
+    public ByteBuffer readFrame(int frame) throws IOException {
+        ByteBuffer header = read(offsets[frame], FramePackFormat.FRAME_HEADER_SIZE);
+        if (header.getInt() != FramePackFormat.FRAME_MAGIC) throw new IOException("Corrupt frame header at " + offsets[frame]);
+        header.getLong();
+        int length = header.getInt();
+        frame_format = header.getShort();
+        frame_width = header.getShort();
+        frame_height = header.getShort();
+        ByteBuffer payload = read(offsets[frame] + FramePackFormat.FRAME_HEADER_SIZE, length);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != header.getInt(FramePackFormat.FRAME_HEADER_SIZE - 4)) {
+            throw new IOException("Checksum mismatch for frame " + timestamps[frame]);
+        }
+        return payload;
+    }
+
+    // Writes every frame out as <timestamp>.jpeg, the layout bursts used before frame packs, or as packed I420 in
+    // <timestamp>.yuv for frames captured in YUV mode
+    public void extractTo(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+        JpegFileSink sink = new JpegFileSink(directory);
+        for (int i = 0; i < frame_count; ++i) {
+            ByteBuffer payload = readFrame(i);
+            if (frame_format == FramePackFormat.FORMAT_JPEG) {
+                sink.writeFrame(timestamps[i], payload);
+                continue;
+            }
+            ByteBuffer yuv = YuvFrameEncoder.decode(frame_format, payload, frame_width & 0xFFFF, frame_height & 0xFFFF);
+            try (FileChannel output = FileChannel.open(new File(directory, timestamps[i] + ".yuv").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (yuv.hasRemaining()) output.write(yuv);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Usage: FramePackReader <frame pack file> <output directory>
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: FramePackReader <frame pack file> <output directory>");
+            System.exit(1);
+        }
+        try (FramePackReader reader = new FramePackReader(new File(args[0]))) {
+            reader.extractTo(new File(args[1]));
+            System.out.println("Extracted " + reader.getFrameCount() + " frames" + (reader.wasRecovered() ? " (index rebuilt)" : ""));
+        }
+    }
+}
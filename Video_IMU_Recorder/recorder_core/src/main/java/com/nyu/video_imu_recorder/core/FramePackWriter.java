@@ -0,0 +1,152 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Appends frames to a frame pack file (see FramePackFormat) and writes its index when closed. The pack can also go to
+// any empty IMUStorage, e.g. a SegmentedJournalWriter, which then receives each batch of frames as one write.
+public class FramePackWriter implements FrameSink, Closeable {
+
+    private final IMUStorage storage;
+    private final short format, width, height;
+    private final CRC32 crc = new CRC32();
+    // Header buffers and the header/payload pairs handed to one gathering write
+    private ByteBuffer[] headers = new ByteBuffer[0], gather = new ByteBuffer[0];
+    // Offsets of the frames of the batch being written
+    private long[] batch_offsets = new long[0];
+    // Kept in timestamp order, whatever order the frames reach the file in
+    private long[] index_timestamps = new long[1024], index_offsets = new long[1024];
+    private int frame_count = 0;
+    // Latest timestamp in the file so far, and the most any frame trailed it
+    private long position, latest_timestamp = Long.MIN_VALUE, lateness = 0;
+    private SessionIndexWriter.Stream time_index;
+    // Set once a failed write leaves the end of the pack unknown
+    private boolean broken = false;
+
+    public FramePackWriter(File file, short format, int width, int height) throws IOException {
+        this(new ChannelIMUStorage(file, false), format, width, height);
+    }
+
+    public FramePackWriter(IMUStorage storage, short format, int width, int height) throws IOException {
+        if (storage.size() != 0) throw new IllegalArgumentException("Frame packs must start in empty storage");
+        this.storage = storage;
+        this.format = format;
+        this.width = (short) width;
+        this.height = (short) height;
+        ByteBuffer header = ByteBuffer.allocate(FramePackFormat.FILE_HEADER_SIZE);
+        header.putInt(FramePackFormat.MAGIC).putShort(FramePackFormat.VERSION).putShort((short) 0).flip();
+        storage.write(header);
+        position = FramePackFormat.FILE_HEADER_SIZE;
+    }
+
+    // Has every frame's offset noted in the session's time index when the pack closes
+    public synchronized void setTimeIndex(SessionIndexWriter.Stream time_index) {
+        this.time_index = time_index;
+    }
+
+    @Override
+    public synchronized void writeFrame(long timestamp, ByteBuffer data) throws IOException {
+        writeFrames(new long[] {timestamp}, new ByteBuffer[] {data}, 1);
+    }
+
+    // Every frame of the batch goes out in one gathering write of alternating headers and payloads; the frames are only
+    // indexed once it succeeds. A failed write may have stored part of the batch, so the next batch goes after whatever
+    // did reach the storage, and the pack is given up on if not even its size can be read.
+    @Override
+    public synchronized void writeFrames(long[] timestamps, ByteBuffer[] data, int count) throws IOException {
+        if (broken) throw new IOException("Frame pack is unusable after a failed write");
+        if (headers.length < count) {
+            headers = new ByteBuffer[count];
+            for (int i = 0; i < count; ++i) headers[i] = ByteBuffer.allocateDirect(FramePackFormat.FRAME_HEADER_SIZE);
+            gather = new ByteBuffer[2 * count];
+            batch_offsets = new long[count];
+        }
+        long frame_position = position;
+        for (int i = 0; i < count; ++i) {
+            int length = data[i].remaining();
+            crc.reset();
+            crc.update(data[i].duplicate());
+            headers[i].clear();
+            headers[i].putInt(FramePackFormat.FRAME_MAGIC).putLong(timestamps[i]).putInt(length).putShort(format)
+                    .putShort(width).putShort(height).putShort((short) 0).putInt((int) crc.getValue()).flip();
+            gather[2 * i] = headers[i];
+            gather[2 * i + 1] = data[i];
+            batch_offsets[i] = frame_position;
+            frame_position += FramePackFormat.FRAME_HEADER_SIZE + length;
+        }
+        try {
+            storage.write(gather, 0, 2 * count);
+        } catch (IOException exception) {
+            try {
+                position = storage.size();
+            } catch (IOException size_exception) {
+                broken = true;
+            }
+            throw exception;
+        } finally {
+            Arrays.fill(gather, null);
+        }
+        position = frame_position;
+        for (int i = 0; i < count; ++i) {
+            addToIndex(timestamps[i], batch_offsets[i]);
+            if (timestamps[i] < latest_timestamp) {
+                lateness = Math.max(lateness, latest_timestamp - timestamps[i]);
+            } else {
+                latest_timestamp = timestamps[i];
+            }
+        }
+    }
+
+    // Batches from parallel writer threads reach the pack out of timestamp order, but only by a few frames, so the entry
+    // is inserted by shifting the later ones up from the end
+    private void addToIndex(long timestamp, long offset) {
+        if (frame_count == index_timestamps.length) {
+            index_timestamps = Arrays.copyOf(index_timestamps, 2 * frame_count);
+            index_offsets = Arrays.copyOf(index_offsets, 2 * frame_count);
+        }
+        int position = frame_count++;
+        for (; position > 0 && index_timestamps[position - 1] > timestamp; --position) {
+            index_timestamps[position] = index_timestamps[position - 1];
+            index_offsets[position] = index_offsets[position - 1];
+        }
+        index_timestamps[position] = timestamp;
+        index_offsets[position] = offset;
+    }
+
+    // The time index sees the frames in timestamp order, each pointing at the earliest frame in the file at or after it,
+    // so that a reader seeking to a timestamp misses none of the frames a writer batched ahead of it
+    private void indexFrames() throws IOException {
+        long[] earliest_offsets = new long[frame_count];
+        long earliest = position;
+        for (int i = frame_count - 1; i >= 0; --i) earliest_offsets[i] = earliest = Math.min(earliest, index_offsets[i]);
+        time_index.noteLateness(lateness);
+        for (int i = 0; i < frame_count; ++i) time_index.observe(index_timestamps[i], earliest_offsets[i]);
+        time_index.end(position);
+    }
+
+    public synchronized int getFrameCount() {
+        return frame_count;
+    }
+
+    // Appends the index and footer; frames written without reaching this point are still found by a forward scan, which
+    // is all a pack given up on after a failed write gets
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (broken) return;
+            if (time_index != null) indexFrames();
+            ByteBuffer trailer = ByteBuffer.allocate(8 + frame_count * FramePackFormat.INDEX_ENTRY_SIZE + FramePackFormat.FOOTER_SIZE);
+            trailer.putInt(FramePackFormat.INDEX_MAGIC).putInt(frame_count);
+            for (int i = 0; i < frame_count; ++i) trailer.putLong(index_timestamps[i]).putLong(index_offsets[i]);
+            trailer.putLong(position).putInt(frame_count).putInt(FramePackFormat.FOOTER_MAGIC).flip();
+            storage.write(trailer);
+            storage.sync();
+        } finally {
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Destination of captured frames; called from the frame writer threads, so implementations must be thread-safe
+public interface FrameSink {
+    void writeFrame(long timestamp, ByteBuffer data) throws IOException;
+
+    // Writes a batch of frames at once; sinks that store frames contiguously can turn this into one gathering write
+    default void writeFrames(long[] timestamps, ByteBuffer[] data, int count) throws IOException {
+        for (int i = 0; i < count; ++i) writeFrame(timestamps[i], data[i]);
+    }
+}
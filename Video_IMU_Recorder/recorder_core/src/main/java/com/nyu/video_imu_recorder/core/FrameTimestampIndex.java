@@ -0,0 +1,123 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+// In-memory view of a frame timestamp index (see FrameTimestampIndexWriter) mapping frame numbers to sensor timestamps
+// and back in O(log n), while keeping the entries in their compact encoded form
+public class FrameTimestampIndex {
+
+    private final byte[] data;
+    private final int checkpoint_interval;
+    private int frame_count = 0;
+    // Absolute timestamp and position in data of every checkpoint frame
+    private long[] checkpoint_timestamps = new long[16];
+    private int[] checkpoint_offsets = new int[16];
+    // Scratch position for varint decoding; instances are not meant to be shared between threads
+    private int position;
+
+    public FrameTimestampIndex(File file) throws IOException {
+        this(Files.readAllBytes(file.toPath()));
+    }
+
+    public FrameTimestampIndex(byte[] data) throws IOException {
+        this.data = data;
+        ByteBuffer header = ByteBuffer.wrap(data);
+        if (data.length < 8 || header.getInt() != FrameTimestampIndexWriter.MAGIC) {
+            throw new IOException("Not a frame timestamp index");
+        }
+        short version = header.getShort();
+        if (version > FrameTimestampIndexWriter.VERSION) {
+            throw new IOException("Unsupported frame timestamp index version " + version);
+        }
+        checkpoint_interval = header.getShort();
+        if (checkpoint_interval <= 0) throw new IOException("Invalid checkpoint interval " + checkpoint_interval);
+        scanEntries(header.position());
+    }
+
+    // Walk every entry once to find the checkpoints, stopping at an incomplete entry at the end
+    private void scanEntries(int offset) {
+        position = offset;
+        while (true) {
+            int entry_start = position;
+            if (frame_count % checkpoint_interval == 0) {
+                if (position + Long.BYTES > data.length) break;
+                int checkpoint = frame_count / checkpoint_interval;
+                if (checkpoint == checkpoint_timestamps.length) {
+                    checkpoint_timestamps = Arrays.copyOf(checkpoint_timestamps, 2 * checkpoint);
+                    checkpoint_offsets = Arrays.copyOf(checkpoint_offsets, 2 * checkpoint);
+                }
+                checkpoint_timestamps[checkpoint] = readLong(position);
+                checkpoint_offsets[checkpoint] = entry_start;
+                position += Long.BYTES;
+            } else if (!skipVarint()) {
+                break;
+            }
+            ++frame_count;
+        }
+    }
+
+    public int getFrameCount() {
+        return frame_count;
+    }
+
+    // Sensor timestamp of a frame, decoding at most one checkpoint interval of deltas
+    public long getTimestamp(int frame) {
+        if (frame < 0 || frame >= frame_count) throw new IndexOutOfBoundsException("Frame " + frame + " of " + frame_count);
+        int checkpoint = frame / checkpoint_interval;
+        long timestamp = checkpoint_timestamps[checkpoint];
+        position = checkpoint_offsets[checkpoint] + Long.BYTES;
+        for (int i = checkpoint * checkpoint_interval; i < frame; ++i) timestamp += readDelta();
+        return timestamp;
+    }
+
+    // Last frame captured at or before the timestamp, or -1 if every frame is later; timestamps must be increasing
+    public int findFrame(long timestamp) {
+        if (frame_count == 0) return -1;
+        int checkpoint_count = (frame_count - 1) / checkpoint_interval + 1;
+        int checkpoint = Arrays.binarySearch(checkpoint_timestamps, 0, checkpoint_count, timestamp);
+        if (checkpoint >= 0) return checkpoint * checkpoint_interval;
+        checkpoint = -checkpoint - 2;
+        if (checkpoint < 0) return -1;
+        // Step through the deltas of the checkpoint's block until the next frame would be past the timestamp
+        int frame = checkpoint * checkpoint_interval, block_end = Math.min(frame_count, frame + checkpoint_interval);
+        long frame_timestamp = checkpoint_timestamps[checkpoint];
+        position = checkpoint_offsets[checkpoint] + Long.BYTES;
+        while (frame + 1 < block_end) {
+            long next_timestamp = frame_timestamp + readDelta();
+            if (next_timestamp > timestamp) break;
+            frame_timestamp = next_timestamp;
+            ++frame;
+        }
+        return frame;
+    }
+
+    private long readLong(int offset) {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; ++i) value = value << 8 | (data[offset + i] & 0xFF);
+        return value;
+    }
+
+    private long readDelta() {
+        long zigzag = 0;
+        int shift = 0;
+        byte current;
+        do {
+            current = data[position++];
+            zigzag |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        } while (current < 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private boolean skipVarint() {
+        int end = position;
+        while (end < data.length && data[end] < 0) ++end;
+        if (end >= data.length) return false;
+        position = end + 1;
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+Sensor timestamp of every frame of a video, stored next to the .mp4 (all fixed-width values big-endian)
+
+Header:
+<int magic "FTIX"> <short version> <short checkpoint interval>
+
+Entries, one per frame in capture order:
+frames whose number is a multiple of the checkpoint interval: <long timestamp ns>
+every other frame: the difference from the previous frame's timestamp, zigzag-encoded as an unsigned LEB128 varint
+
+At 30 fps a delta takes 4 bytes instead of 8, and any frame is at most one checkpoint interval of deltas away from an
+absolute timestamp. There is no footer, so a file cut short by a crash is read up to its last complete entry.
+*/
+// Appends frame timestamps through a reused buffer, allocating nothing per frame
+public class FrameTimestampIndexWriter implements Closeable {
+
+    public static final int MAGIC = 0x46544958;
+    public static final short VERSION = 1;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 64;
+    private static final int BUFFER_SIZE = 16 * 1024, MAX_ENTRY_SIZE = 10;
+    private final IMUStorage storage;
+    private final int checkpoint_interval;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long frame_count = 0, last_timestamp;
+    private boolean closed = false;
+
+    public FrameTimestampIndexWriter(IMUStorage storage, int checkpoint_interval) throws IOException {
+        if (storage.size() != 0) throw new IOException("Frame timestamp indexes cannot be appended to");
+        this.storage = storage;
+        this.checkpoint_interval = checkpoint_interval;
+        buffer.putInt(MAGIC).putShort(VERSION).putShort((short) checkpoint_interval);
+    }
+
+    // Frames appended after close() are ignored, since capture results may still arrive while recording stops
+    public synchronized void append(long timestamp) throws IOException {
+        if (closed) return;
+        if (buffer.remaining() < MAX_ENTRY_SIZE) drain();
+        if (frame_count % checkpoint_interval == 0) {
+            buffer.putLong(timestamp);
+        } else {
+            long delta = timestamp - last_timestamp;
+            long zigzag = (delta << 1) ^ (delta >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                buffer.put((byte) (zigzag & 0x7F | 0x80));
+                zigzag >>>= 7;
+            }
+            buffer.put((byte) zigzag);
+        }
+        last_timestamp = timestamp;
+        ++frame_count;
+    }
+
+    public synchronized long getFrameCount() {
+        return frame_count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            drain();
+            storage.sync();
+        } finally {
+            storage.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        storage.write(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,257 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hands captured frames to a bounded pool of writer threads, so a stalled disk costs frames according to a chosen policy
+// instead of stalling the camera callbacks. Frames are written straight from the caller's buffer when its owner can be
+// held until the write completes, and copied into pooled buffers otherwise.
+public class FrameWritePipeline {
+
+    public enum OverflowPolicy {
+        // Discard the oldest frame still waiting to be written to make room for the new one
+        DROP_OLDEST,
+        // Block the capture thread until a buffer frees up, which makes the camera itself slow down
+        THROTTLE
+    }
+
+    private static final long THROTTLE_TIMEOUT_MS = 1000, IDLE_POLL_MS = 100;
+    private static final int BATCH_SIZE = 4;
+    private final FrameSink sink;
+    private final OverflowPolicy policy;
+    private final int pool_size;
+    private final BlockingQueue<PendingFrame> free_frames, free_direct_frames, queued_frames;
+    private final Thread[] writer_threads;
+    private final AtomicLong produced = new AtomicLong(), written = new AtomicLong(), dropped = new AtomicLong(),
+            failed = new AtomicLong();
+    private volatile boolean closed = false;
+
+    // Fills a pooled buffer with a frame that is not available as a single ByteBuffer, such as a multi-plane YUV image
+    public interface FrameFiller {
+        void fill(ByteBuffer destination);
+    }
+
+    private static class PendingFrame {
+        long timestamp;
+        ByteBuffer buffer;
+        // Set for frames written in place; closed once the frame is written or dropped
+        AutoCloseable owner;
+
+        PendingFrame(int capacity) {
+            buffer = capacity > 0 ? ByteBuffer.allocateDirect(capacity) : null;
+        }
+
+        void copyFrom(ByteBuffer source) {
+            prepare(source.remaining());
+            buffer.put(source);
+            buffer.flip();
+        }
+
+        void prepare(int length) {
+            // Frames larger than any seen so far replace the pooled buffer once; after warm-up no allocation happens
+            if (length > buffer.capacity()) buffer = ByteBuffer.allocateDirect(length);
+            buffer.clear();
+        }
+
+        boolean isDirect() {
+            return owner != null;
+        }
+    }
+
+    public FrameWritePipeline(FrameSink sink, OverflowPolicy policy, int pool_size, int buffer_capacity, int writer_count) {
+        this(sink, policy, pool_size, buffer_capacity, writer_count, 0);
+    }
+
+    // direct_frame_count bounds how many caller-owned buffers may be held at once, e.g. one less than ImageReader's maxImages
+    public FrameWritePipeline(FrameSink sink, OverflowPolicy policy, int pool_size, int buffer_capacity, int writer_count,
+                              int direct_frame_count) {
+        this.sink = sink;
+        this.policy = policy;
+        this.pool_size = pool_size;
+        free_frames = new ArrayBlockingQueue<>(pool_size);
+        for (int i = 0; i < pool_size; ++i) free_frames.add(new PendingFrame(buffer_capacity));
+        free_direct_frames = new ArrayBlockingQueue<>(Math.max(1, direct_frame_count));
+        for (int i = 0; i < direct_frame_count; ++i) free_direct_frames.add(new PendingFrame(0));
+        queued_frames = new ArrayBlockingQueue<>(pool_size + Math.max(1, direct_frame_count));
+        writer_threads = new Thread[writer_count];
+        for (int i = 0; i < writer_count; ++i) {
+            writer_threads[i] = new Thread(this::writeFrames, "frame_writer_thread_" + i);
+            writer_threads[i].start();
+        }
+    }
+
+    // Called from the capture thread; copies the remaining bytes of data and returns whether the frame was accepted
+    public boolean submit(long timestamp, ByteBuffer data) {
+        if (closed) throw new IllegalStateException("Frame pipeline already closed");
+        produced.incrementAndGet();
+        return enqueueCopy(timestamp, data);
+    }
+
+    // Called from the capture thread; has the filler write length bytes into a pooled buffer and returns whether the frame
+    // was accepted (the filler is not called for dropped frames)
+    public boolean submit(long timestamp, int length, FrameFiller filler) {
+        if (closed) throw new IllegalStateException("Frame pipeline already closed");
+        produced.incrementAndGet();
+        PendingFrame frame = acquireFrame();
+        if (frame == null) return false;
+        frame.timestamp = timestamp;
+        frame.prepare(length);
+        filler.fill(frame.buffer);
+        frame.buffer.flip();
+        queued_frames.add(frame);
+        return true;
+    }
+
+    // Called from the capture thread; writes data in place and closes its owner once written (or dropped). Falls back to
+    // copying, and closes the owner right away, when too many direct frames are already in flight.
+    public boolean submitDirect(long timestamp, ByteBuffer data, AutoCloseable owner) {
+        if (closed) throw new IllegalStateException("Frame pipeline already closed");
+        produced.incrementAndGet();
+        PendingFrame frame = free_direct_frames.poll();
+        if (frame == null) {
+            boolean accepted = enqueueCopy(timestamp, data);
+            release(owner);
+            return accepted;
+        }
+        frame.timestamp = timestamp;
+        frame.buffer = data;
+        frame.owner = owner;
+        queued_frames.add(frame);
+        return true;
+    }
+
+    private boolean enqueueCopy(long timestamp, ByteBuffer data) {
+        PendingFrame frame = acquireFrame();
+        if (frame == null) return false;
+        frame.timestamp = timestamp;
+        frame.copyFrom(data);
+        queued_frames.add(frame);
+        return true;
+    }
+
+    // A free pooled frame, or one reclaimed according to the overflow policy; null (and counted as dropped) if there is none
+    private PendingFrame acquireFrame() {
+        PendingFrame frame = free_frames.poll();
+        if (frame == null) frame = reclaimFrame();
+        if (frame == null) dropped.incrementAndGet();
+        return frame;
+    }
+
+    private PendingFrame reclaimFrame() {
+        if (policy == OverflowPolicy.DROP_OLDEST) {
+            // Skip past queued direct frames, dropping them too, until a pooled buffer turns up
+            PendingFrame oldest;
+            while ((oldest = queued_frames.poll()) != null) {
+                dropped.incrementAndGet();
+                if (!oldest.isDirect()) return oldest;
+                recycle(oldest);
+            }
+            return null;
+        }
+        try {
+            return free_frames.poll(THROTTLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void writeFrames() {
+        PendingFrame[] batch = new PendingFrame[BATCH_SIZE];
+        long[] timestamps = new long[BATCH_SIZE];
+        ByteBuffer[] buffers = new ByteBuffer[BATCH_SIZE];
+        while (true) {
+            PendingFrame first;
+            try {
+                first = queued_frames.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException exception) {
+                return;
+            }
+            if (first == null) {
+                if (closed && queued_frames.isEmpty()) return;
+                continue;
+            }
+            // Take whatever else is already waiting so the sink can write several frames in one call, but only while more
+            // than half of the pool is free: a stalled write holds on to its whole batch, and DROP_OLDEST needs queued
+            // buffers to reclaim
+            batch[0] = first;
+            int count = 1;
+            PendingFrame next;
+            while (count < BATCH_SIZE && free_frames.size() > pool_size / 2 && (next = queued_frames.poll()) != null) {
+                batch[count++] = next;
+            }
+            for (int i = 0; i < count; ++i) {
+                timestamps[i] = batch[i].timestamp;
+                buffers[i] = batch[i].buffer;
+            }
+            try {
+                sink.writeFrames(timestamps, buffers, count);
+                written.addAndGet(count);
+            } catch (IOException exception) {
+                failed.addAndGet(count);
+                exception.printStackTrace();
+            }
+            for (int i = 0; i < count; ++i) {
+                recycle(batch[i]);
+                batch[i] = null;
+                buffers[i] = null;
+            }
+        }
+    }
+
+    // Return a frame to its pool, releasing the caller's buffer if it was written in place
+    private void recycle(PendingFrame frame) {
+        if (frame.isDirect()) {
+            release(frame.owner);
+            frame.owner = null;
+            frame.buffer = null;
+            free_direct_frames.add(frame);
+        } else {
+            free_frames.add(frame);
+        }
+    }
+
+    private static void release(AutoCloseable owner) {
+        try {
+            owner.close();
+        } catch (Exception exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    // Writes every frame still queued, then stops the writer threads; no frames may be submitted afterwards
+    public void close() throws InterruptedException {
+        closed = true;
+        for (Thread writer_thread : writer_threads) writer_thread.join();
+    }
+
+    public long getProducedCount() {
+        return produced.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public int getQueueDepth() {
+        return queued_frames.size();
+    }
+
+    @Override
+    public String toString() {
+        return "frames produced: " + getProducedCount() + ", written: " + getWrittenCount() + ", dropped: "
+                + getDroppedCount() + ", failed: " + getFailedCount() + ", queued: " + getQueueDepth();
+    }
+}
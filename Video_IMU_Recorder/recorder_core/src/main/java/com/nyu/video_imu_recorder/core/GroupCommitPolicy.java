@@ -0,0 +1,24 @@
+package com.nyu.video_imu_recorder.core;
+
+// Decides when buffered IMU data is flushed and synced to storage: after interval_ms or max_bytes, whichever comes first
+public class GroupCommitPolicy {
+
+    private final long interval_ns, max_bytes;
+    private long last_commit_time;
+
+    public GroupCommitPolicy(long interval_ms, long max_bytes, long now_ns) {
+        if (interval_ms <= 0 || max_bytes <= 0) throw new IllegalArgumentException("Commit interval and size must be positive");
+        this.interval_ns = interval_ms * 1_000_000;
+        this.max_bytes = max_bytes;
+        last_commit_time = now_ns;
+    }
+
+    public boolean shouldCommit(long now_ns, long pending_bytes) {
+        if (pending_bytes == 0) return false;
+        return pending_bytes >= max_bytes || now_ns - last_commit_time >= interval_ns;
+    }
+
+    public void committed(long now_ns) {
+        last_commit_time = now_ns;
+    }
+}
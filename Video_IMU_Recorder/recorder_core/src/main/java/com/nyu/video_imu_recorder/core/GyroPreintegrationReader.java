@@ -0,0 +1,67 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads the preintegration sidecar (see GyroPreintegrator) one frame interval at a time
+public class GyroPreintegrationReader implements Closeable {
+
+    private final DataInputStream input;
+    private final short accelerometer_id;
+    private final float[] gyroscope_bias = new float[IMURecordFormat.VALUE_COUNT];
+    private final float[] accelerometer_bias = new float[IMURecordFormat.VALUE_COUNT];
+
+    // Fields of the interval most recently returned by next()
+    public long start_frame, end_frame;
+    // w, x, y, z
+    public final float[] rotation = new float[4];
+    public final float[] velocity = new float[IMURecordFormat.VALUE_COUNT];
+    public int gyroscope_count, accelerometer_count;
+
+    public GyroPreintegrationReader(InputStream stream) throws IOException {
+        input = new DataInputStream(new BufferedInputStream(stream));
+        if (input.readInt() != GyroPreintegrator.MAGIC) throw new IOException("Not an IMU preintegration file");
+        short version = input.readShort();
+        if (version > GyroPreintegrator.VERSION) throw new IOException("Unsupported IMU preintegration file version " + version);
+        accelerometer_id = input.readShort();
+        for (int i = 0; i < gyroscope_bias.length; ++i) gyroscope_bias[i] = input.readFloat();
+        for (int i = 0; i < accelerometer_bias.length; ++i) accelerometer_bias[i] = input.readFloat();
+    }
+
+    // GyroPreintegrator.NO_ACCELEROMETER if only rotation was integrated
+    public short getAccelerometerId() {
+        return accelerometer_id;
+    }
+
+    public float[] getGyroscopeBias() {
+        return gyroscope_bias;
+    }
+
+    public float[] getAccelerometerBias() {
+        return accelerometer_bias;
+    }
+
+    // Advance to the next interval, returning false once the end of the file is reached
+    public boolean next() throws IOException {
+        try {
+            start_frame = input.readLong();
+        } catch (EOFException end) {
+            return false;
+        }
+        end_frame = input.readLong();
+        for (int i = 0; i < rotation.length; ++i) rotation[i] = input.readFloat();
+        for (int i = 0; i < velocity.length; ++i) velocity[i] = input.readFloat();
+        gyroscope_count = input.readUnsignedShort();
+        accelerometer_count = input.readUnsignedShort();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -0,0 +1,315 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+Sidecar written next to the IMU data file, holding the motion integrated between consecutive camera frames (all values
+big-endian)
+
+Header:
+<int magic "IMUP"> <short version> <short accelerometer id, or NO_ACCELEROMETER if velocity is not integrated>
+<float gyroscope bias x> <float y> <float z> <float accelerometer bias x> <float y> <float z>
+
+Interval records (RECORD_SIZE bytes, one per pair of consecutive frames, in frame order):
+<long start frame timestamp ns> <long end frame timestamp ns>
+<float w> <float x> <float y> <float z> unit quaternion rotating vectors from the body at the end frame into the body at
+the start frame
+<float vx> <float vy> <float vz> velocity change in m/s over the interval, in the body at the start frame (0 without an
+accelerometer)
+<short gyroscope sample count> <short accelerometer sample count> samples that fell within the interval
+
+Frame timestamps are on the sensors' clock, as in IMUAlignmentEngine.
+*/
+// Streaming stage on the IMU writer thread that integrates gyroscope samples, with the bias subtracted, into the rotation
+// between consecutive camera frames, and optionally linear acceleration into the velocity change over the same interval.
+// Frames are reported well after the sensors have passed them, so samples wait in bounded windows and are integrated up to
+// each frame once it arrives. The rate is interpolated linearly between samples and applied through the exact exponential
+// map at the midpoint of each step, so a rate changing linearly about a fixed axis is integrated exactly. All state is
+// primitive and nothing is allocated per sample.
+public class GyroPreintegrator implements IMUSampleSink, Closeable {
+
+    public static final int MAGIC = 0x494D5550;
+    public static final short VERSION = 1;
+    public static final short NO_ACCELEROMETER = -1;
+    public static final int RECORD_SIZE = 2 * Long.BYTES + 7 * Float.BYTES + 2 * Short.BYTES;
+    public static final int DEFAULT_WINDOW_CAPACITY = 1024, DEFAULT_FRAME_CAPACITY = 256;
+    private static final float[] NO_VALUES = new float[IMURecordFormat.VALUE_COUNT];
+    // Below this rotation per step, the Taylor series of cos and sinc are exact to double precision
+    private static final double SMALL_ANGLE = 1e-4;
+
+    private final IMUStorage storage;
+    private final short gyroscope_id, accelerometer_id;
+    private final float[] gyroscope_bias, accelerometer_bias;
+    private final SampleWindow gyroscope, accelerometer;
+    // Camera threads publish frame timestamps here; they are consumed on the writer thread once the sensors reach them
+    private final IMURingBuffer frame_ring;
+    private final IMUSampleSink frame_taker = (timestamp, sensor_id, values, offset, accuracy) -> pending_frame = timestamp;
+    private final long max_wait_ns;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private long pending_frame = -1, interval_start = -1;
+    // Everything up to this time has been integrated (or passed over before the first frame)
+    private long integrated_time = -1;
+    // Rotation and velocity change since interval_start
+    private double qw = 1, qx = 0, qy = 0, qz = 0, vx = 0, vy = 0, vz = 0;
+    private int gyroscope_count = 0, accelerometer_count = 0;
+    private long intervals = 0, skipped_frames = 0, dropped_samples = 0;
+
+    // Bias-corrected samples of one sensor from the newest one at or before integrated_time on, oldest first
+    private static class SampleWindow {
+        final int mask;
+        final long[] timestamps;
+        final double[] values;
+        long head = 0, tail = 0;
+
+        SampleWindow(int min_capacity) {
+            int capacity = Integer.highestOneBit(Math.max(2, min_capacity - 1)) << 1;
+            mask = capacity - 1;
+            timestamps = new long[capacity];
+            values = new double[capacity * IMURecordFormat.VALUE_COUNT];
+        }
+
+        boolean isFull() {
+            return tail - head > mask;
+        }
+
+        boolean isEmpty() {
+            return tail == head;
+        }
+
+        long timestamp(long sequence) {
+            return timestamps[(int) sequence & mask];
+        }
+
+        double value(long sequence, int axis) {
+            return values[((int) sequence & mask) * IMURecordFormat.VALUE_COUNT + axis];
+        }
+
+        long newest() {
+            return tail > head ? timestamp(tail - 1) : Long.MIN_VALUE;
+        }
+
+        // Time of the sample after the oldest one, or Long.MAX_VALUE if there is none yet
+        long next() {
+            return tail - head > 1 ? timestamp(head + 1) : Long.MAX_VALUE;
+        }
+
+        void add(long timestamp, float[] sample, int offset, float[] bias) {
+            int index = ((int) tail & mask) * IMURecordFormat.VALUE_COUNT;
+            timestamps[(int) tail & mask] = timestamp;
+            for (int i = 0; i < IMURecordFormat.VALUE_COUNT; ++i) values[index + i] = sample[offset + i] - bias[i];
+            ++tail;
+        }
+
+        // Drops samples that a later one at or before the time makes unnecessary
+        void advanceTo(long time) {
+            while (tail - head > 1 && timestamp(head + 1) <= time) ++head;
+        }
+    }
+
+    // Pass NO_ACCELEROMETER to integrate rotation only; biases are subtracted from every sample of their sensor.
+    // max_wait_ns bounds how long a frame waits for the accelerometer once the gyroscope has passed it.
+    public GyroPreintegrator(IMUStorage storage, short gyroscope_id, float[] gyroscope_bias, short accelerometer_id,
+                             float[] accelerometer_bias, long max_wait_ns) throws IOException {
+        this(storage, gyroscope_id, gyroscope_bias, accelerometer_id, accelerometer_bias, max_wait_ns,
+                DEFAULT_WINDOW_CAPACITY, DEFAULT_FRAME_CAPACITY);
+    }
+
+    public GyroPreintegrator(IMUStorage storage, short gyroscope_id, float[] gyroscope_bias, short accelerometer_id,
+                             float[] accelerometer_bias, long max_wait_ns, int window_capacity, int frame_capacity)
+            throws IOException {
+        this.storage = storage;
+        this.gyroscope_id = gyroscope_id;
+        this.accelerometer_id = accelerometer_id;
+        this.gyroscope_bias = gyroscope_bias.clone();
+        this.accelerometer_bias = accelerometer_bias.clone();
+        this.max_wait_ns = max_wait_ns;
+        gyroscope = new SampleWindow(window_capacity);
+        accelerometer = accelerometer_id == NO_ACCELEROMETER ? null : new SampleWindow(window_capacity);
+        frame_ring = new IMURingBuffer(frame_capacity);
+        if (storage.size() == 0) {
+            buffer.putInt(MAGIC).putShort(VERSION).putShort(accelerometer_id);
+            for (float bias : gyroscope_bias) buffer.putFloat(bias);
+            for (float bias : accelerometer_bias) buffer.putFloat(bias);
+        }
+    }
+
+    // Called from the camera's thread (a single producer) for every captured frame; returns false if the frame was dropped
+    public boolean submitFrame(long timestamp) {
+        return frame_ring.offer(timestamp, (short) 0, NO_VALUES, 0);
+    }
+
+    // Called from the writer thread with samples in each sensor's timestamp order
+    @Override
+    public void onSample(long timestamp, short sensor_id, float[] values, int offset, int accuracy) throws IOException {
+        SampleWindow window = sensor_id == gyroscope_id ? gyroscope : sensor_id == accelerometer_id ? accelerometer : null;
+        if (window == null) return;
+        if (timestamp <= window.newest() || timestamp <= integrated_time) {
+            ++dropped_samples;
+            return;
+        }
+        if (window.isFull()) {
+            // No frame has claimed the oldest samples for too long: integrate past them as far as the gyroscope allows
+            integrateTo(Math.min(window.next(), gyroscope.newest()));
+            if (window.isFull()) {
+                ++window.head;
+                ++dropped_samples;
+            }
+        }
+        window.add(timestamp, values, offset, window == gyroscope ? gyroscope_bias : accelerometer_bias);
+        closeReadyFrames(false);
+    }
+
+    // Close the intervals of pending frames in order for as long as the sensors have reached them (or the gyroscope has,
+    // when flushing)
+    private void closeReadyFrames(boolean flush) throws IOException {
+        while (pending_frame != -1 || frame_ring.drain(frame_taker, 1) > 0) {
+            long frame = pending_frame, gyroscope_newest = gyroscope.newest();
+            if (frame < integrated_time || frame <= interval_start) {
+                // Integration already went past it while no frame came
+                ++skipped_frames;
+            } else {
+                if (gyroscope_newest < frame) {
+                    if (flush) ++skipped_frames;
+                    else return;
+                } else {
+                    boolean accelerometer_ready = accelerometer == null || accelerometer.newest() >= frame
+                            || gyroscope_newest - frame > max_wait_ns;
+                    if (!flush && !accelerometer_ready) return;
+                    integrateTo(frame);
+                    closeInterval(frame);
+                }
+            }
+            pending_frame = -1;
+        }
+    }
+
+    // Integrates up to the time, at most the newest gyroscope sample, splitting steps at every sample of either sensor
+    private void integrateTo(long time) {
+        if (gyroscope.isEmpty()) return;
+        if (integrated_time < 0) integrated_time = gyroscope.timestamp(gyroscope.head);
+        while (integrated_time < time) {
+            long next = Math.min(time, gyroscope.next());
+            if (accelerometer != null) next = Math.min(next, accelerometer.next());
+            if (interval_start >= 0) step(integrated_time, next);
+            integrated_time = next;
+            if (gyroscope.next() == next) {
+                gyroscope.advanceTo(next);
+                if (interval_start >= 0) ++gyroscope_count;
+            }
+            if (accelerometer != null && accelerometer.next() == next) {
+                accelerometer.advanceTo(next);
+                if (interval_start >= 0) ++accelerometer_count;
+            }
+        }
+    }
+
+    // One step within which both sensors' samples are fixed: the oldest gyroscope sample is at or before from and the next
+    // one, if any, at or after to
+    private void step(long from, long to) {
+        double dt = (to - from) * 1e-9;
+        long g0 = gyroscope.head;
+        double rx = gyroscope.value(g0, 0), ry = gyroscope.value(g0, 1), rz = gyroscope.value(g0, 2);
+        if (gyroscope.tail - g0 > 1) {
+            long t0 = gyroscope.timestamp(g0);
+            double weight = ((from + to) * 0.5 - t0) / (gyroscope.timestamp(g0 + 1) - t0);
+            rx += weight * (gyroscope.value(g0 + 1, 0) - rx);
+            ry += weight * (gyroscope.value(g0 + 1, 1) - ry);
+            rz += weight * (gyroscope.value(g0 + 1, 2) - rz);
+        }
+        boolean accelerating = accelerometer != null && !accelerometer.isEmpty()
+                && accelerometer.timestamp(accelerometer.head) <= from;
+        // The acceleration held over the step is rotated by the rotation at both of its ends, averaged
+        if (accelerating) addVelocity(0.5 * dt);
+        // q = q * exp(r dt / 2)
+        double angle_sq = (rx * rx + ry * ry + rz * rz) * dt * dt, half_cos, half_sinc;
+        if (angle_sq < SMALL_ANGLE * SMALL_ANGLE) {
+            half_cos = 1 - angle_sq / 8;
+            half_sinc = 0.5 - angle_sq / 48;
+        } else {
+            double angle = Math.sqrt(angle_sq);
+            half_cos = Math.cos(angle / 2);
+            half_sinc = Math.sin(angle / 2) / angle;
+        }
+        double dw = half_cos, dx = rx * dt * half_sinc, dy = ry * dt * half_sinc, dz = rz * dt * half_sinc;
+        double w = qw * dw - qx * dx - qy * dy - qz * dz;
+        double x = qw * dx + qx * dw + qy * dz - qz * dy;
+        double y = qw * dy - qx * dz + qy * dw + qz * dx;
+        double z = qw * dz + qx * dy - qy * dx + qz * dw;
+        double norm = 1 / Math.sqrt(w * w + x * x + y * y + z * z);
+        qw = w * norm;
+        qx = x * norm;
+        qy = y * norm;
+        qz = z * norm;
+        if (accelerating) addVelocity(0.5 * dt);
+    }
+
+    // v += R(q) a dt, with R(q) a = a + 2 w (u x a) + 2 u x (u x a) for u = (qx, qy, qz)
+    private void addVelocity(double dt) {
+        long a = accelerometer.head;
+        double ax = accelerometer.value(a, 0), ay = accelerometer.value(a, 1), az = accelerometer.value(a, 2);
+        double cx = qy * az - qz * ay, cy = qz * ax - qx * az, cz = qx * ay - qy * ax;
+        vx += (ax + 2 * (qw * cx + qy * cz - qz * cy)) * dt;
+        vy += (ay + 2 * (qw * cy + qz * cx - qx * cz)) * dt;
+        vz += (az + 2 * (qw * cz + qx * cy - qy * cx)) * dt;
+    }
+
+    private void closeInterval(long frame) throws IOException {
+        if (interval_start >= 0) {
+            if (buffer.remaining() < RECORD_SIZE) drain();
+            buffer.putLong(interval_start).putLong(frame)
+                    .putFloat((float) qw).putFloat((float) qx).putFloat((float) qy).putFloat((float) qz)
+                    .putFloat((float) vx).putFloat((float) vy).putFloat((float) vz)
+                    .putShort((short) Math.min(Short.MAX_VALUE, gyroscope_count))
+                    .putShort((short) Math.min(Short.MAX_VALUE, accelerometer_count));
+            ++intervals;
+        }
+        interval_start = frame;
+        qw = 1;
+        qx = qy = qz = vx = vy = vz = 0;
+        gyroscope_count = accelerometer_count = 0;
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        storage.write(buffer);
+        buffer.clear();
+    }
+
+    public long getIntervalCount() {
+        return intervals;
+    }
+
+    // Frames the gyroscope never reached, or that came after integration had to move past them
+    public long getSkippedFrameCount() {
+        return skipped_frames;
+    }
+
+    public long getDroppedFrameCount() {
+        return frame_ring.getOverflowCount();
+    }
+
+    // Samples out of order, or pushed out of a full window before any frame claimed them
+    public long getDroppedSampleCount() {
+        return dropped_samples;
+    }
+
+    // Call after the writer thread has stopped; frames the accelerometer never caught up with are closed with what there is
+    @Override
+    public void close() throws IOException {
+        try {
+            closeReadyFrames(true);
+            drain();
+            storage.sync();
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return intervals + " frame intervals integrated, " + getDroppedFrameCount() + " frames dropped, " + skipped_frames
+                + " skipped and " + dropped_samples + " samples dropped";
+    }
+}
@@ -0,0 +1,236 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+Sidecar written next to the IMU data file, holding every sensor's value at each camera frame (all values big-endian)
+
+Header:
+<int magic "IMUA"> <short version> <short sensor count> followed by <short sensor id> for every sensor
+
+Frame records (one per camera frame, in frame order):
+<long frame timestamp ns> <int held flags>
+then for every sensor, in header order:
+<float x> <float y> <float z> interpolated at the frame timestamp
+<short raw count> followed by raw count * (<long timestamp ns> <float x> <float y> <float z>), the sensor's own samples
+after the previous frame and up to this one
+
+Bit i of the held flags is set when sensor i had no samples on both sides of the frame, in which case its nearest sample
+is repeated instead of interpolated (or NaN if it had none at all).
+
+Frame timestamps are on the sensors' clock, elapsedRealtime; the camera's own timestamps are mapped onto it first when
+the camera uses another clock (see SessionClock.frameToRealtime).
+*/
+// Streaming stage on the IMU writer thread that aligns sensor samples with camera frames in bounded memory
+public class IMUAlignmentEngine implements IMUSampleSink, Closeable {
+
+    public static final int MAGIC = 0x494D5541;
+    public static final short VERSION = 1;
+    public static final int DEFAULT_WINDOW_CAPACITY = 1024, DEFAULT_FRAME_CAPACITY = 256;
+    private static final int RAW_SAMPLE_SIZE = Long.BYTES + IMURecordFormat.VALUE_COUNT * Float.BYTES;
+    private static final float[] NO_VALUES = new float[IMURecordFormat.VALUE_COUNT];
+
+    private final IMUStorage storage;
+    private final short[] sensor_ids;
+    private final SampleWindow[] windows;
+    // Camera threads publish frame timestamps here; they are consumed on the writer thread as samples catch up with them
+    private final IMURingBuffer frame_ring;
+    private final long max_wait_ns;
+    private final int max_record_size;
+    private final ByteBuffer buffer;
+    private final IMUSampleSink frame_taker = (timestamp, sensor_id, values, offset, accuracy) -> pending_frame = timestamp;
+    private long pending_frame = -1, last_frame = Long.MIN_VALUE;
+    private long aligned_frames = 0, held_frames = 0, dropped_raw_samples = 0;
+
+    // Samples of one sensor since just before the last aligned frame, oldest first
+    private static class SampleWindow {
+        final int mask;
+        final long[] timestamps;
+        final float[] values;
+        long head = 0, tail = 0;
+
+        SampleWindow(int min_capacity) {
+            int capacity = Integer.highestOneBit(Math.max(2, min_capacity - 1)) << 1;
+            mask = capacity - 1;
+            timestamps = new long[capacity];
+            values = new float[capacity * IMURecordFormat.VALUE_COUNT];
+        }
+
+        boolean isFull() {
+            return tail - head > mask;
+        }
+
+        long timestamp(long sequence) {
+            return timestamps[(int) sequence & mask];
+        }
+
+        int valueOffset(long sequence) {
+            return ((int) sequence & mask) * IMURecordFormat.VALUE_COUNT;
+        }
+
+        // Newest sample at or before the timestamp, or head - 1 if every sample is later
+        long floor(long timestamp) {
+            long sequence = tail - 1;
+            while (sequence >= head && timestamp(sequence) > timestamp) --sequence;
+            return sequence;
+        }
+    }
+
+    public IMUAlignmentEngine(IMUStorage storage, short[] sensor_ids, long max_wait_ns) throws IOException {
+        this(storage, sensor_ids, max_wait_ns, DEFAULT_WINDOW_CAPACITY, DEFAULT_FRAME_CAPACITY);
+    }
+
+    // max_wait_ns bounds how far one sensor may run ahead of a frame before sensors that have not reached it are given up on
+    public IMUAlignmentEngine(IMUStorage storage, short[] sensor_ids, long max_wait_ns, int window_capacity,
+                              int frame_capacity) throws IOException {
+        this.storage = storage;
+        this.sensor_ids = sensor_ids.clone();
+        this.max_wait_ns = max_wait_ns;
+        windows = new SampleWindow[sensor_ids.length];
+        for (int i = 0; i < windows.length; ++i) windows[i] = new SampleWindow(window_capacity);
+        frame_ring = new IMURingBuffer(frame_capacity);
+        max_record_size = Long.BYTES + Integer.BYTES + sensor_ids.length
+                * (IMURecordFormat.VALUE_COUNT * Float.BYTES + Short.BYTES + (windows[0].mask + 1) * RAW_SAMPLE_SIZE);
+        buffer = ByteBuffer.allocateDirect(Math.max(64 * 1024, 2 * max_record_size));
+        if (storage.size() == 0) {
+            buffer.putInt(MAGIC).putShort(VERSION).putShort((short) sensor_ids.length);
+            for (short id : sensor_ids) buffer.putShort(id);
+        }
+    }
+
+    // Size of the sidecar's header, which is all a sidecar holds if no frame ever arrived
+    public static int headerSize(int sensor_count) {
+        return Integer.BYTES + 2 * Short.BYTES + sensor_count * Short.BYTES;
+    }
+
+    // Called from the camera's thread (a single producer) for every captured frame; returns false if the frame was dropped
+    public boolean submitFrame(long timestamp) {
+        return frame_ring.offer(timestamp, (short) 0, NO_VALUES, 0);
+    }
+
+    // Called from the writer thread with samples in each sensor's timestamp order
+    @Override
+    public void onSample(long timestamp, short sensor_id, float[] values, int offset, int accuracy) throws IOException {
+        int sensor = indexOf(sensor_id);
+        if (sensor < 0) return;
+        SampleWindow window = windows[sensor];
+        if (window.isFull()) {
+            // Nothing has claimed the oldest sample for too long; a sample after the last frame is lost from the sidecar
+            if (window.timestamp(window.head) > last_frame) ++dropped_raw_samples;
+            ++window.head;
+        }
+        window.timestamps[(int) window.tail & window.mask] = timestamp;
+        System.arraycopy(values, offset, window.values, window.valueOffset(window.tail), IMURecordFormat.VALUE_COUNT);
+        ++window.tail;
+        alignReadyFrames(false);
+    }
+
+    private int indexOf(short sensor_id) {
+        for (int i = 0; i < sensor_ids.length; ++i) {
+            if (sensor_ids[i] == sensor_id) return i;
+        }
+        return -1;
+    }
+
+    // Align pending frames in order for as long as the sensors have caught up with them (or unconditionally when flushing)
+    private void alignReadyFrames(boolean flush) throws IOException {
+        while (pending_frame != -1 || frame_ring.drain(frame_taker, 1) > 0) {
+            if (!flush && !isReady(pending_frame)) return;
+            align(pending_frame);
+            pending_frame = -1;
+        }
+    }
+
+    private boolean isReady(long frame) {
+        boolean all_reached = true, any_past_wait = false;
+        for (SampleWindow window : windows) {
+            long newest = window.tail > window.head ? window.timestamp(window.tail - 1) : Long.MIN_VALUE;
+            all_reached &= newest >= frame;
+            any_past_wait |= newest != Long.MIN_VALUE && newest - frame > max_wait_ns;
+        }
+        return all_reached || any_past_wait;
+    }
+
+    private void align(long frame) throws IOException {
+        if (buffer.remaining() < max_record_size) drain();
+        int flags_position = buffer.position() + Long.BYTES, flags = 0;
+        buffer.putLong(frame).putInt(0);
+        for (int sensor = 0; sensor < windows.length; ++sensor) {
+            SampleWindow window = windows[sensor];
+            long before = window.floor(frame), after = before + 1;
+            if (before >= window.head && after < window.tail) {
+                // Linear interpolation between the samples on both sides of the frame
+                long t0 = window.timestamp(before), t1 = window.timestamp(after);
+                float weight = t1 == t0 ? 0 : (float) ((double) (frame - t0) / (t1 - t0));
+                int v0 = window.valueOffset(before), v1 = window.valueOffset(after);
+                for (int i = 0; i < IMURecordFormat.VALUE_COUNT; ++i) {
+                    buffer.putFloat(window.values[v0 + i] + weight * (window.values[v1 + i] - window.values[v0 + i]));
+                }
+            } else {
+                flags |= 1 << sensor;
+                long nearest = before >= window.head ? before : after;
+                for (int i = 0; i < IMURecordFormat.VALUE_COUNT; ++i) {
+                    buffer.putFloat(nearest < window.tail ? window.values[window.valueOffset(nearest) + i] : Float.NaN);
+                }
+            }
+            // Raw samples since the previous frame, up to and including this one
+            long first = before;
+            while (first >= window.head && window.timestamp(first) > last_frame) --first;
+            buffer.putShort((short) (before - first));
+            for (long sequence = first + 1; sequence <= before; ++sequence) {
+                buffer.putLong(window.timestamp(sequence));
+                int v = window.valueOffset(sequence);
+                for (int i = 0; i < IMURecordFormat.VALUE_COUNT; ++i) buffer.putFloat(window.values[v + i]);
+            }
+            // Only the newest sample at or before this frame is still needed, to interpolate the next one
+            if (before > window.head) window.head = before;
+        }
+        buffer.putInt(flags_position, flags);
+        if (frame > last_frame) last_frame = frame;
+        ++aligned_frames;
+        if (flags != 0) ++held_frames;
+    }
+
+    public long getAlignedFrameCount() {
+        return aligned_frames;
+    }
+
+    // Frames where at least one sensor had to repeat its nearest sample instead of interpolating
+    public long getHeldFrameCount() {
+        return held_frames;
+    }
+
+    public long getDroppedFrameCount() {
+        return frame_ring.getOverflowCount();
+    }
+
+    public long getDroppedRawSampleCount() {
+        return dropped_raw_samples;
+    }
+
+    // Call after the writer thread has stopped; frames the sensors never caught up with are aligned with what there is
+    @Override
+    public void close() throws IOException {
+        try {
+            alignReadyFrames(true);
+            drain();
+            storage.sync();
+        } finally {
+            storage.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        storage.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public String toString() {
+        return aligned_frames + " frames aligned (" + held_frames + " held), " + getDroppedFrameCount()
+                + " frames and " + dropped_raw_samples + " raw samples dropped";
+    }
+}
@@ -0,0 +1,77 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+// Reads the per-frame alignment sidecar (see IMUAlignmentEngine) one frame at a time
+public class IMUAlignmentReader implements Closeable {
+
+    private final DataInputStream input;
+    private final short[] sensor_ids;
+
+    // Fields of the frame most recently returned by next(); the first index is the sensor's position in getSensorIds()
+    public long frame_timestamp;
+    public int held_flags;
+    public final float[][] interpolated;
+    public final int[] raw_counts;
+    public long[][] raw_timestamps;
+    public float[][] raw_values;
+
+    public IMUAlignmentReader(InputStream stream) throws IOException {
+        input = new DataInputStream(new BufferedInputStream(stream));
+        if (input.readInt() != IMUAlignmentEngine.MAGIC) throw new IOException("Not an IMU alignment file");
+        short version = input.readShort();
+        if (version > IMUAlignmentEngine.VERSION) throw new IOException("Unsupported IMU alignment file version " + version);
+        sensor_ids = new short[input.readShort()];
+        for (int i = 0; i < sensor_ids.length; ++i) sensor_ids[i] = input.readShort();
+        interpolated = new float[sensor_ids.length][IMURecordFormat.VALUE_COUNT];
+        raw_counts = new int[sensor_ids.length];
+        raw_timestamps = new long[sensor_ids.length][16];
+        raw_values = new float[sensor_ids.length][16 * IMURecordFormat.VALUE_COUNT];
+    }
+
+    public short[] getSensorIds() {
+        return sensor_ids;
+    }
+
+    // Advance to the next frame, returning false once the end of the file is reached
+    public boolean next() throws IOException {
+        try {
+            frame_timestamp = input.readLong();
+        } catch (EOFException end) {
+            return false;
+        }
+        held_flags = input.readInt();
+        for (int sensor = 0; sensor < sensor_ids.length; ++sensor) {
+            for (int i = 0; i < IMURecordFormat.VALUE_COUNT; ++i) interpolated[sensor][i] = input.readFloat();
+            int count = input.readUnsignedShort();
+            if (count > raw_timestamps[sensor].length) {
+                raw_timestamps[sensor] = Arrays.copyOf(raw_timestamps[sensor], count);
+                raw_values[sensor] = Arrays.copyOf(raw_values[sensor], count * IMURecordFormat.VALUE_COUNT);
+            }
+            raw_counts[sensor] = count;
+            for (int j = 0; j < count; ++j) {
+                raw_timestamps[sensor][j] = input.readLong();
+                for (int i = 0; i < IMURecordFormat.VALUE_COUNT; ++i) {
+                    raw_values[sensor][j * IMURecordFormat.VALUE_COUNT + i] = input.readFloat();
+                }
+            }
+        }
+        return true;
+    }
+
+    // Whether the sensor's value at the current frame was repeated from its nearest sample rather than interpolated
+    public boolean isHeld(int sensor) {
+        return (held_flags & 1 << sensor) != 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
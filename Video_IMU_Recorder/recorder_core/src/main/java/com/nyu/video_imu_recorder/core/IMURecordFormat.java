@@ -0,0 +1,96 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+Binary layout of an IMU data file (all values big-endian)
+
+Header:
+<int magic "IMUB"> <short version> <short record size> <short sensor count>
+followed by <short sensor id> <short name length> <UTF-8 name bytes> for every sensor
+
+Records (fixed width, RECORD_SIZE bytes each):
+<long timestamp ns> <short sensor id> <short accuracy> <float x> <float y> <float z>
+
+Records whose sensor id is negative are markers instead of sensor samples; their 12 payload bytes are described by each
+marker id below.
+
+A sensor with more values than x, y, z (an uncalibrated gyroscope and its bias estimate, a rotation vector) is recorded
+in a file of its own (see SensorStreamRegistry) whose records carry the extra floats after z, with the record size in
+the header widened to match; markers in such a file are padded to the same width. Sensors with fewer values leave the
+rest 0. Such files are version 2: in version 1 files, bytes past RECORD_SIZE are trailing fields readers skip.
+*/
+public final class IMURecordFormat {
+
+    public static final int MAGIC = 0x494D5542;
+    public static final short VERSION = 2;
+    public static final int VALUE_COUNT = 3;
+    public static final int RECORD_SIZE = Long.BYTES + 2 * Short.BYTES + VALUE_COUNT * Float.BYTES;
+    // Most values a record can carry, the six of the uncalibrated sensors
+    public static final int MAX_VALUE_COUNT = 6;
+    // Marker written once both the IMU and the video have started (see SessionClockLogger); timestamp is the video start
+    // time, payload is the latency between the two on elapsedRealtime as a long
+    public static final short VIDEO_START_ID = -1;
+    // Marker noting a sensor's sampling configuration; the accuracy field holds the id of the sensor it describes and the
+    // payload is <int requested period us> <int max report latency us> <float achieved rate Hz (NaN until measured)>
+    public static final short SENSOR_RATE_ID = -2;
+    // Marker noting how a clock domain maps onto elapsedRealtime; the accuracy field holds the SessionClock.Domain ordinal,
+    // the timestamp is the domain time the mapping is anchored at and the payload is <long offset ns> <float drift ppm>
+    public static final short CLOCK_MAPPING_ID = -3;
+    // Marker noting an adjustment of the burst capture rate (see BurstRateController); timestamp is the camera frame that
+    // triggered it, the accuracy field holds the new JPEG quality and the payload is <long kept frame interval ns>
+    // <float measured write bandwidth bytes/s (NaN until measured)>
+    public static final short BURST_RATE_ID = -4;
+
+    private IMURecordFormat() {}
+
+    // Width of the records of a file whose sensor has value_count values
+    public static int recordSize(int value_count) {
+        return RECORD_SIZE + Math.max(0, value_count - VALUE_COUNT) * Float.BYTES;
+    }
+
+    // Header of an uncompressed file with records of record_size bytes, for copies of the records kept elsewhere (see
+    // LiveStreamFormat and IMUTrackFormat)
+    public static ByteBuffer header(int record_size, short[] sensor_ids, String[] sensor_names) {
+        ByteBuffer header = ByteBuffer.allocate(4096);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) record_size).putShort((short) sensor_ids.length);
+        for (int i = 0; i < sensor_ids.length; ++i) {
+            byte[] name = sensor_names[i].getBytes(StandardCharsets.UTF_8);
+            header.putShort(sensor_ids[i]).putShort((short) name.length).put(name);
+        }
+        header.flip();
+        return header;
+    }
+
+    // Reproduces the line written by the original text recorder for a sensor sample
+    public static String sampleToText(long timestamp, String sensor_name, float[] values) {
+        return timestamp + " " + sensor_name + " " + Arrays.toString(values) + '\n';
+    }
+
+    // Line describing a sensor's sampling configuration; the original recorder had no equivalent
+    public static String sensorRateToText(long timestamp, String sensor_name, int requested_period_us,
+                                          int max_report_latency_us, float achieved_rate_hz) {
+        return timestamp + " " + sensor_name + " sampling: requested period " + requested_period_us
+                + " us, max report latency " + max_report_latency_us + " us, achieved rate " + achieved_rate_hz + " Hz\n";
+    }
+
+    // Line describing a clock domain's mapping; the original recorder had no equivalent
+    public static String clockMappingToText(long anchor_time, String domain_name, long offset_ns, float drift_ppm) {
+        return anchor_time + " " + domain_name + " clock: elapsedRealtime = time + " + offset_ns + " ns, drift " + drift_ppm
+                + " ppm\n";
+    }
+
+    // Line describing a burst rate adjustment; the original recorder had no equivalent
+    public static String burstRateToText(long timestamp, long frame_interval_ns, int jpeg_quality, float write_bandwidth_bps) {
+        return timestamp + " burst rate: frame interval " + frame_interval_ns + " ns, JPEG quality " + jpeg_quality
+                + ", write bandwidth " + write_bandwidth_bps + " bytes/s\n";
+    }
+
+    // Reproduces the line written by the original text recorder when video recording started
+    public static String videoStartToText(long video_start_time, long latency) {
+        return video_start_time + " video recording started. Latency between IMU and camera: "
+                + Math.abs(latency) + " (" + (latency < 0 ? "IMU" : "camera") + " started sooner)\n";
+    }
+}
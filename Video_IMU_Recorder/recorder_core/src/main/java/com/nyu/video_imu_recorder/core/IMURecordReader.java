@@ -0,0 +1,184 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// Reads binary IMU data files record by record and converts them back to the original text layout, optionally annotated
+// with the markers the original recorder had no equivalent for. Compressed files are
+// decoded block by block through an IMUStreamDecoder, so their records come back in timestamp order within each block.
+public class IMURecordReader implements Closeable {
+
+    private final DataInputStream input;
+    private final Map<Short, String> sensor_names;
+    private final int record_size;
+    private final IMUStreamDecoder decoder;
+    private int block_position = 0;
+
+    // Fields of the record most recently returned by next()
+    public long timestamp;
+    public short sensor_id;
+    public short accuracy;
+    // x, y, z, followed by any further values of files holding a sensor with more of them
+    public final float[] values;
+    // Payload of marker records, split into its first 8 and last 4 bytes
+    public long marker_payload;
+    public int marker_extra;
+
+    public IMURecordReader(InputStream stream) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(stream);
+        input = new DataInputStream(buffered);
+        buffered.mark(Integer.BYTES);
+        int magic = input.readInt();
+        if (magic == IMUStreamFormat.MAGIC) {
+            buffered.reset();
+            decoder = new IMUStreamDecoder(buffered);
+            sensor_names = decoder.getSensorNames();
+            record_size = IMURecordFormat.RECORD_SIZE;
+            values = new float[IMURecordFormat.VALUE_COUNT];
+            return;
+        }
+        decoder = null;
+        sensor_names = new HashMap<>();
+        if (magic != IMURecordFormat.MAGIC) throw new IOException("Not an IMU data file");
+        short version = input.readShort();
+        if (version > IMURecordFormat.VERSION) throw new IOException("Unsupported IMU data file version " + version);
+        record_size = input.readShort();
+        // Wider records of version 1 files carry trailing fields rather than values
+        int extra_values = version < 2 ? 0 : Math.min((record_size - IMURecordFormat.RECORD_SIZE) / Float.BYTES,
+                IMURecordFormat.MAX_VALUE_COUNT - IMURecordFormat.VALUE_COUNT);
+        values = new float[IMURecordFormat.VALUE_COUNT + extra_values];
+        int sensor_count = input.readShort();
+        for (int i = 0; i < sensor_count; ++i) {
+            short id = input.readShort();
+            byte[] name = new byte[input.readShort()];
+            input.readFully(name);
+            sensor_names.put(id, new String(name, StandardCharsets.UTF_8));
+        }
+    }
+
+    public String getSensorName(short id) {
+        return sensor_names.get(id);
+    }
+
+    public Map<Short, String> getSensorNames() {
+        return sensor_names;
+    }
+
+    // Advance to the next record, returning false once the end of the file is reached
+    public boolean next() throws IOException {
+        if (decoder != null) return nextDecoded();
+        try {
+            timestamp = input.readLong();
+        } catch (EOFException end) {
+            return false;
+        }
+        sensor_id = input.readShort();
+        accuracy = input.readShort();
+        if (isMarker()) {
+            marker_payload = input.readLong();
+            marker_extra = input.readInt();
+            input.skipBytes(record_size - IMURecordFormat.RECORD_SIZE);
+        } else {
+            for (int i = 0; i < values.length; ++i) values[i] = input.readFloat();
+            // Anything past the values, such as the trailing fields of wider version 1 records, is skipped
+            input.skipBytes(record_size - IMURecordFormat.recordSize(values.length));
+        }
+        return true;
+    }
+
+    private boolean nextDecoded() throws IOException {
+        while (block_position == decoder.count) {
+            if (!decoder.nextBlock()) return false;
+            block_position = 0;
+        }
+        int i = block_position++;
+        timestamp = decoder.timestamps[i];
+        sensor_id = decoder.sensor_ids[i];
+        accuracy = decoder.accuracies[i];
+        if (isMarker()) {
+            marker_payload = decoder.marker_payloads[i];
+            marker_extra = decoder.marker_extras[i];
+        } else {
+            System.arraycopy(decoder.values, i * values.length, values, 0, values.length);
+        }
+        return true;
+    }
+
+    public boolean isCompressed() {
+        return decoder != null;
+    }
+
+    public boolean isMarker() {
+        return sensor_id < 0;
+    }
+
+    // Whether the current record has a line in the original text layout: sensor samples and the video start
+    public boolean isLegacy() {
+        return !isMarker() || sensor_id == IMURecordFormat.VIDEO_START_ID;
+    }
+
+    // Text line the original recorder would have written for the current record, or an annotation describing a marker
+    // it had no equivalent for
+    public String toText() {
+        switch (sensor_id) {
+            case IMURecordFormat.VIDEO_START_ID:
+                return IMURecordFormat.videoStartToText(timestamp, marker_payload);
+            case IMURecordFormat.SENSOR_RATE_ID:
+                return IMURecordFormat.sensorRateToText(timestamp, getSensorName(accuracy), (int) (marker_payload >>> 32),
+                        (int) marker_payload, Float.intBitsToFloat(marker_extra));
+            case IMURecordFormat.CLOCK_MAPPING_ID:
+                return IMURecordFormat.clockMappingToText(timestamp, SessionClock.Domain.values()[accuracy].name(),
+                        marker_payload, Float.intBitsToFloat(marker_extra));
+            case IMURecordFormat.BURST_RATE_ID:
+                return IMURecordFormat.burstRateToText(timestamp, marker_payload, accuracy, Float.intBitsToFloat(marker_extra));
+            default:
+                return IMURecordFormat.sampleToText(timestamp, getSensorName(sensor_id), values);
+        }
+    }
+
+    // Converts to exactly the layout of the original text recorder, for tools that parse it
+    public static void convertToText(InputStream binary, Writer text) throws IOException {
+        convertToText(binary, text, false);
+    }
+
+    // Converts to the original text layout, with annotation lines for sampling, clock and burst rate markers if asked
+    public static void convertToText(InputStream binary, Writer text, boolean annotations) throws IOException {
+        try (IMURecordReader reader = new IMURecordReader(binary)) {
+            while (reader.next()) {
+                if (annotations || reader.isLegacy()) text.write(reader.toText());
+            }
+        }
+        text.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    // Usage: IMURecordReader [--annotations] <binary IMU file> <text output file>
+    public static void main(String[] args) throws IOException {
+        boolean annotations = args.length == 3 && args[0].equals("--annotations");
+        if (args.length != (annotations ? 3 : 2)) {
+            System.err.println("Usage: IMURecordReader [--annotations] <binary IMU file> <text output file>");
+            System.exit(1);
+        }
+        int first = annotations ? 1 : 0;
+        try (Writer text = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[first + 1]),
+                StandardCharsets.UTF_8))) {
+            convertToText(new FileInputStream(args[first]), text, annotations);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Appends fixed-width IMU records to a file through one reused direct buffer, so recording a sample allocates nothing.
+// In compressed mode the records go through an IMUStreamEncoder instead (see IMUStreamFormat).
+public class IMURecordWriter implements IMUSampleSink, Closeable {
+
+    private static final int BUFFER_RECORDS = 2048;
+    private final IMUStorage storage;
+    private final int value_count, record_size;
+    private final ByteBuffer buffer;
+    private final IMUStreamEncoder encoder;
+    // Bytes handed to storage since the last commit, not counting what still sits in the buffer, and in total
+    private long unsynced_bytes = 0, position;
+    private SessionIndexWriter.Stream time_index;
+
+    public IMURecordWriter(File file, short[] sensor_ids, String[] sensor_names) throws IOException {
+        this(new ChannelIMUStorage(file), sensor_ids, sensor_names);
+    }
+
+    public IMURecordWriter(IMUStorage storage, short[] sensor_ids, String[] sensor_names) throws IOException {
+        this(storage, sensor_ids, sensor_names, false);
+    }
+
+    // A compressed file ends a block at every flush or commit, so longer commit intervals compress better
+    public IMURecordWriter(IMUStorage storage, short[] sensor_ids, String[] sensor_names, boolean compressed)
+            throws IOException {
+        this(storage, sensor_ids, sensor_names, compressed, IMURecordFormat.VALUE_COUNT);
+    }
+
+    // Samples carry value_count values each, written as records of IMURecordFormat.recordSize(value_count) bytes; only
+    // the usual three can be compressed
+    public IMURecordWriter(IMUStorage storage, short[] sensor_ids, String[] sensor_names, boolean compressed,
+                           int value_count) throws IOException {
+        if (compressed && value_count != IMURecordFormat.VALUE_COUNT) {
+            throw new IllegalArgumentException("Compressed IMU data holds " + IMURecordFormat.VALUE_COUNT + " values per sample");
+        }
+        if (value_count < 1 || value_count > IMURecordFormat.MAX_VALUE_COUNT) {
+            throw new IllegalArgumentException("Samples must have 1 to " + IMURecordFormat.MAX_VALUE_COUNT + " values");
+        }
+        this.storage = storage;
+        this.value_count = value_count;
+        record_size = IMURecordFormat.recordSize(value_count);
+        encoder = compressed ? new IMUStreamEncoder() : null;
+        buffer = compressed ? null : ByteBuffer.allocateDirect(BUFFER_RECORDS * record_size);
+        // Only a brand-new file gets a header; reopening a session file keeps appending records
+        if (storage.size() == 0) writeHeader(sensor_ids, sensor_names);
+        position = storage.size();
+    }
+
+    // Has every sample's offset noted in the session's time index; set before the first sample
+    public void setTimeIndex(SessionIndexWriter.Stream time_index) {
+        this.time_index = time_index;
+    }
+
+    private void writeHeader(short[] sensor_ids, String[] sensor_names) throws IOException {
+        storage.write(encoder == null ? IMURecordFormat.header(record_size, sensor_ids, sensor_names)
+                : IMUStreamFormat.header(sensor_ids, sensor_names));
+    }
+
+    public void writeSample(long timestamp, short sensor_id, float[] values, int accuracy) throws IOException {
+        onSample(timestamp, sensor_id, values, 0, accuracy);
+    }
+
+    @Override
+    public synchronized void onSample(long timestamp, short sensor_id, float[] values, int offset, int accuracy) throws IOException {
+        if (encoder != null) {
+            // A full block goes out before the sample is added, so the sample starts the block at the new position
+            written(encoder.addSample(storage, timestamp, sensor_id, values, offset, accuracy));
+            if (time_index != null) time_index.observe(timestamp, position);
+            return;
+        }
+        if (buffer.remaining() < record_size) drain();
+        if (time_index != null) time_index.observe(timestamp, position + buffer.position());
+        buffer.putLong(timestamp).putShort(sensor_id).putShort((short) accuracy);
+        if (value_count == IMURecordFormat.VALUE_COUNT) {
+            buffer.putFloat(values[offset]).putFloat(values[offset + 1]).putFloat(values[offset + 2]);
+            return;
+        }
+        for (int i = 0; i < value_count; ++i) buffer.putFloat(values[offset + i]);
+        for (int i = value_count; i < IMURecordFormat.VALUE_COUNT; ++i) buffer.putFloat(0);
+    }
+
+    // Markers take up a whole record of a file with wider samples
+    private void padMarker() {
+        for (int i = IMURecordFormat.RECORD_SIZE; i < record_size; i += Float.BYTES) buffer.putFloat(0);
+    }
+
+    public synchronized void writeVideoStart(long video_start_time, long latency) throws IOException {
+        if (encoder != null) {
+            written(encoder.addMarker(storage, video_start_time, IMURecordFormat.VIDEO_START_ID, (short) 0, latency, 0));
+            return;
+        }
+        if (buffer.remaining() < record_size) drain();
+        buffer.putLong(video_start_time).putShort(IMURecordFormat.VIDEO_START_ID).putShort((short) 0)
+                .putLong(latency).putInt(0);
+        padMarker();
+    }
+
+    public synchronized void writeSensorRate(long timestamp, short sensor_id, int requested_period_us,
+                                             int max_report_latency_us, float achieved_rate_hz) throws IOException {
+        if (encoder != null) {
+            written(encoder.addMarker(storage, timestamp, IMURecordFormat.SENSOR_RATE_ID, sensor_id,
+                    (long) requested_period_us << 32 | (max_report_latency_us & 0xFFFFFFFFL),
+                    Float.floatToRawIntBits(achieved_rate_hz)));
+            return;
+        }
+        if (buffer.remaining() < record_size) drain();
+        buffer.putLong(timestamp).putShort(IMURecordFormat.SENSOR_RATE_ID).putShort(sensor_id)
+                .putInt(requested_period_us).putInt(max_report_latency_us).putFloat(achieved_rate_hz);
+        padMarker();
+    }
+
+    public synchronized void writeClockMapping(long anchor_time, short domain, long offset_ns, float drift_ppm) throws IOException {
+        if (encoder != null) {
+            written(encoder.addMarker(storage, anchor_time, IMURecordFormat.CLOCK_MAPPING_ID, domain, offset_ns,
+                    Float.floatToRawIntBits(drift_ppm)));
+            return;
+        }
+        if (buffer.remaining() < record_size) drain();
+        buffer.putLong(anchor_time).putShort(IMURecordFormat.CLOCK_MAPPING_ID).putShort(domain)
+                .putLong(offset_ns).putFloat(drift_ppm);
+        padMarker();
+    }
+
+    public synchronized void writeBurstRate(long timestamp, long frame_interval_ns, short jpeg_quality,
+                                            float write_bandwidth_bps) throws IOException {
+        if (encoder != null) {
+            written(encoder.addMarker(storage, timestamp, IMURecordFormat.BURST_RATE_ID, jpeg_quality,
+                    frame_interval_ns, Float.floatToRawIntBits(write_bandwidth_bps)));
+            return;
+        }
+        if (buffer.remaining() < record_size) drain();
+        buffer.putLong(timestamp).putShort(IMURecordFormat.BURST_RATE_ID).putShort(jpeg_quality)
+                .putLong(frame_interval_ns).putFloat(write_bandwidth_bps);
+        padMarker();
+    }
+
+    public synchronized void flush() throws IOException {
+        drain();
+    }
+
+    // Write out everything buffered and force it to storage, so a crash after this returns loses nothing before it;
+    // returns the number of bytes made durable. Only the drain holds the lock: samples and markers recorded during the
+    // sync (the camera thread's burst rate ones among them) wait for a buffer copy, never for the device.
+    public long commit() throws IOException {
+        long committed;
+        synchronized (this) {
+            drain();
+            committed = unsynced_bytes;
+            unsynced_bytes = 0;
+        }
+        storage.sync();
+        if (time_index != null) time_index.flush();
+        return committed;
+    }
+
+    public synchronized long getPendingBytes() {
+        return unsynced_bytes + (encoder == null ? buffer.position() : encoder.getPendingBytes());
+    }
+
+    // Null unless the writer is in compressed mode
+    public IMUStreamEncoder getEncoder() {
+        return encoder;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            drain();
+            if (time_index != null) time_index.end(position);
+        } finally {
+            storage.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        if (encoder != null) {
+            written(encoder.flush(storage));
+            return;
+        }
+        written(buffer.position());
+        buffer.flip();
+        storage.write(buffer);
+        buffer.clear();
+    }
+
+    private void written(long bytes) {
+        unsynced_bytes += bytes;
+        position += bytes;
+    }
+}
@@ -0,0 +1,140 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One IMU recording behind a small interface: samples offered from the sensor thread pass through a lock-free ring to a
+// writer thread, which appends them to the IMU data file along with the session clock markers and, optionally, feeds the
+// per-frame alignment and preintegration sidecars
+public class IMURecorder {
+
+    public static final int DEFAULT_RING_CAPACITY = 8192;
+    private final short[] sensor_ids;
+    private final SensorStreamStats[] sensor_stats;
+    // Streams of the session's health, which carry on across recorders when a recording is paused and resumed
+    private final SensorStreamStats[] session_stats;
+    private final SessionClock clock;
+    private final IMURingBuffer ring;
+    private final IMURecordWriter writer;
+    private final SessionClockLogger clock_logger;
+    private final IMUAlignmentEngine alignment;
+    private final GyroPreintegrator preintegration;
+    private final IMUWriterThread writer_thread;
+    private final AtomicLong ring_overflow;
+
+    // alignment and preintegration may be null to record without that sidecar; they are closed along with the recorder
+    public IMURecorder(IMUStorage storage, short[] sensor_ids, String[] sensor_names, SessionClock clock,
+                       GroupCommitPolicy commit_policy, IMUAlignmentEngine alignment, GyroPreintegrator preintegration)
+            throws IOException {
+        this(storage, false, sensor_ids, sensor_names, clock, commit_policy, alignment, preintegration, null);
+    }
+
+    // compressed writes the IMU data file in the block format of IMUStreamFormat rather than as fixed-width records;
+    // health, if not null, receives the commit latency, bytes written and ring overflows
+    public IMURecorder(IMUStorage storage, boolean compressed, short[] sensor_ids, String[] sensor_names, SessionClock clock,
+                       GroupCommitPolicy commit_policy, IMUAlignmentEngine alignment, GyroPreintegrator preintegration,
+                       RecordingHealth health) throws IOException {
+        this.sensor_ids = sensor_ids.clone();
+        this.clock = clock;
+        this.alignment = alignment;
+        this.preintegration = preintegration;
+        sensor_stats = new SensorStreamStats[sensor_ids.length];
+        for (int i = 0; i < sensor_stats.length; ++i) sensor_stats[i] = new SensorStreamStats();
+        session_stats = health == null ? null : new SensorStreamStats[sensor_ids.length];
+        for (int i = 0; health != null && i < session_stats.length; ++i) session_stats[i] = health.stream(sensor_names[i]);
+        ring = new IMURingBuffer(DEFAULT_RING_CAPACITY);
+        writer = new IMURecordWriter(storage, sensor_ids, sensor_names, compressed);
+        // The video start and the clock mappings are written from the writer thread, between samples
+        clock_logger = new SessionClockLogger(clock, writer, SessionClockLogger.DEFAULT_INTERVAL_NS);
+        List<IMUSampleSink> stages = new ArrayList<>();
+        stages.add(clock_logger);
+        if (alignment != null) stages.add(alignment);
+        if (preintegration != null) stages.add(preintegration);
+        writer_thread = new IMUWriterThread(ring, writer, commit_policy, health, stages.toArray(new IMUSampleSink[0]));
+        ring_overflow = health == null ? null : health.counter(RecordingHealth.RING_OVERFLOW);
+    }
+
+    // Has every sample's offset noted in the session's time index; called before start()
+    public void setTimeIndex(SessionIndexWriter.Stream time_index) {
+        writer.setTimeIndex(time_index);
+    }
+
+    public void start() {
+        writer_thread.start();
+    }
+
+    // Called from the sensor thread only, with the sensor's own timestamp and elapsedRealtime at delivery; returns false
+    // if the sample was dropped because the writer fell behind
+    public boolean onSample(long timestamp, long realtime_now, short sensor_id, float[] values, int accuracy) {
+        clock.markImuStart(timestamp);
+        clock.observe(SessionClock.Domain.SENSOR_EVENT, timestamp, realtime_now);
+        for (int i = 0; i < sensor_ids.length; ++i) {
+            if (sensor_ids[i] != sensor_id) continue;
+            sensor_stats[i].record(timestamp);
+            if (session_stats != null) session_stats[i].record(timestamp);
+        }
+        if (ring.offer(timestamp, sensor_id, values, accuracy)) return true;
+        if (ring_overflow != null) ring_overflow.incrementAndGet();
+        return false;
+    }
+
+    // Called from a single camera thread; returns false if the frame could not be queued for every sidecar
+    public boolean submitFrame(long frame_timestamp) {
+        boolean queued = alignment == null || alignment.submitFrame(frame_timestamp);
+        return (preintegration == null || preintegration.submitFrame(frame_timestamp)) && queued;
+    }
+
+    public void writeSensorRate(long timestamp, short sensor_id, int requested_period_us, int max_report_latency_us,
+                                float achieved_rate_hz) throws IOException {
+        writer.writeSensorRate(timestamp, sensor_id, requested_period_us, max_report_latency_us, achieved_rate_hz);
+    }
+
+    public void writeBurstRate(long timestamp, long frame_interval_ns, int jpeg_quality, double write_bandwidth_bps)
+            throws IOException {
+        writer.writeBurstRate(timestamp, frame_interval_ns, (short) jpeg_quality, (float) write_bandwidth_bps);
+    }
+
+    // Writes out every sample offered so far and stops the writer thread; markers can still be written until close()
+    public void stop() throws IOException {
+        writer_thread.shutdown();
+        clock_logger.writeMappings();
+    }
+
+    public void close() throws IOException {
+        try {
+            writer.close();
+        } finally {
+            try {
+                if (alignment != null) alignment.close();
+            } finally {
+                if (preintegration != null) preintegration.close();
+            }
+        }
+    }
+
+    public SensorStreamStats getStats(short sensor_id) {
+        for (int i = 0; i < sensor_ids.length; ++i) {
+            if (sensor_ids[i] == sensor_id) return sensor_stats[i];
+        }
+        throw new IllegalArgumentException("Sensor " + sensor_id + " is not recorded");
+    }
+
+    public long getOverflowCount() {
+        return ring.getOverflowCount();
+    }
+
+    public IMUAlignmentEngine getAlignment() {
+        return alignment;
+    }
+
+    public GyroPreintegrator getPreintegration() {
+        return preintegration;
+    }
+
+    // Null unless the IMU data file is compressed
+    public IMUStreamEncoder getEncoder() {
+        return writer.getEncoder();
+    }
+}
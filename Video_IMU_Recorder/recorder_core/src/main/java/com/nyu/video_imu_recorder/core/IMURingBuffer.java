@@ -0,0 +1,81 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single-producer/single-consumer ring of IMU samples stored in primitive arrays; the producer never blocks
+public class IMURingBuffer {
+
+    private final int capacity, mask, value_count;
+    private final long[] timestamps;
+    private final short[] sensor_ids, accuracies;
+    private final float[] values;
+    // Sequence of the next slot the consumer reads and the next slot the producer fills
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+    private final AtomicLong overflow_count = new AtomicLong();
+    // Producer's last view of head, refreshed only when the ring looks full to avoid reading the shared counter every sample
+    private long cached_head;
+
+    public IMURingBuffer(int min_capacity) {
+        this(min_capacity, IMURecordFormat.VALUE_COUNT);
+    }
+
+    // Each slot holds value_count values; samples with fewer have the rest zeroed
+    public IMURingBuffer(int min_capacity, int value_count) {
+        capacity = Integer.highestOneBit(Math.max(2, min_capacity - 1)) << 1;
+        mask = capacity - 1;
+        this.value_count = value_count;
+        timestamps = new long[capacity];
+        sensor_ids = new short[capacity];
+        accuracies = new short[capacity];
+        values = new float[capacity * value_count];
+    }
+
+    // Called from the producer thread only; returns false and counts an overflow if the ring is full
+    public boolean offer(long timestamp, short sensor_id, float[] sample_values, int accuracy) {
+        long sequence = tail.get();
+        if (sequence - cached_head >= capacity) {
+            cached_head = head.get();
+            if (sequence - cached_head >= capacity) {
+                overflow_count.incrementAndGet();
+                return false;
+            }
+        }
+        int slot = (int) sequence & mask;
+        timestamps[slot] = timestamp;
+        sensor_ids[slot] = sensor_id;
+        accuracies[slot] = (short) accuracy;
+        int copied = Math.min(sample_values.length, value_count);
+        System.arraycopy(sample_values, 0, values, slot * value_count, copied);
+        if (copied < value_count) Arrays.fill(values, slot * value_count + copied, (slot + 1) * value_count, 0);
+        // Publish the slot only after it is completely filled
+        tail.lazySet(sequence + 1);
+        return true;
+    }
+
+    // Called from the consumer thread only; hands up to max_batch samples to the sink and returns how many were drained
+    public int drain(IMUSampleSink sink, int max_batch) throws IOException {
+        long sequence = head.get();
+        int count = (int) Math.min(max_batch, tail.get() - sequence);
+        for (int i = 0; i < count; ++i) {
+            int slot = (int) (sequence + i) & mask;
+            sink.onSample(timestamps[slot], sensor_ids[slot], values, slot * value_count, accuracies[slot]);
+        }
+        // Release the slots back to the producer in one step
+        if (count > 0) head.lazySet(sequence + count);
+        return count;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long getOverflowCount() {
+        return overflow_count.get();
+    }
+}
@@ -0,0 +1,9 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.IOException;
+
+// Receives IMU samples drained from the capture pipeline; values[offset] to values[offset + 2] hold the sample's x, y, z,
+// followed by any further values of the stream's sensor
+public interface IMUSampleSink {
+    void onSample(long timestamp, short sensor_id, float[] values, int offset, int accuracy) throws IOException;
+}
@@ -0,0 +1,22 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Append-only destination of the bytes IMURecordWriter and FramePackWriter produce
+public interface IMUStorage extends Closeable {
+    // Number of bytes the file holds so far
+    long size() throws IOException;
+
+    // Appends everything remaining in data
+    void write(ByteBuffer data) throws IOException;
+
+    // Appends everything remaining in data[offset] to data[offset + length - 1], in order
+    default void write(ByteBuffer[] data, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; ++i) write(data[i]);
+    }
+
+    // Forces everything written so far to the storage device; may run while another thread writes
+    void sync() throws IOException;
+}
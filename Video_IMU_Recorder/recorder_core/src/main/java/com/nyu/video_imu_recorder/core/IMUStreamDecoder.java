@@ -0,0 +1,226 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Decodes a compressed IMU data file (see IMUStreamFormat) one block at a time into primitive arrays
+public class IMUStreamDecoder implements Closeable {
+
+    private final DataInputStream input;
+    private final Map<Short, String> sensor_names = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private byte[] payload = new byte[64 * 1024];
+    // Per-channel decoding scratch, grown to the largest block seen
+    private long[][] channel_timestamps = new long[0][];
+    private short[][] channel_accuracies = new short[0][];
+    private float[][] channel_values = new float[0][];
+    private final int[] channel_counts = new int[Short.MAX_VALUE], channel_positions = new int[Short.MAX_VALUE];
+    private final short[] channel_ids = new short[Short.MAX_VALUE];
+
+    // Records of the block most recently returned by nextBlock(), merged in timestamp order; values hold VALUE_COUNT floats
+    // per record, payload and extra are only set for markers
+    public int count = 0;
+    public long[] timestamps = new long[0];
+    public short[] sensor_ids = new short[0], accuracies = new short[0];
+    public float[] values = new float[0];
+    public long[] marker_payloads = new long[0];
+    public int[] marker_extras = new int[0];
+
+    public IMUStreamDecoder(InputStream stream) throws IOException {
+        input = new DataInputStream(stream instanceof BufferedInputStream ? stream : new BufferedInputStream(stream));
+        if (input.readInt() != IMUStreamFormat.MAGIC) throw new IOException("Not a compressed IMU data file");
+        short version = input.readShort();
+        if (version > IMUStreamFormat.VERSION) throw new IOException("Unsupported compressed IMU data file version " + version);
+        input.readShort();
+        int sensor_count = input.readShort();
+        for (int i = 0; i < sensor_count; ++i) {
+            short id = input.readShort();
+            byte[] name = new byte[input.readShort()];
+            input.readFully(name);
+            sensor_names.put(id, new String(name, StandardCharsets.UTF_8));
+        }
+    }
+
+    public Map<Short, String> getSensorNames() {
+        return sensor_names;
+    }
+
+    // Decodes the next block, returning false once the end of the file is reached
+    public boolean nextBlock() throws IOException {
+        int magic;
+        try {
+            magic = input.readInt();
+        } catch (EOFException end) {
+            return false;
+        }
+        if (magic != IMUStreamFormat.BLOCK_MAGIC) throw new IOException("Corrupt compressed IMU data block");
+        int size = input.readInt(), checksum = input.readInt();
+        if (payload.length < size) payload = new byte[Math.max(size, 2 * payload.length)];
+        input.readFully(payload, 0, size);
+        crc.reset();
+        crc.update(payload, 0, size);
+        if ((int) crc.getValue() != checksum) throw new IOException("Compressed IMU data block fails its checksum");
+        decode(ByteBuffer.wrap(payload, 0, size));
+        return true;
+    }
+
+    private void decode(ByteBuffer block) throws IOException {
+        int channel_count = block.getShort(), marker_count = block.getShort();
+        ByteBuffer marker_records = block.slice();
+        marker_records.limit(marker_count * IMUStreamFormat.MARKER_SIZE);
+        block.position(block.position() + marker_count * IMUStreamFormat.MARKER_SIZE);
+        if (channel_timestamps.length < channel_count) {
+            channel_timestamps = Arrays.copyOf(channel_timestamps, channel_count);
+            channel_accuracies = Arrays.copyOf(channel_accuracies, channel_count);
+            channel_values = Arrays.copyOf(channel_values, channel_count);
+        }
+        int total = marker_count;
+        for (int channel = 0; channel < channel_count; ++channel) {
+            channel_ids[channel] = block.getShort();
+            int samples = block.getInt(), time_length = block.getInt(), words = block.getInt();
+            if (samples < 0 || samples > IMUStreamFormat.BLOCK_SAMPLES) throw new IOException("Corrupt channel in block");
+            if (channel_timestamps[channel] == null || channel_timestamps[channel].length < samples) {
+                channel_timestamps[channel] = new long[samples];
+                channel_accuracies[channel] = new short[samples];
+                channel_values[channel] = new float[samples * IMURecordFormat.VALUE_COUNT];
+            }
+            channel_counts[channel] = samples;
+            channel_positions[channel] = 0;
+            int time_start = block.position(), value_start = time_start + time_length;
+            decodeTimestamps(block, time_start, samples, channel_timestamps[channel]);
+            decodeValues(block, value_start, words, samples, channel_accuracies[channel], channel_values[channel]);
+            block.position(value_start + words * Long.BYTES);
+            total += samples;
+        }
+        ensureCapacity(total);
+
+        // Merge the channels and markers by timestamp; each is in its own arrival order, which is almost always sorted
+        int marker = 0;
+        for (count = 0; count < total; ++count) {
+            int best = -1;
+            long best_time = Long.MAX_VALUE;
+            for (int channel = 0; channel < channel_count; ++channel) {
+                if (channel_positions[channel] < channel_counts[channel]
+                        && channel_timestamps[channel][channel_positions[channel]] < best_time) {
+                    best = channel;
+                    best_time = channel_timestamps[channel][channel_positions[channel]];
+                }
+            }
+            if (marker < marker_count && marker_records.getLong(marker * IMUStreamFormat.MARKER_SIZE) <= best_time) {
+                int offset = marker * IMUStreamFormat.MARKER_SIZE;
+                timestamps[count] = marker_records.getLong(offset);
+                sensor_ids[count] = marker_records.getShort(offset + Long.BYTES);
+                accuracies[count] = marker_records.getShort(offset + Long.BYTES + Short.BYTES);
+                marker_payloads[count] = marker_records.getLong(offset + Long.BYTES + 2 * Short.BYTES);
+                marker_extras[count] = marker_records.getInt(offset + 2 * Long.BYTES + 2 * Short.BYTES);
+                ++marker;
+            } else {
+                int position = channel_positions[best]++;
+                timestamps[count] = best_time;
+                sensor_ids[count] = channel_ids[best];
+                accuracies[count] = channel_accuracies[best][position];
+                System.arraycopy(channel_values[best], position * IMURecordFormat.VALUE_COUNT, values,
+                        count * IMURecordFormat.VALUE_COUNT, IMURecordFormat.VALUE_COUNT);
+            }
+        }
+    }
+
+    private void ensureCapacity(int total) {
+        if (timestamps.length >= total) return;
+        timestamps = new long[total];
+        sensor_ids = new short[total];
+        accuracies = new short[total];
+        values = new float[total * IMURecordFormat.VALUE_COUNT];
+        marker_payloads = new long[total];
+        marker_extras = new int[total];
+    }
+
+    private static void decodeTimestamps(ByteBuffer block, int position, int samples, long[] timestamps) {
+        long timestamp = 0, delta = 0;
+        for (int i = 0; i < samples; ++i) {
+            long value = 0;
+            int shift = 0;
+            byte next;
+            do {
+                next = block.get(position++);
+                value |= (long) (next & 0x7F) << shift;
+                shift += 7;
+            } while (next < 0);
+            value = IMUStreamFormat.unzigzag(value);
+            if (i == 0) {
+                timestamp = value;
+            } else {
+                delta = i == 1 ? value : delta + value;
+                timestamp += delta;
+            }
+            timestamps[i] = timestamp;
+        }
+    }
+
+    private static void decodeValues(ByteBuffer block, int start, int words, int samples, short[] accuracies,
+                                     float[] values) throws IOException {
+        BitReader bits = new BitReader(block, start, words);
+        int[] last = new int[IMURecordFormat.VALUE_COUNT], leading = new int[last.length], trailing = new int[last.length];
+        short accuracy = 0;
+        for (int i = 0; i < samples; ++i) {
+            if (i == 0 || bits.read(1) == 1) accuracy = (short) bits.read(16);
+            accuracies[i] = accuracy;
+            for (int axis = 0; axis < last.length; ++axis) {
+                if (i == 0) {
+                    last[axis] = (int) bits.read(32);
+                } else if (bits.read(1) == 1) {
+                    if (bits.read(1) == 1) {
+                        leading[axis] = (int) bits.read(5);
+                        int meaningful = (int) bits.read(5) + 1;
+                        trailing[axis] = 32 - leading[axis] - meaningful;
+                        if (trailing[axis] < 0) throw new IOException("Corrupt value stream");
+                    }
+                    last[axis] ^= (int) bits.read(32 - leading[axis] - trailing[axis]) << trailing[axis];
+                }
+                values[i * last.length + axis] = Float.intBitsToFloat(last[axis]);
+            }
+        }
+    }
+
+    // Reads a stream of big-endian words most significant bit first
+    private static final class BitReader {
+        private final ByteBuffer block;
+        private final int start, words;
+        private int bit_position = 0;
+
+        BitReader(ByteBuffer block, int start, int words) {
+            this.block = block;
+            this.start = start;
+            this.words = words;
+        }
+
+        long read(int bits) throws IOException {
+            int word = bit_position >>> 6, used = bit_position & 63, free = 64 - used;
+            if (word >= words || bits > free && word + 1 >= words) throw new IOException("Value stream ends early");
+            long value;
+            if (bits <= free) {
+                value = block.getLong(start + word * Long.BYTES) >>> (free - bits);
+            } else {
+                value = block.getLong(start + word * Long.BYTES) << (bits - free)
+                        | block.getLong(start + (word + 1) * Long.BYTES) >>> (64 - (bits - free));
+            }
+            bit_position += bits;
+            return value & (-1L >>> (64 - bits));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
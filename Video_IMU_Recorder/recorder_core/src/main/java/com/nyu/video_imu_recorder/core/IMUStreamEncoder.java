@@ -0,0 +1,202 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Compresses IMU samples and markers into self-contained blocks (see IMUStreamFormat). Each sensor gets its own channel
+// with its own timestamp and value streams held in preallocated arrays, so encoding a sample allocates nothing; a channel
+// is only created the first time its sensor appears.
+public class IMUStreamEncoder {
+
+    private static final int VALUE_WORDS = (IMUStreamFormat.BLOCK_SAMPLES * IMUStreamFormat.MAX_SAMPLE_BITS + 63) / 64;
+
+    private Channel[] channels = new Channel[0];
+    private final ByteBuffer markers = ByteBuffer.allocate(IMUStreamFormat.BLOCK_MARKERS * IMUStreamFormat.MARKER_SIZE);
+    private ByteBuffer output = ByteBuffer.allocateDirect(64 * 1024);
+    private final CRC32 crc = new CRC32();
+    private int marker_count = 0;
+    private long raw_bytes = 0, encoded_bytes = 0;
+
+    private static final class Channel {
+        final short sensor_id;
+        int count = 0;
+        final byte[] time_bytes = new byte[IMUStreamFormat.BLOCK_SAMPLES * IMUStreamFormat.MAX_VARINT_BYTES];
+        int time_length = 0;
+        long last_timestamp, last_delta;
+        final long[] words = new long[VALUE_WORDS];
+        int bit_position = 0;
+        int last_accuracy;
+        final int[] last_bits = new int[IMURecordFormat.VALUE_COUNT];
+        final int[] leading = new int[IMURecordFormat.VALUE_COUNT], trailing = new int[IMURecordFormat.VALUE_COUNT];
+
+        Channel(short sensor_id) {
+            this.sensor_id = sensor_id;
+        }
+
+        void add(long timestamp, float[] values, int offset, int accuracy) {
+            if (count == 0) {
+                putVarint(IMUStreamFormat.zigzag(timestamp));
+                last_delta = 0;
+                write(accuracy, 16);
+                for (int axis = 0; axis < last_bits.length; ++axis) {
+                    int bits = Float.floatToRawIntBits(values[offset + axis]);
+                    write(bits, 32);
+                    last_bits[axis] = bits;
+                    // No window yet, so the next change always states its own
+                    leading[axis] = -1;
+                }
+            } else {
+                long delta = timestamp - last_timestamp;
+                putVarint(IMUStreamFormat.zigzag(count == 1 ? delta : delta - last_delta));
+                last_delta = delta;
+                if (accuracy == last_accuracy) {
+                    write(0, 1);
+                } else {
+                    write(1, 1);
+                    write(accuracy, 16);
+                }
+                for (int axis = 0; axis < last_bits.length; ++axis) {
+                    int bits = Float.floatToRawIntBits(values[offset + axis]), xor = bits ^ last_bits[axis];
+                    last_bits[axis] = bits;
+                    if (xor == 0) {
+                        write(0, 1);
+                        continue;
+                    }
+                    int lead = Integer.numberOfLeadingZeros(xor), trail = Integer.numberOfTrailingZeros(xor);
+                    if (leading[axis] >= 0 && lead >= leading[axis] && trail >= trailing[axis]) {
+                        write(0b10, 2);
+                        write(xor >>> trailing[axis], 32 - leading[axis] - trailing[axis]);
+                    } else {
+                        int meaningful = 32 - lead - trail;
+                        write(0b11, 2);
+                        write(lead, 5);
+                        write(meaningful - 1, 5);
+                        write(xor >>> trail, meaningful);
+                        leading[axis] = lead;
+                        trailing[axis] = trail;
+                    }
+                }
+            }
+            last_timestamp = timestamp;
+            last_accuracy = accuracy;
+            ++count;
+        }
+
+        void putVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                time_bytes[time_length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            time_bytes[time_length++] = (byte) value;
+        }
+
+        // Appends the low bits of value, most significant first
+        void write(long value, int bits) {
+            value &= -1L >>> (64 - bits);
+            int word = bit_position >>> 6, free = 64 - (bit_position & 63);
+            if (bits <= free) {
+                words[word] |= value << (free - bits);
+            } else {
+                words[word] |= value >>> (bits - free);
+                words[word + 1] = value << (64 - (bits - free));
+            }
+            bit_position += bits;
+        }
+
+        int wordCount() {
+            return (bit_position + 63) >>> 6;
+        }
+
+        void reset() {
+            Arrays.fill(words, 0, wordCount(), 0);
+            count = time_length = bit_position = 0;
+        }
+    }
+
+    // Called from a single thread; a full block is written out before the sample that would overflow it, and the size of
+    // that block is returned (0 if none was written)
+    public int addSample(IMUStorage storage, long timestamp, short sensor_id, float[] values, int offset, int accuracy)
+            throws IOException {
+        Channel channel = channel(sensor_id);
+        int written = channel.count == IMUStreamFormat.BLOCK_SAMPLES ? flush(storage) : 0;
+        channel.add(timestamp, values, offset, accuracy);
+        raw_bytes += IMURecordFormat.RECORD_SIZE;
+        return written;
+    }
+
+    // payload and extra are the first 8 and last 4 payload bytes of the marker record
+    public int addMarker(IMUStorage storage, long timestamp, short marker_id, short accuracy, long payload, int extra)
+            throws IOException {
+        int written = marker_count == IMUStreamFormat.BLOCK_MARKERS ? flush(storage) : 0;
+        markers.putLong(timestamp).putShort(marker_id).putShort(accuracy).putLong(payload).putInt(extra);
+        ++marker_count;
+        raw_bytes += IMURecordFormat.RECORD_SIZE;
+        return written;
+    }
+
+    private Channel channel(short sensor_id) {
+        for (Channel channel : channels) {
+            if (channel.sensor_id == sensor_id) return channel;
+        }
+        Channel[] grown = Arrays.copyOf(channels, channels.length + 1);
+        grown[channels.length] = new Channel(sensor_id);
+        channels = grown;
+        return grown[channels.length - 1];
+    }
+
+    // Writes everything added since the last block as one block, returning its size in bytes (0 if there was nothing)
+    public int flush(IMUStorage storage) throws IOException {
+        int channel_count = 0, size = IMUStreamFormat.BLOCK_HEADER_SIZE + 2 * Short.BYTES + markers.position();
+        for (Channel channel : channels) {
+            if (channel.count == 0) continue;
+            ++channel_count;
+            size += IMUStreamFormat.CHANNEL_HEADER_SIZE + channel.time_length + channel.wordCount() * Long.BYTES;
+        }
+        if (channel_count == 0 && marker_count == 0) return 0;
+        if (output.capacity() < size) output = ByteBuffer.allocateDirect(Math.max(size, 2 * output.capacity()));
+        output.clear();
+        output.putInt(IMUStreamFormat.BLOCK_MAGIC).putInt(size - IMUStreamFormat.BLOCK_HEADER_SIZE).putInt(0);
+        output.putShort((short) channel_count).putShort((short) marker_count);
+        markers.flip();
+        output.put(markers);
+        markers.clear();
+        for (Channel channel : channels) {
+            if (channel.count == 0) continue;
+            int words = channel.wordCount();
+            output.putShort(channel.sensor_id).putInt(channel.count).putInt(channel.time_length).putInt(words);
+            output.put(channel.time_bytes, 0, channel.time_length);
+            output.asLongBuffer().put(channel.words, 0, words);
+            output.position(output.position() + words * Long.BYTES);
+            channel.reset();
+        }
+        output.flip();
+        crc.reset();
+        output.position(IMUStreamFormat.BLOCK_HEADER_SIZE);
+        crc.update(output);
+        output.putInt(2 * Integer.BYTES, (int) crc.getValue());
+        output.position(0);
+        storage.write(output);
+        marker_count = 0;
+        encoded_bytes += size;
+        return size;
+    }
+
+    // Encoded size of what has been added since the last block, rounded up to whole words
+    public long getPendingBytes() {
+        long pending = markers.position();
+        for (Channel channel : channels) pending += channel.time_length + channel.wordCount() * Long.BYTES;
+        return pending;
+    }
+
+    // Bytes the fixed-width format would have taken for everything added so far
+    public long getRawBytes() {
+        return raw_bytes;
+    }
+
+    // Bytes of every block written so far, headers included
+    public long getEncodedBytes() {
+        return encoded_bytes;
+    }
+}
@@ -0,0 +1,62 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.nio.ByteBuffer;
+
+/*
+Layout of a compressed IMU data file (all fixed-width values big-endian)
+
+Header: as in IMURecordFormat, with magic "IMUZ" and a record size of 0
+<int magic "IMUZ"> <short version> <short 0> <short sensor count>
+followed by <short sensor id> <short name length> <UTF-8 name bytes> for every sensor
+
+Blocks, each decodable on its own (every channel restarts from raw values):
+<int block magic "IMZB"> <int payload size> <int CRC32 of the payload>
+payload:
+<short channel count> <short marker count>
+marker count * (<long timestamp> <short marker id> <short accuracy> <long payload> <int extra>), the marker records of
+IMURecordFormat unchanged
+then for every channel (one per sensor that has samples in the block):
+<short sensor id> <int sample count> <int timestamp stream bytes> <int value stream words>
+<timestamp stream> <value stream as longs>
+
+Timestamp stream: zigzag varints of the first timestamp, then the first delta, then every delta-of-delta; samples at a
+steady rate mostly encode in one or two bytes.
+Value stream, most significant bit first: the first sample holds its accuracy in 16 bits and each axis's raw 32 float bits.
+Every later sample holds '0' if its accuracy is unchanged or '1' and 16 bits, then for each axis the XOR with the previous
+value of that axis (Gorilla encoding):
+'0'                       identical value
+'10' <meaningful bits>    the XOR fits within the previous leading and trailing zero counts
+'11' <5 bits leading zeros> <5 bits meaningful length - 1> <meaningful bits>
+
+Decoders return each block's records merged in timestamp order (markers included) rather than in arrival order.
+*/
+public final class IMUStreamFormat {
+
+    public static final int MAGIC = 0x494D555A;
+    public static final short VERSION = 1;
+    public static final int BLOCK_MAGIC = 0x494D5A42;
+    public static final int BLOCK_HEADER_SIZE = 3 * Integer.BYTES;
+    public static final int CHANNEL_HEADER_SIZE = Short.BYTES + 3 * Integer.BYTES;
+    public static final int MARKER_SIZE = IMURecordFormat.RECORD_SIZE;
+    // A block ends once any channel holds this many samples or this many markers are waiting
+    public static final int BLOCK_SAMPLES = 4096, BLOCK_MARKERS = 1024;
+    public static final int MAX_VARINT_BYTES = 10;
+    // Worst case bits of one sample in the value stream
+    public static final int MAX_SAMPLE_BITS = 1 + 16 + IMURecordFormat.VALUE_COUNT * (2 + 5 + 5 + 32);
+
+    private IMUStreamFormat() {}
+
+    // IMURecordFormat's header with this layout's magic and version, which take the same places
+    public static ByteBuffer header(short[] sensor_ids, String[] sensor_names) {
+        ByteBuffer header = IMURecordFormat.header(0, sensor_ids, sensor_names);
+        return header.putInt(0, MAGIC).putShort(4, VERSION);
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,331 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Adds a recording's IMU samples to its MP4 as a timed metadata track (see IMUTrackFormat), so players and the pipeline
+// can take a single file. Only moov is rewritten: the samples go into a new mdat appended to the file, the new moov
+// follows it, and the old moov is then turned into a free box, so the video's own data is never read, moved or copied
+// and every offset into it stays valid. A crash before the last step leaves the original moov first in the file, still
+// describing the untouched video.
+public class IMUTrackEmbedder {
+
+    // What embedding added to the file
+    public static class Result {
+        public int track_id;
+        public long records, samples, mdat_bytes, moov_bytes;
+
+        @Override
+        public String toString() {
+            return "IMU track " + track_id + ": " + records + " records in " + samples + " samples, " + mdat_bytes
+                    + " bytes of data and a " + moov_bytes + " byte moov";
+        }
+    }
+
+    private static final int WRITE_BUFFER = 256 * 1024;
+    private static final int MDAT_HEADER_SIZE = 16;
+
+    private IMUTrackEmbedder() {}
+
+    // Adds the records of imu_data (an IMU data file, compressed or not) timestamped from video_start_ns on, on the
+    // sensor clock, as samples of sample_interval_ns (a whole number of microseconds). Returns null, leaving the file as
+    // it was, if it already has an IMU track or no record falls after the start.
+    public static Result embed(File mp4, InputStream imu_data, long video_start_ns, long sample_interval_ns) throws IOException {
+        return embed(mp4, imu_data, new long[] {video_start_ns}, new long[] {Long.MAX_VALUE}, sample_interval_ns);
+    }
+
+    // As above for a video recorded in segments, such as one that was paused: segment k covers [segment_starts[k],
+    // segment_ends[k]) on the sensor clock, segments are in order and do not overlap, and the last may end at
+    // Long.MAX_VALUE. The video plays the segments back to back, so the track leaves out the records between them and
+    // moves each segment's records earlier by the gaps before it.
+    public static Result embed(File mp4, InputStream imu_data, long[] segment_starts, long[] segment_ends,
+                               long sample_interval_ns) throws IOException {
+        if (sample_interval_ns < 1000 || sample_interval_ns % 1000 != 0) {
+            throw new IllegalArgumentException("Sample interval must be a whole number of microseconds");
+        }
+        if (segment_starts.length == 0 || segment_starts.length != segment_ends.length) {
+            throw new IllegalArgumentException("Every segment needs a start and an end");
+        }
+        for (int k = 0; k < segment_starts.length; ++k) {
+            if (segment_ends[k] < segment_starts[k] || k > 0 && segment_starts[k] < segment_ends[k - 1]) {
+                throw new IllegalArgumentException("Segments must be in order and apart");
+            }
+        }
+        try (FileChannel channel = FileChannel.open(mp4.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             IMURecordReader reader = new IMURecordReader(imu_data)) {
+            List<Mp4Boxes.Box> top_level = Mp4Boxes.readTopLevel(channel);
+            Mp4Boxes.Box moov = null;
+            for (Mp4Boxes.Box box : top_level) {
+                if (!box.type.equals("moov")) continue;
+                if (moov != null) throw new IOException("More than one moov box in " + mp4);
+                moov = box;
+            }
+            if (moov == null) throw new IOException("No moov box in " + mp4);
+            if (moov.size > Integer.MAX_VALUE / 2) throw new IOException("moov box too large: " + moov.size);
+            ByteBuffer movie = ByteBuffer.allocate((int) moov.size);
+            while (movie.hasRemaining()) {
+                if (channel.read(movie, moov.offset + movie.position()) < 0) throw new IOException("Truncated moov box");
+            }
+            Mp4Boxes.Box root = new Mp4Boxes.Box("moov", 0, moov.size, moov.header_size);
+            Mp4Boxes.Box mvhd = Mp4Boxes.find(movie, root, "mvhd");
+            if (mvhd == null) throw new IOException("No mvhd box in " + mp4);
+            int video_track = 0;
+            for (Mp4Boxes.Box trak : Mp4Boxes.children(movie, root)) {
+                if (!trak.type.equals("trak")) continue;
+                Mp4Boxes.Box hdlr = Mp4Boxes.find(movie, trak, "mdia", "hdlr");
+                Mp4Boxes.Box tkhd = Mp4Boxes.find(movie, trak, "tkhd");
+                if (hdlr == null || tkhd == null) throw new IOException("Track without tkhd or hdlr in " + mp4);
+                String handler = Mp4Boxes.typeName(movie.getInt((int) hdlr.payloadOffset() + 8));
+                if (handler.equals("meta") && IMUTrackFormat.HANDLER_NAME.equals(handlerName(movie, hdlr))) return null;
+                if (handler.equals("vide") && video_track == 0) {
+                    video_track = movie.getInt((int) tkhd.payloadOffset() + (movie.get((int) tkhd.payloadOffset()) == 1 ? 20 : 12));
+                }
+            }
+
+            // The last box may run to the end of the file without a size, which would swallow what is appended
+            Mp4Boxes.Box last = top_level.get(top_level.size() - 1);
+            ByteBuffer size_field = ByteBuffer.allocate(4);
+            while (size_field.hasRemaining()) channel.read(size_field, last.offset + size_field.position());
+            if (size_field.getInt(0) == 0) {
+                if (last.size > 0xFFFFFFFFL) throw new IOException("Open-ended box too large to close: " + last);
+                writeFully(channel, ByteBuffer.allocate(4).putInt(0, (int) last.size), last.offset);
+            }
+
+            long mdat_offset = channel.size();
+            Result result = new Result();
+            int[] sample_sizes;
+            try {
+                sample_sizes = writeSamples(channel, reader, mdat_offset, segment_starts, segment_ends, sample_interval_ns, result);
+                if (sample_sizes == null) {
+                    channel.truncate(mdat_offset);
+                    return null;
+                }
+                String[] names = new String[reader.getSensorNames().size()];
+                short[] ids = new short[names.length];
+                int sensor = 0;
+                for (Map.Entry<Short, String> entry : reader.getSensorNames().entrySet()) {
+                    ids[sensor] = entry.getKey();
+                    names[sensor++] = entry.getValue();
+                }
+                ByteBuffer header = IMURecordFormat.header(IMURecordFormat.recordSize(reader.values.length), ids, names);
+                byte[] imu_header = Arrays.copyOf(header.array(), header.limit());
+
+                // The new moov: the old one's boxes with the movie header updated, then the IMU track
+                long movie_timescale = movie.getInt((int) mvhd.payloadOffset() + (movie.get((int) mvhd.payloadOffset()) == 1 ? 20 : 12))
+                        & 0xFFFFFFFFL;
+                long track_duration_us = sample_sizes.length * (sample_interval_ns / 1000);
+                long movie_duration = track_duration_us * movie_timescale / IMUTrackFormat.TIMESCALE;
+                result.track_id = updateMovieHeader(movie, mvhd, movie_duration);
+                byte[] trak = buildTrack(result.track_id, video_track, readCreationTime(movie, mvhd), movie_duration,
+                        track_duration_us, sample_interval_ns / 1000, sample_sizes, mdat_offset + MDAT_HEADER_SIZE, imu_header);
+                byte[] new_moov = Mp4Boxes.box("moov", Arrays.copyOfRange(movie.array(), (int) root.payloadOffset(),
+                        (int) root.end()), trak);
+                writeFully(channel, ByteBuffer.wrap(new_moov), mdat_offset + result.mdat_bytes);
+                result.moov_bytes = new_moov.length;
+                channel.force(false);
+            } catch (IOException | RuntimeException exception) {
+                // Nothing of the new track stays behind the boxes of the original file
+                channel.truncate(mdat_offset);
+                throw exception;
+            }
+            // Only once the new moov is safely stored does the old one stop counting
+            writeFully(channel, ByteBuffer.wrap("free".getBytes(StandardCharsets.ISO_8859_1)), moov.offset + 4);
+            channel.force(false);
+            return result;
+        }
+    }
+
+    // Writes the mdat holding the records and returns the size of each sample, or null if there were no records
+    private static int[] writeSamples(FileChannel channel, IMURecordReader reader, long mdat_offset, long[] segment_starts,
+                                      long[] segment_ends, long sample_interval_ns, Result result) throws IOException {
+        int record_size = IMURecordFormat.recordSize(reader.values.length);
+        // Track time each segment starts at, the lengths of the segments before it added up
+        long[] track_starts = new long[segment_starts.length];
+        for (int k = 1; k < track_starts.length; ++k) {
+            track_starts[k] = track_starts[k - 1] + segment_ends[k - 1] - segment_starts[k - 1];
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER);
+        // Header first, its size filled in at the end
+        buffer.putInt(1).putInt(Mp4Boxes.typeCode("mdat")).putLong(0);
+        long position = mdat_offset;
+        int[] sizes = new int[256];
+        int sample_count = 0;
+        while (reader.next()) {
+            if (reader.isMarker()) continue;
+            int segment = Arrays.binarySearch(segment_starts, reader.timestamp);
+            if (segment < 0) segment = -segment - 2;
+            // Before the video, or while it was paused
+            if (segment < 0 || reader.timestamp >= segment_ends[segment]) continue;
+            long sample = (reader.timestamp - segment_starts[segment] + track_starts[segment]) / sample_interval_ns;
+            // A record arriving late stays in the sample being filled
+            if (sample >= sample_count) {
+                if (sample >= Integer.MAX_VALUE - 8) throw new IOException("Too many samples at timestamp " + reader.timestamp);
+                sample_count = (int) sample + 1;
+                if (sample_count > sizes.length) sizes = Arrays.copyOf(sizes, Math.max(sample_count, 2 * sizes.length));
+            }
+        sizes[sample_count - 1] += record_size;
+            if (buffer.remaining() < record_size) position += drain(channel, buffer, position);
+            buffer.putLong(reader.timestamp).putShort(reader.sensor_id).putShort(reader.accuracy);
+            for (float value : reader.values) buffer.putFloat(value);
+            ++result.records;
+        }
+        if (result.records == 0) return null;
+        position += drain(channel, buffer, position);
+        result.mdat_bytes = position - mdat_offset;
+        result.samples = sample_count;
+        writeFully(channel, ByteBuffer.allocate(8).putLong(0, result.mdat_bytes), mdat_offset + 8);
+        return Arrays.copyOf(sizes, sample_count);
+    }
+
+    private static long drain(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        long written = buffer.remaining();
+        writeFully(channel, buffer, position);
+        buffer.clear();
+        return written;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) position += channel.write(data, position);
+    }
+
+    private static String handlerName(ByteBuffer movie, Mp4Boxes.Box hdlr) {
+        int start = (int) hdlr.payloadOffset() + 24, end = start;
+        while (end < hdlr.end() && movie.get(end) != 0) ++end;
+        return new String(movie.array(), start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static long readCreationTime(ByteBuffer movie, Mp4Boxes.Box mvhd) {
+        int payload = (int) mvhd.payloadOffset();
+        return movie.get(payload) == 1 ? movie.getLong(payload + 4) : movie.getInt(payload + 4) & 0xFFFFFFFFL;
+    }
+
+    // Hands out the movie's next track id, and lengthens the movie if the IMU track outlasts it; returns the track id
+    private static int updateMovieHeader(ByteBuffer movie, Mp4Boxes.Box mvhd, long track_duration) {
+        int payload = (int) mvhd.payloadOffset(), next_track_id = (int) mvhd.end() - 4;
+        int track_id = movie.getInt(next_track_id);
+        movie.putInt(next_track_id, track_id + 1);
+        if (movie.get(payload) == 1) {
+            if (track_duration > movie.getLong(payload + 24)) movie.putLong(payload + 24, track_duration);
+        } else if (track_duration > (movie.getInt(payload + 16) & 0xFFFFFFFFL)) {
+            movie.putInt(payload + 16, (int) Math.min(track_duration, 0xFFFFFFFFL));
+        }
+        return track_id;
+    }
+
+    private static byte[] buildTrack(int track_id, int video_track, long creation_time, long movie_duration,
+                                     long duration_us, long sample_delta_us, int[] sample_sizes, long chunk_offset,
+                                     byte[] imu_header) {
+        // Enabled and in the movie, with the identity matrix and no size
+        byte[] tkhd = Mp4Boxes.fullBox("tkhd", 1, 3, ByteBuffer.allocate(92).putLong(creation_time).putLong(creation_time)
+                .putInt(track_id).putInt(0).putLong(movie_duration).putLong(0).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(0x00010000).putInt(0).putInt(0).putInt(0).putInt(0x00010000)
+                .putInt(0).putInt(0).putInt(0).putInt(0x40000000).putInt(0).putInt(0).array());
+        byte[] tref = video_track == 0 ? new byte[0]
+                : Mp4Boxes.box("tref", Mp4Boxes.box("cdsc", ByteBuffer.allocate(4).putInt(video_track).array()));
+        // Language "und"
+        byte[] mdhd = Mp4Boxes.fullBox("mdhd", 1, 0, ByteBuffer.allocate(32).putLong(creation_time).putLong(creation_time)
+                .putInt(IMUTrackFormat.TIMESCALE).putLong(duration_us).putShort((short) 0x55C4).putShort((short) 0).array());
+        byte[] name = (IMUTrackFormat.HANDLER_NAME + '\0').getBytes(StandardCharsets.UTF_8);
+        byte[] hdlr = Mp4Boxes.fullBox("hdlr", 0, 0, ByteBuffer.allocate(20).putInt(0).putInt(Mp4Boxes.typeCode("meta"))
+                .array(), name);
+        byte[] dinf = Mp4Boxes.box("dinf", Mp4Boxes.fullBox("dref", 0, 0, ByteBuffer.allocate(4).putInt(1).array(),
+                Mp4Boxes.fullBox("url ", 0, 1)));
+        byte[] sample_entry = Mp4Boxes.box("mett", ByteBuffer.allocate(8).putShort(6, (short) 1).array(), new byte[] {0},
+                (IMUTrackFormat.MIME + '\0').getBytes(StandardCharsets.US_ASCII), Mp4Boxes.box(IMUTrackFormat.HEADER_BOX, imu_header));
+        byte[] stsd = Mp4Boxes.fullBox("stsd", 0, 0, ByteBuffer.allocate(4).putInt(1).array(), sample_entry);
+        byte[] stts = Mp4Boxes.fullBox("stts", 0, 0, ByteBuffer.allocate(12).putInt(1).putInt(sample_sizes.length)
+                .putInt((int) sample_delta_us).array());
+        // Every sample in the one chunk
+        byte[] stsc = Mp4Boxes.fullBox("stsc", 0, 0, ByteBuffer.allocate(16).putInt(1).putInt(1).putInt(sample_sizes.length)
+                .putInt(1).array());
+        ByteBuffer sizes = ByteBuffer.allocate(8 + 4 * sample_sizes.length).putInt(0).putInt(sample_sizes.length);
+        for (int size : sample_sizes) sizes.putInt(size);
+        byte[] stsz = Mp4Boxes.fullBox("stsz", 0, 0, sizes.array());
+        byte[] stco = chunk_offset > 0xFFFFFFFFL
+                ? Mp4Boxes.fullBox("co64", 0, 0, ByteBuffer.allocate(12).putInt(1).putLong(chunk_offset).array())
+                : Mp4Boxes.fullBox("stco", 0, 0, ByteBuffer.allocate(8).putInt(1).putInt((int) chunk_offset).array());
+        byte[] minf = Mp4Boxes.box("minf", Mp4Boxes.fullBox("nmhd", 0, 0), dinf,
+                Mp4Boxes.box("stbl", stsd, stts, stsc, stsz, stco));
+        return Mp4Boxes.box("trak", tkhd, tref, Mp4Boxes.box("mdia", mdhd, hdlr, minf));
+    }
+
+    // Timestamp of the video start marker in an IMU data file, or Long.MIN_VALUE if it has none
+    public static long findVideoStart(InputStream imu_data) throws IOException {
+        try (IMURecordReader reader = new IMURecordReader(imu_data)) {
+            while (reader.next()) {
+                if (reader.sensor_id == IMURecordFormat.VIDEO_START_ID) return reader.timestamp;
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    // Last mapping of a clock domain onto elapsedRealtime noted in an IMU data file, or null if it has none
+    public static ClockDomainEstimator.Estimate findClockMapping(InputStream imu_data, SessionClock.Domain domain) throws IOException {
+        ClockDomainEstimator.Estimate mapping = null;
+        try (IMURecordReader reader = new IMURecordReader(imu_data)) {
+            while (reader.next()) {
+                if (reader.sensor_id != IMURecordFormat.CLOCK_MAPPING_ID || reader.accuracy != domain.ordinal()) continue;
+                double drift = Float.intBitsToFloat(reader.marker_extra) / 1e6;
+                mapping = new ClockDomainEstimator.Estimate(reader.timestamp, reader.marker_payload, drift, 1);
+            }
+        }
+        return mapping;
+    }
+
+    // Segments of a video recorded in stretches, for embed(): {starts, ends} on the sensor clock, camera_clock mapping the
+    // frames' timestamps onto it. first_frames holds the index of the first frame of every stretch, 0 first; each
+    // stretch lasts until a frame interval after its last frame, and the last one stays open. Null without frames.
+    public static long[][] segments(FrameTimestampIndex frames, int[] first_frames, ClockDomainEstimator.Estimate camera_clock) {
+        int frame_count = frames.getFrameCount();
+        if (frame_count == 0) return null;
+        // Mean interval between frames of the same stretch, pauses left out
+        long span = 0, intervals = 0;
+        for (int k = 0; k < first_frames.length; ++k) {
+            int last = (k + 1 < first_frames.length ? first_frames[k + 1] : frame_count) - 1;
+            if (last <= first_frames[k]) continue;
+            span += frames.getTimestamp(last) - frames.getTimestamp(first_frames[k]);
+            intervals += last - first_frames[k];
+        }
+        long frame_interval = Math.max(1, intervals == 0 ? 1 : span / intervals);
+        long[] starts = new long[first_frames.length], ends = new long[first_frames.length];
+        for (int k = 0; k < first_frames.length; ++k) starts[k] = camera_clock.toReference(frames.getTimestamp(first_frames[k]));
+        for (int k = 0; k < first_frames.length; ++k) {
+            // A pause shorter than a frame interval still ends where the next stretch starts
+            ends[k] = k + 1 == first_frames.length ? Long.MAX_VALUE : Math.min(starts[k + 1],
+                    camera_clock.toReference(frames.getTimestamp(first_frames[k + 1] - 1) + frame_interval));
+        }
+        return new long[][] {starts, ends};
+    }
+
+    // Usage: IMUTrackEmbedder <mp4 file> <binary IMU file> <frame timestamp index>
+    // The track starts at the first frame of the index, placed on the sensor clock through the camera clock mapping noted
+    // in the IMU file. The index holds no pauses, so the video is taken to be one stretch.
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: IMUTrackEmbedder <mp4 file> <binary IMU file> <frame timestamp index>");
+            System.exit(1);
+        }
+        ClockDomainEstimator.Estimate camera_clock = findClockMapping(new FileInputStream(args[1]),
+                SessionClock.Domain.CAMERA_SENSOR);
+        long[][] segments = camera_clock == null ? null
+                : segments(new FrameTimestampIndex(new File(args[2])), new int[] {0}, camera_clock);
+        if (segments == null) {
+            System.err.println("No frames, or no camera clock mapping to place them on the sensor clock");
+            System.exit(1);
+        }
+        Result result = embed(new File(args[0]), new FileInputStream(args[1]), segments[0], segments[1],
+                IMUTrackFormat.DEFAULT_SAMPLE_INTERVAL_NS);
+        System.out.println(result == null ? "Nothing embedded: the file already has an IMU track, or no IMU data after the video start"
+                : result.toString());
+    }
+}
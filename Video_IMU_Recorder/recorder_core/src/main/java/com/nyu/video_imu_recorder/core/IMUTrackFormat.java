@@ -0,0 +1,28 @@
+package com.nyu.video_imu_recorder.core;
+
+/*
+Layout of the IMU track that IMUTrackEmbedder adds to a recorded MP4, an ISO base media timed metadata track
+
+Track: handler 'meta' named "IMU samples", a null media header ('nmhd'), and a track reference of type 'cdsc' to the
+video track it describes. Track time 0 is the video's first frame; the media timescale is microseconds. Like the
+video's, track time stands still while the recording is paused: records taken during a pause are left out, and later
+ones are placed earlier by the length of the pauses before them.
+
+Sample entry 'mett': content encoding "" and mime format MIME, followed by an 'imuh' box holding the header of an IMU
+data file (see IMURecordFormat) naming the sensors and the record size.
+
+Samples: one per SAMPLE_INTERVAL of track time, back to back in a single chunk of an 'mdat' box appended to the file,
+each holding the records of IMURecordFormat that arrived during its interval (markers left out). A record batched
+late by the sensor hub can land in the sample after the one its timestamp falls in; its own timestamp, on the sensor
+clock, is exact. Intervals without samples are empty samples, so sample n always starts at n * interval.
+*/
+public final class IMUTrackFormat {
+
+    public static final String MIME = "application/x-imu-records";
+    public static final String HANDLER_NAME = "IMU samples";
+    public static final String HEADER_BOX = "imuh";
+    public static final int TIMESCALE = 1_000_000;
+    public static final long DEFAULT_SAMPLE_INTERVAL_NS = 100_000_000;
+
+    private IMUTrackFormat() {}
+}
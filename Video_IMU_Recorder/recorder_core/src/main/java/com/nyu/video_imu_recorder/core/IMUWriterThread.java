@@ -0,0 +1,82 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Consumer side of the IMU ring buffer: drains samples in batches into the writer away from the sensor and UI threads,
+// committing them to storage in groups as the commit policy dictates. Optional stages see every sample right after the
+// writer, on this same thread. Commits are timed into the session's health, if there is one.
+public class IMUWriterThread extends Thread {
+
+    private static final int BATCH_SIZE = 512;
+    private static final long IDLE_PARK_NS = 2_000_000;
+    private final IMURingBuffer ring;
+    private final IMURecordWriter writer;
+    private final GroupCommitPolicy commit_policy;
+    private final IMUSampleSink destination;
+    private final LatencyHistogram commit_latency;
+    private final AtomicLong bytes_written;
+    private volatile boolean running = true;
+    private volatile IOException failure;
+
+    public IMUWriterThread(IMURingBuffer ring, IMURecordWriter writer, GroupCommitPolicy commit_policy,
+                           IMUSampleSink... stages) {
+        this(ring, writer, commit_policy, null, stages);
+    }
+
+    public IMUWriterThread(IMURingBuffer ring, IMURecordWriter writer, GroupCommitPolicy commit_policy,
+                           RecordingHealth health, IMUSampleSink... stages) {
+        super("imu_writer_thread");
+        this.ring = ring;
+        this.writer = writer;
+        this.commit_policy = commit_policy;
+        commit_latency = health == null ? null : health.histogram(RecordingHealth.IMU_COMMIT_LATENCY);
+        bytes_written = health == null ? null : health.counter(RecordingHealth.IMU_BYTES_WRITTEN);
+        destination = stages.length == 0 ? writer : (timestamp, sensor_id, values, offset, accuracy) -> {
+            writer.onSample(timestamp, sensor_id, values, offset, accuracy);
+            for (IMUSampleSink stage : stages) stage.onSample(timestamp, sensor_id, values, offset, accuracy);
+        };
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                if (ring.drain(destination, BATCH_SIZE) == 0) LockSupport.parkNanos(this, IDLE_PARK_NS);
+                long now = System.nanoTime();
+                if (commit_policy.shouldCommit(now, writer.getPendingBytes())) {
+                    commit();
+                    commit_policy.committed(now);
+                }
+            }
+            // Whatever the producer published before shutdown still belongs to the recording
+            int drained;
+            do {
+                drained = ring.drain(destination, BATCH_SIZE);
+            } while (drained > 0);
+            commit();
+        } catch (IOException exception) {
+            failure = exception;
+        }
+    }
+
+    private void commit() throws IOException {
+        long start = System.nanoTime(), committed = writer.commit();
+        if (commit_latency == null) return;
+        commit_latency.record(System.nanoTime() - start);
+        bytes_written.addAndGet(committed);
+    }
+
+    // Stop after draining every remaining sample; rethrows the first write failure, if any
+    public void shutdown() throws IOException {
+        running = false;
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) throw failure;
+    }
+}
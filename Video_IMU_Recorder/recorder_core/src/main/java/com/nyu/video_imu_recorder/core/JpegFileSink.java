@@ -0,0 +1,24 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Stores every frame as <timestamp>.jpeg inside one directory
+public class JpegFileSink implements FrameSink {
+
+    private final File directory;
+
+    public JpegFileSink(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void writeFrame(long timestamp, ByteBuffer data) throws IOException {
+        try (FileChannel channel = new FileOutputStream(new File(directory, timestamp + ".jpeg")).getChannel()) {
+            while (data.hasRemaining()) channel.write(data);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed-memory histogram of nanosecond durations with log-spaced buckets: every power of two is split into SUB_BUCKETS
+// linear buckets, so any recorded value is reported within 1 / SUB_BUCKETS of itself. Recording is lock-free and safe
+// from any number of threads; readers see a snapshot that may trail concurrent writers slightly.
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3, SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKET_COUNT = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong(), total_ns = new AtomicLong(), max_ns = new AtomicLong();
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int sub_bucket = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub_bucket;
+    }
+
+    // Smallest value falling into the bucket
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    // Negative durations (a clock stepping back) count as 0
+    public void record(long duration_ns) {
+        long value = Math.max(duration_ns, 0);
+        buckets.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        total_ns.addAndGet(value);
+        long max = max_ns.get();
+        while (value > max && !max_ns.compareAndSet(max, value)) max = max_ns.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanNs() {
+        long samples = count.get();
+        return samples == 0 ? 0 : (double) total_ns.get() / samples;
+    }
+
+    public long getMaxNs() {
+        return max_ns.get();
+    }
+
+    // Midpoint of the bucket holding the given quantile (0 to 1), capped at the largest recorded value; 0 when empty
+    public long getPercentileNs(double quantile) {
+        long samples = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; ++i) samples += snapshot[i] = buckets.get(i);
+        if (samples == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * samples)), seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                long lower = lowerBound(i), upper = i + 1 < BUCKET_COUNT ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(lower + (upper - lower) / 2, max_ns.get());
+            }
+        }
+        return max_ns.get();
+    }
+
+    @Override
+    public String toString() {
+        return count.get() == 0 ? "none" : String.format("p50 %.2f ms, p99 %.2f ms, max %.2f ms over %d",
+                getPercentileNs(0.5) / 1e6, getPercentileNs(0.99) / 1e6, max_ns.get() / 1e6, count.get());
+    }
+}
@@ -0,0 +1,162 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+// Reference consumer of a live stream (see LiveStreamFormat), e.g. on a desktop after adb forward tcp:<port> tcp:<port>.
+// Reads message by message like IMURecordReader reads records, and measures how long each message took to arrive.
+public class LiveStreamClient implements Closeable {
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final Map<Short, String> sensor_names;
+    // Recorder clock subtracted from this one, as seen in the hello
+    private final long clock_offset;
+    private byte[] payload_bytes = new byte[64 * 1024];
+    private long received_bytes;
+
+    // Fields of the message most recently returned by next()
+    public short type;
+    public int count;
+    public long publish_time, latency_ns;
+    public ByteBuffer payload = ByteBuffer.wrap(payload_bytes, 0, 0);
+
+    public LiveStreamClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        socket.setReceiveBufferSize(1024 * 1024);
+        input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 256 * 1024));
+        if (!next() || type != LiveStreamFormat.HELLO) {
+            socket.close();
+            throw new IOException("Not a live stream");
+        }
+        clock_offset = System.nanoTime() - publish_time;
+        latency_ns = 0;
+        try (IMURecordReader header = new IMURecordReader(new ByteArrayInputStream(payload_bytes, 0, payload.limit()))) {
+            sensor_names = header.getSensorNames();
+        }
+    }
+
+    public Map<Short, String> getSensorNames() {
+        return sensor_names;
+    }
+
+    public long getReceivedBytes() {
+        return received_bytes;
+    }
+
+    // Advance to the next message, returning false once the recorder has closed the stream
+    public boolean next() throws IOException {
+        int length;
+        try {
+            length = input.readInt();
+        } catch (EOFException end) {
+            return false;
+        }
+        type = input.readShort();
+        count = input.readShort() & 0xFFFF;
+        publish_time = input.readLong();
+        if (payload_bytes.length < length) payload_bytes = new byte[Math.max(length, 2 * payload_bytes.length)];
+        input.readFully(payload_bytes, 0, length);
+        payload = ByteBuffer.wrap(payload_bytes, 0, length);
+        latency_ns = System.nanoTime() - clock_offset - publish_time;
+        received_bytes += LiveStreamFormat.HEADER_SIZE + length;
+        return true;
+    }
+
+    // Fields of the index-th sample of a SAMPLES message
+    public long getSampleTimestamp(int index) {
+        return payload.getLong(index * IMURecordFormat.RECORD_SIZE);
+    }
+
+    public short getSampleSensorId(int index) {
+        return payload.getShort(index * IMURecordFormat.RECORD_SIZE + Long.BYTES);
+    }
+
+    public short getSampleAccuracy(int index) {
+        return payload.getShort(index * IMURecordFormat.RECORD_SIZE + Long.BYTES + Short.BYTES);
+    }
+
+    public float getSampleValue(int index, int value) {
+        return payload.getFloat(index * IMURecordFormat.RECORD_SIZE + Long.BYTES + 2 * Short.BYTES + value * Float.BYTES);
+    }
+
+    // Fields of a FRAME message, laid out as a frame pack's frame header
+    public long getFrameTimestamp() {
+        return payload.getLong(Integer.BYTES);
+    }
+
+    public short getFrameFormat() {
+        return payload.getShort(16);
+    }
+
+    public int getFrameWidth() {
+        return payload.getShort(18) & 0xFFFF;
+    }
+
+    public int getFrameHeight() {
+        return payload.getShort(20) & 0xFFFF;
+    }
+
+    public ByteBuffer getFrameData() {
+        ByteBuffer data = payload.duplicate();
+        data.position(FramePackFormat.FRAME_HEADER_SIZE);
+        return data.slice();
+    }
+
+    // Totals of a DROPPED message
+    public long getDroppedSamples() {
+        return payload.getLong(0);
+    }
+
+    public long getDroppedFrames() {
+        return payload.getLong(Long.BYTES);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    // Usage: LiveStreamClient [host] [port]
+    // Prints throughput and latency of the stream every second until the recorder closes it
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : LiveStreamFormat.DEFAULT_PORT;
+        try (LiveStreamClient client = new LiveStreamClient(host, port)) {
+            System.out.println("Streaming " + client.getSensorNames() + " from " + host + ":" + port);
+            LatencyHistogram sample_latency = new LatencyHistogram(), frame_latency = new LatencyHistogram();
+            long samples = 0, frames = 0, last_bytes = 0, last_report = System.nanoTime();
+            while (client.next()) {
+                if (client.type == LiveStreamFormat.SAMPLES) {
+                    samples += client.count;
+                    sample_latency.record(Math.max(0, client.latency_ns));
+                } else if (client.type == LiveStreamFormat.FRAME) {
+                    ++frames;
+                    frame_latency.record(Math.max(0, client.latency_ns));
+                } else if (client.type == LiveStreamFormat.DROPPED) {
+                    System.out.println("Fell behind: " + client.getDroppedSamples() + " samples and "
+                            + client.getDroppedFrames() + " frames dropped so far");
+                }
+                long now = System.nanoTime();
+                if (now - last_report < 1_000_000_000L) continue;
+                double seconds = (now - last_report) / 1e9;
+                System.out.printf("%.0f samples/s, %.1f frames/s, %.2f MB/s; sample latency %s; frame latency %s%n",
+                        samples / seconds, frames / seconds, (client.getReceivedBytes() - last_bytes) / seconds / 1e6,
+                        sample_latency, frame_latency);
+                samples = frames = 0;
+                last_bytes = client.getReceivedBytes();
+                last_report = now;
+                sample_latency = new LatencyHistogram();
+                frame_latency = new LatencyHistogram();
+            }
+        }
+    }
+}
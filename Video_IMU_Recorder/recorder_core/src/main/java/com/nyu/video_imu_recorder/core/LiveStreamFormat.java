@@ -0,0 +1,33 @@
+package com.nyu.video_imu_recorder.core;
+
+/*
+Protocol of the live stream (see LiveStreamServer), which publishes a recording's IMU samples and frames to consumers
+connected over TCP as messages back to back (all values big-endian)
+
+Message header:
+<int payload length> <short type> <short count> <long publish time ns (System.nanoTime of the recorder)> <payload bytes>
+
+Message types:
+HELLO, the first message on every connection: the payload is the header of an IMU data file (see IMURecordFormat)
+naming the stream's sensors, count is 0 and the publish time is the recorder's clock when the client was accepted
+SAMPLES: count IMU samples, each laid out as an IMU data file record of IMURecordFormat.RECORD_SIZE bytes; sensors with
+more than three values carry only the first three
+FRAME: one frame laid out as in a frame pack (see FramePackFormat), frame header and CRC included; count is 1
+DROPPED: <long samples dropped> <long frames dropped>, the totals this client lost so far because it fell behind, sent
+after a loss ahead of the messages still queued for it; count is 0
+
+A client measures latency against the publish time after subtracting the offset between the clocks seen in HELLO,
+which then also absorbs the one-way delay of that first message.
+*/
+public final class LiveStreamFormat {
+
+    public static final int HEADER_SIZE = 16;
+    public static final short HELLO = 1;
+    public static final short SAMPLES = 2;
+    public static final short FRAME = 3;
+    public static final short DROPPED = 4;
+    public static final int DROPPED_SIZE = 16;
+    public static final int DEFAULT_PORT = 8642;
+
+    private LiveStreamFormat() {}
+}
@@ -0,0 +1,437 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+// Publishes a recording's IMU samples and frames live (see LiveStreamFormat) to consumers connected on a loopback TCP port,
+// which a desktop reaches through adb forward. Recording never waits on it: samples pass through a lock-free ring that one
+// selector thread batches into messages, frames are copied once and only while someone is connected, and every client
+// has its own bounded queue whose overflow drops messages under the drop policy. Queued messages go out with gathering
+// writes of the buffers they were built in, shared read-only between clients.
+public class LiveStreamServer implements Closeable {
+
+    // Which messages make room when a client's queue is full: the one arriving, or the oldest ones not yet being sent
+    public enum DropPolicy {DROP_NEWEST, DROP_OLDEST}
+
+    public static final long DEFAULT_QUEUE_BYTES = 8 * 1024 * 1024;
+    public static final int DEFAULT_RING_CAPACITY = 8192;
+    // Samples are batched for this long at most while clients are connected
+    static final int BATCH_INTERVAL_MS = 2;
+    private static final int MAX_BATCH = 1024;
+    private static final int MAX_GATHER = 64;
+
+    // A message as queued for one client; all of its buffers belong to it alone, their contents to every client
+    private static final class Message {
+        final ByteBuffer[] buffers;
+        final long length;
+        final short type;
+        final int count;
+        // Set while it is in a write to the socket, and kept once the socket took part of it, after which it can no
+        // longer be dropped
+        boolean in_flight;
+
+        Message(ByteBuffer[] buffers, short type, int count) {
+            this.buffers = buffers;
+            this.type = type;
+            this.count = count;
+            long bytes = 0;
+            for (ByteBuffer buffer : buffers) bytes += buffer.remaining();
+            length = bytes;
+        }
+
+        Message duplicate() {
+            ByteBuffer[] copies = new ByteBuffer[buffers.length];
+            for (int i = 0; i < buffers.length; ++i) copies[i] = buffers[i].asReadOnlyBuffer();
+            return new Message(copies, type, count);
+        }
+
+        boolean isSent() {
+            return !buffers[buffers.length - 1].hasRemaining();
+        }
+
+        boolean isStarted() {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) remaining += buffer.remaining();
+            return remaining < length;
+        }
+
+        // Neither in flight nor a control message can be dropped
+        boolean isPinned() {
+            return in_flight || isControl();
+        }
+
+        // Control messages are small and never dropped
+        boolean isControl() {
+            return type == LiveStreamFormat.HELLO || type == LiveStreamFormat.DROPPED;
+        }
+    }
+
+    private final class Client {
+        final SocketChannel channel;
+        final ArrayDeque<Message> queue = new ArrayDeque<>();
+        final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        // Bytes queued, and those of them that cannot be dropped
+        long queued_bytes, pinned_bytes;
+        long dropped_samples, dropped_frames, reported_samples, reported_frames;
+        // Latest DROPPED notice, until it is sent
+        Message notice;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Called from the selector thread and from frame producers; never blocks on the socket
+        synchronized void enqueue(Message message) {
+            if (!message.isControl() && queued_bytes + message.length > queue_bytes
+                    && (drop_policy == DropPolicy.DROP_NEWEST || !dropOldest(message.length))) {
+                dropped(message);
+                return;
+            }
+            queue.addLast(message.duplicate());
+            queued_bytes += message.length;
+            if (message.isControl()) pinned_bytes += message.length;
+        }
+
+        // Whether a message of length bytes would be queued, after dropping older ones under DROP_OLDEST
+        synchronized boolean hasRoomFor(long length) {
+            return (drop_policy == DropPolicy.DROP_OLDEST ? pinned_bytes : queued_bytes) + length <= queue_bytes;
+        }
+
+        // Drops queued messages, oldest first, until length more bytes fit; gives up without dropping any if the messages
+        // that cannot be dropped leave too little room
+        private boolean dropOldest(long length) {
+            if (pinned_bytes + length > queue_bytes) return false;
+            for (Iterator<Message> queued = queue.iterator(); queued.hasNext() && queued_bytes + length > queue_bytes; ) {
+                Message message = queued.next();
+                if (message.isPinned()) continue;
+                queued.remove();
+                queued_bytes -= message.length;
+                dropped(message);
+            }
+            return queued_bytes + length <= queue_bytes;
+        }
+
+        private void dropped(Message message) {
+            if (message.type == LiveStreamFormat.FRAME) {
+                ++dropped_frames;
+                total_dropped_frames.incrementAndGet();
+            } else {
+                dropped_samples += message.count;
+                total_dropped_samples.addAndGet(message.count);
+            }
+        }
+
+        // Called from the selector thread only: sends as much of the queue as the socket takes right now, telling the
+        // client what it lost ahead of everything not yet started, so that even a client that never catches up hears of it
+        void flush() throws IOException {
+            int count = 0;
+            synchronized (this) {
+                if ((notice == null || notice.isSent())
+                        && (dropped_samples != reported_samples || dropped_frames != reported_frames)) {
+                    queueNotice();
+                }
+                for (Message message : queue) {
+                    if (count + message.buffers.length > gather.length) break;
+                    if (!message.isPinned()) pinned_bytes += message.length;
+                    message.in_flight = true;
+                    for (ByteBuffer buffer : message.buffers) gather[count++] = buffer;
+                }
+            }
+            if (count == 0) return;
+            // Written outside the lock, so producers only ever wait for queue bookkeeping
+            try {
+                channel.write(gather, 0, count);
+            } finally {
+                Arrays.fill(gather, 0, count, null);
+                synchronized (this) {
+                    while (!queue.isEmpty() && queue.peekFirst().isSent()) {
+                        Message sent = queue.pollFirst();
+                        queued_bytes -= sent.length;
+                        pinned_bytes -= sent.length;
+                    }
+                    // Only a message the socket took part of has to go out whole; the others may be dropped again
+                    for (Message message : queue) {
+                        if (!message.in_flight) break;
+                        if (message.isStarted()) continue;
+                        message.in_flight = false;
+                        if (!message.isControl()) pinned_bytes -= message.length;
+                    }
+                }
+            }
+        }
+
+        // Puts a notice of the drops so far at the front of the queue, behind only a message already partly sent
+        private void queueNotice() {
+            ByteBuffer totals = ByteBuffer.allocate(LiveStreamFormat.HEADER_SIZE + LiveStreamFormat.DROPPED_SIZE);
+            totals.putInt(LiveStreamFormat.DROPPED_SIZE).putShort(LiveStreamFormat.DROPPED).putShort((short) 0)
+                    .putLong(System.nanoTime()).putLong(dropped_samples).putLong(dropped_frames).flip();
+            notice = new Message(new ByteBuffer[] {totals}, LiveStreamFormat.DROPPED, 0);
+            Message started = !queue.isEmpty() && queue.peekFirst().isStarted() ? queue.pollFirst() : null;
+            queue.addFirst(notice);
+            if (started != null) queue.addFirst(started);
+            queued_bytes += notice.length;
+            pinned_bytes += notice.length;
+            reported_samples = dropped_samples;
+            reported_frames = dropped_frames;
+        }
+    }
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final DropPolicy drop_policy;
+    private final long queue_bytes;
+    private final ByteBuffer hello;
+    private final IMURingBuffer samples;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final AtomicLong total_dropped_samples = new AtomicLong(), total_dropped_frames = new AtomicLong();
+    private final AtomicLong published_samples = new AtomicLong(), published_frames = new AtomicLong();
+    private final ByteBuffer scratch = ByteBuffer.allocate(1024);
+    // Message being filled by the sample ring as it drains
+    private ByteBuffer batch;
+    private final IMUSampleSink batch_sink = (timestamp, sensor_id, values, offset, accuracy) -> batch.putLong(timestamp)
+            .putShort(sensor_id).putShort((short) accuracy).putFloat(values[offset]).putFloat(values[offset + 1])
+            .putFloat(values[offset + 2]);
+    private Thread selector_thread;
+    private volatile boolean running = true;
+    private volatile int client_count;
+
+    // Listens on the loopback interface only, at port (0 picks a free one); every client gets a queue of up to queue_bytes
+    public LiveStreamServer(int port, short[] sensor_ids, String[] sensor_names, DropPolicy drop_policy, long queue_bytes,
+                            int ring_capacity) throws IOException {
+        this.drop_policy = drop_policy;
+        this.queue_bytes = queue_bytes;
+        samples = new IMURingBuffer(ring_capacity);
+        ByteBuffer header = IMURecordFormat.header(IMURecordFormat.RECORD_SIZE, sensor_ids, sensor_names);
+        hello = ByteBuffer.allocate(LiveStreamFormat.HEADER_SIZE + header.remaining());
+        hello.putInt(header.remaining()).putShort(LiveStreamFormat.HELLO).putShort((short) 0).putLong(0).put(header).flip();
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException exception) {
+            server.close();
+            selector.close();
+            throw exception;
+        }
+    }
+
+    public void start() {
+        selector_thread = new Thread(this::serve, "live_stream_thread");
+        selector_thread.start();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    // Called from one producer thread only, e.g. the sensor thread; costs a single check while nobody is connected and
+    // returns false if the sample was dropped because the selector thread fell behind
+    public boolean offerSample(long timestamp, short sensor_id, float[] values, int accuracy) {
+        if (client_count == 0) return true;
+        return samples.offer(timestamp, sensor_id, values, accuracy);
+    }
+
+    // Called from any thread, e.g. a frame writer thread, with the frame as it is stored; the frame is copied before
+    // returning, and only if a client is connected and has room for it
+    public void offerFrame(long timestamp, ByteBuffer data, short format, int width, int height) {
+        if (client_count == 0) return;
+        long publish_time = System.nanoTime();
+        int length = data.remaining();
+        boolean wanted = false;
+        for (Client client : clients) wanted |= client.hasRoomFor(LiveStreamFormat.HEADER_SIZE + FramePackFormat.FRAME_HEADER_SIZE + length);
+        if (!wanted) {
+            for (Client client : clients) {
+                synchronized (client) {
+                    ++client.dropped_frames;
+                }
+                total_dropped_frames.incrementAndGet();
+            }
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(LiveStreamFormat.HEADER_SIZE + FramePackFormat.FRAME_HEADER_SIZE);
+        header.putInt(FramePackFormat.FRAME_HEADER_SIZE + length).putShort(LiveStreamFormat.FRAME).putShort((short) 1)
+                .putLong(publish_time).putInt(FramePackFormat.FRAME_MAGIC).putLong(timestamp).putInt(length).putShort(format)
+                .putShort((short) width).putShort((short) height).putShort((short) 0).putInt((int) crc.getValue()).flip();
+        ByteBuffer payload = ByteBuffer.allocate(length).put(data.duplicate());
+        payload.flip();
+        Message message = new Message(new ByteBuffer[] {header, payload}, LiveStreamFormat.FRAME, 1);
+        for (Client client : clients) client.enqueue(message);
+        published_frames.incrementAndGet();
+        selector.wakeup();
+    }
+
+    // Passes frames on to destination and publishes each of them once it has been stored
+    public FrameSink tee(FrameSink destination, short format, int width, int height) {
+        return new FrameSink() {
+            @Override
+            public void writeFrame(long timestamp, ByteBuffer data) throws IOException {
+                destination.writeFrame(timestamp, data.duplicate());
+                offerFrame(timestamp, data, format, width, height);
+            }
+
+            @Override
+            public void writeFrames(long[] timestamps, ByteBuffer[] data, int count) throws IOException {
+                ByteBuffer[] stored = new ByteBuffer[count];
+                for (int i = 0; i < count; ++i) stored[i] = data[i].duplicate();
+                destination.writeFrames(timestamps, stored, count);
+                for (int i = 0; i < count; ++i) offerFrame(timestamps[i], data[i], format, width, height);
+            }
+        };
+    }
+
+    private void serve() {
+        try {
+            while (running) {
+                // Nothing to batch while nobody is connected, so only a new client or close() wakes the thread then
+                selector.select(client_count == 0 ? 0 : BATCH_INTERVAL_MS);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+                publishSamples();
+                for (Client client : clients) {
+                    try {
+                        client.flush();
+                    } catch (IOException exception) {
+                        disconnect(client);
+                    }
+                }
+            }
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        } finally {
+            for (Client client : clients) disconnect(client);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Client client = new Client(channel);
+            // Every client gets a hello of its own, stamped with the clock it measures latency against
+            ByteBuffer greeting = ByteBuffer.allocate(hello.remaining()).put(hello.duplicate());
+            greeting.flip();
+            greeting.putLong(8, System.nanoTime());
+            client.enqueue(new Message(new ByteBuffer[] {greeting}, LiveStreamFormat.HELLO, 0));
+            channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+            client_count = clients.size();
+        }
+    }
+
+    // Clients have nothing to say; reading only notices when they hang up
+    private void read(SelectionKey key) {
+        Client client = (Client) key.attachment();
+        try {
+            scratch.clear();
+            if (client.channel.read(scratch) < 0) disconnect(client);
+        } catch (IOException exception) {
+            disconnect(client);
+        }
+    }
+
+    private void disconnect(Client client) {
+        clients.remove(client);
+        client_count = clients.size();
+        try {
+            client.channel.close();
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    private void publishSamples() {
+        int count;
+        while ((count = Math.min(samples.size(), MAX_BATCH)) > 0) {
+            batch = ByteBuffer.allocate(LiveStreamFormat.HEADER_SIZE + count * IMURecordFormat.RECORD_SIZE);
+            batch.putInt(count * IMURecordFormat.RECORD_SIZE).putShort(LiveStreamFormat.SAMPLES).putShort((short) count)
+                    .putLong(System.nanoTime());
+            try {
+                samples.drain(batch_sink, count);
+            } catch (IOException exception) {
+                // The sink only fills a buffer
+                throw new IllegalStateException(exception);
+            }
+            batch.flip();
+            Message message = new Message(new ByteBuffer[] {batch}, LiveStreamFormat.SAMPLES, count);
+            for (Client client : clients) client.enqueue(message);
+            published_samples.addAndGet(count);
+        }
+        batch = null;
+    }
+
+    public int getClientCount() {
+        return client_count;
+    }
+
+    public long getPublishedSamples() {
+        return published_samples.get();
+    }
+
+    public long getPublishedFrames() {
+        return published_frames.get();
+    }
+
+    // Messages dropped from client queues, counted once for every client that lost them
+    public long getDroppedSamples() {
+        return total_dropped_samples.get();
+    }
+
+    public long getDroppedFrames() {
+        return total_dropped_frames.get();
+    }
+
+    // Samples the sensor thread could not hand over because the selector thread fell behind
+    public long getRingOverflowCount() {
+        return samples.getOverflowCount();
+    }
+
+    @Override
+    public String toString() {
+        return client_count + " clients, " + published_samples.get() + " samples and " + published_frames.get()
+                + " frames published, " + total_dropped_samples.get() + " samples and " + total_dropped_frames.get()
+                + " frames dropped for slow clients, " + samples.getOverflowCount() + " ring overflows";
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        if (selector_thread != null) {
+            try {
+                selector_thread.join();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            server.close();
+        } finally {
+            selector.close();
+        }
+    }
+}
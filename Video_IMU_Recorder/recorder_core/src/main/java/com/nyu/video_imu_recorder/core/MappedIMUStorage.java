@@ -0,0 +1,66 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Memory-mapped path: the file is mapped in pre-allocated chunks, so writes are memory stores and the kernel handles
+// writeback. The file is grown one chunk at a time and truncated back to the data's real length when closed.
+public class MappedIMUStorage implements IMUStorage {
+
+    public static final long DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private final FileChannel channel;
+    private final long chunk_size;
+    // Replaced by write() while sync() may be forcing it from another thread
+    private volatile MappedByteBuffer chunk;
+    private long position;
+
+    public MappedIMUStorage(File file, long chunk_size) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.chunk_size = chunk_size;
+        // Continue after whatever an earlier recording left in the file
+        position = channel.size();
+        chunk = channel.map(FileChannel.MapMode.READ_WRITE, position, chunk_size);
+    }
+
+    @Override
+    public long size() {
+        return position;
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            if (!chunk.hasRemaining()) {
+                // Hand the full chunk to writeback before mapping (and thereby allocating) the next one
+                chunk.force();
+                chunk = channel.map(FileChannel.MapMode.READ_WRITE, position, chunk_size);
+            }
+            int length = Math.min(data.remaining(), chunk.remaining());
+            int limit = data.limit();
+            data.limit(data.position() + length);
+            chunk.put(data);
+            data.limit(limit);
+            position += length;
+        }
+    }
+
+    @Override
+    public void sync() {
+        chunk.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            chunk.force();
+            // Drop the unused tail of the last pre-allocated chunk
+            channel.truncate(position);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Just enough of the ISO base media file format (MP4) to walk its boxes and build new ones: top-level boxes are read
+// from the file header by header, without touching their payload, and boxes inside moov from memory
+public final class Mp4Boxes {
+
+    // Box header of 8 bytes, or 16 with a 64-bit size
+    public static final class Box {
+        public final String type;
+        public final long offset, size;
+        public final int header_size;
+
+        Box(String type, long offset, long size, int header_size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.header_size = header_size;
+        }
+
+        public long payloadOffset() {
+            return offset + header_size;
+        }
+
+        public long end() {
+            return offset + size;
+        }
+
+        @Override
+        public String toString() {
+            return type + " at " + offset + " (" + size + " bytes)";
+        }
+    }
+
+    private Mp4Boxes() {}
+
+    public static int typeCode(String type) {
+        byte[] bytes = type.getBytes(StandardCharsets.ISO_8859_1);
+        if (bytes.length != 4) throw new IllegalArgumentException("Box types have 4 characters: " + type);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    static String typeName(int code) {
+        return new String(ByteBuffer.allocate(4).putInt(code).array(), StandardCharsets.ISO_8859_1);
+    }
+
+    // Top-level boxes of a file; they must cover it exactly, and a box sized 0 (running to the end) must come last
+    public static List<Box> readTopLevel(FileChannel channel) throws IOException {
+        List<Box> boxes = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long size = channel.size();
+        for (long position = 0; position < size; ) {
+            if (position + 8 > size) throw new IOException("Truncated box header at " + position);
+            header.clear().limit(8);
+            while (header.hasRemaining()) channel.read(header, position + header.position());
+            long box_size = header.getInt(0) & 0xFFFFFFFFL;
+            int header_size = 8;
+            if (box_size == 1) {
+                header.limit(16);
+                while (header.hasRemaining()) channel.read(header, position + header.position());
+                box_size = header.getLong(8);
+                header_size = 16;
+            } else if (box_size == 0) {
+                box_size = size - position;
+            }
+            if (box_size < header_size || position + box_size > size) throw new IOException("Bad box size at " + position);
+            boxes.add(new Box(typeName(header.getInt(4)), position, box_size, header_size));
+            position += box_size;
+        }
+        return boxes;
+    }
+
+    // Boxes held in data between start and end (absolute positions), e.g. the children of a container's payload
+    public static List<Box> children(ByteBuffer data, int start, int end) throws IOException {
+        List<Box> boxes = new ArrayList<>();
+        for (int position = start; position < end; ) {
+            if (position + 8 > end) throw new IOException("Truncated box header at " + position);
+            long box_size = data.getInt(position) & 0xFFFFFFFFL;
+            int header_size = 8;
+            if (box_size == 1) {
+                if (position + 16 > end) throw new IOException("Truncated box header at " + position);
+                box_size = data.getLong(position + 8);
+                header_size = 16;
+            } else if (box_size == 0) {
+                box_size = end - position;
+            }
+            if (box_size < header_size || position + box_size > end) throw new IOException("Bad box size at " + position);
+            boxes.add(new Box(typeName(data.getInt(position + 4)), position, box_size, header_size));
+            position += (int) box_size;
+        }
+        return boxes;
+    }
+
+    public static List<Box> children(ByteBuffer data, Box parent) throws IOException {
+        return children(data, (int) parent.payloadOffset(), (int) parent.end());
+    }
+
+    // First child of parent of the given type, or null
+    public static Box find(ByteBuffer data, Box parent, String type) throws IOException {
+        for (Box child : children(data, parent)) {
+            if (child.type.equals(type)) return child;
+        }
+        return null;
+    }
+
+    // Follows a path of box types down from parent, e.g. "mdia", "minf", "stbl"; null if any step is missing
+    public static Box find(ByteBuffer data, Box parent, String... path) throws IOException {
+        Box box = parent;
+        for (int i = 0; i < path.length && box != null; ++i) box = find(data, box, path[i]);
+        return box;
+    }
+
+    // A box of the given type holding the contents back to back
+    public static byte[] box(String type, byte[]... contents) {
+        long size = 8;
+        for (byte[] content : contents) size += content.length;
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("Box too large to build in memory");
+        ByteArrayOutputStream output = new ByteArrayOutputStream((int) size);
+        output.write(ByteBuffer.allocate(8).putInt((int) size).putInt(typeCode(type)).array(), 0, 8);
+        for (byte[] content : contents) output.write(content, 0, content.length);
+        return output.toByteArray();
+    }
+
+    // A full box, whose payload starts with a version and 24 bits of flags
+    public static byte[] fullBox(String type, int version, int flags, byte[]... contents) {
+        byte[][] all = new byte[contents.length + 1][];
+        all[0] = ByteBuffer.allocate(4).putInt(version << 24 | flags & 0xFFFFFF).array();
+        System.arraycopy(contents, 0, all, 1, contents.length);
+        return box(type, all);
+    }
+}
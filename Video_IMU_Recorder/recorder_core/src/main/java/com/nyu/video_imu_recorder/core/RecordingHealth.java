@@ -0,0 +1,222 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+// Live health of one recording session: per-stream rate and jitter, latency histograms and counters, all recorded
+// without locks by the threads doing the work and read from any other thread for the overlay or the summary JSON.
+// Metrics are created by name on first use and outlive the recorders feeding them, so a paused and resumed recording
+// keeps adding to the same ones.
+public class RecordingHealth {
+
+    public static final String IMU_COMMIT_LATENCY = "imu_commit_latency", FRAME_SAVE_LATENCY = "frame_save_latency";
+    public static final String IMU_BYTES_WRITTEN = "imu_bytes_written", FRAME_BYTES_WRITTEN = "frame_bytes_written";
+    public static final String RING_OVERFLOW = "imu_ring_overflow", FRAMES_DROPPED = "frames_dropped";
+    public static final String FRAMES = "camera_frames";
+    // A frame interval half again as long as usual means a frame went missing
+    public static final double FRAME_GAP_FACTOR = 1.5;
+
+    private final LongSupplier clock;
+    private final long start_time;
+    private final Map<String, SensorStreamStats> streams = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> counters = new ConcurrentSkipListMap<>();
+    private volatile StartupTimeline startup;
+    // Bytes written and time of the previous overlay refresh, for the current disk rate; touched by the overlay only
+    private long overlay_bytes = 0, overlay_time;
+
+    public RecordingHealth(LongSupplier clock) {
+        this.clock = clock;
+        start_time = overlay_time = clock.getAsLong();
+    }
+
+    // Timestamps of one stream, recorded from a single thread
+    public SensorStreamStats stream(String name) {
+        return stream(name, SensorStreamStats.DEFAULT_GAP_FACTOR);
+    }
+
+    // gap_factor only applies when the stream is created
+    public SensorStreamStats stream(String name, double gap_factor) {
+        return streams.computeIfAbsent(name, key -> new SensorStreamStats(gap_factor));
+    }
+
+    // Milestones of the session's startup, added to the summary
+    public void setStartup(StartupTimeline startup) {
+        this.startup = startup;
+    }
+
+    public StartupTimeline getStartup() {
+        return startup;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    public AtomicLong counter(String name) {
+        LongSupplier counter = counters.computeIfAbsent(name, key -> new Counter());
+        if (!(counter instanceof Counter)) throw new IllegalStateException(name + " is counted elsewhere");
+        return ((Counter) counter).value;
+    }
+
+    private static final class Counter implements LongSupplier {
+        final AtomicLong value = new AtomicLong();
+
+        @Override
+        public long getAsLong() {
+            return value.get();
+        }
+    }
+
+    // Counter kept elsewhere, e.g. by a component that already counts its own drops
+    public void addCounter(String name, LongSupplier source) {
+        counters.put(name, source);
+    }
+
+    public long getCount(String name) {
+        LongSupplier counter = counters.get(name);
+        return counter == null ? 0 : counter.getAsLong();
+    }
+
+    // Sink timing every write into FRAME_SAVE_LATENCY and counting its bytes into FRAME_BYTES_WRITTEN
+    public FrameSink track(FrameSink destination) {
+        LatencyHistogram save_latency = histogram(FRAME_SAVE_LATENCY);
+        AtomicLong bytes = counter(FRAME_BYTES_WRITTEN);
+        return new FrameSink() {
+            @Override
+            public void writeFrame(long timestamp, ByteBuffer data) throws IOException {
+                int length = data.remaining();
+                long start = System.nanoTime();
+                destination.writeFrame(timestamp, data);
+                save_latency.record(System.nanoTime() - start);
+                bytes.addAndGet(length);
+            }
+
+            @Override
+            public void writeFrames(long[] timestamps, ByteBuffer[] data, int count) throws IOException {
+                long length = 0;
+                for (int i = 0; i < count; ++i) length += data[i].remaining();
+                long start = System.nanoTime();
+                destination.writeFrames(timestamps, data, count);
+                // Every frame of a batch is saved once the batch is
+                long duration = System.nanoTime() - start;
+                for (int i = 0; i < count; ++i) save_latency.record(duration);
+                bytes.addAndGet(length);
+            }
+        };
+    }
+
+    private long getBytesWritten() {
+        return getCount(IMU_BYTES_WRITTEN) + getCount(FRAME_BYTES_WRITTEN);
+    }
+
+    // Short multi-line summary for the on-screen overlay; called from one thread, which sees the disk rate since its
+    // previous call
+    public String toOverlayText() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, SensorStreamStats> stream : streams.entrySet()) {
+            SensorStreamStats stats = stream.getValue();
+            text.append(String.format(Locale.ROOT, "%s: %.1f Hz, jitter %.2f ms, %d gaps%n", stream.getKey(),
+                    stats.getAchievedRateHz(), stats.getJitterNs() / 1e6, stats.getGapCount()));
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            LatencyHistogram latency = histogram.getValue();
+            text.append(String.format(Locale.ROOT, "%s: p50 %.1f ms, p99 %.1f ms%n", histogram.getKey(),
+                    latency.getPercentileNs(0.5) / 1e6, latency.getPercentileNs(0.99) / 1e6));
+        }
+        for (Map.Entry<String, LongSupplier> counter : counters.entrySet()) {
+            if (!counter.getKey().endsWith("_bytes_written")) {
+                text.append(counter.getKey()).append(": ").append(counter.getValue().getAsLong()).append('\n');
+            }
+        }
+        long now = clock.getAsLong(), bytes = getBytesWritten();
+        double rate = now > overlay_time ? (bytes - overlay_bytes) * 1e9 / (now - overlay_time) : 0;
+        overlay_bytes = bytes;
+        overlay_time = now;
+        return text.append(String.format(Locale.ROOT, "disk: %.1f KB/s", rate / 1024)).toString();
+    }
+
+    public String toJson() {
+        double duration_s = (clock.getAsLong() - start_time) / 1e9;
+        StringBuilder json = new StringBuilder("{\n  \"duration_s\": ").append(number(duration_s));
+        StartupTimeline timeline = startup;
+        if (timeline != null) {
+            json.append(",\n  \"startup_ms\": {");
+            for (StartupTimeline.Phase phase : StartupTimeline.Phase.values()) {
+                json.append(phase.ordinal() == 0 ? "" : ", ").append(string(phase.key())).append(": ")
+                        .append(number(timeline.getMillis(phase)));
+            }
+            json.append('}');
+        }
+        json.append(",\n  \"streams\": {");
+        String separator = "\n";
+        for (Map.Entry<String, SensorStreamStats> stream : streams.entrySet()) {
+            SensorStreamStats stats = stream.getValue();
+            json.append(separator).append("    ").append(string(stream.getKey())).append(": {\"samples\": ")
+                    .append(stats.getSampleCount()).append(", \"rate_hz\": ").append(number(stats.getAchievedRateHz()))
+                    .append(", \"mean_interval_ms\": ").append(number(stats.getMeanIntervalNs() / 1e6))
+                    .append(", \"jitter_ms\": ").append(number(stats.getJitterNs() / 1e6))
+                    .append(", \"max_interval_ms\": ").append(number(stats.getMaxIntervalNs() / 1e6))
+                    .append(", \"gaps\": ").append(stats.getGapCount())
+                    .append(", \"missed\": ").append(stats.getMissedCount()).append('}');
+            separator = ",\n";
+        }
+        json.append(separator.equals("\n") ? "}" : "\n  }").append(",\n  \"latency\": {");
+        separator = "\n";
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            LatencyHistogram latency = histogram.getValue();
+            json.append(separator).append("    ").append(string(histogram.getKey())).append(": {\"count\": ")
+                    .append(latency.getCount()).append(", \"mean_ms\": ").append(number(latency.getMeanNs() / 1e6))
+                    .append(", \"p50_ms\": ").append(number(latency.getPercentileNs(0.5) / 1e6))
+                    .append(", \"p90_ms\": ").append(number(latency.getPercentileNs(0.9) / 1e6))
+                    .append(", \"p99_ms\": ").append(number(latency.getPercentileNs(0.99) / 1e6))
+                    .append(", \"max_ms\": ").append(number(latency.getMaxNs() / 1e6)).append('}');
+            separator = ",\n";
+        }
+        json.append(separator.equals("\n") ? "}" : "\n  }").append(",\n  \"counters\": {");
+        separator = "\n";
+        for (Map.Entry<String, LongSupplier> counter : counters.entrySet()) {
+            json.append(separator).append("    ").append(string(counter.getKey())).append(": ")
+                    .append(counter.getValue().getAsLong());
+            separator = ",\n";
+        }
+        json.append(separator.equals("\n") ? "}" : "\n  }");
+        json.append(",\n  \"bytes_per_second\": ").append(number(duration_s > 0 ? getBytesWritten() / duration_s : 0));
+        return json.append("\n}\n").toString();
+    }
+
+    public void writeJson(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+        }
+    }
+
+    // JSON has no NaN or infinities
+    private static String number(double value) {
+        return Double.isFinite(value) ? String.format(Locale.ROOT, "%.3f", value) : "null";
+    }
+
+    private static String string(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char character : value.toCharArray()) {
+            if (character == '"' || character == '\\') {
+                quoted.append('\\').append(character);
+            } else if (character < 0x20) {
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) character));
+            } else {
+                quoted.append(character);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,41 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.File;
+import java.util.Locale;
+
+/*
+Layout of a segmented journal, a directory holding one logical append-only file (an IMU data file or a frame pack) in
+size-rolled segments, so that a crash leaves at most the block being written in doubt (all values big-endian)
+
+Segments, named 000000.seg, 000001.seg, ... and holding blocks back to back:
+<int magic "JBLK"> <int payload length> <long logical offset of the payload> <int CRC32 of the three fields before it
+and the payload> <payload bytes>
+Every write to the journal is one block, and a new segment is started once the current one would grow past the segment
+size.
+
+Manifest, named MANIFEST and replaced as a whole (written to MANIFEST.tmp, synced and renamed over it) whenever a segment
+is sealed, and when the journal is opened and closed:
+<int magic "JMAN"> <short version> <short flags> <int sealed segment count> <long logical length of the sealed segments>
+<long segment size> <int CRC32 of everything before it>
+
+Sealed segments were synced before the manifest counting them, so recovery only checks the segments after them: blocks
+are verified in order and the first incomplete, corrupt or out-of-place block is cut off along with everything after it.
+*/
+public final class SegmentedJournalFormat {
+
+    public static final int BLOCK_MAGIC = 0x4A424C4B;
+    public static final int BLOCK_HEADER_SIZE = 20;
+    public static final int MANIFEST_MAGIC = 0x4A4D414E;
+    public static final short VERSION = 1;
+    public static final int MANIFEST_SIZE = 32;
+    public static final String MANIFEST = "MANIFEST", MANIFEST_TEMP = "MANIFEST.tmp";
+    // Manifest flags
+    public static final short FLAG_CLOSED = 1;
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private SegmentedJournalFormat() {}
+
+    public static File segmentFile(File journal, int segment) {
+        return new File(journal, String.format(Locale.ROOT, "%06d.seg", segment));
+    }
+}
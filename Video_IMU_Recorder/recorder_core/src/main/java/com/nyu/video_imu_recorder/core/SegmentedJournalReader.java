@@ -0,0 +1,267 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// Reads the logical file held by a segmented journal (see SegmentedJournalFormat) as one stream, and recovers journals
+// left open by a crash. Reading stops at the first bad block after the sealed segments, where recovery would cut the
+// journal off, so a journal can be read before it is recovered; a bad block in a sealed segment is an error.
+public class SegmentedJournalReader extends InputStream {
+
+    // Contents of the manifest; a journal without one (a crash before it was first written) has nothing sealed
+    static class Manifest {
+        short flags;
+        int sealed_segments;
+        long sealed_length, segment_size;
+
+        static Manifest read(File journal) throws IOException {
+            Manifest manifest = new Manifest();
+            File file = new File(journal, SegmentedJournalFormat.MANIFEST);
+            if (!file.exists()) return manifest;
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            CRC32 crc = new CRC32();
+            crc.update(data.array(), 0, Math.max(0, data.limit() - 4));
+            if (data.limit() != SegmentedJournalFormat.MANIFEST_SIZE || data.getInt() != SegmentedJournalFormat.MANIFEST_MAGIC
+                    || data.getInt(data.limit() - 4) != (int) crc.getValue()) {
+                throw new IOException("Corrupt journal manifest in " + journal);
+            }
+            short version = data.getShort();
+            if (version > SegmentedJournalFormat.VERSION) throw new IOException("Unsupported journal version " + version);
+            manifest.flags = data.getShort();
+            manifest.sealed_segments = data.getInt();
+            manifest.sealed_length = data.getLong();
+            manifest.segment_size = data.getLong();
+            return manifest;
+        }
+
+        // Replaces the manifest in one step, so a crash leaves either the old or the new one
+        void write(File journal) throws IOException {
+            ByteBuffer data = ByteBuffer.allocate(SegmentedJournalFormat.MANIFEST_SIZE);
+            data.putInt(SegmentedJournalFormat.MANIFEST_MAGIC).putShort(SegmentedJournalFormat.VERSION).putShort(flags)
+                    .putInt(sealed_segments).putLong(sealed_length).putLong(segment_size);
+            CRC32 crc = new CRC32();
+            crc.update(data.array(), 0, data.position());
+            data.putInt((int) crc.getValue()).flip();
+            File temp = new File(journal, SegmentedJournalFormat.MANIFEST_TEMP);
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (data.hasRemaining()) channel.write(data);
+                channel.force(false);
+            }
+            Files.move(temp.toPath(), new File(journal, SegmentedJournalFormat.MANIFEST).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // What recovering a journal found and did
+    public static class Recovery {
+        // Segments holding data, and the logical length of the journal, once the tail is cut off
+        public int segment_count;
+        public long length;
+        // Bytes of the last segment that remain, where writing carries on after a reopen
+        public long tail_segment_length;
+        // Bytes cut off the end, and whether the journal had been closed (in which case nothing needed checking)
+        public long discarded_bytes;
+        public boolean closed;
+        // Segments that had to be checked, which is at most the one being written when the crash came
+        public int segments_scanned;
+        // Segments, and the logical length of them, that the manifest vouches for
+        public int sealed_segments;
+        public long sealed_length;
+    }
+
+    private final File journal;
+    private final Manifest manifest;
+    private final CRC32 crc = new CRC32();
+    private DataInputStream segment_input;
+    private int segment = -1;
+    private long expected_offset = 0;
+    // Payload of the current block and how much of it has been read
+    private byte[] block = new byte[0];
+    private int block_length = 0, block_position = 0;
+    private boolean ended = false;
+
+    public SegmentedJournalReader(File journal) throws IOException {
+        this.journal = journal;
+        manifest = Manifest.read(journal);
+    }
+
+    // Makes a journal left open by a crash consistent again: only the segments after the sealed ones are checked, and the
+    // first bad block in them is cut off along with everything after it. Closed journals are left untouched.
+    public static Recovery recover(File journal) throws IOException {
+        Manifest manifest = Manifest.read(journal);
+        Recovery recovery = new Recovery();
+        recovery.closed = (manifest.flags & SegmentedJournalFormat.FLAG_CLOSED) != 0;
+        recovery.segment_count = recovery.sealed_segments = manifest.sealed_segments;
+        recovery.length = recovery.sealed_length = manifest.sealed_length;
+        Files.deleteIfExists(new File(journal, SegmentedJournalFormat.MANIFEST_TEMP).toPath());
+        if (recovery.segment_count > 0) {
+            recovery.tail_segment_length = SegmentedJournalFormat.segmentFile(journal, recovery.segment_count - 1).length();
+        }
+        CRC32 crc = new CRC32();
+        boolean cut = recovery.closed;
+        for (int segment = manifest.sealed_segments; ; ++segment) {
+            File file = SegmentedJournalFormat.segmentFile(journal, segment);
+            if (!file.exists()) break;
+            if (cut) {
+                // Everything after a cut is unreachable, as are segments a closed journal never counted
+                recovery.discarded_bytes += file.length();
+                Files.delete(file.toPath());
+                continue;
+            }
+            ++recovery.segments_scanned;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = channel.size(), valid = 0;
+                ByteBuffer header = ByteBuffer.allocate(SegmentedJournalFormat.BLOCK_HEADER_SIZE);
+                while (true) {
+                    int length = readBlock(channel, valid, size, header, recovery.length, crc);
+                    if (length < 0) break;
+                    valid += SegmentedJournalFormat.BLOCK_HEADER_SIZE + length;
+                    recovery.length += length;
+                }
+                if (valid < size) {
+                    channel.truncate(valid);
+                    channel.force(false);
+                    recovery.discarded_bytes += size - valid;
+                    cut = true;
+                }
+                recovery.segment_count = segment + 1;
+                recovery.tail_segment_length = valid;
+            }
+        }
+        return recovery;
+    }
+
+    // Length of the payload of the block at position if it is complete, intact and where the journal expects it, else -1
+    private static int readBlock(FileChannel channel, long position, long size, ByteBuffer header, long expected_offset,
+                                 CRC32 crc) throws IOException {
+        if (position + SegmentedJournalFormat.BLOCK_HEADER_SIZE > size) return -1;
+        header.clear();
+        while (header.hasRemaining()) channel.read(header, position + header.position());
+        int length = header.getInt(4);
+        if (header.getInt(0) != SegmentedJournalFormat.BLOCK_MAGIC || length < 0
+                || position + SegmentedJournalFormat.BLOCK_HEADER_SIZE + length > size || header.getLong(8) != expected_offset) {
+            return -1;
+        }
+        crc.reset();
+        crc.update(header.array(), 4, 12);
+        ByteBuffer payload = ByteBuffer.allocate(64 * 1024);
+        for (long read = 0; read < length; read += payload.position()) {
+            payload.clear();
+            payload.limit((int) Math.min(payload.capacity(), length - read));
+            while (payload.hasRemaining()) channel.read(payload, position + SegmentedJournalFormat.BLOCK_HEADER_SIZE + read
+                    + payload.position());
+            payload.flip();
+            crc.update(payload);
+        }
+        return (int) crc.getValue() == header.getInt(16) ? length : -1;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (block_position == block_length && !nextBlock()) return -1;
+        return block[block_position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] destination, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        if (block_position == block_length && !nextBlock()) return -1;
+        int count = Math.min(length, block_length - block_position);
+        System.arraycopy(block, block_position, destination, offset, count);
+        block_position += count;
+        return count;
+    }
+
+    private boolean nextBlock() throws IOException {
+        while (!ended) {
+            if (segment_input == null) {
+                File file = SegmentedJournalFormat.segmentFile(journal, ++segment);
+                if (!file.exists()) {
+                    if (segment < manifest.sealed_segments) throw new IOException("Sealed journal segment missing: " + file);
+                    ended = true;
+                    break;
+                }
+                segment_input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            }
+            if (readBlock()) return true;
+            segment_input.close();
+            segment_input = null;
+        }
+        return false;
+    }
+
+    // Reads the next block of the current segment, returning false at its end
+    private boolean readBlock() throws IOException {
+        boolean sealed = segment < manifest.sealed_segments;
+        int magic, length;
+        long offset;
+        int expected_crc;
+        try {
+            magic = segment_input.readInt();
+        } catch (EOFException end) {
+            return false;
+        }
+        try {
+            length = segment_input.readInt();
+            offset = segment_input.readLong();
+            expected_crc = segment_input.readInt();
+            if (magic != SegmentedJournalFormat.BLOCK_MAGIC || length < 0 || offset != expected_offset) {
+                throw new IOException("Bad journal block header in segment " + segment);
+            }
+            if (block.length < length) block = new byte[Math.max(length, 2 * block.length)];
+            segment_input.readFully(block, 0, length);
+            crc.reset();
+            crc.update(ByteBuffer.allocate(12).putInt(length).putLong(offset).array());
+            crc.update(block, 0, length);
+            if ((int) crc.getValue() != expected_crc) throw new IOException("Journal block checksum mismatch in segment " + segment);
+        } catch (IOException exception) {
+            if (sealed) throw exception;
+            // The end of what a crash left behind
+            ended = true;
+            return false;
+        }
+        expected_offset += length;
+        block_length = length;
+        block_position = 0;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (segment_input != null) segment_input.close();
+    }
+
+    // Writes the journal's logical file out as a plain file, e.g. an IMU data file or a frame pack
+    public static void export(File journal, File file) throws IOException {
+        try (InputStream input = new SegmentedJournalReader(journal);
+             OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) > 0) output.write(buffer, 0, read);
+        }
+    }
+
+    // Usage: SegmentedJournalReader <journal directory> <output file>
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: SegmentedJournalReader <journal directory> <output file>");
+            System.exit(1);
+        }
+        export(new File(args[0]), new File(args[1]));
+    }
+}
@@ -0,0 +1,124 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Crash-safe storage: appends to a segmented journal (see SegmentedJournalFormat), one checksummed block per write, so the
+// writers in front of it lose at most the block in flight when the app is killed, and recovery only has to check the
+// last segment. Opening an existing journal recovers it first and carries on after its data.
+public class SegmentedJournalWriter implements IMUStorage {
+
+    private final File journal;
+    private final SegmentedJournalReader.Manifest manifest = new SegmentedJournalReader.Manifest();
+    private final ByteBuffer header = ByteBuffer.allocate(SegmentedJournalFormat.BLOCK_HEADER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    private ByteBuffer[] gather = new ByteBuffer[2];
+    private FileChannel channel;
+    private int segment;
+    private long segment_length, length;
+
+    public SegmentedJournalWriter(File journal, long segment_size) throws IOException {
+        if (segment_size <= SegmentedJournalFormat.BLOCK_HEADER_SIZE) throw new IllegalArgumentException("Segment size too small");
+        if (!journal.isDirectory() && !journal.mkdirs()) throw new IOException("Journal cannot be created at " + journal);
+        this.journal = journal;
+        SegmentedJournalReader.Recovery recovery = SegmentedJournalReader.recover(journal);
+        length = recovery.length;
+        manifest.sealed_segments = recovery.sealed_segments;
+        manifest.sealed_length = recovery.sealed_length;
+        // Sealed segments are never appended to, so after a clean close writing carries on in a new one
+        segment = recovery.segment_count;
+        if (recovery.segment_count > recovery.sealed_segments) {
+            segment = recovery.segment_count - 1;
+            segment_length = recovery.tail_segment_length;
+        }
+        manifest.segment_size = segment_size;
+        manifest.write(journal);
+        openSegment();
+    }
+
+    private void openSegment() throws IOException {
+        channel = FileChannel.open(SegmentedJournalFormat.segmentFile(journal, segment).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public long size() {
+        return length;
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        single[0] = data;
+        write(single, 0, 1);
+        single[0] = null;
+    }
+
+    // The buffers become a single block, written with one gathering write
+    @Override
+    public void write(ByteBuffer[] data, int offset, int count) throws IOException {
+        long payload = 0;
+        for (int i = offset; i < offset + count; ++i) payload += data[i].remaining();
+        if (payload == 0) return;
+        if (payload > Integer.MAX_VALUE - SegmentedJournalFormat.BLOCK_HEADER_SIZE) {
+            throw new IllegalArgumentException("Journal blocks are limited to 2 GB");
+        }
+        // Blocks larger than a segment get one to themselves
+        if (segment_length > 0 && segment_length + SegmentedJournalFormat.BLOCK_HEADER_SIZE + payload > manifest.segment_size) {
+            roll();
+        }
+        header.clear();
+        header.putInt(SegmentedJournalFormat.BLOCK_MAGIC).putInt((int) payload).putLong(length);
+        crc.reset();
+        crc.update(header.array(), 4, 12);
+        for (int i = offset; i < offset + count; ++i) crc.update(data[i].duplicate());
+        header.putInt((int) crc.getValue()).flip();
+        if (gather.length < count + 1) gather = new ByteBuffer[count + 1];
+        gather[0] = header;
+        System.arraycopy(data, offset, gather, 1, count);
+        long remaining = SegmentedJournalFormat.BLOCK_HEADER_SIZE + payload;
+        while (remaining > 0) remaining -= channel.write(gather, 0, count + 1);
+        Arrays.fill(gather, null);
+        segment_length += SegmentedJournalFormat.BLOCK_HEADER_SIZE + payload;
+        length += payload;
+    }
+
+    // Seals the current segment: it is synced before the manifest counts it, so recovery never needs to check it again
+    private synchronized void roll() throws IOException {
+        channel.force(false);
+        channel.close();
+        manifest.sealed_segments = ++segment;
+        manifest.sealed_length = length;
+        manifest.write(journal);
+        segment_length = 0;
+        openSegment();
+    }
+
+    // Shares roll()'s lock so that it never forces a segment roll() is closing
+    @Override
+    public synchronized void sync() throws IOException {
+        channel.force(false);
+    }
+
+    public int getSegmentCount() {
+        return segment + 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+        manifest.sealed_segments = segment + 1;
+        manifest.sealed_length = length;
+        manifest.flags = SegmentedJournalFormat.FLAG_CLOSED;
+        manifest.write(journal);
+    }
+}
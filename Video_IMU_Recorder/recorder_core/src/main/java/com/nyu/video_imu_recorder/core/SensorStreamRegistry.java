@@ -0,0 +1,192 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Sensors recorded next to the main IMU data file, each into a stream of its own: a ring preallocated for its sensor's
+// values and a file holding only that sensor (in the layout of IMURecordFormat, so IMURecordReader reads it on its own).
+// A sample goes straight to its sensor's ring through a table indexed by sensor id, so a sensor added to the session costs
+// the others nothing per sample. Streams are numbered in the order they are added, and each ring has a single producer,
+// so different streams may be fed from different threads. One writer thread drains and commits every stream.
+public class SensorStreamRegistry implements Closeable {
+
+    public static final int DEFAULT_RING_CAPACITY = 4096;
+    private static final int BATCH_SIZE = 512;
+    private static final long IDLE_PARK_NS = 2_000_000;
+
+    private static class Stream {
+        final short sensor_id;
+        final String name;
+        final IMURingBuffer ring;
+        final IMURecordWriter writer;
+        final GroupCommitPolicy commit_policy;
+        final SensorStreamStats stats = new SensorStreamStats();
+        // Carries on across registries when a recording is paused and resumed
+        final SensorStreamStats session_stats;
+
+        Stream(short sensor_id, String name, IMURingBuffer ring, IMURecordWriter writer, GroupCommitPolicy commit_policy,
+               SensorStreamStats session_stats) {
+            this.sensor_id = sensor_id;
+            this.name = name;
+            this.ring = ring;
+            this.writer = writer;
+            this.commit_policy = commit_policy;
+            this.session_stats = session_stats;
+        }
+    }
+
+    private final long commit_interval_ms, commit_bytes;
+    private final RecordingHealth health;
+    private final AtomicLong ring_overflow, bytes_written;
+    private final LatencyHistogram commit_latency;
+    private final List<Stream> stream_list = new ArrayList<>();
+    // Filled in by start(); stream number by sensor id, -1 for sensors without a stream
+    private Stream[] streams;
+    private int[] stream_by_sensor = new int[0];
+    private Thread writer_thread;
+    private volatile boolean running = true;
+    private volatile IOException failure;
+
+    // Each stream is committed after commit_interval_ms or commit_bytes, like the main IMU data file; health, if not
+    // null, gets a stream of rates per sensor along with the commit latency, bytes written and ring overflows
+    public SensorStreamRegistry(long commit_interval_ms, long commit_bytes, RecordingHealth health) {
+        this.commit_interval_ms = commit_interval_ms;
+        this.commit_bytes = commit_bytes;
+        this.health = health;
+        ring_overflow = health == null ? null : health.counter(RecordingHealth.RING_OVERFLOW);
+        bytes_written = health == null ? null : health.counter(RecordingHealth.IMU_BYTES_WRITTEN);
+        commit_latency = health == null ? null : health.histogram(RecordingHealth.IMU_COMMIT_LATENCY);
+    }
+
+    // Adds a stream for a sensor with value_count values per sample (see IMURecordFormat.MAX_VALUE_COUNT), written to
+    // storage; returns the stream's number. Called before start().
+    public int add(short sensor_id, String name, int value_count, IMUStorage storage, int ring_capacity) throws IOException {
+        if (streams != null) throw new IllegalStateException("Streams must be added before the registry starts");
+        if (sensor_id < 0) throw new IllegalArgumentException("Sensor ids must not be negative, those are markers");
+        if (streamOf(sensor_id) >= 0) throw new IllegalArgumentException("Sensor " + sensor_id + " already has a stream");
+        IMURecordWriter writer = new IMURecordWriter(storage, new short[] {sensor_id}, new String[] {name}, false, value_count);
+        stream_list.add(new Stream(sensor_id, name, new IMURingBuffer(ring_capacity, value_count), writer,
+                new GroupCommitPolicy(commit_interval_ms, commit_bytes, System.nanoTime()),
+                health == null ? null : health.stream(name)));
+        if (sensor_id >= stream_by_sensor.length) {
+            int length = stream_by_sensor.length;
+            stream_by_sensor = Arrays.copyOf(stream_by_sensor, sensor_id + 1);
+            Arrays.fill(stream_by_sensor, length, stream_by_sensor.length, -1);
+        }
+        stream_by_sensor[sensor_id] = stream_list.size() - 1;
+        return stream_list.size() - 1;
+    }
+
+    // Stream number of a sensor, or -1 if it has none
+    public int streamOf(short sensor_id) {
+        return sensor_id >= 0 && sensor_id < stream_by_sensor.length ? stream_by_sensor[sensor_id] : -1;
+    }
+
+    public void start() {
+        streams = stream_list.toArray(new Stream[0]);
+        writer_thread = new Thread(this::drainStreams, "sensor_stream_writer_thread");
+        writer_thread.start();
+    }
+
+    // Called from the stream's producer thread only; returns false if the sample was dropped because the writer fell
+    // behind. Extra values beyond the stream's value count are ignored, missing ones are recorded as 0.
+    public boolean onSample(int stream, long timestamp, float[] values, int accuracy) {
+        Stream target = streams[stream];
+        target.stats.record(timestamp);
+        if (target.session_stats != null) target.session_stats.record(timestamp);
+        if (target.ring.offer(timestamp, target.sensor_id, values, accuracy)) return true;
+        if (ring_overflow != null) ring_overflow.incrementAndGet();
+        return false;
+    }
+
+    private void drainStreams() {
+        try {
+            while (running) {
+                int drained = 0;
+                long now = System.nanoTime();
+                for (Stream stream : streams) {
+                    drained += stream.ring.drain(stream.writer, BATCH_SIZE);
+                    if (stream.commit_policy.shouldCommit(now, stream.writer.getPendingBytes())) {
+                        commit(stream);
+                        stream.commit_policy.committed(now);
+                    }
+                }
+                if (drained == 0) LockSupport.parkNanos(this, IDLE_PARK_NS);
+            }
+            // Whatever the producers published before shutdown still belongs to the recording
+            for (Stream stream : streams) {
+                while (stream.ring.drain(stream.writer, BATCH_SIZE) > 0) {}
+                commit(stream);
+            }
+        } catch (IOException exception) {
+            failure = exception;
+        }
+    }
+
+    private void commit(Stream stream) throws IOException {
+        long start = System.nanoTime(), committed = stream.writer.commit();
+        if (commit_latency == null) return;
+        commit_latency.record(System.nanoTime() - start);
+        bytes_written.addAndGet(committed);
+    }
+
+    public void writeSensorRate(int stream, long timestamp, int requested_period_us, int max_report_latency_us,
+                                float achieved_rate_hz) throws IOException {
+        streams[stream].writer.writeSensorRate(timestamp, streams[stream].sensor_id, requested_period_us,
+                max_report_latency_us, achieved_rate_hz);
+    }
+
+    // Writes out every sample offered so far and stops the writer thread; rethrows the first write failure, if any.
+    // Markers can still be written until close().
+    public void stop() throws IOException {
+        if (writer_thread == null) return;
+        running = false;
+        LockSupport.unpark(writer_thread);
+        try {
+            writer_thread.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) throw failure;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException first = null;
+        for (Stream stream : stream_list) {
+            try {
+                stream.writer.close();
+            } catch (IOException exception) {
+                if (first == null) first = exception;
+            }
+        }
+        if (first != null) throw first;
+    }
+
+    public int getStreamCount() {
+        return stream_list.size();
+    }
+
+    public short getSensorId(int stream) {
+        return stream_list.get(stream).sensor_id;
+    }
+
+    public String getName(int stream) {
+        return stream_list.get(stream).name;
+    }
+
+    public SensorStreamStats getStats(int stream) {
+        return stream_list.get(stream).stats;
+    }
+
+    public long getOverflowCount() {
+        long overflow = 0;
+        for (Stream stream : stream_list) overflow += stream.ring.getOverflowCount();
+        return overflow;
+    }
+}
@@ -0,0 +1,82 @@
+package com.nyu.video_imu_recorder.core;
+
+// Per-sensor timestamp bookkeeping used to spot gaps in a sample stream; updated from one thread only, while any thread
+// may read it (fields are volatile, so a reader sees each value whole, if not always all from the same sample)
+public class SensorStreamStats {
+
+    // By default, an interval this many times longer than the stream's mean interval counts as a gap
+    public static final double DEFAULT_GAP_FACTOR = 4;
+    private static final int WARM_UP_SAMPLES = 16;
+    private final double gap_factor;
+    private volatile long sample_count = 0, first_timestamp, last_timestamp, max_interval = 0, gap_count = 0, missed_count = 0;
+    // Running mean and sum of squared deviations of the intervals (Welford), for the jitter
+    private volatile double interval_mean = 0, interval_m2 = 0;
+
+    public SensorStreamStats() {
+        this(DEFAULT_GAP_FACTOR);
+    }
+
+    // Steady streams such as camera frames can use a lower factor, so that even one missing sample counts as a gap
+    public SensorStreamStats(double gap_factor) {
+        this.gap_factor = gap_factor;
+    }
+
+    public void record(long timestamp) {
+        long count = sample_count;
+        if (count > 0) {
+            long interval = timestamp - last_timestamp;
+            if (count >= WARM_UP_SAMPLES && (double) interval * (count - 1) > gap_factor * (last_timestamp - first_timestamp)) {
+                ++gap_count;
+                // Samples that would have fit into the gap at the mean rate
+                missed_count += Math.round(interval * (count - 1) / (double) (last_timestamp - first_timestamp)) - 1;
+            }
+            max_interval = Math.max(max_interval, interval);
+            double delta = interval - interval_mean, mean = interval_mean + delta / count;
+            interval_m2 += delta * (interval - mean);
+            interval_mean = mean;
+        } else {
+            first_timestamp = timestamp;
+        }
+        last_timestamp = timestamp;
+        sample_count = count + 1;
+    }
+
+    public long getSampleCount() {
+        return sample_count;
+    }
+
+    public long getGapCount() {
+        return gap_count;
+    }
+
+    // Estimated number of samples lost in gaps
+    public long getMissedCount() {
+        return missed_count;
+    }
+
+    public long getMaxIntervalNs() {
+        return max_interval;
+    }
+
+    public double getMeanIntervalNs() {
+        long count = sample_count;
+        return count > 1 ? (double) (last_timestamp - first_timestamp) / (count - 1) : 0;
+    }
+
+    // Standard deviation of the intervals between samples, gaps included
+    public double getJitterNs() {
+        long count = sample_count;
+        return count > 2 ? Math.sqrt(interval_m2 / (count - 2)) : 0;
+    }
+
+    // Rate implied by the timestamps recorded so far, NaN until there are at least two
+    public double getAchievedRateHz() {
+        return sample_count > 1 ? 1e9 / getMeanIntervalNs() : Double.NaN;
+    }
+
+    @Override
+    public String toString() {
+        return sample_count + " samples (" + getAchievedRateHz() + " Hz), mean interval " + getMeanIntervalNs() / 1e6 + " ms, jitter "
+                + getJitterNs() / 1e6 + " ms, max interval " + max_interval / 1e6 + " ms, " + gap_count + " gaps";
+    }
+}
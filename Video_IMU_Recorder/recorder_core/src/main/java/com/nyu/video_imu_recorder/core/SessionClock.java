@@ -0,0 +1,117 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Clock domains of a recording session and their mapping onto elapsedRealtime, along with when the IMU and the camera
+// started. Every method is safe to call from sensor and camera callbacks: nothing blocks and no threads are started.
+public class SessionClock {
+
+    public enum Domain {
+        // SystemClock.elapsedRealtimeNanos(), the reference every other domain is mapped onto
+        ELAPSED_REALTIME,
+        // SensorEvent.timestamp
+        SENSOR_EVENT,
+        // Camera sensor timestamps, whose base depends on CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE
+        CAMERA_SENSOR
+    }
+
+    private static final class Start {
+        final Domain domain;
+        final long time;
+
+        Start(Domain domain, long time) {
+            this.domain = domain;
+            this.time = time;
+        }
+    }
+
+    private final ClockDomainEstimator sensor_estimator, camera_estimator;
+    private volatile boolean camera_realtime = false;
+    private final AtomicLong imu_start = new AtomicLong(-1);
+    private final AtomicReference<Start> video_start = new AtomicReference<>();
+    private final AtomicBoolean start_claimed = new AtomicBoolean();
+
+    public SessionClock() {
+        this(new ClockDomainEstimator(), new ClockDomainEstimator());
+    }
+
+    public SessionClock(ClockDomainEstimator sensor_estimator, ClockDomainEstimator camera_estimator) {
+        this.sensor_estimator = sensor_estimator;
+        this.camera_estimator = camera_estimator;
+    }
+
+    // Cameras reporting SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME stamp frames with elapsedRealtime itself
+    public void setCameraTimestampsRealtime(boolean realtime) {
+        camera_realtime = realtime;
+    }
+
+    // Pair a timestamp of the domain with elapsedRealtime read as it was delivered; one calling thread per domain
+    public void observe(Domain domain, long time, long realtime_now) {
+        if (domain == Domain.SENSOR_EVENT) {
+            sensor_estimator.observe(time, realtime_now);
+        } else if (domain == Domain.CAMERA_SENSOR) {
+            camera_estimator.observe(time, realtime_now);
+        }
+    }
+
+    public ClockDomainEstimator.Estimate getEstimate(Domain domain) {
+        switch (domain) {
+            case SENSOR_EVENT:
+                return sensor_estimator.getEstimate();
+            case CAMERA_SENSOR:
+                return camera_realtime ? ClockDomainEstimator.IDENTITY : camera_estimator.getEstimate();
+            default:
+                return ClockDomainEstimator.IDENTITY;
+        }
+    }
+
+    // Whether the domain's mapping is known, either by definition or from at least one estimate
+    public boolean isMapped(Domain domain) {
+        return domain == Domain.ELAPSED_REALTIME || domain == Domain.CAMERA_SENSOR && camera_realtime
+                || getEstimate(domain).points > 0;
+    }
+
+    public long toRealtime(Domain domain, long time) {
+        return getEstimate(domain).toReference(time);
+    }
+
+    // A camera frame's timestamp on elapsedRealtime, the time base of SensorEvent.timestamp, so it can be compared with
+    // IMU samples; -1 while a camera that stamps frames on a clock of its own has no mapping yet
+    public long frameToRealtime(long camera_time) {
+        return isMapped(Domain.CAMERA_SENSOR) ? toRealtime(Domain.CAMERA_SENSOR, camera_time) : -1;
+    }
+
+    // Only the first IMU sample and the first video frame count; later calls are a single volatile read
+    public void markImuStart(long sensor_time) {
+        if (imu_start.get() == -1) imu_start.compareAndSet(-1, sensor_time);
+    }
+
+    public void markVideoStart(Domain domain, long time) {
+        if (video_start.get() == null) video_start.compareAndSet(null, new Start(domain, time));
+    }
+
+    public long getImuStart() {
+        return imu_start.get();
+    }
+
+    // Video start in its own domain, or -1 if the video has not started
+    public long getVideoStart() {
+        Start start = video_start.get();
+        return start == null ? -1 : start.time;
+    }
+
+    // Once both starts are known and mapped, returns true to exactly one caller, which then records the start latency
+    public boolean claimStart() {
+        Start start = video_start.get();
+        return start != null && imu_start.get() != -1 && isMapped(start.domain) && isMapped(Domain.SENSOR_EVENT)
+                && start_claimed.compareAndSet(false, true);
+    }
+
+    // IMU start minus video start on elapsedRealtime; negative when the IMU started sooner
+    public long getStartLatency() {
+        Start start = video_start.get();
+        return toRealtime(Domain.SENSOR_EVENT, imu_start.get()) - toRealtime(start.domain, start.time);
+    }
+}
@@ -0,0 +1,41 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.IOException;
+
+// Writer thread stage recording the session clock in the IMU data file: the video start marker once both the IMU and the
+// camera have started, and the mapping of every clock domain at a fixed interval of sensor time
+public class SessionClockLogger implements IMUSampleSink {
+
+    public static final long DEFAULT_INTERVAL_NS = 5_000_000_000L;
+    private final SessionClock clock;
+    private final IMURecordWriter writer;
+    private final long interval_ns;
+    private long last_logged = Long.MIN_VALUE;
+
+    public SessionClockLogger(SessionClock clock, IMURecordWriter writer, long interval_ns) {
+        this.clock = clock;
+        this.writer = writer;
+        this.interval_ns = interval_ns;
+    }
+
+    @Override
+    public void onSample(long timestamp, short sensor_id, float[] values, int offset, int accuracy) throws IOException {
+        if (clock.claimStart()) writer.writeVideoStart(clock.getVideoStart(), clock.getStartLatency());
+        if (last_logged == Long.MIN_VALUE) {
+            last_logged = timestamp;
+        } else if (timestamp - last_logged >= interval_ns) {
+            writeMappings();
+            last_logged = timestamp;
+        }
+    }
+
+    // Also called once recording stops, after the writer thread is done
+    public void writeMappings() throws IOException {
+        for (SessionClock.Domain domain : SessionClock.Domain.values()) {
+            if (domain == SessionClock.Domain.ELAPSED_REALTIME || !clock.isMapped(domain)) continue;
+            ClockDomainEstimator.Estimate estimate = clock.getEstimate(domain);
+            writer.writeClockMapping(estimate.anchor_time, (short) domain.ordinal(), estimate.offset_ns,
+                    (float) estimate.getDriftPpm());
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// Random access to the samples and frames of a recorded session through its time index (see SessionIndexWriter): a
+// window query seeks straight to the nearest indexed position before the window and reads forward only until the
+// records are past it, so its cost depends on the window's length and not on the session's. Windows are on the IMU
+// samples' clock (elapsedRealtime); frames are found through the camera clock mapping the index holds.
+public class SessionIndexReader implements Closeable {
+
+    // Samples and frames of one window, each in file order; frames are located by their offset in the frame pack, and
+    // their timestamps are mapped onto the samples' clock
+    public static class Window {
+        public int sample_count = 0, frame_count = 0;
+        public long[] sample_timestamps = new long[64];
+        public short[] sensor_ids = new short[64];
+        // VALUE_COUNT floats per sample
+        public float[] values = new float[64 * IMURecordFormat.VALUE_COUNT];
+        public long[] frame_timestamps = new long[16], frame_offsets = new long[16];
+
+        void addSample(long timestamp, short sensor_id, float[] sample_values) {
+            if (sample_count == sample_timestamps.length) {
+                sample_timestamps = Arrays.copyOf(sample_timestamps, 2 * sample_count);
+                sensor_ids = Arrays.copyOf(sensor_ids, 2 * sample_count);
+                values = Arrays.copyOf(values, 2 * sample_count * IMURecordFormat.VALUE_COUNT);
+            }
+            sample_timestamps[sample_count] = timestamp;
+            sensor_ids[sample_count] = sensor_id;
+            System.arraycopy(sample_values, 0, values, sample_count++ * IMURecordFormat.VALUE_COUNT, IMURecordFormat.VALUE_COUNT);
+        }
+
+        void addFrame(long timestamp, long offset) {
+            if (frame_count == frame_timestamps.length) {
+                frame_timestamps = Arrays.copyOf(frame_timestamps, 2 * frame_count);
+                frame_offsets = Arrays.copyOf(frame_offsets, 2 * frame_count);
+            }
+            frame_timestamps[frame_count] = timestamp;
+            frame_offsets[frame_count++] = offset;
+        }
+    }
+
+    private final File imu_file;
+    private final FileChannel frame_channel;
+    // Header of the IMU data file, replayed in front of the data whenever it is read from an indexed position
+    private final byte[] imu_header;
+    // Bucket starts and offsets of every entry, per stream, and the most any record of the stream arrived late
+    private final long[][] bucket_starts = new long[2][], offsets = new long[2][];
+    private final int[] entry_counts = new int[2];
+    private final long[] lateness = new long[2];
+    // Mapping of each stream's timestamps onto the IMU stream's clock; null for streams on that clock
+    private final ClockDomainEstimator.Estimate[] clocks = new ClockDomainEstimator.Estimate[2];
+    // Frames whose clock is unknown cannot be matched to a window
+    private boolean frames_placed = true;
+    // Records read by the most recent window query, to check that queries stay local
+    int last_records_read = 0;
+
+    // frame_pack may be null for sessions without one
+    public SessionIndexReader(File index, File imu_file, File frame_pack) throws IOException {
+        this.imu_file = imu_file;
+        readIndex(Files.readAllBytes(index.toPath()));
+        imu_header = readHeader(imu_file);
+        frame_channel = frame_pack == null ? null : FileChannel.open(frame_pack.toPath(), StandardOpenOption.READ);
+    }
+
+    private void readIndex(byte[] data) throws IOException {
+        ByteBuffer index = ByteBuffer.wrap(data);
+        if (data.length < SessionIndexWriter.HEADER_SIZE || index.getInt() != SessionIndexWriter.MAGIC) {
+            throw new IOException("Not a session index");
+        }
+        short version = index.getShort();
+        if (version > SessionIndexWriter.VERSION) throw new IOException("Unsupported session index version " + version);
+        index.getShort();
+        index.getLong();
+        // Version 1 indexes predate clock entries and put frames on the samples' clock
+        frames_placed = version < 2;
+        for (int stream = 0; stream < bucket_starts.length; ++stream) {
+            bucket_starts[stream] = new long[16];
+            offsets[stream] = new long[16];
+        }
+        // Stop at an incomplete entry at the end
+        while (index.remaining() >= SessionIndexWriter.ENTRY_SIZE) {
+            long bucket_start = index.getLong(), offset = index.getLong(), entry_lateness = index.getLong();
+            short stream = index.getShort(), kind = index.getShort();
+            // Streams added by a newer version are skipped
+            if (stream < 0 || stream >= bucket_starts.length) continue;
+            if (kind == SessionIndexWriter.CLOCK_ENTRY) {
+                double drift = Double.longBitsToDouble(entry_lateness);
+                clocks[stream] = new ClockDomainEstimator.Estimate(bucket_start, offset, drift, 1);
+                if (stream == SessionIndexWriter.FRAME_STREAM) frames_placed = true;
+                continue;
+            }
+            if (kind != SessionIndexWriter.POSITION_ENTRY) continue;
+            int count = entry_counts[stream]++;
+            if (count == bucket_starts[stream].length) {
+                bucket_starts[stream] = Arrays.copyOf(bucket_starts[stream], 2 * count);
+                offsets[stream] = Arrays.copyOf(offsets[stream], 2 * count);
+            }
+            bucket_starts[stream][count] = bucket_start;
+            offsets[stream][count] = offset;
+            lateness[stream] = Math.max(lateness[stream], entry_lateness);
+        }
+    }
+
+    // Works for both the fixed-width and the compressed layout, which share the header
+    private static byte[] readHeader(File imu_file) throws IOException {
+        try (FileInputStream file = new FileInputStream(imu_file)) {
+            // Unbuffered, so the file position ends up right after the header
+            DataInputStream input = new DataInputStream(file);
+            int magic = input.readInt();
+            if (magic != IMURecordFormat.MAGIC && magic != IMUStreamFormat.MAGIC) throw new IOException("Not an IMU data file");
+            input.readShort();
+            input.readShort();
+            int sensor_count = input.readShort();
+            for (int i = 0; i < sensor_count; ++i) {
+                input.readShort();
+                input.skipBytes(input.readShort());
+            }
+            byte[] header = new byte[(int) file.getChannel().position()];
+            file.getChannel().position(0);
+            input.readFully(header);
+            return header;
+        }
+    }
+
+    // Offset to read a stream from so that nothing at or after the timestamp is missed, or -1 if the stream is empty
+    private long seekOffset(int stream, long timestamp) {
+        int count = entry_counts[stream];
+        if (count == 0) return -1;
+        int entry = Arrays.binarySearch(bucket_starts[stream], 0, count, timestamp);
+        if (entry < 0) entry = Math.max(0, -entry - 2);
+        return offsets[stream][entry];
+    }
+
+    // Every sample and frame with a timestamp in [start_ns, end_ns]
+    public Window window(long start_ns, long end_ns) throws IOException {
+        Window window = new Window();
+        last_records_read = 0;
+        readSamples(window, start_ns, end_ns);
+        if (frame_channel != null && frames_placed) readFrames(window, start_ns, end_ns);
+        return window;
+    }
+
+    private void readSamples(Window window, long start_ns, long end_ns) throws IOException {
+        long offset = seekOffset(SessionIndexWriter.IMU_STREAM, start_ns);
+        if (offset < 0) return;
+        // Once a sample is this far past the window, no later one can fall into it
+        long stop = end_ns + lateness[SessionIndexWriter.IMU_STREAM];
+        try (FileInputStream data = new FileInputStream(imu_file)) {
+            data.getChannel().position(offset);
+            SequenceInputStream input = new SequenceInputStream(new ByteArrayInputStream(imu_header), data);
+            try (IMURecordReader reader = new IMURecordReader(input)) {
+                while (reader.next()) {
+                    ++last_records_read;
+                    if (reader.isMarker()) continue;
+                    if (reader.timestamp > stop) break;
+                    if (reader.timestamp >= start_ns && reader.timestamp <= end_ns) {
+                        window.addSample(reader.timestamp, reader.sensor_id, reader.values);
+                    }
+                }
+            }
+        }
+    }
+
+    private void readFrames(Window window, long start_ns, long end_ns) throws IOException {
+        ClockDomainEstimator.Estimate clock = clocks[SessionIndexWriter.FRAME_STREAM];
+        // The window on the frames' own clock, widened by the rounding of the mapping
+        long frame_start = clock == null ? start_ns : clock.fromReference(start_ns) - 1;
+        long frame_end = clock == null ? end_ns : clock.fromReference(end_ns) + 1;
+        long offset = seekOffset(SessionIndexWriter.FRAME_STREAM, frame_start);
+        long stop = frame_end + lateness[SessionIndexWriter.FRAME_STREAM], size = frame_channel.size();
+        // The index was cut short between the frames' clock and their positions: the whole pack is scanned
+        if (offset < 0) {
+            offset = FramePackFormat.FILE_HEADER_SIZE;
+            stop = Long.MAX_VALUE;
+        }
+        ByteBuffer header = ByteBuffer.allocate(FramePackFormat.FRAME_HEADER_SIZE);
+        // Walk the frame headers, stopping at the pack's index or an incomplete frame
+        while (offset + FramePackFormat.FRAME_HEADER_SIZE <= size) {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (frame_channel.read(header, offset + header.position()) < 0) return;
+            }
+            if (header.getInt(0) != FramePackFormat.FRAME_MAGIC) return;
+            ++last_records_read;
+            long timestamp = header.getLong(4);
+            if (timestamp > stop) return;
+            if (clock != null) timestamp = clock.toReference(timestamp);
+            if (timestamp >= start_ns && timestamp <= end_ns) window.addFrame(timestamp, offset);
+            offset += FramePackFormat.FRAME_HEADER_SIZE + header.getInt(12);
+        }
+    }
+
+    // Payload of the frame at an offset returned by window(), verified against its checksum
+    public ByteBuffer readFrame(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FramePackFormat.FRAME_HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (frame_channel.read(header, offset + header.position()) < 0) throw new IOException("Unexpected end of frame pack");
+        }
+        if (header.getInt(0) != FramePackFormat.FRAME_MAGIC) throw new IOException("Corrupt frame header at " + offset);
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt(12));
+        while (payload.hasRemaining()) {
+            long position = offset + FramePackFormat.FRAME_HEADER_SIZE + payload.position();
+            if (frame_channel.read(payload, position) < 0) throw new IOException("Unexpected end of frame pack");
+        }
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != header.getInt(FramePackFormat.FRAME_HEADER_SIZE - 4)) {
+            throw new IOException("Checksum mismatch for frame at " + offset);
+        }
+        return payload;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (frame_channel != null) frame_channel.close();
+    }
+}
@@ -0,0 +1,136 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+Sparse time index of a session's IMU data file and frame pack, stored as a .tidx file (all values big-endian)
+
+Header:
+<int magic "TIDX"> <short version> <short reserved> <long bucket width ns>
+
+Entries, appended while recording:
+<long> <long> <long> <short stream> <short kind>
+
+Position entries (POSITION_ENTRY): <long bucket start ns> <long byte offset> <long lateness ns>
+Each stream (IMU_STREAM, FRAME_STREAM) gets one whenever the latest timestamp written to it first reaches a new bucket,
+pointing at the record that got there: every record before that offset is earlier than the bucket start. Closing a stream
+adds one more, starting just after its latest timestamp, at the end of the data. Records may arrive a little out of order
+(batched sensors); lateness is the most any record so far trailed the latest timestamp before it in the file, so a reader
+scanning forward can stop once it is that far past the end of its window. The IMU stream is indexed as it is written.
+Frames from parallel writers reach the pack in batches out of timestamp order, so the frame stream is indexed once the pack
+closes, from its timestamp-ordered trailer: each entry then points at the earliest frame at or after the bucket start.
+
+Clock entries (CLOCK_ENTRY): <long anchor time> <long offset ns> <double drift>
+The mapping of the stream's clock onto the IMU stream's (elapsedRealtime), as in ClockDomainEstimator.Estimate; the last
+one of a stream holds. Camera frames carry camera sensor timestamps, so the frame stream gets one as recording stops.
+Windows are queried on the IMU stream's clock and mapped onto each stream's own; a version 2 frame stream without a clock
+entry has no known relation to the samples and gives no frames (version 1 indexes assumed both on the same clock).
+
+There is no footer, so an index cut short by a crash is read up to its last complete entry and stays valid for the data
+written before it; the frames of a session cut short that way are still recovered by FramePackReader.
+*/
+// Collects entries for every stream of a session through one reused buffer; they reach storage on flush()
+public class SessionIndexWriter implements Closeable {
+
+    public static final int MAGIC = 0x54494458;
+    public static final short VERSION = 2;
+    public static final int HEADER_SIZE = 16, ENTRY_SIZE = 28;
+    public static final short IMU_STREAM = 0, FRAME_STREAM = 1;
+    public static final short POSITION_ENTRY = 0, CLOCK_ENTRY = 1;
+    public static final long DEFAULT_BUCKET_NS = 1_000_000_000;
+    private static final int BUFFER_ENTRIES = 256;
+    private final IMUStorage storage;
+    private final long bucket_ns;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_ENTRIES * ENTRY_SIZE);
+    private boolean closed = false;
+
+    public SessionIndexWriter(IMUStorage storage, long bucket_ns) throws IOException {
+        if (storage.size() != 0) throw new IOException("Session indexes cannot be appended to");
+        this.storage = storage;
+        this.bucket_ns = bucket_ns;
+        buffer.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(bucket_ns);
+    }
+
+    // Positions of one stream, observed from one thread at a time
+    public final class Stream {
+        private final short id;
+        private long latest_timestamp = Long.MIN_VALUE, lateness = 0;
+
+        private Stream(short id) {
+            this.id = id;
+        }
+
+        // Called for every record with its timestamp and the byte offset it starts at (or, in a compressed IMU file, the
+        // offset of the block holding it)
+        public void observe(long timestamp, long offset) throws IOException {
+            if (latest_timestamp == Long.MIN_VALUE) {
+                latest_timestamp = timestamp;
+                append(id, POSITION_ENTRY, Math.floorDiv(timestamp, bucket_ns) * bucket_ns, offset, lateness);
+            } else if (timestamp > latest_timestamp) {
+                long bucket = Math.floorDiv(timestamp, bucket_ns);
+                if (bucket > Math.floorDiv(latest_timestamp, bucket_ns)) {
+                    append(id, POSITION_ENTRY, bucket * bucket_ns, offset, lateness);
+                }
+                latest_timestamp = timestamp;
+            } else {
+                lateness = Math.max(lateness, latest_timestamp - timestamp);
+            }
+        }
+
+        // For writers that observe their records in timestamp order rather than file order: the most any record trailed
+        // the latest timestamp before it in the file, noted before the records are observed
+        public void noteLateness(long file_lateness) {
+            lateness = Math.max(lateness, file_lateness);
+        }
+
+        // Called when the stream's writer closes, with the offset just past its data
+        public void end(long offset) throws IOException {
+            if (latest_timestamp != Long.MIN_VALUE) append(id, POSITION_ENTRY, latest_timestamp + 1, offset, lateness);
+        }
+
+        // Notes how the stream's timestamps map onto the IMU stream's clock
+        public void setClock(ClockDomainEstimator.Estimate clock) throws IOException {
+            append(id, CLOCK_ENTRY, clock.anchor_time, clock.offset_ns, Double.doubleToRawLongBits(clock.drift));
+        }
+
+        public void flush() throws IOException {
+            SessionIndexWriter.this.flush();
+        }
+    }
+
+    public Stream stream(short id) {
+        return new Stream(id);
+    }
+
+    private synchronized void append(short stream, short kind, long first, long second, long third) throws IOException {
+        // Streams may still end while recording stops
+        if (closed) return;
+        if (buffer.remaining() < ENTRY_SIZE) drain();
+        buffer.putLong(first).putLong(second).putLong(third).putShort(stream).putShort(kind);
+    }
+
+    // Called after the data the entries point at has been committed
+    public synchronized void flush() throws IOException {
+        if (!closed && buffer.position() > 0) drain();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            drain();
+            storage.sync();
+        } finally {
+            storage.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        storage.write(buffer);
+        buffer.clear();
+    }
+}
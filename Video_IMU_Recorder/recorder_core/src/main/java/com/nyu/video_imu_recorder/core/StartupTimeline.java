@@ -0,0 +1,54 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Time from the tap that starts a recording to each milestone of getting it going. Milestones are marked from whichever
+// thread reaches them, and only the first mark of each counts, so marking on every frame or sample costs one read.
+public class StartupTimeline {
+
+    public enum Phase {
+        CAMERA_OPENED, SESSION_CONFIGURED, FIRST_FRAME, FIRST_IMU_SAMPLE;
+
+        // Name used in the health summary
+        public String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final long UNMARKED = Long.MIN_VALUE;
+    private final long origin;
+    private final AtomicLongArray marks = new AtomicLongArray(Phase.values().length);
+
+    // origin is the time of the tap, on the same clock as the marks
+    public StartupTimeline(long origin) {
+        this.origin = origin;
+        for (int i = 0; i < marks.length(); ++i) marks.set(i, UNMARKED);
+    }
+
+    // Returns true only for the first mark of the phase
+    public boolean mark(Phase phase, long time) {
+        int i = phase.ordinal();
+        return marks.get(i) == UNMARKED && marks.compareAndSet(i, UNMARKED, time);
+    }
+
+    public boolean isMarked(Phase phase) {
+        return marks.get(phase.ordinal()) != UNMARKED;
+    }
+
+    // Milliseconds from the tap to the phase, NaN until it is reached
+    public double getMillis(Phase phase) {
+        long time = marks.get(phase.ordinal());
+        return time == UNMARKED ? Double.NaN : (time - origin) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (text.length() > 0) text.append(", ");
+            text.append(phase.key()).append(' ').append(String.format(Locale.ROOT, "%.1f ms", getMillis(phase)));
+        }
+        return text.toString();
+    }
+}
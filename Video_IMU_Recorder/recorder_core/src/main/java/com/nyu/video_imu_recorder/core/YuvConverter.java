@@ -0,0 +1,41 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.nio.ByteBuffer;
+
+// Packs the three planes of a YUV_420_888 image, whatever their row and pixel strides, into tightly packed I420
+// (full-size Y plane followed by quarter-size U and V planes)
+public final class YuvConverter {
+
+    private YuvConverter() {}
+
+    public static int i420Size(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    // Writes i420Size(width, height) bytes at destination's position and advances it; source positions are left alone
+    public static void packI420(ByteBuffer y, int y_row_stride, int y_pixel_stride, ByteBuffer u, ByteBuffer v,
+                                int uv_row_stride, int uv_pixel_stride, int width, int height, ByteBuffer destination) {
+        packPlane(y, y_row_stride, y_pixel_stride, width, height, destination);
+        int chroma_width = (width + 1) / 2, chroma_height = (height + 1) / 2;
+        packPlane(u, uv_row_stride, uv_pixel_stride, chroma_width, chroma_height, destination);
+        packPlane(v, uv_row_stride, uv_pixel_stride, chroma_width, chroma_height, destination);
+    }
+
+    private static void packPlane(ByteBuffer plane, int row_stride, int pixel_stride, int width, int height, ByteBuffer destination) {
+        int start = plane.position();
+        if (pixel_stride == 1) {
+            // Rows are contiguous, so each is one bulk copy; the last row may end before a full row stride
+            ByteBuffer row = plane.duplicate();
+            for (int r = 0; r < height; ++r) {
+                row.limit(start + r * row_stride + width).position(start + r * row_stride);
+                destination.put(row);
+            }
+        } else {
+            // Interleaved chroma (e.g. NV21 exposed as two planes sharing one buffer) has to be picked byte by byte
+            for (int r = 0; r < height; ++r) {
+                int row_start = start + r * row_stride;
+                for (int c = 0; c < width; ++c) destination.put(plane.get(row_start + c * pixel_stride));
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.nyu.video_imu_recorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compresses packed I420 frames losslessly (or passes them through raw) on the calling writer thread, then hands them to
+// the next sink. Running it on every frame writer thread spreads the encoding over all cores.
+public class YuvFrameEncoder implements FrameSink {
+
+    private final FrameSink destination;
+    private final boolean compress;
+    // Each writer thread keeps its own deflater and buffers, so encoding needs no locking and, after warm-up, no allocation
+    private final ThreadLocal<EncoderState> encoder_state = ThreadLocal.withInitial(EncoderState::new);
+
+    private static class EncoderState {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] input = new byte[0];
+        byte[][] outputs = new byte[0][];
+        ByteBuffer[] encoded = new ByteBuffer[0];
+    }
+
+    public YuvFrameEncoder(FrameSink destination, boolean compress) {
+        this.destination = destination;
+        this.compress = compress;
+    }
+
+    @Override
+    public void writeFrame(long timestamp, ByteBuffer data) throws IOException {
+        writeFrames(new long[] {timestamp}, new ByteBuffer[] {data}, 1);
+    }
+
+    @Override
+    public void writeFrames(long[] timestamps, ByteBuffer[] data, int count) throws IOException {
+        if (!compress) {
+            destination.writeFrames(timestamps, data, count);
+            return;
+        }
+        EncoderState state = encoder_state.get();
+        if (state.encoded.length < count) {
+            state.outputs = new byte[count][0];
+            state.encoded = new ByteBuffer[count];
+        }
+        for (int i = 0; i < count; ++i) {
+            int length = data[i].remaining();
+            if (state.input.length < length) state.input = new byte[length];
+            data[i].get(state.input, 0, length);
+            // Deflate output of incompressible data is only slightly larger than its input
+            if (state.outputs[i].length < length + length / 100 + 64) state.outputs[i] = new byte[length + length / 100 + 64];
+            state.deflater.reset();
+            state.deflater.setInput(state.input, 0, length);
+            state.deflater.finish();
+            int compressed = state.deflater.deflate(state.outputs[i]);
+            if (!state.deflater.finished()) throw new IOException("Deflate output buffer too small");
+            state.encoded[i] = ByteBuffer.wrap(state.outputs[i], 0, compressed);
+        }
+        destination.writeFrames(timestamps, state.encoded, count);
+    }
+
+    // Restores the packed I420 bytes of a frame stored under the given pack format
+    public static ByteBuffer decode(short format, ByteBuffer payload, int width, int height) throws IOException {
+        if (format == FramePackFormat.FORMAT_YUV_I420) return payload;
+        if (format != FramePackFormat.FORMAT_YUV_I420_DEFLATE) throw new IOException("Not a YUV frame format: " + format);
+        byte[] input = new byte[payload.remaining()];
+        payload.get(input);
+        byte[] output = new byte[YuvConverter.i420Size(width, height)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            int length = inflater.inflate(output);
+            if (length != output.length || !inflater.finished()) throw new IOException("Truncated YUV frame");
+        } catch (DataFormatException exception) {
+            throw new IOException(exception);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(output);
+    }
+}
@@ -0,0 +1,165 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * BurstRateController holding a 30 fps burst against a simulated disk whose write bandwidth drops and recovers.
+ */
+public class BurstRateControllerTest {
+
+    private static final long CAMERA_INTERVAL_NS = 33_333_333, SECOND = 1_000_000_000L;
+    private static final int QUEUE_CAPACITY = 8;
+
+    // Camera delivering a frame every CAMERA_INTERVAL_NS into a write queue dropping its oldest frame when full, drained
+    // by a disk writing one frame at a time at the bandwidth of the current phase
+    private static class SimulatedBurst {
+        private final BurstRateController controller;
+        private final ArrayDeque<Long> queue = new ArrayDeque<>();
+        long timestamp = 0, bytes_written = 0, frames_written = 0, dropped = 0;
+        int max_depth = 0;
+        // Bytes of the frame at the head of the queue already on disk
+        private long head_progress = 0;
+
+        SimulatedBurst(BurstRateController controller) {
+            this.controller = controller;
+        }
+
+        // Frames shrink with their JPEG quality, to about 300 KB at quality 95
+        static long frameBytes(int jpeg_quality) {
+            return 3200L * jpeg_quality;
+        }
+
+        void run(long duration_ns, double bandwidth_bps) {
+            for (long end = timestamp + duration_ns; timestamp < end; ) {
+                timestamp += CAMERA_INTERVAL_NS;
+                double budget = bandwidth_bps * CAMERA_INTERVAL_NS / 1e9;
+                while (!queue.isEmpty() && budget > 0) {
+                    long remaining = queue.peek() - head_progress;
+                    if (budget < remaining) {
+                        head_progress += (long) budget;
+                        break;
+                    }
+                    budget -= remaining;
+                    bytes_written += queue.poll();
+                    ++frames_written;
+                    head_progress = 0;
+                }
+                if (controller != null && !controller.shouldKeep(timestamp)) continue;
+                if (queue.size() == QUEUE_CAPACITY) {
+                    queue.poll();
+                    head_progress = 0;
+                    ++dropped;
+                }
+                queue.add(frameBytes(controller == null ? 95 : controller.getJpegQuality()));
+                max_depth = Math.max(max_depth, queue.size());
+                if (controller != null) controller.update(timestamp, bytes_written, frames_written, dropped, queue.size());
+            }
+        }
+
+        // Starts a new measurement of the queue depth
+        void resetMaxDepth() {
+            max_depth = 0;
+        }
+    }
+
+    private static BurstRateController controller(List<long[]> adjustments) {
+        return new BurstRateController(CAMERA_INTERVAL_NS, SECOND, QUEUE_CAPACITY, 95, 50,
+                BurstRateController.DEFAULT_WINDOW_NS, (timestamp, frame_interval_ns, jpeg_quality, write_bandwidth_bps) ->
+                adjustments.add(new long[] {timestamp, frame_interval_ns, jpeg_quality}));
+    }
+
+    @Test
+    public void slowDiskLowersQualityThenCadenceAndRecovers() {
+        List<long[]> adjustments = new ArrayList<>();
+        BurstRateController controller = controller(adjustments);
+        SimulatedBurst burst = new SimulatedBurst(controller);
+
+        // 30 frames of 300 KB per second fit into 10 MB/s
+        burst.run(10 * SECOND, 10e6);
+        assertEquals(0, burst.dropped);
+        assertTrue(adjustments.isEmpty());
+        assertEquals(CAMERA_INTERVAL_NS, controller.getFrameIntervalNs());
+
+        // At 2 MB/s even the lowest quality frames have to be kept less often
+        burst.run(5 * SECOND, 2e6);
+        long dropped = burst.dropped;
+        burst.resetMaxDepth();
+        burst.run(25 * SECOND, 2e6);
+        assertEquals(dropped, burst.dropped);
+        assertTrue(burst.max_depth < QUEUE_CAPACITY);
+        assertEquals(50, controller.getJpegQuality());
+        assertTrue(controller.getFrameIntervalNs() > 2 * CAMERA_INTERVAL_NS);
+        assertEquals(2e6, controller.getWriteBandwidthBps(), 0.5e6);
+
+        // Back to full cadence first, then full quality
+        burst.run(30 * SECOND, 10e6);
+        assertEquals(dropped, burst.dropped);
+        assertEquals(CAMERA_INTERVAL_NS, controller.getFrameIntervalNs());
+        assertEquals(95, controller.getJpegQuality());
+
+        // Every adjustment was reported once, in order, quality before cadence on the way down
+        assertTrue(adjustments.size() > 10);
+        for (int i = 1; i < adjustments.size(); ++i) assertTrue(adjustments.get(i)[0] > adjustments.get(i - 1)[0]);
+        assertEquals(85, adjustments.get(0)[2]);
+        assertEquals(CAMERA_INTERVAL_NS, adjustments.get(0)[1]);
+    }
+
+    @Test
+    public void uncontrolledBurstKeepsDroppingFrames() {
+        SimulatedBurst burst = new SimulatedBurst(null);
+        burst.run(10 * SECOND, 10e6);
+        assertEquals(0, burst.dropped);
+        burst.run(30 * SECOND, 2e6);
+        // Only a fifth of the frames fit, so most of them are lost at random instead of skipped evenly
+        assertTrue(burst.dropped > 600);
+        assertEquals(QUEUE_CAPACITY, burst.max_depth);
+    }
+
+    @Test
+    public void keptFramesFollowTheFrameInterval() {
+        BurstRateController controller = new BurstRateController(100_000_000, SECOND, QUEUE_CAPACITY, 95, 95,
+                BurstRateController.DEFAULT_WINDOW_NS, (timestamp, frame_interval_ns, jpeg_quality, write_bandwidth_bps) -> {});
+        int kept = 0;
+        // 30 fps with a little jitter, kept at 10 fps
+        for (long i = 0; i < 3000; ++i) {
+            if (controller.shouldKeep(i * CAMERA_INTERVAL_NS + (i % 3) * 200_000)) ++kept;
+        }
+        assertEquals(1000, kept, 1);
+        // A stall in the camera does not make the next frames catch up
+        assertTrue(controller.shouldKeep(200 * SECOND));
+        assertFalse(controller.shouldKeep(200 * SECOND + CAMERA_INTERVAL_NS));
+    }
+
+    @Test
+    public void adjustmentsAreLoggedInTheIMUFile() throws IOException {
+        for (boolean compressed : new boolean[] {false, true}) {
+            File file = File.createTempFile("imu", ".imu");
+            file.deleteOnExit();
+            try (IMURecordWriter writer = new IMURecordWriter(new ChannelIMUStorage(file), new short[] {4},
+                    new String[] {"Gyroscope"}, compressed)) {
+                writer.writeBurstRate(5_000_000_000L, 100_000_000, (short) 50, 2e6f);
+            }
+
+            StringWriter text = new StringWriter();
+            IMURecordReader.convertToText(new FileInputStream(file), text, true);
+            assertEquals("5000000000 burst rate: frame interval 100000000 ns, JPEG quality 50, write bandwidth 2000000.0 bytes/s\n",
+                    text.toString());
+            try (IMURecordReader reader = new IMURecordReader(new FileInputStream(file))) {
+                assertTrue(reader.next());
+                assertEquals(IMURecordFormat.BURST_RATE_ID, reader.sensor_id);
+                assertEquals(50, reader.accuracy);
+                assertEquals(100_000_000, reader.marker_payload);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip of per-frame capture metadata and the join of capture results with frame saves in CaptureLatencyTracker.
+ */
+public class CaptureMetadataTest {
+
+    @Test
+    public void metadataRoundTrips() throws IOException {
+        File file = File.createTempFile("capture", ".meta");
+        file.deleteOnExit();
+        try (CaptureMetadataWriter writer = new CaptureMetadataWriter(new ChannelIMUStorage(file))) {
+            // More records than the writer buffers at once
+            for (int frame = 0; frame < 2000; ++frame) {
+                writer.write(1_000_000_000L + frame * 33_333_333L, frame, 10_000_000, 33_333_333, 25_000_000,
+                        frame % 2 == 0 ? 2.5f : Float.NaN, 400 + frame);
+            }
+        }
+        assertEquals(8 + 2000L * CaptureMetadataWriter.RECORD_SIZE, file.length());
+        try (CaptureMetadataReader reader = new CaptureMetadataReader(new FileInputStream(file))) {
+            for (int frame = 0; frame < 2000; ++frame) {
+                assertTrue(reader.next());
+                assertEquals(1_000_000_000L + frame * 33_333_333L, reader.sensor_timestamp);
+                assertEquals(frame, reader.frame_number);
+                assertEquals(10_000_000, reader.exposure_time_ns);
+                assertEquals(33_333_333, reader.frame_duration_ns);
+                assertEquals(25_000_000, reader.rolling_shutter_skew_ns);
+                assertEquals(frame % 2 == 0 ? 2.5f : Float.NaN, reader.focus_distance, 0);
+                assertEquals(400 + frame, reader.sensitivity);
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void savesAreJoinedWithTheirCaptureResults() throws IOException {
+        long[] now = {0};
+        CaptureLatencyTracker tracker = new CaptureLatencyTracker(8, () -> now[0]);
+        FrameSink saved = tracker.track((timestamp, data) -> {});
+        ByteBuffer[] frames = {ByteBuffer.allocate(1), ByteBuffer.allocate(1)};
+
+        // Results arrive 5 ms after exposure; saves complete 20 ms after it, two frames per batch and out of order
+        for (long frame = 0; frame < 10; ++frame) {
+            now[0] = frame * 10_000_000 + 5_000_000;
+            tracker.onCaptureResult(frame * 10_000_000);
+        }
+        for (long frame = 9; frame >= 2; frame -= 2) {
+            now[0] = frame * 10_000_000 + 20_000_000;
+            saved.writeFrames(new long[] {frame * 10_000_000, (frame - 1) * 10_000_000}, frames, 2);
+        }
+        // Only the last eight results are kept, so the first two frames have nothing to join with; a save is never
+        // matched twice
+        saved.writeFrame(0, frames[0]);
+        saved.writeFrame(9 * 10_000_000, frames[0]);
+
+        assertEquals(8, tracker.getSavedCount());
+        assertEquals(2, tracker.getUnmatchedSaveCount());
+        // The older frame of every batch waited 10 ms longer for the newer one
+        assertEquals(30, tracker.getMaxSaveLatencyMs(), 1e-9);
+        assertEquals(25, tracker.getMeanSaveLatencyMs(), 1e-9);
+    }
+}
@@ -0,0 +1,216 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writing, indexing, crash recovery and extraction of frame pack files.
+ */
+public class FramePackTest {
+
+    private static final int FRAMES = 50;
+
+    private static ByteBuffer frame(long timestamp) {
+        ByteBuffer data = ByteBuffer.allocateDirect(2000 + (int) (timestamp % 977));
+        while (data.hasRemaining()) data.put((byte) (timestamp + data.position()));
+        data.flip();
+        return data;
+    }
+
+    private static File writePack(boolean close) throws IOException {
+        File file = File.createTempFile("burst", ".frames");
+        file.deleteOnExit();
+        FramePackWriter writer = new FramePackWriter(file, FramePackFormat.FORMAT_JPEG, 640, 480);
+        long[] timestamps = new long[3];
+        ByteBuffer[] data = new ByteBuffer[3];
+        for (int i = 0; i < FRAMES; ) {
+            // Mix single and gathered writes like the pipeline's writer threads do
+            int count = Math.min(1 + i % 3, FRAMES - i);
+            for (int j = 0; j < count; ++j, ++i) {
+                timestamps[j] = 1_000_000L + i * 33_333_333L;
+                data[j] = frame(timestamps[j]);
+            }
+            writer.writeFrames(timestamps, data, count);
+        }
+        if (close) writer.close();
+        return file;
+    }
+
+    @Test
+    public void randomAccessByTimestamp() throws IOException {
+        try (FramePackReader reader = new FramePackReader(writePack(true))) {
+            assertFalse(reader.wasRecovered());
+            assertEquals(FRAMES, reader.getFrameCount());
+            long timestamp = 1_000_000L + 17 * 33_333_333L;
+            assertEquals(17, reader.findFrame(timestamp));
+            // Timestamps between frames resolve to the frame before them
+            assertEquals(17, reader.findFrame(timestamp + 1000));
+            assertEquals(-1, reader.findFrame(0));
+            assertEquals(frame(timestamp), reader.readFrame(17));
+        }
+    }
+
+    private static long timestamp(int frame) {
+        return 1_000_000L + frame * 33_333_333L;
+    }
+
+    private static void checkEveryFrame(File file, boolean recovered) throws IOException {
+        try (FramePackReader reader = new FramePackReader(file)) {
+            assertEquals(recovered, reader.wasRecovered());
+            assertEquals(FRAMES, reader.getFrameCount());
+            for (int i = 0; i < FRAMES; ++i) {
+                assertEquals(i, reader.findFrame(timestamp(i)));
+                assertEquals(timestamp(i), reader.getTimestamp(i));
+                assertEquals(frame(timestamp(i)), reader.readFrame(i));
+            }
+        }
+    }
+
+    @Test
+    public void framesFromParallelWritersAreFoundByTimestamp() throws Exception {
+        File file = File.createTempFile("burst", ".frames");
+        file.deleteOnExit();
+        FramePackWriter pack = new FramePackWriter(file, FramePackFormat.FORMAT_JPEG, 640, 480);
+        // The batch holding the first frame is held back, like a slow encode, until another writer's batch overtakes it
+        CountDownLatch overtaken = new CountDownLatch(1);
+        FrameSink encoder = new FrameSink() {
+            @Override
+            public void writeFrame(long timestamp, ByteBuffer data) throws IOException {
+                writeFrames(new long[] {timestamp}, new ByteBuffer[] {data}, 1);
+            }
+
+            @Override
+            public void writeFrames(long[] timestamps, ByteBuffer[] data, int count) throws IOException {
+                try {
+                    if (timestamps[0] == timestamp(0)) assertTrue(overtaken.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException exception) {
+                    throw new IOException(exception);
+                }
+                pack.writeFrames(timestamps, data, count);
+                overtaken.countDown();
+            }
+        };
+        FrameWritePipeline pipeline = new FrameWritePipeline(encoder, FrameWritePipeline.OverflowPolicy.THROTTLE, 16, 4096, 4);
+        for (int i = 0; i < FRAMES; ++i) pipeline.submit(timestamp(i), frame(timestamp(i)));
+        pipeline.close();
+        pack.close();
+        assertEquals(FRAMES, pipeline.getWrittenCount());
+        checkEveryFrame(file, false);
+
+        // The index rebuilt by scanning a pack that lost its trailer is sorted too
+        try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+            truncated.seek(truncated.length() - FramePackFormat.FOOTER_SIZE);
+            truncated.setLength(truncated.readLong());
+        }
+        checkEveryFrame(file, true);
+    }
+
+    @Test
+    public void framesOfAFailedWriteAreLeftOutOfTheIndex() throws IOException {
+        File file = File.createTempFile("burst", ".frames");
+        file.deleteOnExit();
+        ChannelIMUStorage channel = new ChannelIMUStorage(file, false);
+        // Storage that fails once, after writing the header and payload of a batch's first frame and the header of its
+        // second
+        IMUStorage storage = new IMUStorage() {
+            private int failures = 0;
+
+            @Override
+            public long size() throws IOException {
+                return channel.size();
+            }
+
+            @Override
+            public void write(ByteBuffer data) throws IOException {
+                channel.write(data);
+            }
+
+            @Override
+            public void write(ByteBuffer[] data, int offset, int length) throws IOException {
+                if (length == 4 && failures++ == 0) {
+                    for (int i = offset; i < offset + 3; ++i) channel.write(data[i]);
+                    throw new IOException("Device error");
+                }
+                channel.write(data, offset, length);
+            }
+
+            @Override
+            public void sync() throws IOException {
+                channel.sync();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+        FramePackWriter writer = new FramePackWriter(storage, FramePackFormat.FORMAT_JPEG, 640, 480);
+        long[] timestamps = new long[3];
+        ByteBuffer[] data = new ByteBuffer[3];
+        int failed = 0;
+        for (int i = 0; i < FRAMES; ) {
+            int count = Math.min(1 + i % 3, FRAMES - i);
+            for (int j = 0; j < count; ++j, ++i) {
+                timestamps[j] = timestamp(i);
+                data[j] = frame(timestamps[j]);
+            }
+            try {
+                writer.writeFrames(timestamps, data, count);
+            } catch (IOException exception) {
+                failed += count;
+            }
+        }
+        writer.close();
+        assertEquals(2, failed);
+
+        // Every indexed frame is one that was written, at the offset it was written at
+        try (FramePackReader reader = new FramePackReader(file)) {
+            assertFalse(reader.wasRecovered());
+            assertEquals(FRAMES - failed, reader.getFrameCount());
+            for (int i = 0; i < reader.getFrameCount(); ++i) {
+                assertEquals(frame(reader.getTimestamp(i)), reader.readFrame(i));
+            }
+        }
+    }
+
+    @Test
+    public void indexIsRebuiltAfterCrash() throws IOException {
+        File file = writePack(false);
+        // Cut the last frame in half, as if the app was killed mid-write
+        try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+            truncated.setLength(truncated.length() - 500);
+        }
+        try (FramePackReader reader = new FramePackReader(file)) {
+            assertTrue(reader.wasRecovered());
+            assertEquals(FRAMES - 1, reader.getFrameCount());
+            assertEquals(frame(reader.getTimestamp(FRAMES - 2)), reader.readFrame(FRAMES - 2));
+        }
+    }
+
+    @Test
+    public void extractsIndividualJpegs() throws IOException {
+        File directory = Files.createTempDirectory("extracted").toFile();
+        try (FramePackReader reader = new FramePackReader(writePack(true))) {
+            reader.extractTo(directory);
+        }
+        File[] files = directory.listFiles();
+        assertNotNull(files);
+        assertEquals(FRAMES, files.length);
+        long timestamp = 1_000_000L + 3 * 33_333_333L;
+        ByteBuffer expected = frame(timestamp);
+        byte[] bytes = new byte[expected.remaining()];
+        expected.get(bytes);
+        assertArrayEquals(bytes, Files.readAllBytes(new File(directory, timestamp + ".jpeg").toPath()));
+        for (File file : files) file.delete();
+        directory.delete();
+    }
+}
@@ -0,0 +1,75 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Delta encoding, checkpoints and O(log n) lookups of the per-frame video timestamp index.
+ */
+public class FrameTimestampIndexTest {
+
+    private static final int FRAMES = 100_000;
+
+    // 30 fps with jitter, occasional dropped frames, and timestamps past 2^32 ns as on a phone that has been up for days
+    private static long[] captureTimestamps() {
+        Random random = new Random(7);
+        long[] timestamps = new long[FRAMES];
+        long timestamp = 345_678_901_234_567L;
+        for (int i = 0; i < FRAMES; ++i) {
+            timestamp += 33_333_333 + random.nextInt(200_000) - 100_000 + (random.nextInt(500) == 0 ? 33_333_333 : 0);
+            timestamps[i] = timestamp;
+        }
+        return timestamps;
+    }
+
+    private static File writeIndex(long[] timestamps) throws IOException {
+        File file = File.createTempFile("video", ".ftix");
+        file.deleteOnExit();
+        try (FrameTimestampIndexWriter writer = new FrameTimestampIndexWriter(new ChannelIMUStorage(file),
+                FrameTimestampIndexWriter.DEFAULT_CHECKPOINT_INTERVAL)) {
+            for (long timestamp : timestamps) writer.append(timestamp);
+        }
+        return file;
+    }
+
+    @Test
+    public void mapsFramesToTimestampsAndBack() throws IOException {
+        long[] timestamps = captureTimestamps();
+        File file = writeIndex(timestamps);
+        // Deltas fit in four bytes, so the index is about half the size of plain longs
+        assertTrue(file.length() < FRAMES * 5L);
+
+        FrameTimestampIndex index = new FrameTimestampIndex(file);
+        assertEquals(FRAMES, index.getFrameCount());
+        for (int frame = 0; frame < FRAMES; ++frame) assertEquals(timestamps[frame], index.getTimestamp(frame));
+
+        assertEquals(-1, index.findFrame(timestamps[0] - 1));
+        Random random = new Random(11);
+        for (int i = 0; i < 10_000; ++i) {
+            int frame = random.nextInt(FRAMES);
+            assertEquals(frame, index.findFrame(timestamps[frame]));
+            // Between two frames, the earlier one is the floor
+            assertEquals(frame, index.findFrame(timestamps[frame] + 1_000_000));
+        }
+        assertEquals(FRAMES - 1, index.findFrame(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void truncatedIndexKeepsItsCompleteEntries() throws IOException {
+        long[] timestamps = captureTimestamps();
+        File file = writeIndex(timestamps);
+        // Cut the file partway through an entry, as a crash mid-write would
+        try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+            truncated.setLength(truncated.length() - 2);
+        }
+        FrameTimestampIndex index = new FrameTimestampIndex(file);
+        assertEquals(FRAMES - 1, index.getFrameCount());
+        assertEquals(timestamps[FRAMES - 2], index.getTimestamp(FRAMES - 2));
+    }
+}
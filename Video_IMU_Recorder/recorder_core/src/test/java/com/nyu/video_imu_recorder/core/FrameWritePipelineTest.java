@@ -0,0 +1,100 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frame accounting and overflow policies of FrameWritePipeline against a sink that can be stalled like a slow disk.
+ */
+public class FrameWritePipelineTest {
+
+    private static final int FRAMES = 100;
+
+    // Remembers the first byte of each frame and blocks every write until released
+    private static class StallingSink implements FrameSink {
+        final Map<Long, Byte> frames = new ConcurrentHashMap<>();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void writeFrame(long timestamp, ByteBuffer data) {
+            try {
+                release.await();
+            } catch (InterruptedException exception) {
+                throw new AssertionError(exception);
+            }
+            assertEquals(1000 + timestamp, data.remaining());
+            frames.put(timestamp, data.get(0));
+        }
+    }
+
+    private static ByteBuffer frame(long timestamp) {
+        ByteBuffer data = ByteBuffer.allocate((int) (1000 + timestamp));
+        data.put(0, (byte) timestamp);
+        return data;
+    }
+
+    @Test
+    public void dropOldestKeepsNewestFramesWhileDiskStalls() throws InterruptedException {
+        StallingSink sink = new StallingSink();
+        FrameWritePipeline pipeline = new FrameWritePipeline(sink, FrameWritePipeline.OverflowPolicy.DROP_OLDEST, 4, 512, 1);
+        for (long timestamp = 0; timestamp < FRAMES; ++timestamp) pipeline.submit(timestamp, frame(timestamp));
+        assertEquals(FRAMES, pipeline.getProducedCount());
+        assertTrue(pipeline.getQueueDepth() <= 4);
+        sink.release.countDown();
+        pipeline.close();
+
+        assertEquals(FRAMES, pipeline.getWrittenCount() + pipeline.getDroppedCount());
+        assertEquals(pipeline.getWrittenCount(), sink.frames.size());
+        // The frames queued last survive; one more may have been taken by the writer before it stalled
+        for (long timestamp = FRAMES - 3; timestamp < FRAMES; ++timestamp) {
+            assertEquals(Byte.valueOf((byte) timestamp), sink.frames.get(timestamp));
+        }
+    }
+
+    @Test
+    public void throttleWritesEveryFrame() throws InterruptedException {
+        StallingSink sink = new StallingSink();
+        FrameWritePipeline pipeline = new FrameWritePipeline(sink, FrameWritePipeline.OverflowPolicy.THROTTLE, 4, 512, 2);
+        Thread capture = new Thread(() -> {
+            for (long timestamp = 0; timestamp < FRAMES; ++timestamp) pipeline.submit(timestamp, frame(timestamp));
+        });
+        capture.start();
+        Thread.sleep(100);
+        // The capture thread is held back instead of losing frames
+        assertTrue(capture.isAlive());
+        assertTrue(pipeline.getProducedCount() < FRAMES);
+        sink.release.countDown();
+        capture.join();
+        pipeline.close();
+
+        assertEquals(0, pipeline.getDroppedCount());
+        assertEquals(FRAMES, pipeline.getWrittenCount());
+        assertEquals(FRAMES, sink.frames.size());
+    }
+
+    @Test
+    public void directFramesAreReleasedOnlyAfterTheirWrite() throws InterruptedException {
+        StallingSink sink = new StallingSink();
+        FrameWritePipeline pipeline = new FrameWritePipeline(sink, FrameWritePipeline.OverflowPolicy.DROP_OLDEST, 2, 512, 1, 3);
+        AtomicInteger released = new AtomicInteger();
+        for (long timestamp = 0; timestamp < 3; ++timestamp) pipeline.submitDirect(timestamp, frame(timestamp), released::incrementAndGet);
+        // Held while the disk stalls, like images still acquired from the ImageReader
+        assertEquals(0, released.get());
+        // With every direct slot taken the next frame is copied and its owner released immediately
+        pipeline.submitDirect(3, frame(3), released::incrementAndGet);
+        assertEquals(1, released.get());
+
+        sink.release.countDown();
+        pipeline.close();
+        assertEquals(4, released.get());
+        assertEquals(4, pipeline.getWrittenCount() + pipeline.getDroppedCount());
+        assertEquals(Byte.valueOf((byte) 3), sink.frames.get(3L));
+    }
+}
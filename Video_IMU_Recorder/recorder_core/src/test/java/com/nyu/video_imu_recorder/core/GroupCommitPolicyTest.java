@@ -0,0 +1,137 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Commit decisions of GroupCommitPolicy, a writer thread session that commits without ever stopping the producer, and
+ * markers recorded while a commit waits on the device.
+ */
+public class GroupCommitPolicyTest {
+
+    @Test
+    public void commitsOnTimeOrSizeWhicheverComesFirst() {
+        GroupCommitPolicy policy = new GroupCommitPolicy(100, 4096, 0);
+        assertFalse(policy.shouldCommit(50_000_000, 1024));
+        assertTrue(policy.shouldCommit(50_000_000, 4096));
+        assertTrue(policy.shouldCommit(100_000_000, 24));
+        policy.committed(100_000_000);
+        assertFalse(policy.shouldCommit(150_000_000, 24));
+        // Nothing pending means nothing to commit, however long it has been
+        assertFalse(policy.shouldCommit(10_000_000_000L, 0));
+    }
+
+    @Test
+    public void writerThreadKeepsEverySampleAcrossCommits() throws Exception {
+        File file = File.createTempFile("imu", ".imu");
+        file.deleteOnExit();
+        IMURingBuffer ring = new IMURingBuffer(1024);
+        IMURecordWriter writer = new IMURecordWriter(file, new short[] {4}, new String[] {"gyroscope"});
+        IMUWriterThread writer_thread = new IMUWriterThread(ring, writer, new GroupCommitPolicy(5, 2048, System.nanoTime()));
+        writer_thread.start();
+
+        float[] values = {0.1f, 0.2f, 0.3f};
+        int samples = 20_000;
+        for (int i = 0; i < samples; ++i) {
+            while (!ring.offer(i, (short) 4, values, 0)) Thread.yield();
+            // The data must reach the file while recording goes on, not only once it stops
+            if (i == samples / 2) {
+                Thread.sleep(50);
+                assertTrue(file.length() > 0);
+            }
+        }
+        writer_thread.shutdown();
+        writer.close();
+
+        try (IMURecordReader reader = new IMURecordReader(new FileInputStream(file))) {
+            long expected = 0;
+            while (reader.next()) assertEquals(expected++, reader.timestamp);
+            assertEquals(samples, expected);
+        }
+    }
+
+    @Test
+    public void markersDoNotWaitForTheSync() throws Exception {
+        File file = File.createTempFile("imu", ".imu");
+        file.deleteOnExit();
+        CountDownLatch syncing = new CountDownLatch(1), device = new CountDownLatch(1);
+        ChannelIMUStorage channel = new ChannelIMUStorage(file);
+        // Storage whose sync hangs until the test lets the device finish
+        IMUStorage storage = new IMUStorage() {
+            @Override
+            public long size() throws IOException {
+                return channel.size();
+            }
+
+            @Override
+            public void write(ByteBuffer data) throws IOException {
+                channel.write(data);
+            }
+
+            @Override
+            public void sync() throws IOException {
+                syncing.countDown();
+                try {
+                    device.await();
+                } catch (InterruptedException exception) {
+                    throw new IOException(exception);
+                }
+                channel.sync();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+        IMURecordWriter writer = new IMURecordWriter(storage, new short[] {4}, new String[] {"gyroscope"});
+        writer.writeSample(1, (short) 4, new float[] {0.1f, 0.2f, 0.3f}, 3);
+        Thread committer = new Thread(() -> {
+            try {
+                writer.commit();
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        });
+        committer.start();
+        assertTrue(syncing.await(5, TimeUnit.SECONDS));
+
+        // The camera thread's marker goes in while the commit is still syncing
+        Thread camera = new Thread(() -> {
+            try {
+                writer.writeBurstRate(2, 50_000_000, (short) 80, 1e6f);
+            } catch (IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        });
+        camera.start();
+        camera.join(5000);
+        boolean blocked = camera.isAlive();
+        device.countDown();
+        committer.join();
+        camera.join();
+        assertFalse(blocked);
+        writer.close();
+
+        try (IMURecordReader reader = new IMURecordReader(new FileInputStream(file))) {
+            assertTrue(reader.next());
+            assertEquals(1, reader.timestamp);
+            assertTrue(reader.next());
+            assertEquals(2, reader.timestamp);
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyWindow() {
+        new GroupCommitPolicy(0, 1024, 0);
+    }
+}
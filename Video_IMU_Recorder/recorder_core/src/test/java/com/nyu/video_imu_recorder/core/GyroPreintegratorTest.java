@@ -0,0 +1,207 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rotation and velocity integrated between frames against closed-form and finely stepped references, with frames reported
+ * long after the sensors passed them, and bounded memory over a long session.
+ */
+public class GyroPreintegratorTest {
+
+    private static final short ACCELEROMETER = 10, GYROSCOPE = 4;
+    private static final long GYROSCOPE_PERIOD = 2_500_000, ACCELEROMETER_PERIOD = 5_000_000, FRAME_PERIOD = 33_333_333;
+    // Capture results reach the writer thread this long after the frame was exposed
+    private static final long FRAME_DELAY = 80_000_000;
+
+    private interface Signal {
+        void at(double seconds, float[] values);
+    }
+
+    // Feeds both sensors and 30 fps frames over the duration, each frame submitted FRAME_DELAY after its timestamp
+    private static GyroPreintegrator run(File file, Signal gyroscope, Signal accelerometer, float[] gyroscope_bias,
+                                         long duration) throws IOException {
+        GyroPreintegrator preintegrator = new GyroPreintegrator(new ChannelIMUStorage(file), GYROSCOPE, gyroscope_bias,
+                accelerometer == null ? GyroPreintegrator.NO_ACCELEROMETER : ACCELEROMETER, new float[3], 500_000_000);
+        float[] values = new float[3];
+        long next_gyroscope = 0, next_frame = 10_000_000;
+        long next_accelerometer = accelerometer == null ? Long.MAX_VALUE : ACCELEROMETER_PERIOD / 2;
+        while (next_gyroscope <= duration) {
+            if (next_frame + FRAME_DELAY <= Math.min(next_gyroscope, next_accelerometer)) {
+                assertTrue(preintegrator.submitFrame(next_frame));
+                next_frame += FRAME_PERIOD;
+            } else if (next_accelerometer < next_gyroscope) {
+                accelerometer.at(next_accelerometer * 1e-9, values);
+                preintegrator.onSample(next_accelerometer, ACCELEROMETER, values, 0, 3);
+                next_accelerometer += ACCELEROMETER_PERIOD;
+            } else {
+                gyroscope.at(next_gyroscope * 1e-9, values);
+                preintegrator.onSample(next_gyroscope, GYROSCOPE, values, 0, 3);
+                next_gyroscope += GYROSCOPE_PERIOD;
+            }
+        }
+        preintegrator.close();
+        return preintegrator;
+    }
+
+    // Angle in radians between two rotations given as w, x, y, z
+    private static double angleBetween(float[] q, double[] r) {
+        // From the rotation taking one to the other, since acos of their dot product is ill-conditioned near zero
+        double[] difference = multiply(new double[] {r[0], -r[1], -r[2], -r[3]}, new double[] {q[0], q[1], q[2], q[3]});
+        double sine = Math.sqrt(difference[1] * difference[1] + difference[2] * difference[2] + difference[3] * difference[3]);
+        return 2 * Math.atan2(sine, Math.abs(difference[0]));
+    }
+
+    private static double[] multiply(double[] a, double[] b) {
+        return new double[] {a[0] * b[0] - a[1] * b[1] - a[2] * b[2] - a[3] * b[3],
+                a[0] * b[1] + a[1] * b[0] + a[2] * b[3] - a[3] * b[2],
+                a[0] * b[2] - a[1] * b[3] + a[2] * b[0] + a[3] * b[1],
+                a[0] * b[3] + a[1] * b[2] - a[2] * b[1] + a[3] * b[0]};
+    }
+
+    private static double[] exp(double x, double y, double z) {
+        double angle = Math.sqrt(x * x + y * y + z * z);
+        if (angle == 0) return new double[] {1, 0, 0, 0};
+        double s = Math.sin(angle / 2) / angle;
+        return new double[] {Math.cos(angle / 2), x * s, y * s, z * s};
+    }
+
+    @Test
+    public void linearRateAboutFixedAxisIsExact() throws IOException {
+        File file = File.createTempFile("imu", ".preint");
+        file.deleteOnExit();
+        // The rate ramps up about z while a constant bias on x is removed
+        GyroPreintegrator preintegrator = run(file, (t, values) -> {
+            values[0] = 0.05f;
+            values[1] = 0;
+            values[2] = (float) (0.5 + 2 * t);
+        }, null, new float[] {0.05f, 0, 0}, 2_000_000_000L);
+        assertEquals(0, preintegrator.getSkippedFrameCount());
+
+        int intervals = 0;
+        try (GyroPreintegrationReader reader = new GyroPreintegrationReader(new FileInputStream(file))) {
+            assertEquals(GyroPreintegrator.NO_ACCELEROMETER, reader.getAccelerometerId());
+            assertEquals(0.05f, reader.getGyroscopeBias()[0], 0);
+            while (reader.next()) {
+                ++intervals;
+                assertEquals(FRAME_PERIOD, reader.end_frame - reader.start_frame);
+                double t0 = reader.start_frame * 1e-9, t1 = reader.end_frame * 1e-9;
+                double angle = 0.5 * (t1 - t0) + (t1 * t1 - t0 * t0);
+                assertTrue(angleBetween(reader.rotation, exp(0, 0, angle)) < 1e-6);
+                assertArrayEquals(new float[3], reader.velocity, 0);
+                assertTrue(reader.gyroscope_count >= 13 && reader.gyroscope_count <= 14);
+            }
+        }
+        // Frames from 10 ms on, up to the last one reported within two seconds
+        assertEquals(57, intervals);
+        assertEquals(intervals, preintegrator.getIntervalCount());
+    }
+
+    @Test
+    public void coningMotionMatchesFineIntegration() throws IOException {
+        File file = File.createTempFile("imu", ".preint");
+        file.deleteOnExit();
+        double amplitude = 1.5, frequency = 2 * Math.PI * 3, spin = 0.7;
+        run(file, (t, values) -> {
+            values[0] = (float) (amplitude * Math.cos(frequency * t));
+            values[1] = (float) (amplitude * Math.sin(frequency * t));
+            values[2] = (float) spin;
+        }, null, new float[3], 1_000_000_000L);
+
+        double worst = 0;
+        try (GyroPreintegrationReader reader = new GyroPreintegrationReader(new FileInputStream(file))) {
+            while (reader.next()) {
+                // Reference: the exact rate applied in 1 us steps
+                double[] q = {1, 0, 0, 0};
+                double step = 1e-6;
+                for (double t = reader.start_frame * 1e-9; t < reader.end_frame * 1e-9 - step / 2; t += step) {
+                    double middle = t + step / 2;
+                    q = multiply(q, exp(amplitude * Math.cos(frequency * middle) * step,
+                            amplitude * Math.sin(frequency * middle) * step, spin * step));
+                }
+                worst = Math.max(worst, angleBetween(reader.rotation, q));
+            }
+        }
+        // About 1.6 rad/s of coning sampled at 400 Hz stays within a few microradians of the truth per frame
+        assertTrue("worst error " + worst + " rad", worst < 2e-5);
+    }
+
+    @Test
+    public void velocityIsIntegratedInTheStartFrame() throws IOException {
+        File file = File.createTempFile("imu", ".preint");
+        file.deleteOnExit();
+        double rate = 3;
+        run(file, (t, values) -> {
+            values[0] = values[1] = 0;
+            values[2] = (float) rate;
+        }, (t, values) -> {
+            values[0] = 1;
+            values[1] = values[2] = 0;
+        }, new float[3], 1_000_000_000L);
+
+        int intervals = 0;
+        try (GyroPreintegrationReader reader = new GyroPreintegrationReader(new FileInputStream(file))) {
+            assertEquals(ACCELEROMETER, reader.getAccelerometerId());
+            while (reader.next()) {
+                ++intervals;
+                // A constant forward push while turning about z at a constant rate sweeps an arc
+                double duration = (reader.end_frame - reader.start_frame) * 1e-9;
+                assertEquals(Math.sin(rate * duration) / rate, reader.velocity[0], 1e-5);
+                assertEquals((1 - Math.cos(rate * duration)) / rate, reader.velocity[1], 1e-5);
+                assertEquals(0, reader.velocity[2], 1e-7);
+                assertTrue(reader.accelerometer_count >= 6 && reader.accelerometer_count <= 7);
+            }
+        }
+        assertTrue(intervals > 25);
+    }
+
+    @Test
+    public void framesPastTheWindowAreSkipped() throws IOException {
+        File file = File.createTempFile("imu", ".preint");
+        file.deleteOnExit();
+        GyroPreintegrator preintegrator = new GyroPreintegrator(new ChannelIMUStorage(file), GYROSCOPE, new float[3],
+                GyroPreintegrator.NO_ACCELEROMETER, new float[3], 500_000_000, 16, 16);
+        float[] values = {0, 0, 1};
+        // Sixteen samples fit the window; the frame at the first one comes after far more
+        for (long t = 0; t < 40 * GYROSCOPE_PERIOD; t += GYROSCOPE_PERIOD) preintegrator.onSample(t, GYROSCOPE, values, 0, 3);
+        preintegrator.submitFrame(GYROSCOPE_PERIOD);
+        preintegrator.submitFrame(30 * GYROSCOPE_PERIOD);
+        preintegrator.submitFrame(35 * GYROSCOPE_PERIOD);
+        preintegrator.onSample(40 * GYROSCOPE_PERIOD, GYROSCOPE, values, 0, 3);
+        preintegrator.close();
+        assertEquals(1, preintegrator.getSkippedFrameCount());
+        assertEquals(1, preintegrator.getIntervalCount());
+        try (GyroPreintegrationReader reader = new GyroPreintegrationReader(new FileInputStream(file))) {
+            assertTrue(reader.next());
+            assertTrue(angleBetween(reader.rotation, exp(0, 0, 5 * GYROSCOPE_PERIOD * 1e-9)) < 1e-6);
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void longSessionKeepsEverySample() throws IOException {
+        File file = File.createTempFile("imu", ".preint");
+        file.deleteOnExit();
+        Signal gyroscope = (t, values) -> {
+            values[0] = 0.3f;
+            values[1] = -0.2f;
+            values[2] = 1;
+        }, accelerometer = (t, values) -> {
+            values[0] = 0.1f;
+            values[1] = 0;
+            values[2] = -0.5f;
+        };
+        // Ten minutes of both sensors pass through the bounded windows without overflowing them
+        long duration = 600_000_000_000L;
+        GyroPreintegrator preintegrator = run(file, gyroscope, accelerometer, new float[3], duration);
+        assertEquals(0, preintegrator.getDroppedSampleCount());
+        // One interval between every pair of frames reported before the sensors stopped
+        assertEquals((duration - FRAME_DELAY) / FRAME_PERIOD, preintegrator.getIntervalCount(), 1);
+        file.delete();
+    }
+}
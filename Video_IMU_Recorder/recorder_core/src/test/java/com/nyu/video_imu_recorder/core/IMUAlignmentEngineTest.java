@@ -0,0 +1,153 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Interpolation, raw sample hand-off and bounded memory of IMUAlignmentEngine on synthetic sensor and frame streams.
+ */
+public class IMUAlignmentEngineTest {
+
+    private static final short ACCELEROMETER = 10, GYROSCOPE = 4;
+    private static final long MAX_WAIT_NS = 500_000_000;
+
+    // Linear in time, so interpolation at any instant is exact up to float rounding
+    private static float signal(long timestamp, int axis) {
+        return (float) (timestamp / 1e6) * (axis + 1);
+    }
+
+    private static void emit(IMUAlignmentEngine engine, short sensor, long timestamp) throws IOException {
+        float[] values = {signal(timestamp, 0), signal(timestamp, 1), signal(timestamp, 2)};
+        engine.onSample(timestamp, sensor, values, 0, 3);
+    }
+
+    private static File sidecar() throws IOException {
+        File file = File.createTempFile("imu", ".align");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void framesGetInterpolatedValuesAndTheRawSamplesBeforeThem() throws IOException {
+        File file = sidecar();
+        IMUAlignmentEngine engine = new IMUAlignmentEngine(new ChannelIMUStorage(file),
+                new short[] {ACCELEROMETER, GYROSCOPE}, MAX_WAIT_NS);
+        // 400 Hz accelerometer and 200 Hz gyroscope at odd phases against 30 fps frames over ten seconds
+        long accelerometer_time = 1_000_000, gyroscope_time = 3_700_000, frame_time = 20_000_000;
+        int frames = 0;
+        for (long now = 0; now < 10_000_000_000L; now += 100_000) {
+            while (accelerometer_time <= now) {
+                emit(engine, ACCELEROMETER, accelerometer_time);
+                accelerometer_time += 2_500_000;
+            }
+            while (gyroscope_time <= now) {
+                emit(engine, GYROSCOPE, gyroscope_time);
+                gyroscope_time += 5_000_000;
+            }
+            if (frame_time <= now) {
+                assertTrue(engine.submitFrame(frame_time));
+                frame_time += 33_333_333;
+                ++frames;
+            }
+        }
+        engine.close();
+        assertEquals(frames, engine.getAlignedFrameCount());
+        assertEquals(0, engine.getDroppedRawSampleCount());
+
+        long[] raw_totals = new long[2];
+        long[] last_raw = {Long.MIN_VALUE, Long.MIN_VALUE};
+        try (IMUAlignmentReader reader = new IMUAlignmentReader(new FileInputStream(file))) {
+            assertArrayEquals(new short[] {ACCELEROMETER, GYROSCOPE}, reader.getSensorIds());
+            int read = 0, held = 0;
+            while (reader.next()) {
+                ++read;
+                if (reader.held_flags != 0) {
+                    ++held;
+                    continue;
+                }
+                for (int sensor = 0; sensor < 2; ++sensor) {
+                    for (int axis = 0; axis < 3; ++axis) {
+                        float expected = signal(reader.frame_timestamp, axis);
+                        assertEquals(expected, reader.interpolated[sensor][axis], Math.abs(expected) * 1e-5);
+                    }
+                    // Raw samples are the sensor's own, in order, none after the frame and none repeated
+                    for (int j = 0; j < reader.raw_counts[sensor]; ++j) {
+                        long timestamp = reader.raw_timestamps[sensor][j];
+                        assertTrue(timestamp > last_raw[sensor] && timestamp <= reader.frame_timestamp);
+                        assertEquals(signal(timestamp, 1), reader.raw_values[sensor][j * 3 + 1], 0);
+                        last_raw[sensor] = timestamp;
+                    }
+                    raw_totals[sensor] += reader.raw_counts[sensor];
+                }
+            }
+            assertEquals(frames, read);
+            // Only frames the sensors had not yet passed when the session stopped are held
+            assertTrue(held <= 1);
+        }
+        // Every sample up to the last frame was handed out once
+        assertTrue(raw_totals[0] > 3000 && raw_totals[1] > 1500);
+    }
+
+    @Test
+    public void stalledSensorIsGivenUpOnAfterTheWait() throws IOException {
+        File file = sidecar();
+        IMUAlignmentEngine engine = new IMUAlignmentEngine(new ChannelIMUStorage(file),
+                new short[] {ACCELEROMETER, GYROSCOPE}, MAX_WAIT_NS);
+        emit(engine, GYROSCOPE, 0);
+        engine.submitFrame(10_000_000);
+        // The gyroscope stops; the frame stays pending until the accelerometer is more than the wait past it
+        for (long timestamp = 0; timestamp <= 500_000_000; timestamp += 5_000_000) emit(engine, ACCELEROMETER, timestamp);
+        assertEquals(0, engine.getAlignedFrameCount());
+        emit(engine, ACCELEROMETER, 515_000_000);
+        assertEquals(1, engine.getAlignedFrameCount());
+        engine.close();
+
+        try (IMUAlignmentReader reader = new IMUAlignmentReader(new FileInputStream(file))) {
+            assertTrue(reader.next());
+            assertFalse(reader.isHeld(0));
+            assertTrue(reader.isHeld(1));
+            assertEquals(signal(0, 2), reader.interpolated[1][2], 0);
+            assertEquals(1, reader.raw_counts[1]);
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void memoryStaysBoundedWithoutFrames() throws IOException {
+        File file = sidecar();
+        IMUAlignmentEngine engine = new IMUAlignmentEngine(new ChannelIMUStorage(file), new short[] {GYROSCOPE},
+                MAX_WAIT_NS, 64, 4);
+        // Samples nobody claims are evicted from the window instead of accumulating
+        for (long timestamp = 0; timestamp < 1000; ++timestamp) emit(engine, GYROSCOPE, timestamp);
+        assertEquals(1000 - 64, engine.getDroppedRawSampleCount());
+        // Frames beyond the frame ring's capacity are refused rather than queued
+        for (long frame = 2000; frame < 2010; ++frame) engine.submitFrame(frame);
+        assertEquals(6, engine.getDroppedFrameCount());
+        engine.close();
+        assertEquals(4, engine.getAlignedFrameCount());
+
+        try (IMUAlignmentReader reader = new IMUAlignmentReader(new FileInputStream(file))) {
+            assertTrue(reader.next());
+            // The first frame carries the samples the window still held
+            assertEquals(64, reader.raw_counts[0]);
+            assertEquals(936, reader.raw_timestamps[0][0]);
+            assertTrue(reader.next());
+            assertEquals(0, reader.raw_counts[0]);
+        }
+    }
+
+    @Test
+    public void sessionWithoutFramesHoldsOnlyTheHeader() throws IOException {
+        File file = sidecar();
+        IMUAlignmentEngine engine = new IMUAlignmentEngine(new ChannelIMUStorage(file),
+                new short[] {ACCELEROMETER, GYROSCOPE}, MAX_WAIT_NS);
+        for (long timestamp = 0; timestamp < 100; ++timestamp) emit(engine, GYROSCOPE, timestamp);
+        engine.close();
+        assertEquals(IMUAlignmentEngine.headerSize(2), file.length());
+    }
+}
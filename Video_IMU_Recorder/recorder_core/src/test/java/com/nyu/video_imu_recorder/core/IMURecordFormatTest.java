@@ -0,0 +1,79 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip of the binary IMU record format through IMURecordWriter and IMURecordReader, and version 1 files with
+ * trailing fields.
+ */
+public class IMURecordFormatTest {
+
+    private static final short ACCELEROMETER = 10, GYROSCOPE = 4;
+
+    private File writeSession() throws IOException {
+        File file = File.createTempFile("imu", ".imu");
+        file.deleteOnExit();
+        try (IMURecordWriter writer = new IMURecordWriter(file, new short[] {ACCELEROMETER, GYROSCOPE},
+                new String[] {"Linear Acceleration", "Goldfish 3-axis Gyroscope"})) {
+            writer.writeSample(1578699792815L, GYROSCOPE, new float[] {0.0f, -1.5f, 3.25e-5f}, 3);
+            writer.writeVideoStart(1578699792900L, -85);
+            writer.writeSample(1578699792950L, ACCELEROMETER, new float[] {9.81f, 0.1f, -0.2f}, 2);
+        }
+        return file;
+    }
+
+    @Test
+    public void convertsBackToTextLayout() throws IOException {
+        StringWriter text = new StringWriter();
+        IMURecordReader.convertToText(new FileInputStream(writeSession()), text);
+        assertEquals("1578699792815 Goldfish 3-axis Gyroscope [0.0, -1.5, 3.25E-5]\n"
+                + "1578699792900 video recording started. Latency between IMU and camera: 85 (IMU started sooner)\n"
+                + "1578699792950 Linear Acceleration [9.81, 0.1, -0.2]\n", text.toString());
+    }
+
+    @Test
+    public void recordsAreFixedWidth() throws IOException {
+        File file = writeSession();
+        try (IMURecordWriter writer = new IMURecordWriter(file, new short[] {GYROSCOPE}, new String[] {"unused"})) {
+            writer.writeSample(1578699793000L, GYROSCOPE, new float[] {1, 2, 3}, 0);
+        }
+        try (IMURecordReader reader = new IMURecordReader(new FileInputStream(file))) {
+            int records = 0;
+            while (reader.next()) ++records;
+            assertEquals(4, records);
+            assertEquals(1578699793000L, reader.timestamp);
+            assertEquals(GYROSCOPE, reader.sensor_id);
+            assertEquals(2, reader.getSensorNames().size());
+        }
+        long header = 4 + 2 + 2 + 2 + 2 * 4 + "Linear Acceleration".length() + "Goldfish 3-axis Gyroscope".length();
+        assertEquals(header + 4L * IMURecordFormat.RECORD_SIZE, file.length());
+    }
+
+    @Test
+    public void trailingFieldsOfVersionOneFilesAreSkipped() throws IOException {
+        // Version 1 records eight bytes wider than RECORD_SIZE, whose extra fields are no sensor values
+        int record_size = IMURecordFormat.RECORD_SIZE + 8;
+        ByteBuffer file = ByteBuffer.allocate(64 + 2 * record_size);
+        file.putInt(IMURecordFormat.MAGIC).putShort((short) 1).putShort((short) record_size).putShort((short) 1)
+                .putShort(GYROSCOPE).putShort((short) 4).put("Gyro".getBytes());
+        file.putLong(10).putShort(GYROSCOPE).putShort((short) 3).putFloat(1).putFloat(2).putFloat(3).putLong(-1);
+        file.putLong(20).putShort(GYROSCOPE).putShort((short) 3).putFloat(4).putFloat(5).putFloat(6).putLong(-1);
+        try (IMURecordReader reader = new IMURecordReader(new ByteArrayInputStream(file.array(), 0, file.position()))) {
+            assertTrue(reader.next());
+            assertArrayEquals(new float[] {1, 2, 3}, reader.values, 0);
+            assertTrue(reader.next());
+            assertEquals(20, reader.timestamp);
+            assertArrayEquals(new float[] {4, 5, 6}, reader.values, 0);
+            assertFalse(reader.next());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * A whole recording through the IMURecorder facade, the way the activities drive it, read back from both files.
+ */
+public class IMURecorderTest {
+
+    private static final short ACCELEROMETER = 10, GYROSCOPE = 4;
+
+    @Test
+    public void recordsSamplesMarkersAndAlignedFrames() throws IOException {
+        File file = File.createTempFile("imu", ".imu"), sidecar = File.createTempFile("imu", ".align");
+        File preintegrated = File.createTempFile("imu", ".preint");
+        file.deleteOnExit();
+        sidecar.deleteOnExit();
+        preintegrated.deleteOnExit();
+        short[] sensor_ids = {ACCELEROMETER, GYROSCOPE};
+        SessionClock clock = new SessionClock();
+        clock.setCameraTimestampsRealtime(true);
+        IMUAlignmentEngine alignment = new IMUAlignmentEngine(new ChannelIMUStorage(sidecar), sensor_ids, 500_000_000);
+        GyroPreintegrator preintegration = new GyroPreintegrator(new ChannelIMUStorage(preintegrated), GYROSCOPE,
+                new float[3], ACCELEROMETER, new float[3], 500_000_000);
+        IMURecorder recorder = new IMURecorder(new ChannelIMUStorage(file), sensor_ids,
+                new String[] {"Linear Acceleration", "Gyroscope"}, clock, new GroupCommitPolicy(1000, 4096, 0), alignment,
+                preintegration);
+        recorder.start();
+        recorder.writeSensorRate(0, GYROSCOPE, 5000, 0, Float.NaN);
+        // Both sensors at 200 Hz for three seconds, so the sensor clock gets mapped, with a ~30 fps camera starting 100 ms in
+        for (long timestamp = 1_000_000_000; timestamp < 4_000_000_000L; timestamp += 5_000_000) {
+            assertTrue(recorder.onSample(timestamp, timestamp + 1_000_000, ACCELEROMETER, new float[] {1, 2, 3}, 3));
+            assertTrue(recorder.onSample(timestamp + 1_000_000, timestamp + 2_000_000, GYROSCOPE,
+                    new float[] {(timestamp + 1_000_000) / 1e9f, 0, 0}, 3));
+            if (timestamp % 35_000_000 == 0 && timestamp >= 1_100_000_000) {
+                // Frames fall between samples of both sensors
+                clock.markVideoStart(SessionClock.Domain.CAMERA_SENSOR, timestamp + 2_500_000);
+                assertTrue(recorder.submitFrame(timestamp + 2_500_000));
+            }
+        }
+        recorder.stop();
+        recorder.close();
+        assertEquals(0, recorder.getOverflowCount());
+        assertEquals(600, recorder.getStats(GYROSCOPE).getSampleCount());
+        try {
+            recorder.getStats((short) 1);
+            fail("Unrecorded sensor has stats");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        int samples = 0, markers = 0;
+        try (IMURecordReader reader = new IMURecordReader(new FileInputStream(file))) {
+            assertEquals("Gyroscope", reader.getSensorName(GYROSCOPE));
+            while (reader.next()) {
+                if (reader.isMarker()) ++markers;
+                else ++samples;
+            }
+        }
+        assertEquals(1200, samples);
+        // The sensor rate, the video start and at least one mapping per clock domain
+        assertTrue("markers " + markers, markers >= 4);
+
+        int frames = 0;
+        try (IMUAlignmentReader reader = new IMUAlignmentReader(new FileInputStream(sidecar))) {
+            while (reader.next()) {
+                ++frames;
+                // Only frames at the very end, with no later sample to interpolate towards, hold the last value
+                if (reader.frame_timestamp < 3_900_000_000L) assertEquals(0, reader.held_flags);
+                assertEquals(reader.frame_timestamp / 1e9f, reader.interpolated[1][0], 1e-3f);
+            }
+        }
+        assertEquals(recorder.getAlignment().getAlignedFrameCount(), frames);
+        assertTrue("frames " + frames, frames > 80);
+
+        // Every frame but the first ends an integrated interval
+        int intervals = 0;
+        try (GyroPreintegrationReader reader = new GyroPreintegrationReader(new FileInputStream(preintegrated))) {
+            while (reader.next()) ++intervals;
+        }
+        assertEquals(frames - 1, intervals);
+    }
+}
@@ -0,0 +1,217 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip of the compressed IMU stream format against the fixed-width one, block independence, and bit-exact values.
+ */
+public class IMUStreamCodecTest {
+
+    private static final short ACCELEROMETER = 10, GYROSCOPE = 4;
+    private static final short[] SENSOR_IDS = {ACCELEROMETER, GYROSCOPE};
+    private static final String[] SENSOR_NAMES = {"Linear Acceleration", "Goldfish 3-axis Gyroscope"};
+
+    // A 200 Hz session per sensor with timestamp jitter, a quantized gyroscope, a noisy accelerometer, accuracy changes,
+    // awkward float values, markers and a commit every simulated second
+    private static void recordSession(IMURecordWriter writer, int seconds) throws IOException {
+        Random random = new Random(42);
+        float[] values = new float[3];
+        long period = 5_000_000, timestamp = 1578699792815L;
+        writer.writeSensorRate(timestamp, GYROSCOPE, 5000, 0, 199.5f);
+        for (int sample = 0; sample < seconds * 200; ++sample) {
+            timestamp += period + random.nextInt(40_000) - 20_000;
+            double time = sample / 200.0;
+            for (int axis = 0; axis < 3; ++axis) {
+                values[axis] = (float) (Math.sin(time + axis) + 0.05 * random.nextGaussian());
+            }
+            if (sample == 123) values[1] = Float.NaN;
+            if (sample == 124) values[2] = -0.0f;
+            if (sample == 125) values[0] = Float.MIN_VALUE;
+            writer.writeSample(timestamp, ACCELEROMETER, values, sample < 400 ? 1 : 3);
+            for (int axis = 0; axis < 3; ++axis) {
+                values[axis] = Math.round(0.3 * Math.cos(2 * time + axis) / 0.0010652) * 0.0010652f;
+            }
+            if (sample == 777) values[0] = Float.POSITIVE_INFINITY;
+            writer.writeSample(timestamp + period / 2, GYROSCOPE, values, sample % 1000 == 999 ? 2 : 3);
+            if (sample == 300) writer.writeVideoStart(timestamp + 1000, -85);
+            if (sample % 200 == 199) {
+                writer.writeClockMapping(timestamp, (short) SessionClock.Domain.SENSOR_EVENT.ordinal(), 12345, -0.5f);
+                writer.commit();
+            }
+        }
+    }
+
+    private static File writeSession(boolean compressed, int seconds) throws IOException {
+        File file = File.createTempFile("imu", compressed ? ".imuz" : ".imu");
+        file.deleteOnExit();
+        try (IMURecordWriter writer = new IMURecordWriter(new ChannelIMUStorage(file), SENSOR_IDS, SENSOR_NAMES, compressed)) {
+            recordSession(writer, seconds);
+        }
+        return file;
+    }
+
+    // Every record with its exact bits, so NaN payloads and negative zero count as well
+    private static List<String> readRecords(IMURecordReader reader) throws IOException {
+        List<String> records = new ArrayList<>();
+        while (reader.next()) {
+            StringBuilder record = new StringBuilder().append(reader.timestamp).append(' ').append(reader.sensor_id)
+                    .append(' ').append(reader.accuracy);
+            if (reader.isMarker()) {
+                record.append(' ').append(reader.marker_payload).append(' ').append(reader.marker_extra);
+            } else {
+                for (float value : reader.values) record.append(' ').append(Float.floatToRawIntBits(value));
+            }
+            records.add(record.toString());
+        }
+        return records;
+    }
+
+    @Test
+    public void decodesToTheFixedWidthRecords() throws IOException {
+        File raw = writeSession(false, 30), compressed = writeSession(true, 30);
+        List<String> expected, decoded;
+        try (IMURecordReader reader = new IMURecordReader(new FileInputStream(raw))) {
+            expected = readRecords(reader);
+        }
+        List<Long> timestamps = new ArrayList<>();
+        try (IMURecordReader reader = new IMURecordReader(new FileInputStream(compressed))) {
+            assertTrue(reader.isCompressed());
+            assertEquals(SENSOR_NAMES[1], reader.getSensorName(GYROSCOPE));
+            while (reader.next()) timestamps.add(reader.timestamp);
+        }
+        try (IMURecordReader reader = new IMURecordReader(new FileInputStream(compressed))) {
+            decoded = readRecords(reader);
+        }
+        // Records come back in timestamp order rather than arrival order
+        List<Long> sorted = new ArrayList<>(timestamps);
+        Collections.sort(sorted);
+        assertEquals(sorted, timestamps);
+        Collections.sort(expected);
+        Collections.sort(decoded);
+        assertEquals(2 * 30 * 200 + 1 + 1 + 30, decoded.size());
+        assertEquals(expected, decoded);
+
+        assertTrue((double) compressed.length() / raw.length() < 0.7);
+    }
+
+    @Test
+    public void convertsToTheSameText() throws IOException {
+        List<String> expected = new ArrayList<>(), decoded = new ArrayList<>();
+        for (boolean compressed : new boolean[] {false, true}) {
+            try (IMURecordReader reader = new IMURecordReader(new FileInputStream(writeSession(compressed, 3)))) {
+                while (reader.next()) (compressed ? decoded : expected).add(reader.toText());
+            }
+        }
+        Collections.sort(expected);
+        Collections.sort(decoded);
+        assertEquals(expected, decoded);
+    }
+
+    @Test
+    public void blocksDecodeOnTheirOwn() throws IOException {
+        byte[] file = Files.readAllBytes(writeSession(true, 5).toPath());
+        int header = 4 + 2 + 2 + 2 + 2 * 4 + SENSOR_NAMES[0].length() + SENSOR_NAMES[1].length();
+        ByteBuffer bytes = ByteBuffer.wrap(file);
+        assertEquals(IMUStreamFormat.BLOCK_MAGIC, bytes.getInt(header));
+        int first_block = IMUStreamFormat.BLOCK_HEADER_SIZE + bytes.getInt(header + Integer.BYTES);
+
+        // Dropping the first block leaves a file that starts decoding right at the second one
+        byte[] rest = new byte[file.length - first_block];
+        System.arraycopy(file, 0, rest, 0, header);
+        System.arraycopy(file, header + first_block, rest, header, file.length - header - first_block);
+        List<String> all, remaining;
+        try (IMURecordReader reader = new IMURecordReader(new ByteArrayInputStream(file))) {
+            all = readRecords(reader);
+        }
+        try (IMURecordReader reader = new IMURecordReader(new ByteArrayInputStream(rest))) {
+            remaining = readRecords(reader);
+        }
+        assertFalse(remaining.isEmpty());
+        assertTrue(remaining.size() < all.size());
+        assertEquals(all.subList(all.size() - remaining.size(), all.size()), remaining);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptBlockFailsItsChecksum() throws IOException {
+        byte[] file = Files.readAllBytes(writeSession(true, 2).toPath());
+        file[file.length - 5] ^= 0x10;
+        try (IMURecordReader reader = new IMURecordReader(new ByteArrayInputStream(file))) {
+            while (reader.next()) assertTrue(reader.timestamp > 0);
+        }
+    }
+
+    @Test
+    public void fullChannelsStartNewBlocks() throws IOException {
+        File file = File.createTempFile("imu", ".imuz");
+        file.deleteOnExit();
+        int samples = 3 * IMUStreamFormat.BLOCK_SAMPLES + 17;
+        try (IMURecordWriter writer = new IMURecordWriter(new ChannelIMUStorage(file), SENSOR_IDS, SENSOR_NAMES, true)) {
+            float[] values = new float[3];
+            for (int i = 0; i < samples; ++i) {
+                values[i % 3] = i;
+                // Irregular gaps exercise large delta-of-deltas
+                writer.writeSample(1000L * i * i, GYROSCOPE, values, i % 7 == 0 ? -3 : i % 4);
+            }
+        }
+        try (IMUStreamDecoder decoder = new IMUStreamDecoder(new FileInputStream(file))) {
+            int blocks = 0, decoded = 0;
+            while (decoder.nextBlock()) {
+                ++blocks;
+                for (int i = 0; i < decoder.count; ++i, ++decoded) {
+                    assertEquals(1000L * decoded * decoded, decoder.timestamps[i]);
+                    assertEquals(decoded % 7 == 0 ? -3 : decoded % 4, decoder.accuracies[i]);
+                    assertEquals(decoded, decoder.values[3 * i + decoded % 3], 0);
+                }
+            }
+            assertEquals(4, blocks);
+            assertEquals(samples, decoded);
+        }
+    }
+
+    @Test
+    public void gaussianNoiseRoundTripsBitForBit() throws IOException {
+        // Noise at jittered timestamps is the hardest input for the codecs; IMUStreamEncoderBenchmark measures their speed
+        File file = File.createTempFile("imu", ".imuz");
+        file.deleteOnExit();
+        Random random = new Random(7);
+        int count = 20_000;
+        float[] values = new float[3 * count];
+        long[] timestamps = new long[count];
+        for (int i = 0; i < values.length; ++i) values[i] = (float) random.nextGaussian();
+        try (IMURecordWriter writer = new IMURecordWriter(new ChannelIMUStorage(file), SENSOR_IDS, SENSOR_NAMES, true)) {
+            long timestamp = 0;
+            float[] sample = new float[3];
+            for (int i = 0; i < count; ++i) {
+                timestamp += 2_500_000 + (i & 31);
+                timestamps[i] = timestamp;
+                System.arraycopy(values, 3 * i, sample, 0, 3);
+                writer.writeSample(timestamp, (i & 1) == 0 ? ACCELEROMETER : GYROSCOPE, sample, 3);
+            }
+        }
+        try (IMURecordReader reader = new IMURecordReader(new FileInputStream(file))) {
+            for (int i = 0; i < count; ++i) {
+                assertTrue(reader.next());
+                assertEquals(timestamps[i], reader.timestamp);
+                assertEquals((i & 1) == 0 ? ACCELEROMETER : GYROSCOPE, reader.sensor_id);
+                for (int axis = 0; axis < 3; ++axis) {
+                    assertEquals(Float.floatToRawIntBits(values[3 * i + axis]), Float.floatToRawIntBits(reader.values[axis]));
+                }
+            }
+            assertFalse(reader.next());
+        }
+        assertTrue(file.length() < (long) count * IMURecordFormat.RECORD_SIZE);
+    }
+}
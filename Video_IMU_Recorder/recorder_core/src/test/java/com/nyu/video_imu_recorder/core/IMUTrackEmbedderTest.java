@@ -0,0 +1,361 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Small MP4 files laid out as MediaMuxer writes them (moov last) and as streaming tools do (moov first, mdat open-ended
+ * to the end of the file) get an IMU track: the box structure stays valid, the video samples keep their bytes and
+ * offsets, and the track's samples hold exactly the records from the video start on.
+ */
+public class IMUTrackEmbedderTest {
+
+    private static final long VIDEO_START = 5_000_000_000L, SAMPLE_PERIOD = 2_500_000;
+    private static final short[] SENSOR_IDS = {10, 4};
+    private static final String[] SENSOR_NAMES = {"Linear Acceleration", "Gyroscope"};
+    private static final int VIDEO_SAMPLES = 60, SAMPLES_PER_CHUNK = 10;
+    private static final Set<String> CONTAINERS = Set.of("moov", "trak", "mdia", "minf", "stbl", "dinf", "tref", "edts");
+
+    private static byte[] ints(int... values) {
+        ByteBuffer data = ByteBuffer.allocate(4 * values.length);
+        for (int value : values) data.putInt(value);
+        return data.array();
+    }
+
+    private static final int[] MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    // A movie with one video track of the given samples, stored in chunks starting at chunk_offsets
+    private static byte[] videoMoov(byte[][] samples, long[] chunk_offsets) {
+        ByteBuffer mvhd = ByteBuffer.allocate(96).putInt(0).putInt(0).putInt(1000).putInt(2000).putInt(0x00010000)
+                .putShort((short) 0x0100);
+        mvhd.position(32);
+        for (int value : MATRIX) mvhd.putInt(value);
+        mvhd.position(92);
+        mvhd.putInt(2);
+        ByteBuffer tkhd = ByteBuffer.allocate(80).putInt(0).putInt(0).putInt(1).putInt(0).putInt(2000);
+        tkhd.position(36);
+        for (int value : MATRIX) tkhd.putInt(value);
+        tkhd.putInt(640 << 16).putInt(480 << 16);
+        ByteBuffer sizes = ByteBuffer.allocate(8 + 4 * samples.length).putInt(0).putInt(samples.length);
+        for (byte[] sample : samples) sizes.putInt(sample.length);
+        ByteBuffer offsets = ByteBuffer.allocate(4 + 4 * chunk_offsets.length).putInt(chunk_offsets.length);
+        for (long offset : chunk_offsets) offsets.putInt((int) offset);
+        byte[] stbl = Mp4Boxes.box("stbl", Mp4Boxes.fullBox("stsd", 0, 0, ints(0)),
+                Mp4Boxes.fullBox("stts", 0, 0, ints(1, samples.length, 1000 / 30)),
+                Mp4Boxes.fullBox("stsc", 0, 0, ints(1, 1, SAMPLES_PER_CHUNK, 1)), Mp4Boxes.fullBox("stsz", 0, 0, sizes.array()),
+                Mp4Boxes.fullBox("stco", 0, 0, offsets.array()));
+        byte[] minf = Mp4Boxes.box("minf", Mp4Boxes.fullBox("vmhd", 0, 1, new byte[8]), Mp4Boxes.box("dinf",
+                Mp4Boxes.fullBox("dref", 0, 0, ints(1), Mp4Boxes.fullBox("url ", 0, 1))), stbl);
+        byte[] mdia = Mp4Boxes.box("mdia", Mp4Boxes.fullBox("mdhd", 0, 0, ints(0, 0, 90000, 180000, 0x55C40000)),
+                Mp4Boxes.fullBox("hdlr", 0, 0, ints(0, Mp4Boxes.typeCode("vide"), 0, 0, 0),
+                        "VideoHandle\0".getBytes(StandardCharsets.US_ASCII)), minf);
+        return Mp4Boxes.box("moov", Mp4Boxes.fullBox("mvhd", 0, 0, mvhd.array()),
+                Mp4Boxes.box("trak", Mp4Boxes.fullBox("tkhd", 0, 3, tkhd.array()), mdia));
+    }
+
+    private static long[] chunkOffsets(byte[][] samples, long first) {
+        long[] offsets = new long[samples.length / SAMPLES_PER_CHUNK];
+        long position = first;
+        for (int i = 0; i < samples.length; ++i) {
+            if (i % SAMPLES_PER_CHUNK == 0) offsets[i / SAMPLES_PER_CHUNK] = position;
+            position += samples[i].length;
+        }
+        return offsets;
+    }
+
+    private static File writeMp4(byte[][] samples, boolean moov_first) throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        byte[] ftyp = Mp4Boxes.box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII), ints(0x200),
+                "isommp41".getBytes(StandardCharsets.US_ASCII));
+        file.write(ftyp);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (byte[] sample : samples) payload.write(sample);
+        if (moov_first) {
+            // The moov's size does not depend on the offsets it holds
+            int moov_size = videoMoov(samples, chunkOffsets(samples, 0)).length;
+            file.write(videoMoov(samples, chunkOffsets(samples, ftyp.length + moov_size + 8)));
+            // An mdat running to the end of the file, sized 0
+            file.write(ints(0, Mp4Boxes.typeCode("mdat")));
+            file.write(payload.toByteArray());
+        } else {
+            file.write(ints(8 + payload.size(), Mp4Boxes.typeCode("mdat")));
+            file.write(payload.toByteArray());
+            file.write(videoMoov(samples, chunkOffsets(samples, ftyp.length + 8)));
+        }
+        File mp4 = File.createTempFile("video", ".mp4");
+        mp4.deleteOnExit();
+        Files.write(mp4.toPath(), file.toByteArray());
+        return mp4;
+    }
+
+    // IMU data from a second before the video start to three seconds after it, with the video start marker
+    private static File writeIMUData(boolean compressed, List<long[]> expected) throws IOException {
+        File imu_data = File.createTempFile("imu", ".imu");
+        imu_data.deleteOnExit();
+        try (IMURecordWriter writer = new IMURecordWriter(new ChannelIMUStorage(imu_data), SENSOR_IDS, SENSOR_NAMES, compressed)) {
+            long timestamp = VIDEO_START - 1_000_000_000L;
+            for (int i = 0; timestamp < VIDEO_START + 3_000_000_000L; ++i, timestamp += SAMPLE_PERIOD) {
+                if (timestamp == VIDEO_START) writer.writeVideoStart(VIDEO_START, 1000);
+                short sensor = SENSOR_IDS[i % 2];
+                writer.writeSample(timestamp, sensor, new float[] {i, -i, i / 2f}, 3);
+                if (timestamp >= VIDEO_START) expected.add(new long[] {timestamp, sensor, i});
+            }
+        }
+        return imu_data;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long offset, long length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) length);
+        while (data.hasRemaining()) channel.read(data, offset + data.position());
+        return data.flip();
+    }
+
+    // Walks every container, checking that the sizes of the boxes inside add up
+    private static void checkStructure(ByteBuffer data, Mp4Boxes.Box box) throws IOException {
+        if (!CONTAINERS.contains(box.type)) return;
+        for (Mp4Boxes.Box child : Mp4Boxes.children(data, box)) checkStructure(data, child);
+    }
+
+    private static Mp4Boxes.Box track(ByteBuffer movie, Mp4Boxes.Box root, String handler) throws IOException {
+        for (Mp4Boxes.Box trak : Mp4Boxes.children(movie, root)) {
+            if (!trak.type.equals("trak")) continue;
+            Mp4Boxes.Box hdlr = Mp4Boxes.find(movie, trak, "mdia", "hdlr");
+            if (movie.getInt((int) hdlr.payloadOffset() + 8) == Mp4Boxes.typeCode(handler)) return trak;
+        }
+        return null;
+    }
+
+    // Offset of every sample of a track, from its sample-to-chunk, size and chunk offset tables
+    private static long[] sampleOffsets(ByteBuffer movie, Mp4Boxes.Box stbl, int[] sizes) throws IOException {
+        Mp4Boxes.Box stsc = Mp4Boxes.find(movie, stbl, "stsc"), stco = Mp4Boxes.find(movie, stbl, "stco");
+        Mp4Boxes.Box co64 = Mp4Boxes.find(movie, stbl, "co64");
+        assertEquals(1, movie.getInt((int) stsc.payloadOffset() + 4));
+        int per_chunk = movie.getInt((int) stsc.payloadOffset() + 12);
+        long[] offsets = new long[sizes.length];
+        for (int i = 0; i < sizes.length; ++i) {
+            int chunk = i / per_chunk;
+            offsets[i] = i % per_chunk != 0 ? offsets[i - 1] + sizes[i - 1] : stco != null
+                    ? movie.getInt((int) stco.payloadOffset() + 8 + 4 * chunk) & 0xFFFFFFFFL
+                    : movie.getLong((int) co64.payloadOffset() + 8 + 8 * chunk);
+        }
+        return offsets;
+    }
+
+    private static int[] sampleSizes(ByteBuffer movie, Mp4Boxes.Box stbl) throws IOException {
+        Mp4Boxes.Box stsz = Mp4Boxes.find(movie, stbl, "stsz");
+        int[] sizes = new int[movie.getInt((int) stsz.payloadOffset() + 8)];
+        for (int i = 0; i < sizes.length; ++i) sizes[i] = movie.getInt((int) stsz.payloadOffset() + 12 + 4 * i);
+        return sizes;
+    }
+
+    private void embedAndCheck(boolean moov_first, boolean compressed) throws IOException {
+        Random random = new Random(moov_first ? 1 : 2);
+        byte[][] samples = new byte[VIDEO_SAMPLES][];
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = new byte[500 + random.nextInt(3000)];
+            random.nextBytes(samples[i]);
+        }
+        File mp4 = writeMp4(samples, moov_first);
+        long original_length = mp4.length();
+        List<long[]> expected = new ArrayList<>();
+        File imu_data = writeIMUData(compressed, expected);
+        assertEquals(VIDEO_START, IMUTrackEmbedder.findVideoStart(new FileInputStream(imu_data)));
+
+        IMUTrackEmbedder.Result result = IMUTrackEmbedder.embed(mp4, new FileInputStream(imu_data), VIDEO_START,
+                IMUTrackFormat.DEFAULT_SAMPLE_INTERVAL_NS);
+        assertNotNull(result);
+        assertEquals(expected.size(), result.records);
+        assertEquals(30, result.samples);
+        assertEquals(original_length + result.mdat_bytes + result.moov_bytes, mp4.length());
+
+        try (FileChannel channel = FileChannel.open(mp4.toPath(), StandardOpenOption.READ)) {
+            List<Mp4Boxes.Box> top_level = Mp4Boxes.readTopLevel(channel);
+            List<String> types = new ArrayList<>();
+            for (Mp4Boxes.Box box : top_level) types.add(box.type);
+            assertEquals(moov_first ? Arrays.asList("ftyp", "free", "mdat", "mdat", "moov")
+                    : Arrays.asList("ftyp", "mdat", "free", "mdat", "moov"), types);
+            Mp4Boxes.Box moov = top_level.get(top_level.size() - 1);
+            ByteBuffer movie = read(channel, moov.offset, moov.size);
+            Mp4Boxes.Box root = new Mp4Boxes.Box("moov", 0, moov.size, moov.header_size);
+            checkStructure(movie, root);
+            Mp4Boxes.Box mvhd = Mp4Boxes.find(movie, root, "mvhd");
+            assertEquals(3, movie.getInt((int) mvhd.end() - 4));
+            // Three seconds on the movie's millisecond timescale
+            assertEquals(3000, movie.getInt((int) mvhd.payloadOffset() + 16));
+
+            // The video's samples are where they were, byte for byte
+            Mp4Boxes.Box video_stbl = Mp4Boxes.find(movie, track(movie, root, "vide"), "mdia", "minf", "stbl");
+            int[] video_sizes = sampleSizes(movie, video_stbl);
+            long[] video_offsets = sampleOffsets(movie, video_stbl, video_sizes);
+            for (int i = 0; i < samples.length; ++i) {
+                assertArrayEquals(samples[i], read(channel, video_offsets[i], video_sizes[i]).array());
+            }
+
+            Mp4Boxes.Box imu_track = track(movie, root, "meta");
+            Mp4Boxes.Box tkhd = Mp4Boxes.find(movie, imu_track, "tkhd");
+            assertEquals(result.track_id, movie.getInt((int) tkhd.payloadOffset() + 20));
+            assertEquals(2, result.track_id);
+            Mp4Boxes.Box cdsc = Mp4Boxes.find(movie, imu_track, "tref", "cdsc");
+            assertEquals(1, movie.getInt((int) cdsc.payloadOffset()));
+            Mp4Boxes.Box stbl = Mp4Boxes.find(movie, imu_track, "mdia", "minf", "stbl");
+            Mp4Boxes.Box stsd = Mp4Boxes.find(movie, stbl, "stsd");
+            Mp4Boxes.Box mett = Mp4Boxes.children(movie, (int) stsd.payloadOffset() + 8, (int) stsd.end()).get(0);
+            assertEquals("mett", mett.type);
+            int mime = (int) mett.payloadOffset() + 9;
+            assertEquals(IMUTrackFormat.MIME, new String(movie.array(), mime, IMUTrackFormat.MIME.length(), StandardCharsets.US_ASCII));
+            Mp4Boxes.Box imuh = Mp4Boxes.children(movie, mime + IMUTrackFormat.MIME.length() + 1, (int) mett.end()).get(0);
+            assertEquals(IMUTrackFormat.HEADER_BOX, imuh.type);
+            byte[] header = Arrays.copyOfRange(movie.array(), (int) imuh.payloadOffset(), (int) imuh.end());
+
+            // Reading every sample in turn, with the header in front, gives back the records from the video start on
+            int[] sizes = sampleSizes(movie, stbl);
+            long[] offsets = sampleOffsets(movie, stbl, sizes);
+            ByteArrayOutputStream track_data = new ByteArrayOutputStream();
+            track_data.write(header);
+            int next = 0;
+            for (int sample = 0; sample < sizes.length; ++sample) {
+                byte[] data = read(channel, offsets[sample], sizes[sample]).array();
+                track_data.write(data);
+                for (int record = 0; record < data.length; record += IMURecordFormat.RECORD_SIZE) {
+                    long timestamp = ByteBuffer.wrap(data).getLong(record) - VIDEO_START;
+                    assertEquals(sample, timestamp / IMUTrackFormat.DEFAULT_SAMPLE_INTERVAL_NS);
+                }
+            }
+            try (IMURecordReader reader = new IMURecordReader(new ByteArrayInputStream(track_data.toByteArray()))) {
+                assertEquals(SENSOR_NAMES[1], reader.getSensorName(SENSOR_IDS[1]));
+                while (reader.next()) {
+                    long[] record = expected.get(next++);
+                    assertFalse(reader.isMarker());
+                    assertEquals(record[0], reader.timestamp);
+                    assertEquals(record[1], reader.sensor_id);
+                    assertEquals(record[2], reader.values[0], 0);
+                    assertEquals(record[2] / 2f, reader.values[2], 0);
+                }
+            }
+            assertEquals(expected.size(), next);
+        }
+
+        // A second pass finds the track already there
+        assertNull(IMUTrackEmbedder.embed(mp4, new FileInputStream(imu_data), VIDEO_START, IMUTrackFormat.DEFAULT_SAMPLE_INTERVAL_NS));
+        assertEquals(original_length + result.mdat_bytes + result.moov_bytes, mp4.length());
+    }
+
+    @Test
+    public void moovAtTheEnd() throws IOException {
+        embedAndCheck(false, false);
+    }
+
+    @Test
+    public void moovInFrontOfAnOpenEndedMdat() throws IOException {
+        embedAndCheck(true, false);
+    }
+
+    @Test
+    public void compressedIMUData() throws IOException {
+        embedAndCheck(false, true);
+    }
+
+    @Test
+    public void pausedRecordingLeavesThePauseOut() throws IOException {
+        byte[][] samples = new byte[VIDEO_SAMPLES][];
+        for (int i = 0; i < samples.length; ++i) samples[i] = new byte[100];
+        File mp4 = writeMp4(samples, false);
+        List<long[]> recorded = new ArrayList<>();
+        File imu_data = writeIMUData(false, recorded);
+        // Recorded for a second, paused for half a second, then recorded to the end
+        long pause = VIDEO_START + 1_000_000_000L, resume = VIDEO_START + 1_500_000_000L;
+        IMUTrackEmbedder.Result result = IMUTrackEmbedder.embed(mp4, new FileInputStream(imu_data),
+                new long[] {VIDEO_START, resume}, new long[] {pause, Long.MAX_VALUE}, IMUTrackFormat.DEFAULT_SAMPLE_INTERVAL_NS);
+        assertNotNull(result);
+        List<long[]> expected = new ArrayList<>();
+        for (long[] record : recorded) if (record[0] < pause || record[0] >= resume) expected.add(record);
+        assertEquals(expected.size(), result.records);
+        // Two and a half seconds of video
+        assertEquals(25, result.samples);
+
+        try (FileChannel channel = FileChannel.open(mp4.toPath(), StandardOpenOption.READ)) {
+            List<Mp4Boxes.Box> top_level = Mp4Boxes.readTopLevel(channel);
+            Mp4Boxes.Box moov = top_level.get(top_level.size() - 1);
+            ByteBuffer movie = read(channel, moov.offset, moov.size);
+            Mp4Boxes.Box root = new Mp4Boxes.Box("moov", 0, moov.size, moov.header_size);
+            Mp4Boxes.Box mvhd = Mp4Boxes.find(movie, root, "mvhd");
+            assertEquals(2500, movie.getInt((int) mvhd.payloadOffset() + 16));
+            Mp4Boxes.Box stbl = Mp4Boxes.find(movie, track(movie, root, "meta"), "mdia", "minf", "stbl");
+            int[] sizes = sampleSizes(movie, stbl);
+            long[] offsets = sampleOffsets(movie, stbl, sizes);
+            int next = 0;
+            for (int sample = 0; sample < sizes.length; ++sample) {
+                ByteBuffer data = read(channel, offsets[sample], sizes[sample]);
+                for (int record = 0; record < sizes[sample]; record += IMURecordFormat.RECORD_SIZE) {
+                    long timestamp = data.getLong(record);
+                    assertEquals(expected.get(next++)[0], timestamp);
+                    // After the pause, the track runs behind the sensor clock by its length
+                    long track_time = timestamp - VIDEO_START - (timestamp >= resume ? resume - pause : 0);
+                    assertEquals(sample, track_time / IMUTrackFormat.DEFAULT_SAMPLE_INTERVAL_NS);
+                }
+            }
+            assertEquals(expected.size(), next);
+        }
+    }
+
+    @Test
+    public void segmentsFollowTheFramesOnTheSensorClock() throws IOException {
+        File file = File.createTempFile("frames", ".ftix");
+        file.deleteOnExit();
+        // 30 fps frames on a camera clock 3 seconds behind the sensor clock: ten, a pause of a second, then ten more
+        long camera_offset = 3_000_000_000L, frame_interval = 33_333_333;
+        try (FrameTimestampIndexWriter writer = new FrameTimestampIndexWriter(new ChannelIMUStorage(file), 4)) {
+            for (int frame = 0; frame < 20; ++frame) {
+                writer.append(VIDEO_START - camera_offset + frame * frame_interval + (frame >= 10 ? 1_000_000_000L : 0));
+            }
+        }
+        long[][] segments = IMUTrackEmbedder.segments(new FrameTimestampIndex(file), new int[] {0, 10},
+                new ClockDomainEstimator.Estimate(0, camera_offset, 0, 1));
+        assertArrayEquals(new long[] {VIDEO_START, VIDEO_START + 10 * frame_interval + 1_000_000_000L}, segments[0]);
+        assertArrayEquals(new long[] {VIDEO_START + 10 * frame_interval, Long.MAX_VALUE}, segments[1]);
+    }
+
+    @Test
+    public void cameraClockMappingIsReadBackFromTheIMUData() throws IOException {
+        File imu_data = File.createTempFile("imu", ".imu");
+        imu_data.deleteOnExit();
+        try (IMURecordWriter writer = new IMURecordWriter(new ChannelIMUStorage(imu_data), SENSOR_IDS, SENSOR_NAMES, true)) {
+            writer.writeSample(VIDEO_START, SENSOR_IDS[0], new float[3], 3);
+            writer.writeClockMapping(100, (short) SessionClock.Domain.CAMERA_SENSOR.ordinal(), 7, 0);
+            writer.writeClockMapping(200, (short) SessionClock.Domain.CAMERA_SENSOR.ordinal(), 9, 0);
+            writer.writeClockMapping(300, (short) SessionClock.Domain.SENSOR_EVENT.ordinal(), 11, 0);
+        }
+        ClockDomainEstimator.Estimate mapping = IMUTrackEmbedder.findClockMapping(new FileInputStream(imu_data),
+                SessionClock.Domain.CAMERA_SENSOR);
+        assertEquals(200, mapping.anchor_time);
+        assertEquals(9, mapping.offset_ns);
+        assertNull(IMUTrackEmbedder.findClockMapping(new FileInputStream(imu_data), SessionClock.Domain.ELAPSED_REALTIME));
+    }
+
+    @Test
+    public void nothingToEmbedLeavesTheFileAsItWas() throws IOException {
+        File mp4 = writeMp4(new byte[][] {new byte[10], new byte[10], new byte[10], new byte[10], new byte[10], new byte[10],
+                new byte[10], new byte[10], new byte[10], new byte[10]}, false);
+        byte[] original = Files.readAllBytes(mp4.toPath());
+        File imu_data = writeIMUData(false, new ArrayList<>());
+        assertNull(IMUTrackEmbedder.embed(mp4, new FileInputStream(imu_data), Long.MAX_VALUE, IMUTrackFormat.DEFAULT_SAMPLE_INTERVAL_NS));
+        assertArrayEquals(original, Files.readAllBytes(mp4.toPath()));
+    }
+}
@@ -0,0 +1,242 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * A live stream over loopback: a consumer that keeps up gets every sample and frame intact at a sound throughput and,
+ * at recording rates, with low latency, and one that stops reading only loses messages, is told so before it catches
+ * up, and never holds up the producers.
+ */
+public class LiveStreamTest {
+
+    private static final short[] SENSOR_IDS = {10, 4};
+    private static final String[] SENSOR_NAMES = {"Linear Acceleration", "Gyroscope"};
+    private static final int SAMPLES = 200_000, FRAMES = 200, FRAME_SIZE = 200 * 1024;
+
+    private static ByteBuffer frame(int index) {
+        ByteBuffer data = ByteBuffer.allocateDirect(FRAME_SIZE + index);
+        for (int i = 0; i < data.capacity(); ++i) data.put((byte) (i * 31 + index));
+        data.flip();
+        return data;
+    }
+
+    // Offers every sample, waiting whenever the ring is full, and every other frame of a burst through a tee
+    private static Thread producer(LiveStreamServer server, FrameSink frames) {
+        return new Thread(() -> {
+            float[] values = new float[3];
+            try {
+                for (int sample = 0; sample < SAMPLES; ++sample) {
+                    values[0] = sample;
+                    values[2] = -sample;
+                    while (!server.offerSample(sample, SENSOR_IDS[sample % 2], values, 3)) Thread.yield();
+                    if (sample % (SAMPLES / FRAMES) == 0) {
+                        int index = sample / (SAMPLES / FRAMES);
+                        frames.writeFrames(new long[] {index}, new ByteBuffer[] {frame(index)}, 1);
+                    }
+                }
+            } catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+    }
+
+    private static final class CountingSink implements FrameSink {
+        final AtomicInteger frames = new AtomicInteger();
+
+        @Override
+        public void writeFrame(long timestamp, ByteBuffer data) {
+            frames.incrementAndGet();
+            data.position(data.limit());
+        }
+
+        @Override
+        public void writeFrames(long[] timestamps, ByteBuffer[] data, int count) {
+            for (int i = 0; i < count; ++i) writeFrame(timestamps[i], data[i]);
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void consumerThatKeepsUpGetsEverything() throws Exception {
+        LiveStreamServer server = new LiveStreamServer(0, SENSOR_IDS, SENSOR_NAMES, LiveStreamServer.DropPolicy.DROP_OLDEST,
+                256L * 1024 * 1024, LiveStreamServer.DEFAULT_RING_CAPACITY);
+        server.start();
+        CountingSink stored = new CountingSink();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try (LiveStreamClient client = new LiveStreamClient("localhost", server.getPort())) {
+            assertEquals(SENSOR_NAMES[1], client.getSensorNames().get(SENSOR_IDS[1]));
+            Thread consumer = new Thread(() -> {
+                try {
+                    int samples = 0, frames = 0;
+                    CRC32 crc = new CRC32();
+                    while ((samples < SAMPLES || frames < FRAMES) && client.next()) {
+                        if (client.type == LiveStreamFormat.SAMPLES) {
+                            for (int i = 0; i < client.count; ++i, ++samples) {
+                                assertEquals(samples, client.getSampleTimestamp(i));
+                                assertEquals(SENSOR_IDS[samples % 2], client.getSampleSensorId(i));
+                                assertEquals(3, client.getSampleAccuracy(i));
+                                assertEquals(samples, client.getSampleValue(i, 0), 0);
+                                assertEquals(-samples, client.getSampleValue(i, 2), 0);
+                            }
+                        } else {
+                            assertEquals(LiveStreamFormat.FRAME, client.type);
+                            assertEquals(frames, client.getFrameTimestamp());
+                            assertEquals(FramePackFormat.FORMAT_JPEG, client.getFrameFormat());
+                            assertEquals(640, client.getFrameWidth());
+                            assertEquals(480, client.getFrameHeight());
+                            ByteBuffer data = client.getFrameData();
+                            assertEquals(frame(frames), data);
+                            crc.reset();
+                            crc.update(data);
+                            assertEquals((int) crc.getValue(), client.payload.getInt(24));
+                            ++frames;
+                        }
+                    }
+                    assertEquals(SAMPLES, samples);
+                    assertEquals(FRAMES, frames);
+                } catch (Throwable throwable) {
+                    failure.set(throwable);
+                }
+            });
+            consumer.start();
+            Thread producer = producer(server, server.tee(stored, FramePackFormat.FORMAT_JPEG, 640, 480));
+            long start = System.nanoTime();
+            producer.start();
+            producer.join();
+            consumer.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (failure.get() != null) throw new AssertionError(failure.get());
+            // Over 40 MB of frames and samples; loopback carries it many times faster than this floor, checks included
+            double bytes_per_second = client.getReceivedBytes() / seconds;
+            assertTrue(bytes_per_second + " B/s", bytes_per_second > 10e6);
+        } finally {
+            server.close();
+        }
+        assertEquals(FRAMES, stored.frames.get());
+        assertEquals(SAMPLES, server.getPublishedSamples());
+        assertEquals(0, server.getDroppedSamples() + server.getDroppedFrames());
+    }
+
+    // At the rates of a recording, rather than flat out, messages arrive within the batching interval plus a few writes
+    @Test(timeout = 60_000)
+    public void latencyAtRecordingRates() throws Exception {
+        LiveStreamServer server = new LiveStreamServer(0, SENSOR_IDS, SENSOR_NAMES, LiveStreamServer.DropPolicy.DROP_OLDEST,
+                LiveStreamServer.DEFAULT_QUEUE_BYTES, LiveStreamServer.DEFAULT_RING_CAPACITY);
+        server.start();
+        FrameSink frames = server.tee(new CountingSink(), FramePackFormat.FORMAT_JPEG, 640, 480);
+        LatencyHistogram sample_latency = new LatencyHistogram(), frame_latency = new LatencyHistogram();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        // About a second of two sensors at 500 Hz each and 30 frames per second
+        int ticks = 1000, frame_count = (ticks + 32) / 33;
+        try (LiveStreamClient client = new LiveStreamClient("localhost", server.getPort())) {
+            Thread consumer = new Thread(() -> {
+                try {
+                    int samples = 0, received_frames = 0;
+                    while ((samples < 2 * ticks || received_frames < frame_count) && client.next()) {
+                        if (client.type == LiveStreamFormat.FRAME) {
+                            frame_latency.record(client.latency_ns);
+                            ++received_frames;
+                        } else {
+                            sample_latency.record(client.latency_ns);
+                            samples += client.count;
+                        }
+                    }
+                } catch (Throwable throwable) {
+                    failure.set(throwable);
+                }
+            });
+            consumer.start();
+            float[] values = new float[3];
+            for (int tick = 0; tick < ticks; ++tick) {
+                server.offerSample(tick, SENSOR_IDS[0], values, 3);
+                server.offerSample(tick, SENSOR_IDS[1], values, 3);
+                if (tick % 33 == 0) frames.writeFrame(tick, frame(tick));
+                Thread.sleep(1);
+            }
+            consumer.join();
+            if (failure.get() != null) throw new AssertionError(failure.get());
+        } finally {
+            server.close();
+        }
+        assertEquals(0, server.getDroppedSamples() + server.getDroppedFrames());
+        // Generous, as the test shares the machine with everything else, but far below what a stalled writer would show
+        long bound_ns = (LiveStreamServer.BATCH_INTERVAL_MS + 50) * 1_000_000L;
+        assertTrue(sample_latency.toString(), sample_latency.getPercentileNs(0.99) < bound_ns);
+        assertTrue(frame_latency.toString(), frame_latency.getPercentileNs(0.99) < bound_ns);
+    }
+
+    @Test(timeout = 60_000)
+    public void consumerThatStopsReadingOnlyLosesMessages() throws Exception {
+        for (LiveStreamServer.DropPolicy policy : LiveStreamServer.DropPolicy.values()) {
+            LiveStreamServer server = new LiveStreamServer(0, SENSOR_IDS, SENSOR_NAMES, policy, 256 * 1024,
+                    LiveStreamServer.DEFAULT_RING_CAPACITY);
+            server.start();
+            CountingSink stored = new CountingSink();
+            try (LiveStreamClient client = new LiveStreamClient("localhost", server.getPort())) {
+                // Nothing is read while the burst is recorded
+                Thread producer = producer(server, server.tee(stored, FramePackFormat.FORMAT_JPEG, 640, 480));
+                producer.start();
+                producer.join();
+                assertEquals(FRAMES, stored.frames.get());
+                assertTrue(server.getDroppedFrames() > 0);
+
+                // Catching up afterwards, what arrives is in order and adds up with what was dropped
+                long samples = 0, frames = 0, last_sample = -1, last_frame = -1, noticed_samples = 0, noticed_frames = 0;
+                boolean noticed = false, data_after_notice = false;
+                while (client.next()) {
+                    data_after_notice |= noticed && client.type != LiveStreamFormat.DROPPED;
+                    if (client.type == LiveStreamFormat.SAMPLES) {
+                        samples += client.count;
+                        for (int i = 0; i < client.count; ++i) {
+                            assertTrue(client.getSampleTimestamp(i) > last_sample);
+                            last_sample = client.getSampleTimestamp(i);
+                        }
+                    } else if (client.type == LiveStreamFormat.FRAME) {
+                        ++frames;
+                        assertTrue(client.getFrameTimestamp() > last_frame);
+                        last_frame = client.getFrameTimestamp();
+                    } else {
+                        assertEquals(LiveStreamFormat.DROPPED, client.type);
+                        assertTrue(client.getDroppedSamples() >= noticed_samples && client.getDroppedFrames() >= noticed_frames);
+                        noticed_samples = client.getDroppedSamples();
+                        noticed_frames = client.getDroppedFrames();
+                        noticed = true;
+                    }
+                    // Done once the notice with the final totals and every message kept have arrived
+                    if (noticed_samples == server.getDroppedSamples() && noticed_frames == server.getDroppedFrames()
+                            && samples + noticed_samples == server.getPublishedSamples() && frames + noticed_frames == FRAMES) {
+                        break;
+                    }
+                }
+                assertEquals(server.getPublishedSamples(), samples + server.getDroppedSamples());
+                assertEquals(FRAMES, frames + server.getDroppedFrames());
+                // Notices go ahead of the queue, so the client heard of its losses before catching up
+                assertTrue(data_after_notice);
+            } finally {
+                server.close();
+            }
+        }
+    }
+
+    @Test
+    public void nothingIsCopiedWithoutClients() throws IOException {
+        LiveStreamServer server = new LiveStreamServer(0, SENSOR_IDS, SENSOR_NAMES, LiveStreamServer.DropPolicy.DROP_NEWEST,
+                LiveStreamServer.DEFAULT_QUEUE_BYTES, 16);
+        server.start();
+        try {
+            for (int i = 0; i < 1000; ++i) assertTrue(server.offerSample(i, SENSOR_IDS[0], new float[3], 0));
+            server.offerFrame(0, frame(0), FramePackFormat.FORMAT_JPEG, 640, 480);
+            assertEquals(0, server.getRingOverflowCount());
+            assertEquals(0, server.getPublishedFrames());
+        } finally {
+            server.close();
+        }
+    }
+}
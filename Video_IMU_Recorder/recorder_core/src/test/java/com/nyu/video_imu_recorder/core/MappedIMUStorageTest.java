@@ -0,0 +1,83 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * The memory-mapped IMU storage backend writes the same file as the stream backend for a few seconds of a 1 kHz,
+ * two-sensor session spanning several mapped chunks, and appends to an existing session. The two backends' speed over
+ * whole sessions is measured by IMUSessionBenchmark.
+ */
+public class MappedIMUStorageTest {
+
+    private static final int SESSION_SECONDS = 5, RATE_HZ = 1000;
+    // Small enough that the session crosses a dozen chunk boundaries
+    private static final long CHUNK_SIZE = 16 * 1024;
+    private static final short ACCELEROMETER = 10, GYROSCOPE = 4;
+
+    private interface StorageFactory {
+        IMUStorage open(File file) throws IOException;
+    }
+
+    // Writes the whole session with commits every simulated second, as the writer thread does by default
+    private static void recordSession(File file, StorageFactory factory) throws IOException {
+        IMURecordWriter writer = new IMURecordWriter(factory.open(file), new short[] {ACCELEROMETER, GYROSCOPE},
+                new String[] {"Linear Acceleration", "Gyroscope"});
+        float[] values = new float[3];
+        long period = 1_000_000_000L / RATE_HZ;
+        for (long sample = 0; sample < (long) SESSION_SECONDS * RATE_HZ; ++sample) {
+            long timestamp = sample * period;
+            values[0] = sample % 977;
+            writer.writeSample(timestamp, ACCELEROMETER, values, 3);
+            writer.writeSample(timestamp + period / 2, GYROSCOPE, values, 3);
+            if (sample % RATE_HZ == RATE_HZ - 1) writer.commit();
+        }
+        writer.close();
+    }
+
+    @Test
+    public void mappedStorageMatchesStreamStorage() throws IOException {
+        File stream_file = File.createTempFile("imu_stream", ".imu"), mapped_file = File.createTempFile("imu_mapped", ".imu");
+        stream_file.deleteOnExit();
+        mapped_file.deleteOnExit();
+        try {
+            recordSession(stream_file, ChannelIMUStorage::new);
+            recordSession(mapped_file, file -> new MappedIMUStorage(file, CHUNK_SIZE));
+
+            // Truncation on close leaves no pre-allocated tail behind
+            assertEquals(stream_file.length(), mapped_file.length());
+            assertArrayEquals(Files.readAllBytes(stream_file.toPath()), Files.readAllBytes(mapped_file.toPath()));
+            try (IMURecordReader reader = new IMURecordReader(Files.newInputStream(mapped_file.toPath()))) {
+                long records = 0;
+                while (reader.next()) ++records;
+                assertEquals(2L * SESSION_SECONDS * RATE_HZ, records);
+            }
+        } finally {
+            stream_file.delete();
+            mapped_file.delete();
+        }
+    }
+
+    @Test
+    public void mappedStorageAppendsToExistingSession() throws IOException {
+        File file = File.createTempFile("imu_mapped", ".imu");
+        file.deleteOnExit();
+        float[] values = {1, 2, 3};
+        for (int session = 0; session < 2; ++session) {
+            try (IMURecordWriter writer = new IMURecordWriter(new MappedIMUStorage(file, 4096), new short[] {GYROSCOPE},
+                    new String[] {"Gyroscope"})) {
+                for (int i = 0; i < 1000; ++i) writer.writeSample(session * 1000 + i, GYROSCOPE, values, 0);
+            }
+        }
+        try (IMURecordReader reader = new IMURecordReader(Files.newInputStream(file.toPath()))) {
+            long expected = 0;
+            while (reader.next()) assertEquals(expected++, reader.timestamp);
+            assertEquals(2000, expected);
+        }
+    }
+}
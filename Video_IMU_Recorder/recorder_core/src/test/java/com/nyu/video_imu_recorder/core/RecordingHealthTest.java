@@ -0,0 +1,169 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bucketing of LatencyHistogram under concurrent writers, and the metrics RecordingHealth gathers from a recording.
+ */
+public class RecordingHealthTest {
+
+    @Test
+    public void bucketsCoverEveryValueOnce() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100_000; ++i) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(bucket < LatencyHistogram.BUCKET_COUNT);
+            assertTrue(LatencyHistogram.lowerBound(bucket) <= value);
+            if (bucket + 1 < LatencyHistogram.BUCKET_COUNT) assertTrue(value < LatencyHistogram.lowerBound(bucket + 1));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreWithinABucketOfTheTruth() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 to 100 ms in 1 us steps, recorded by four threads at once
+        Thread[] writers = new Thread[4];
+        for (int w = 0; w < writers.length; ++w) {
+            int first = w;
+            writers[w] = new Thread(() -> {
+                for (long us = 1000 + first; us <= 100_000; us += writers.length) histogram.record(us * 1000);
+            });
+            writers[w].start();
+        }
+        for (Thread writer : writers) writer.join();
+        assertEquals(99_001, histogram.getCount());
+        assertEquals(100_000_000, histogram.getMaxNs());
+        assertEquals(50.5e6, histogram.getMeanNs(), 1e3);
+        for (double quantile : new double[] {0.5, 0.9, 0.99}) {
+            double expected = (1000 + quantile * 99_000) * 1000;
+            assertEquals(expected, histogram.getPercentileNs(quantile), expected / 8);
+        }
+        assertEquals(0, new LatencyHistogram().getPercentileNs(0.5));
+    }
+
+    @Test
+    public void summaryCoversStreamsLatenciesAndCounters() throws IOException {
+        AtomicLong now = new AtomicLong(0);
+        RecordingHealth health = new RecordingHealth(now::get);
+        SensorStreamStats frames = health.stream(RecordingHealth.FRAMES);
+        for (int i = 0; i < 300; ++i) frames.record(i * 33_333_333L);
+        health.stream("Gyro \"fast\"");
+        health.counter(RecordingHealth.RING_OVERFLOW).addAndGet(3);
+        health.addCounter(RecordingHealth.FRAMES_DROPPED, () -> 2);
+
+        FrameSink sink = health.track(new FrameSink() {
+            @Override
+            public void writeFrame(long timestamp, ByteBuffer data) {
+                data.position(data.limit());
+            }
+
+            @Override
+            public void writeFrames(long[] timestamps, ByteBuffer[] data, int count) {
+                for (int i = 0; i < count; ++i) writeFrame(timestamps[i], data[i]);
+            }
+        });
+        sink.writeFrame(0, ByteBuffer.allocate(1000));
+        sink.writeFrames(new long[] {1, 2}, new ByteBuffer[] {ByteBuffer.allocate(500), ByteBuffer.allocate(500)}, 2);
+        assertEquals(3, health.histogram(RecordingHealth.FRAME_SAVE_LATENCY).getCount());
+        assertEquals(2000, health.getCount(RecordingHealth.FRAME_BYTES_WRITTEN));
+
+        now.set(2_000_000_000L);
+        String json = health.toJson();
+        assertTrue(json, json.contains("\"duration_s\": 2.000"));
+        assertTrue(json, json.contains("\"camera_frames\": {\"samples\": 300, \"rate_hz\": 30.000"));
+        // A stream without samples has no rate, which JSON can only say as null
+        assertTrue(json, json.contains("\"Gyro \\\"fast\\\"\": {\"samples\": 0, \"rate_hz\": null"));
+        assertTrue(json, json.contains("\"frame_save_latency\": {\"count\": 3"));
+        assertTrue(json, json.contains("\"imu_ring_overflow\": 3"));
+        assertTrue(json, json.contains("\"frames_dropped\": 2"));
+        assertTrue(json, json.contains("\"bytes_per_second\": 1000.000"));
+
+        String overlay = health.toOverlayText();
+        assertTrue(overlay, overlay.contains("camera_frames: 30.0 Hz, jitter 0.00 ms, 0 gaps"));
+        assertTrue(overlay, overlay.endsWith("disk: 1.0 KB/s"));
+        // The overlay's disk rate covers only the time since it was last shown
+        now.set(3_000_000_000L);
+        assertTrue(health.toOverlayText().endsWith("disk: 0.0 KB/s"));
+
+        File summary = File.createTempFile("imu", ".health.json");
+        summary.deleteOnExit();
+        health.writeJson(summary);
+        assertTrue(summary.length() > 0);
+    }
+
+    @Test
+    public void startupMilestonesAreSummarized() throws InterruptedException {
+        RecordingHealth health = new RecordingHealth(() -> 0);
+        StartupTimeline startup = new StartupTimeline(1_000_000_000L);
+        health.setStartup(startup);
+        assertTrue(startup.mark(StartupTimeline.Phase.CAMERA_OPENED, 1_120_000_000L));
+        assertFalse(startup.mark(StartupTimeline.Phase.CAMERA_OPENED, 1_500_000_000L));
+        startup.mark(StartupTimeline.Phase.SESSION_CONFIGURED, 1_300_000_000L);
+        // Frames race each other to be the first; exactly one of them counts
+        Thread[] frames = new Thread[4];
+        int[] firsts = new int[1];
+        for (int i = 0; i < frames.length; ++i) {
+            long time = 1_400_000_000L + i;
+            frames[i] = new Thread(() -> {
+                if (startup.mark(StartupTimeline.Phase.FIRST_FRAME, time)) {
+                    synchronized (firsts) {
+                        ++firsts[0];
+                    }
+                }
+            });
+            frames[i].start();
+        }
+        for (Thread frame : frames) frame.join();
+        assertEquals(1, firsts[0]);
+        assertEquals(400, startup.getMillis(StartupTimeline.Phase.FIRST_FRAME), 1e-5);
+        assertFalse(startup.isMarked(StartupTimeline.Phase.FIRST_IMU_SAMPLE));
+
+        String json = health.toJson();
+        assertTrue(json, json.contains("\"startup_ms\": {\"camera_opened\": 120.000, \"session_configured\": 300.000, "
+                + "\"first_frame\": 400.00"));
+        assertTrue(json, json.contains("\"first_imu_sample\": null}"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void externalCounterCannotBeIncremented() {
+        RecordingHealth health = new RecordingHealth(System::nanoTime);
+        health.addCounter(RecordingHealth.FRAMES_DROPPED, () -> 0);
+        health.counter(RecordingHealth.FRAMES_DROPPED);
+    }
+
+    @Test
+    public void recordersAddToTheSessionHealth() throws IOException {
+        RecordingHealth health = new RecordingHealth(System::nanoTime);
+        SessionClock clock = new SessionClock();
+        short[] sensor_ids = {4};
+        float[] values = {0.1f, 0.2f, 0.3f};
+        long timestamp = 0;
+        // A paused and resumed recording uses a new recorder for each part
+        for (int part = 0; part < 2; ++part) {
+            File file = File.createTempFile("imu", ".imu");
+            file.deleteOnExit();
+            IMURecorder recorder = new IMURecorder(new ChannelIMUStorage(file), false, sensor_ids, new String[] {"Gyroscope"},
+                    clock, new GroupCommitPolicy(1, 1024, System.nanoTime()), null, null, health);
+            recorder.start();
+            for (int i = 0; i < 1000; ++i) recorder.onSample(timestamp += 5_000_000, timestamp, (short) 4, values, 3);
+            recorder.stop();
+            recorder.close();
+        }
+        assertEquals(2000, health.stream("Gyroscope").getSampleCount());
+        assertEquals(200, health.stream("Gyroscope").getAchievedRateHz(), 1e-6);
+        assertTrue(health.histogram(RecordingHealth.IMU_COMMIT_LATENCY).getCount() >= 2);
+        // Every sample was committed, along with whatever clock markers the recorders wrote
+        assertTrue(health.getCount(RecordingHealth.IMU_BYTES_WRITTEN) >= 2000L * IMURecordFormat.RECORD_SIZE);
+        assertEquals(0, health.getCount(RecordingHealth.RING_OVERFLOW));
+    }
+}
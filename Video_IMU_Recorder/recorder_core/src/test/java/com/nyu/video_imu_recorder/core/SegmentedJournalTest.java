@@ -0,0 +1,205 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Journals abandoned without being closed, as when the app is killed, and then cut or corrupted at random offsets of
+ * what reached storage: recovery keeps every complete block before the damage, checks only the tail, and writing
+ * carries on after it.
+ */
+public class SegmentedJournalTest {
+
+    private static final long SEGMENT_SIZE = 16 * 1024;
+
+    private static File newJournal() throws IOException {
+        File journal = Files.createTempDirectory("journal").toFile();
+        journal.deleteOnExit();
+        return journal;
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        try (InputStream stream = input) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) > 0) output.write(buffer, 0, read);
+            return output.toByteArray();
+        }
+    }
+
+    // Writes random data in blocks of random size, some of them gathered from several buffers; returns the data and the
+    // logical length after each block
+    private static byte[] writeBlocks(SegmentedJournalWriter writer, Random random, int blocks, long[] block_ends) throws IOException {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        for (int i = 0; i < blocks; ++i) {
+            byte[] data = new byte[1 + random.nextInt(3000)];
+            random.nextBytes(data);
+            written.write(data, 0, data.length);
+            if (random.nextBoolean()) {
+                writer.write(ByteBuffer.wrap(data));
+            } else {
+                int split = random.nextInt(data.length);
+                writer.write(new ByteBuffer[] {ByteBuffer.wrap(data, 0, split), ByteBuffer.allocateDirect(data.length - split)
+                        .put(data, split, data.length - split).flip()}, 0, 2);
+            }
+            if (random.nextInt(10) == 0) writer.sync();
+            block_ends[i] = written.size();
+        }
+        return written.toByteArray();
+    }
+
+    @Test
+    public void killedAtRandomOffsetsKeepsEveryCompleteBlock() throws IOException {
+        Random random = new Random(5);
+        for (int trial = 0; trial < 40; ++trial) {
+            File journal = newJournal();
+            SegmentedJournalWriter writer = new SegmentedJournalWriter(journal, SEGMENT_SIZE);
+            long[] block_ends = new long[200];
+            byte[] written = writeBlocks(writer, random, block_ends.length, block_ends);
+            int segments = writer.getSegmentCount();
+            assertTrue("segments " + segments, segments > 5);
+            // Never closed. Then the last segment lost a random part of its end, possibly in the middle of a block or
+            // header, or had a byte flipped, as if the kernel had written back only part of it.
+            File tail = SegmentedJournalFormat.segmentFile(journal, segments - 1);
+            long tail_size = tail.length(), tail_start = written.length - (tail_size - countHeaders(tail));
+            boolean corrupt = trial % 3 == 0 && tail_size > 0;
+            long damage = corrupt ? random.nextInt((int) tail_size) : random.nextInt((int) tail_size + 1);
+            try (RandomAccessFile file = new RandomAccessFile(tail, "rw")) {
+                if (corrupt) {
+                    file.seek(damage);
+                    int value = file.read();
+                    file.seek(damage);
+                    file.write(value ^ 0x10);
+                } else {
+                    file.setLength(damage);
+                }
+            }
+
+            // Reading before recovery already stops at the damage
+            byte[] before_recovery = readAll(new SegmentedJournalReader(journal));
+            SegmentedJournalReader.Recovery recovery = SegmentedJournalReader.recover(journal);
+            assertFalse(recovery.closed);
+            assertEquals(1, recovery.segments_scanned);
+            byte[] recovered = readAll(new SegmentedJournalReader(journal));
+            assertArrayEquals(before_recovery, recovered);
+            assertEquals(recovery.length, recovered.length);
+            assertArrayEquals(Arrays.copyOf(written, recovered.length), recovered);
+            // Every block that ended before the damage survived, and nothing from the damaged block on did
+            long last_kept = tail_start;
+            for (long end : block_ends) {
+                long physical_end = end - tail_start + headersBefore(block_ends, end, tail_start);
+                if (end > tail_start && physical_end <= damage) last_kept = end;
+            }
+            assertEquals("trial " + trial, last_kept, recovered.length);
+
+            // Recovering again finds nothing more to cut, and writing carries on from the recovered end
+            assertEquals(0, SegmentedJournalReader.recover(journal).discarded_bytes);
+            SegmentedJournalWriter reopened = new SegmentedJournalWriter(journal, SEGMENT_SIZE);
+            assertEquals(recovered.length, reopened.size());
+            byte[] more = new byte[5000];
+            random.nextBytes(more);
+            reopened.write(ByteBuffer.wrap(more));
+            reopened.close();
+            byte[] expected = Arrays.copyOf(recovered, recovered.length + more.length);
+            System.arraycopy(more, 0, expected, recovered.length, more.length);
+            assertArrayEquals(expected, readAll(new SegmentedJournalReader(journal)));
+            assertTrue(SegmentedJournalReader.recover(journal).closed);
+            assertEquals(0, SegmentedJournalReader.recover(journal).segments_scanned);
+        }
+    }
+
+    private static long countHeaders(File segment) throws IOException {
+        long headers = 0, position = 0, size = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            while (position < size) {
+                file.seek(position + 4);
+                position += SegmentedJournalFormat.BLOCK_HEADER_SIZE + file.readInt();
+                headers += SegmentedJournalFormat.BLOCK_HEADER_SIZE;
+            }
+        }
+        return headers;
+    }
+
+    // Header bytes of the tail segment up to and including the block ending at end
+    private static long headersBefore(long[] block_ends, long end, long tail_start) {
+        long headers = 0;
+        for (long block_end : block_ends) {
+            if (block_end > tail_start && block_end <= end) headers += SegmentedJournalFormat.BLOCK_HEADER_SIZE;
+        }
+        return headers;
+    }
+
+    @Test
+    public void crashBetweenSealingAndTheNextSegment() throws IOException {
+        File journal = newJournal();
+        SegmentedJournalWriter writer = new SegmentedJournalWriter(journal, SEGMENT_SIZE);
+        long[] block_ends = new long[100];
+        byte[] written = writeBlocks(writer, new Random(9), block_ends.length, block_ends);
+        int segments = writer.getSegmentCount();
+        // The manifest already counts the last segment as sealed when the next one is still to be created
+        File tail = SegmentedJournalFormat.segmentFile(journal, segments - 1);
+        assertTrue(tail.delete());
+        SegmentedJournalReader.Recovery recovery = SegmentedJournalReader.recover(journal);
+        assertEquals(0, recovery.segments_scanned);
+        assertEquals(segments - 1, recovery.segment_count);
+        byte[] recovered = readAll(new SegmentedJournalReader(journal));
+        assertArrayEquals(Arrays.copyOf(written, recovered.length), recovered);
+        assertEquals(recovery.length, recovered.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptionInASealedSegmentIsAnError() throws IOException {
+        File journal = newJournal();
+        SegmentedJournalWriter writer = new SegmentedJournalWriter(journal, SEGMENT_SIZE);
+        writeBlocks(writer, new Random(3), 100, new long[100]);
+        writer.close();
+        try (RandomAccessFile file = new RandomAccessFile(SegmentedJournalFormat.segmentFile(journal, 1), "rw")) {
+            file.seek(100);
+            file.write(file.read() ^ 1);
+        }
+        readAll(new SegmentedJournalReader(journal));
+    }
+
+    @Test
+    public void imuRecordsAndFramePacksRoundTrip() throws IOException {
+        File imu_journal = newJournal(), frame_journal = newJournal();
+        short[] sensor_ids = {10, 4};
+        try (IMURecordWriter writer = new IMURecordWriter(new SegmentedJournalWriter(imu_journal, SEGMENT_SIZE), sensor_ids,
+                new String[] {"Linear Acceleration", "Gyroscope"})) {
+            for (int i = 0; i < 5000; ++i) {
+                writer.writeSample(i, sensor_ids[i % 2], new float[] {i, 0, 0}, 3);
+                if (i % 500 == 0) writer.commit();
+            }
+        }
+        int samples = 0;
+        try (IMURecordReader reader = new IMURecordReader(new SegmentedJournalReader(imu_journal))) {
+            while (reader.next()) assertEquals(samples++, reader.timestamp);
+        }
+        assertEquals(5000, samples);
+
+        FramePackWriter frame_pack = new FramePackWriter(new SegmentedJournalWriter(frame_journal, SEGMENT_SIZE),
+                FramePackFormat.FORMAT_JPEG, 64, 48);
+        for (int i = 0; i < 50; ++i) frame_pack.writeFrame(i * 1000L, ByteBuffer.wrap(new byte[1000 + i]));
+        frame_pack.close();
+        File exported = File.createTempFile("frames", ".frames");
+        exported.deleteOnExit();
+        SegmentedJournalReader.export(frame_journal, exported);
+        try (FramePackReader reader = new FramePackReader(exported)) {
+            assertFalse(reader.wasRecovered());
+            assertEquals(50, reader.getFrameCount());
+            assertEquals(1049, reader.readFrame(49).remaining());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rate accounting for sensors sampled at a configured period, with and without hardware FIFO batching.
+ */
+public class SensorRateTest {
+
+    // Stands in for a sensor hub: samples every period_ns with jitter and delivers them in bursts every max_report_latency_ns
+    private static class FakeSensorSource {
+        private final long period_ns, max_report_latency_ns;
+        private final Random random = new Random(42);
+
+        FakeSensorSource(long period_ns, long max_report_latency_ns) {
+            this.period_ns = period_ns;
+            this.max_report_latency_ns = max_report_latency_ns;
+        }
+
+        // Runs for duration_ns, handing each sample's event timestamp and delivery time to the stats objects
+        void run(long duration_ns, SensorStreamStats event_stats, SensorStreamStats delivery_stats) {
+            long pending_since = -1;
+            int pending = 0;
+            long[] batch = new long[(int) (max_report_latency_ns / period_ns) + 2];
+            for (long timestamp = 0; timestamp < duration_ns; timestamp += period_ns + random.nextInt(20_000) - 10_000) {
+                if (pending_since < 0) pending_since = timestamp;
+                batch[pending++] = timestamp;
+                if (timestamp - pending_since >= max_report_latency_ns || pending == batch.length) {
+                    for (int i = 0; i < pending; ++i) {
+                        event_stats.record(batch[i]);
+                        delivery_stats.record(timestamp + i * 1000L);
+                    }
+                    pending = 0;
+                    pending_since = -1;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unbatchedRateMatchesRequestedPeriod() {
+        SensorStreamStats event_stats = new SensorStreamStats(), delivery_stats = new SensorStreamStats();
+        new FakeSensorSource(2_500_000, 0).run(60_000_000_000L, event_stats, delivery_stats);
+        assertEquals(400, event_stats.getAchievedRateHz(), 1);
+        assertEquals(0, event_stats.getGapCount());
+    }
+
+    @Test
+    public void batchedSamplesKeepTheirRateWhenAccountedByEventTimestamp() {
+        SensorStreamStats event_stats = new SensorStreamStats(), delivery_stats = new SensorStreamStats();
+        // 400 Hz with samples held in the FIFO for up to 100 ms
+        new FakeSensorSource(2_500_000, 100_000_000).run(60_000_000_000L, event_stats, delivery_stats);
+        assertEquals(400, event_stats.getAchievedRateHz(), 1);
+        assertEquals(0, event_stats.getGapCount());
+        // Delivery times arrive in bursts, which would look like a gap before every batch
+        assertTrue(delivery_stats.getGapCount() > 500);
+    }
+
+    @Test
+    public void requestedAndAchievedRatesAreRecorded() throws IOException {
+        File file = File.createTempFile("imu", ".imu");
+        file.deleteOnExit();
+        SensorStreamStats stats = new SensorStreamStats();
+        new FakeSensorSource(5_000_000, 0).run(10_000_000_000L, stats, new SensorStreamStats());
+        try (IMURecordWriter writer = new IMURecordWriter(file, new short[] {4}, new String[] {"Gyroscope"})) {
+            writer.writeSensorRate(0, (short) 4, 5000, 20_000, Float.NaN);
+            writer.writeSensorRate(10_000_000_000L, (short) 4, 5000, 20_000, (float) stats.getAchievedRateHz());
+        }
+
+        StringWriter text = new StringWriter();
+        IMURecordReader.convertToText(new FileInputStream(file), text, true);
+        String[] lines = text.toString().split("\n");
+        assertEquals("0 Gyroscope sampling: requested period 5000 us, max report latency 20000 us, achieved rate NaN Hz", lines[0]);
+        // The original text layout has no sampling lines
+        StringWriter legacy = new StringWriter();
+        IMURecordReader.convertToText(new FileInputStream(file), legacy);
+        assertEquals("", legacy.toString());
+        try (IMURecordReader reader = new IMURecordReader(new FileInputStream(file))) {
+            reader.next();
+            reader.next();
+            assertEquals(IMURecordFormat.SENSOR_RATE_ID, reader.sensor_id);
+            assertEquals(4, reader.accuracy);
+            assertEquals(200, Float.intBitsToFloat(reader.marker_extra), 1);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Eight sensors of different widths fed from their own threads as fast as they can go, each stream's file read back on
+ * its own.
+ */
+public class SensorStreamRegistryTest {
+
+    // Sensor ids and value counts as for a barometer, accelerometer, magnetometer, gyroscope, game rotation vector,
+    // rotation vector and the uncalibrated gyroscope and magnetometer
+    private static final short[] SENSOR_IDS = {6, 1, 2, 4, 15, 11, 16, 14};
+    private static final int[] VALUE_COUNTS = {1, 3, 3, 3, 4, 5, 6, 6};
+    private static final int SAMPLES = 200_000;
+
+    private static float value(long sample, int index) {
+        return sample + index / 8f;
+    }
+
+    @Test
+    public void concurrentStreamsAreRecordedSeparately() throws Exception {
+        RecordingHealth health = new RecordingHealth(System::nanoTime);
+        SensorStreamRegistry registry = new SensorStreamRegistry(50, 64 * 1024, health);
+        File[] files = new File[SENSOR_IDS.length];
+        for (int i = 0; i < SENSOR_IDS.length; ++i) {
+            files[i] = File.createTempFile("stream" + i, ".imu");
+            files[i].deleteOnExit();
+            assertEquals(i, registry.add(SENSOR_IDS[i], "sensor " + SENSOR_IDS[i], VALUE_COUNTS[i],
+                    new ChannelIMUStorage(files[i]), SensorStreamRegistry.DEFAULT_RING_CAPACITY));
+        }
+        assertEquals(5, registry.streamOf((short) 11));
+        assertEquals(-1, registry.streamOf((short) 10));
+        assertEquals(-1, registry.streamOf((short) 1000));
+        registry.start();
+
+        // Which samples each producer got into its ring; the rest were dropped when the writer fell behind
+        boolean[][] accepted = new boolean[SENSOR_IDS.length][SAMPLES];
+        Thread[] producers = new Thread[SENSOR_IDS.length];
+        for (int i = 0; i < producers.length; ++i) {
+            int stream = i;
+            producers[i] = new Thread(() -> {
+                // Devices hand over as many values as they have, sometimes more than the stream keeps
+                float[] values = new float[VALUE_COUNTS[stream] + 1];
+                for (int sample = 0; sample < SAMPLES; ++sample) {
+                    for (int v = 0; v < values.length; ++v) values[v] = value(sample, v);
+                    accepted[stream][sample] = registry.onSample(stream, 1000L * sample + stream, values, stream % 4);
+                }
+            });
+        }
+        for (Thread producer : producers) producer.start();
+        for (Thread producer : producers) producer.join();
+        registry.stop();
+        for (int i = 0; i < SENSOR_IDS.length; ++i) registry.writeSensorRate(i, 1000L * SAMPLES, 1000, 0, 1000);
+        registry.close();
+
+        long dropped = 0;
+        for (int stream = 0; stream < SENSOR_IDS.length; ++stream) {
+            assertEquals(SAMPLES, registry.getStats(stream).getSampleCount());
+            int next = 0, read = 0;
+            try (IMURecordReader reader = new IMURecordReader(new FileInputStream(files[stream]))) {
+                assertEquals("sensor " + SENSOR_IDS[stream], reader.getSensorName(SENSOR_IDS[stream]));
+                assertEquals(1, reader.getSensorNames().size());
+                assertEquals(Math.max(3, VALUE_COUNTS[stream]), reader.values.length);
+                while (reader.next()) {
+                    if (reader.isMarker()) {
+                        assertEquals(IMURecordFormat.SENSOR_RATE_ID, reader.sensor_id);
+                        assertEquals(SENSOR_IDS[stream], reader.accuracy);
+                        continue;
+                    }
+                    while (!accepted[stream][next]) ++next;
+                    assertEquals(1000L * next + stream, reader.timestamp);
+                    assertEquals(SENSOR_IDS[stream], reader.sensor_id);
+                    assertEquals(stream % 4, reader.accuracy);
+                    for (int v = 0; v < reader.values.length; ++v) {
+                        assertEquals(v < VALUE_COUNTS[stream] ? value(next, v) : 0, reader.values[v], 0);
+                    }
+                    ++next;
+                    ++read;
+                }
+            }
+            for (int sample = next; sample < SAMPLES; ++sample) assertFalse(accepted[stream][sample]);
+            dropped += SAMPLES - read;
+        }
+        assertEquals(dropped, registry.getOverflowCount());
+        assertEquals(dropped, health.getCount(RecordingHealth.RING_OVERFLOW));
+        assertTrue(health.getCount(RecordingHealth.IMU_BYTES_WRITTEN) > 0);
+    }
+
+    @Test
+    public void wideFilesConvertToText() throws IOException {
+        File file = File.createTempFile("stream", ".imu");
+        file.deleteOnExit();
+        SensorStreamRegistry registry = new SensorStreamRegistry(1000, 4096, null);
+        int stream = registry.add((short) 16, "Gyroscope Uncalibrated", 6, new ChannelIMUStorage(file), 16);
+        registry.start();
+        registry.writeSensorRate(stream, 0, 5000, 0, Float.NaN);
+        assertTrue(registry.onSample(stream, 5, new float[] {1, 2, 3, 0.5f, 0.25f, 0.125f}, 3));
+        registry.stop();
+        registry.close();
+
+        StringWriter text = new StringWriter();
+        IMURecordReader.convertToText(new FileInputStream(file), text, true);
+        assertEquals("0 Gyroscope Uncalibrated sampling: requested period 5000 us, max report latency 0 us, achieved rate NaN Hz\n"
+                + "5 Gyroscope Uncalibrated [1.0, 2.0, 3.0, 0.5, 0.25, 0.125]\n", text.toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void streamsCannotBeAddedOnceStarted() throws IOException {
+        SensorStreamRegistry registry = new SensorStreamRegistry(1000, 4096, null);
+        registry.start();
+        try {
+            registry.add((short) 1, "Accelerometer", 3, new ChannelIMUStorage(File.createTempFile("stream", ".imu")), 16);
+        } finally {
+            registry.stop();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Gap detection and jitter of SensorStreamStats on steady and interrupted sample streams.
+ */
+public class SensorStreamStatsTest {
+
+    @Test
+    public void steadyStreamHasNoGaps() {
+        SensorStreamStats stats = new SensorStreamStats();
+        // An hour at 200 Hz with a little jitter on every interval
+        for (long i = 0, timestamp = 0; i < 200 * 3600; ++i, timestamp += 5_000_000 + (i % 7) * 100_000) stats.record(timestamp);
+        assertEquals(0, stats.getGapCount());
+        assertEquals(200 * 3600, stats.getSampleCount());
+        assertEquals(5.3e6, stats.getMeanIntervalNs(), 1e4);
+        // Intervals cycle evenly through 5.0 to 5.6 ms, whose standard deviation is 0.2 ms
+        assertEquals(2e5, stats.getJitterNs(), 1e3);
+    }
+
+    @Test
+    public void listenerPauseIsCountedAsGap() {
+        SensorStreamStats stats = new SensorStreamStats();
+        long timestamp = 0;
+        for (int i = 0; i < 1000; ++i) stats.record(timestamp += 5_000_000);
+        // Unregistering and re-registering the listener used to leave holes like this one every 3 seconds
+        stats.record(timestamp += 60_000_000);
+        for (int i = 0; i < 1000; ++i) stats.record(timestamp += 5_000_000);
+        assertEquals(1, stats.getGapCount());
+        assertEquals(60_000_000, stats.getMaxIntervalNs());
+        // 11 samples fit into the 60 ms hole at the stream's rate
+        assertEquals(11, stats.getMissedCount());
+    }
+
+    @Test
+    public void singleMissingFrameCountsWithLowGapFactor() {
+        SensorStreamStats stats = new SensorStreamStats(RecordingHealth.FRAME_GAP_FACTOR);
+        long timestamp = 0;
+        for (int i = 0; i < 300; ++i) {
+            // Frames 100 and 200 never arrive
+            timestamp += 33_333_333;
+            if (i != 100 && i != 200) stats.record(timestamp);
+        }
+        assertEquals(2, stats.getGapCount());
+        assertEquals(2, stats.getMissedCount());
+    }
+}
@@ -0,0 +1,102 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Offset and drift estimation against synthetic skewed clocks, the mapping of frames onto the sensor clock and the one-time
+ * video start marker of the session clock.
+ */
+public class SessionClockTest {
+
+    // A clock running drift_ppm fast relative to the reference and offset from it, observed with a minimum delivery
+    // latency plus exponentially distributed jitter, as sensor batches and capture results arrive
+    private static void observeSkewedClock(ClockDomainEstimator estimator, long offset_ns, double drift_ppm,
+                                           long min_latency_ns, long period_ns, long duration_ns, long seed) {
+        Random random = new Random(seed);
+        for (long reference = 0; reference < duration_ns; reference += period_ns) {
+            long domain_time = Math.round((reference - offset_ns) / (1 + drift_ppm * 1e-6));
+            long latency = min_latency_ns + Math.round(-Math.log(1 - random.nextDouble()) * 2_000_000);
+            estimator.observe(domain_time, reference + latency);
+        }
+    }
+
+    @Test
+    public void estimatesOffsetAndDriftOfSkewedClocks() {
+        double[] drifts = {0, 35, -80, 200};
+        for (int i = 0; i < drifts.length; ++i) {
+            ClockDomainEstimator estimator = new ClockDomainEstimator();
+            long offset = 123_456_789_000L * (i - 1);
+            observeSkewedClock(estimator, offset, drifts[i], 300_000, 2_500_000, 120_000_000_000L, i);
+            ClockDomainEstimator.Estimate estimate = estimator.getEstimate();
+            assertEquals(ClockDomainEstimator.DEFAULT_BUCKET_COUNT, estimate.points);
+            assertEquals(drifts[i], estimate.getDriftPpm(), 1);
+            // Mapping a domain time lands within the minimum latency plus a fraction of a millisecond of the truth
+            long domain_time = Math.round((100_000_000_000L - offset) / (1 + drifts[i] * 1e-6));
+            long error = estimate.toReference(domain_time) - 100_000_000_000L;
+            assertTrue("error " + error + " ns at " + drifts[i] + " ppm", error >= 0 && error < 300_000 + 200_000);
+        }
+    }
+
+    @Test
+    public void estimateIsPublishedOnlyPerBucket() {
+        ClockDomainEstimator estimator = new ClockDomainEstimator(1_000_000_000, 8);
+        estimator.observe(0, 5_000);
+        estimator.observe(500_000_000, 500_004_000);
+        assertSame(ClockDomainEstimator.IDENTITY, estimator.getEstimate());
+        estimator.observe(1_000_000_000, 1_000_009_000);
+        // The first bucket's lowest offset is the first estimate
+        assertEquals(4_000, estimator.getEstimate().offset_ns);
+        assertEquals(1, estimator.getEstimate().points);
+    }
+
+    @Test
+    public void framesAreMappedOntoTheSensorClock() {
+        SessionClock clock = new SessionClock(new ClockDomainEstimator(), new ClockDomainEstimator(1_000_000_000, 8));
+        // A camera on a clock of its own, 7 s behind elapsedRealtime, has no mapping until its first bucket closes
+        clock.observe(SessionClock.Domain.CAMERA_SENSOR, 0, 7_000_000_000L + 20_000_000);
+        assertEquals(-1, clock.frameToRealtime(0));
+        clock.observe(SessionClock.Domain.CAMERA_SENSOR, 1_000_000_000, 8_000_000_000L + 20_000_000);
+        assertEquals(7_520_000_000L, clock.frameToRealtime(500_000_000));
+        // Cameras stamping frames on elapsedRealtime need no mapping
+        SessionClock realtime_clock = new SessionClock();
+        realtime_clock.setCameraTimestampsRealtime(true);
+        assertEquals(500_000_000, realtime_clock.frameToRealtime(500_000_000));
+    }
+
+    @Test
+    public void videoStartIsWrittenOnceWhenBothClocksAreMapped() throws IOException {
+        File file = File.createTempFile("imu", ".imu");
+        file.deleteOnExit();
+        SessionClock clock = new SessionClock(new ClockDomainEstimator(100_000_000, 8), new ClockDomainEstimator());
+        clock.setCameraTimestampsRealtime(true);
+        try (IMURecordWriter writer = new IMURecordWriter(file, new short[] {4}, new String[] {"Gyroscope"})) {
+            SessionClockLogger logger = new SessionClockLogger(clock, writer, 1_000_000_000);
+            float[] values = {0, 0, 0};
+            // Sensor events run 2 ms behind elapsedRealtime; every frame of the burst notifies the start
+            for (long sensor_time = 1_000_000_000; sensor_time <= 3_000_000_000L; sensor_time += 5_000_000) {
+                clock.markImuStart(sensor_time);
+                clock.observe(SessionClock.Domain.SENSOR_EVENT, sensor_time, sensor_time + 2_000_000);
+                clock.markVideoStart(SessionClock.Domain.CAMERA_SENSOR, 1_050_000_000 + sensor_time / 10);
+                logger.onSample(sensor_time, (short) 4, values, 0, 3);
+            }
+        }
+        StringWriter text = new StringWriter();
+        IMURecordReader.convertToText(new FileInputStream(file), text, true);
+        String[] lines = text.toString().split("\n");
+        assertEquals("1150000000 video recording started. Latency between IMU and camera: 148000000 (IMU started sooner)",
+                lines[0]);
+        // One start marker, then both domains' mappings every second of sensor time, anchored at the newest envelope point;
+        // the camera's is exact by definition
+        assertEquals(5, lines.length);
+        assertTrue(lines[1].startsWith("1900000000 SENSOR_EVENT clock: elapsedRealtime = time + 2000000 ns"));
+        assertTrue(lines[2].startsWith("0 CAMERA_SENSOR clock: elapsedRealtime = time + 0 ns"));
+    }
+}
@@ -0,0 +1,221 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Window queries through the session time index against a full scan of the same session, with samples and frames
+ * arriving out of order and frames on a camera clock of their own, in both IMU file layouts and after a crash cut the
+ * index short.
+ */
+public class SessionIndexTest {
+
+    private static final short ACCELEROMETER = 10, GYROSCOPE = 4;
+    private static final long SECOND = 1_000_000_000L;
+    // The camera clock runs 3.7 s behind the samples' and 40 ppm slow
+    private static final ClockDomainEstimator.Estimate CAMERA_CLOCK =
+            new ClockDomainEstimator.Estimate(10 * SECOND, 3_700_000_000L, 40e-6, 1);
+
+    // A recorded session along with every sample and frame timestamp in it, in the order they were written; frame
+    // timestamps are on the samples' clock
+    private static class Session {
+        File index, imu, frames;
+        final List<long[]> samples = new ArrayList<>();
+        final List<Long> frame_timestamps = new ArrayList<>();
+    }
+
+    // The accelerometer delivers every 5 ms as sampled; the gyroscope's samples sit in its FIFO for up to 50 ms, so they
+    // reach the writer late and in bursts. Frames come at 30 fps from two writers, so neighbours swap places.
+    private static Session record(long duration_ns, boolean compressed) throws IOException {
+        Session session = new Session();
+        session.index = File.createTempFile("session", ".tidx");
+        session.imu = File.createTempFile("session", ".imu");
+        session.frames = File.createTempFile("session", ".frames");
+        for (File file : new File[] {session.index, session.imu, session.frames}) file.deleteOnExit();
+        SessionIndexWriter index = new SessionIndexWriter(new ChannelIMUStorage(session.index), SessionIndexWriter.DEFAULT_BUCKET_NS);
+        FramePackWriter frame_pack = new FramePackWriter(session.frames, FramePackFormat.FORMAT_JPEG, 64, 48);
+        SessionIndexWriter.Stream frame_stream = index.stream(SessionIndexWriter.FRAME_STREAM);
+        frame_pack.setTimeIndex(frame_stream);
+        SessionIndexWriter.Stream imu_stream = index.stream(SessionIndexWriter.IMU_STREAM);
+        // The IMU file is written in two parts, as when a recording is paused and resumed
+        long part_end = duration_ns / 2, gyro_pending_since = -1, next_frame = 0;
+        List<Long> gyro_pending = new ArrayList<>();
+        Random random = new Random(7);
+        for (int part = 0; part < 2; ++part) {
+            IMURecordWriter writer = new IMURecordWriter(new ChannelIMUStorage(session.imu), new short[] {ACCELEROMETER, GYROSCOPE},
+                    new String[] {"Accelerometer", "Gyroscope"}, compressed);
+            writer.setTimeIndex(imu_stream);
+            for (long timestamp = part * part_end; timestamp < (part + 1) * part_end; timestamp += 5_000_000) {
+                write(session, writer, ACCELEROMETER, timestamp);
+                if (gyro_pending_since < 0) gyro_pending_since = timestamp;
+                gyro_pending.add(timestamp + 2_000_000);
+                if (timestamp - gyro_pending_since >= 50_000_000) {
+                    for (long gyro_timestamp : gyro_pending) write(session, writer, GYROSCOPE, gyro_timestamp);
+                    gyro_pending.clear();
+                    gyro_pending_since = -1;
+                }
+                // Markers carry timestamps from other clocks, which the index ignores
+                if (timestamp % SECOND == 0) writer.writeClockMapping(random.nextLong(), (short) 1, 0, 0);
+                while (next_frame <= timestamp) {
+                    writeFrame(session, frame_pack, next_frame + 33_333_333);
+                    writeFrame(session, frame_pack, next_frame);
+                    next_frame += 2 * 33_333_333;
+                }
+                if (timestamp % 100_000_000 == 0) writer.commit();
+            }
+            writer.close();
+        }
+        frame_stream.setClock(CAMERA_CLOCK);
+        frame_pack.close();
+        index.close();
+        return session;
+    }
+
+    // The frame is stamped on the camera clock and tagged with the low byte of its time on the samples' clock
+    private static void writeFrame(Session session, FramePackWriter frame_pack, long timestamp) throws IOException {
+        long camera_time = CAMERA_CLOCK.fromReference(timestamp);
+        timestamp = CAMERA_CLOCK.toReference(camera_time);
+        frame_pack.writeFrame(camera_time, ByteBuffer.wrap(new byte[] {(byte) timestamp}));
+        session.frame_timestamps.add(timestamp);
+    }
+
+    private static void write(Session session, IMURecordWriter writer, short sensor_id, long timestamp) throws IOException {
+        writer.writeSample(timestamp, sensor_id, new float[] {timestamp, sensor_id, 0}, 3);
+        session.samples.add(new long[] {timestamp, sensor_id});
+    }
+
+    private static void assertWindow(Session session, SessionIndexReader reader, long start, long end) throws IOException {
+        assertWindow(session, reader, start, end, true);
+    }
+
+    private static void assertWindow(Session session, SessionIndexReader reader, long start, long end, boolean frames)
+            throws IOException {
+        SessionIndexReader.Window window = reader.window(start, end);
+        List<Long> expected = new ArrayList<>(), actual = new ArrayList<>();
+        for (long[] sample : session.samples) {
+            if (sample[0] >= start && sample[0] <= end) expected.add(sample[0] * 16 + sample[1]);
+        }
+        for (int i = 0; i < window.sample_count; ++i) {
+            actual.add(window.sample_timestamps[i] * 16 + window.sensor_ids[i]);
+            assertEquals((float) window.sample_timestamps[i], window.values[3 * i], 0);
+        }
+        expected.sort(null);
+        actual.sort(null);
+        assertEquals("samples in [" + start + ", " + end + "]", expected, actual);
+
+        expected.clear();
+        actual.clear();
+        for (long timestamp : session.frame_timestamps) {
+            if (frames && timestamp >= start && timestamp <= end) expected.add(timestamp);
+        }
+        for (int i = 0; i < window.frame_count; ++i) actual.add(window.frame_timestamps[i]);
+        expected.sort(null);
+        actual.sort(null);
+        assertEquals("frames in [" + start + ", " + end + "]", expected, actual);
+    }
+
+    private static void assertRandomWindows(Session session, SessionIndexReader reader, long duration_ns) throws IOException {
+        assertRandomWindows(session, reader, duration_ns, true);
+    }
+
+    private static void assertRandomWindows(Session session, SessionIndexReader reader, long duration_ns, boolean frames)
+            throws IOException {
+        Random random = new Random(11);
+        for (int i = 0; i < 200; ++i) {
+            long start = (long) (random.nextDouble() * (duration_ns + SECOND)) - SECOND / 2;
+            assertWindow(session, reader, start, start + (long) (random.nextDouble() * 2 * SECOND), frames);
+        }
+        // Edges of the session, and of the two IMU file parts
+        assertWindow(session, reader, Long.MIN_VALUE / 2, 0, frames);
+        assertWindow(session, reader, duration_ns / 2 - SECOND, duration_ns / 2 + SECOND, frames);
+        assertWindow(session, reader, duration_ns - SECOND, Long.MAX_VALUE / 2, frames);
+    }
+
+    @Test
+    public void windowsMatchAFullScan() throws IOException {
+        for (boolean compressed : new boolean[] {false, true}) {
+            Session session = record(60 * SECOND, compressed);
+            try (SessionIndexReader reader = new SessionIndexReader(session.index, session.imu, session.frames)) {
+                assertRandomWindows(session, reader, 60 * SECOND);
+            }
+        }
+    }
+
+    @Test
+    public void windowReadsOnlyItsNeighbourhood() throws IOException {
+        Session session = record(600 * SECOND, false);
+        try (SessionIndexReader reader = new SessionIndexReader(session.index, session.imu, session.frames)) {
+            SessionIndexReader.Window window = reader.window(400 * SECOND + SECOND / 2, 402 * SECOND + SECOND / 2);
+            assertEquals(800, window.sample_count, 2);
+            assertEquals(60, window.frame_count, 1);
+            // At most a bucket before the window and the gyroscope's lateness after it, out of 240000 samples and 18000 frames
+            assertTrue("read " + reader.last_records_read, reader.last_records_read < (1 + 2 + 0.1) * (400 + 30));
+
+            ByteBuffer frame = reader.readFrame(window.frame_offsets[0]);
+            assertEquals((byte) window.frame_timestamps[0], frame.get(0));
+        }
+    }
+
+    @Test
+    public void indexCutShortStillFindsEverySample() throws IOException {
+        Session session = record(30 * SECOND, false);
+        try (RandomAccessFile index = new RandomAccessFile(session.index, "rw")) {
+            // Half the entries made it to storage, the last of them partially
+            index.setLength(SessionIndexWriter.HEADER_SIZE + (index.length() - SessionIndexWriter.HEADER_SIZE) / 2 + 5);
+        }
+        // The frames' clock was to be noted as the recording stopped, so no frame can be placed in a window
+        try (SessionIndexReader reader = new SessionIndexReader(session.index, session.imu, session.frames)) {
+            assertRandomWindows(session, reader, 30 * SECOND, false);
+        }
+    }
+
+    @Test
+    public void indexCutShortAfterTheFramesClockStillFindsEverything() throws IOException {
+        Session session = record(30 * SECOND, false);
+        File copy = File.createTempFile("session", ".tidx");
+        copy.deleteOnExit();
+        // The frame stream's clock entry and its 32 positions are the last entries: keep the clock and some of them, then
+        // none of them
+        for (int kept : new int[] {12, 0}) {
+            Files.copy(session.index.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try (RandomAccessFile index = new RandomAccessFile(copy, "rw")) {
+                index.setLength(index.length() - (32 - kept) * SessionIndexWriter.ENTRY_SIZE + 5);
+            }
+            try (SessionIndexReader reader = new SessionIndexReader(copy, session.imu, session.frames)) {
+                assertRandomWindows(session, reader, 30 * SECOND);
+            }
+        }
+    }
+
+    @Test
+    public void framesAreIndexedInTimestampOrder() throws IOException {
+        Session session = record(10 * SECOND, false);
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(session.index.toPath()));
+        index.position(SessionIndexWriter.HEADER_SIZE);
+        long last_start = Long.MIN_VALUE, last_offset = -1;
+        int positions = 0;
+        while (index.hasRemaining()) {
+            long bucket_start = index.getLong(), offset = index.getLong();
+            index.getLong();
+            short stream = index.getShort(), kind = index.getShort();
+            if (stream != SessionIndexWriter.FRAME_STREAM || kind != SessionIndexWriter.POSITION_ENTRY) continue;
+            assertTrue(bucket_start > last_start && offset >= last_offset);
+            last_start = bucket_start;
+            last_offset = offset;
+            ++positions;
+        }
+        // One per second of frames, one more for the end
+        assertEquals(12, positions);
+    }
+}
@@ -0,0 +1,123 @@
+package com.nyu.video_imu_recorder.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stride handling of YuvConverter and lossless round trips through YuvFrameEncoder and frame packs, using synthetic planes.
+ */
+public class YuvConverterTest {
+
+    private static final int WIDTH = 37, HEIGHT = 21, ROW_PADDING = 11;
+
+    private static byte lumaAt(int x, int y) {
+        return (byte) (x * 7 + y * 13);
+    }
+
+    private static byte chromaAt(int x, int y, int plane) {
+        return (byte) (x * 3 + y * 5 + plane * 101);
+    }
+
+    // Expected packed I420 bytes of the synthetic image
+    private static byte[] expectedI420() {
+        int chroma_width = (WIDTH + 1) / 2, chroma_height = (HEIGHT + 1) / 2;
+        byte[] expected = new byte[YuvConverter.i420Size(WIDTH, HEIGHT)];
+        int i = 0;
+        for (int y = 0; y < HEIGHT; ++y) for (int x = 0; x < WIDTH; ++x) expected[i++] = lumaAt(x, y);
+        for (int plane = 1; plane <= 2; ++plane) {
+            for (int y = 0; y < chroma_height; ++y) for (int x = 0; x < chroma_width; ++x) expected[i++] = chromaAt(x, y, plane);
+        }
+        return expected;
+    }
+
+    private static ByteBuffer lumaPlane() {
+        int row_stride = WIDTH + ROW_PADDING;
+        // Like camera buffers, the last row stops right after its last pixel instead of at a full row stride
+        ByteBuffer y = ByteBuffer.allocateDirect(row_stride * (HEIGHT - 1) + WIDTH);
+        for (int r = 0; r < HEIGHT; ++r) for (int c = 0; c < WIDTH; ++c) y.put(r * row_stride + c, lumaAt(c, r));
+        return y;
+    }
+
+    private static byte[] pack(ByteBuffer y, ByteBuffer u, ByteBuffer v, int uv_row_stride, int uv_pixel_stride) {
+        ByteBuffer destination = ByteBuffer.allocate(YuvConverter.i420Size(WIDTH, HEIGHT));
+        YuvConverter.packI420(y, WIDTH + ROW_PADDING, 1, u, v, uv_row_stride, uv_pixel_stride, WIDTH, HEIGHT, destination);
+        assertFalse(destination.hasRemaining());
+        return destination.array();
+    }
+
+    @Test
+    public void packsPlanarChromaWithRowPadding() {
+        int chroma_width = (WIDTH + 1) / 2, chroma_height = (HEIGHT + 1) / 2, row_stride = chroma_width + ROW_PADDING;
+        ByteBuffer u = ByteBuffer.allocateDirect(row_stride * chroma_height), v = ByteBuffer.allocateDirect(row_stride * chroma_height);
+        for (int r = 0; r < chroma_height; ++r) {
+            for (int c = 0; c < chroma_width; ++c) {
+                u.put(r * row_stride + c, chromaAt(c, r, 1));
+                v.put(r * row_stride + c, chromaAt(c, r, 2));
+            }
+        }
+        assertArrayEquals(expectedI420(), pack(lumaPlane(), u, v, row_stride, 1));
+    }
+
+    @Test
+    public void packsInterleavedChroma() {
+        // NV21 layout: V and U alternate in one buffer, exposed as two planes with pixel stride 2 offset by one byte
+        int chroma_width = (WIDTH + 1) / 2, chroma_height = (HEIGHT + 1) / 2, row_stride = 2 * chroma_width + ROW_PADDING;
+        ByteBuffer vu = ByteBuffer.allocateDirect(row_stride * chroma_height);
+        for (int r = 0; r < chroma_height; ++r) {
+            for (int c = 0; c < chroma_width; ++c) {
+                vu.put(r * row_stride + 2 * c, chromaAt(c, r, 2));
+                vu.put(r * row_stride + 2 * c + 1, chromaAt(c, r, 1));
+            }
+        }
+        ByteBuffer v = vu.duplicate(), u = vu.duplicate();
+        u.position(1);
+        assertArrayEquals(expectedI420(), pack(lumaPlane(), u.slice(), v, row_stride, 2));
+    }
+
+    // The synthetic image shifted by an amount of its own for every frame, so frames mixed up by the writers are told apart
+    private static byte[] frame(int frame) {
+        byte[] data = expectedI420();
+        for (int i = 0; i < data.length; ++i) data[i] += (byte) frame;
+        return data;
+    }
+
+    private static long timestamp(int frame) {
+        return 1_000_000L + frame * 33_333_333L;
+    }
+
+    @Test
+    public void deflatedFramesRoundTripThroughParallelWriters() throws IOException, InterruptedException {
+        File file = File.createTempFile("burst", ".frames");
+        file.deleteOnExit();
+        int frames = 200, size = YuvConverter.i420Size(WIDTH, HEIGHT);
+        FramePackWriter pack = new FramePackWriter(file, FramePackFormat.FORMAT_YUV_I420_DEFLATE, WIDTH, HEIGHT);
+        FrameWritePipeline pipeline = new FrameWritePipeline(new YuvFrameEncoder(pack, true),
+                FrameWritePipeline.OverflowPolicy.THROTTLE, 8, size, Runtime.getRuntime().availableProcessors(), 0);
+        for (int i = 0; i < frames; ++i) {
+            byte[] data = frame(i);
+            pipeline.submit(timestamp(i), size, destination -> destination.put(data));
+        }
+        pipeline.close();
+        pack.close();
+        assertEquals(frames, pipeline.getWrittenCount());
+
+        try (FramePackReader reader = new FramePackReader(file)) {
+            assertEquals(frames, reader.getFrameCount());
+            for (int i = 0; i < frames; ++i) {
+                int position = reader.findFrame(timestamp(i));
+                assertEquals(timestamp(i), reader.getTimestamp(position));
+                ByteBuffer payload = reader.readFrame(position);
+                assertTrue(payload.remaining() < size);
+                ByteBuffer decoded = YuvFrameEncoder.decode(reader.frame_format, payload, reader.frame_width, reader.frame_height);
+                byte[] bytes = new byte[decoded.remaining()];
+                decoded.get(bytes);
+                assertArrayEquals(frame(i), bytes);
+            }
+        }
+    }
+}
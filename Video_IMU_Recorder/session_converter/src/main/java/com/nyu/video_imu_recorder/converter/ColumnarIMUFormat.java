@@ -0,0 +1,42 @@
+package com.nyu.video_imu_recorder.converter;
+
+/*
+Layout of a columnar IMU file, holding one sensor of a recording session (all values big-endian)
+
+Header:
+<int magic "IMUC"> <short version> <short value count> <short name length> <UTF-8 sensor name bytes>
+
+Blocks of up to BLOCK_SAMPLES samples, each column stored contiguously so it can be read straight into a primitive array:
+<int sample count n> <long min timestamp> <long max timestamp>
+<long timestamp ns>[n] <float x>[n] <float y>[n] <float z>[n]
+
+Footer (FOOTER_SIZE bytes, found by seeking to the end of the file):
+<int 0, ending the blocks> <long sample count> <int block count> <long min timestamp> <long max timestamp>
+<long video start time> <long latency between IMU and camera, negative if the IMU started sooner> <int magic>
+The video start time is NO_VIDEO_START if the session has none.
+*/
+public final class ColumnarIMUFormat {
+
+    public static final int MAGIC = 0x494D5543;
+    public static final short VERSION = 1;
+    public static final String EXTENSION = ".imuc";
+    public static final int BLOCK_SAMPLES = 4096;
+    public static final int BLOCK_HEADER_SIZE = Integer.BYTES + 2 * Long.BYTES;
+    public static final int FOOTER_SIZE = 3 * Integer.BYTES + 5 * Long.BYTES;
+    public static final long NO_VIDEO_START = Long.MIN_VALUE;
+
+    private ColumnarIMUFormat() {}
+
+    // Part of a file name standing for a sensor, such as "goldfish_3_axis_gyroscope"
+    public static String sensorFileName(String sensor_name) {
+        StringBuilder name = new StringBuilder(sensor_name.length());
+        for (int i = 0; i < sensor_name.length(); ++i) {
+            char c = Character.toLowerCase(sensor_name.charAt(i));
+            boolean keep = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+            if (keep) name.append(c);
+            else if (name.length() > 0 && name.charAt(name.length() - 1) != '_') name.append('_');
+        }
+        while (name.length() > 0 && name.charAt(name.length() - 1) == '_') name.setLength(name.length() - 1);
+        return name.length() > 0 ? name.toString() : "sensor";
+    }
+}
@@ -0,0 +1,136 @@
+package com.nyu.video_imu_recorder.converter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+// Reads a columnar IMU file block by block; the footer is available as soon as the file is opened
+public class ColumnarIMUReader implements Closeable {
+
+    private final FileChannel channel;
+    private final String sensor_name;
+    private final int value_count, block_count;
+    private final long sample_count, min_timestamp, max_timestamp, video_start_time, video_latency;
+    private ByteBuffer block;
+    private int blocks_read = 0;
+
+    // Columns of the block most recently returned by nextBlock(), valid up to its sample count
+    public long[] timestamps = new long[0];
+    public float[][] columns;
+    public long block_min, block_max;
+
+    public ColumnarIMUReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer footer = read(channel.size() - ColumnarIMUFormat.FOOTER_SIZE, ColumnarIMUFormat.FOOTER_SIZE);
+            footer.getInt();
+            sample_count = footer.getLong();
+            block_count = footer.getInt();
+            min_timestamp = footer.getLong();
+            max_timestamp = footer.getLong();
+            video_start_time = footer.getLong();
+            video_latency = footer.getLong();
+            if (footer.getInt() != ColumnarIMUFormat.MAGIC) throw new IOException("Columnar IMU file is incomplete");
+
+            ByteBuffer header = read(0, 4 + 3 * Short.BYTES);
+            if (header.getInt() != ColumnarIMUFormat.MAGIC) throw new IOException("Not a columnar IMU file");
+            short version = header.getShort();
+            if (version > ColumnarIMUFormat.VERSION) throw new IOException("Unsupported columnar IMU file version " + version);
+            value_count = header.getShort();
+            byte[] name = new byte[header.getShort()];
+            read(header.capacity(), name.length).get(name);
+            sensor_name = new String(name, StandardCharsets.UTF_8);
+            channel.position(header.capacity() + name.length);
+            columns = new float[value_count][0];
+        } catch (IOException exception) {
+            channel.close();
+            throw exception;
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        if (position < 0) throw new IOException("Not a columnar IMU file");
+        ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0) throw new IOException("Columnar IMU file is truncated");
+        }
+        data.flip();
+        return data;
+    }
+
+    // Advances to the next block, returning its sample count or 0 once the blocks end
+    public int nextBlock() throws IOException {
+        if (blocks_read == block_count) return 0;
+        ByteBuffer header = ByteBuffer.allocate(ColumnarIMUFormat.BLOCK_HEADER_SIZE);
+        channel.read(header);
+        header.flip();
+        int count = header.getInt();
+        if (count <= 0) throw new IOException("Columnar IMU file has fewer blocks than its footer states");
+        block_min = header.getLong();
+        block_max = header.getLong();
+        int size = count * (Long.BYTES + value_count * Float.BYTES);
+        if (block == null || block.capacity() < size) block = ByteBuffer.allocateDirect(size);
+        block.clear().limit(size);
+        while (block.hasRemaining()) {
+            if (channel.read(block) < 0) throw new IOException("Columnar IMU file is truncated");
+        }
+        block.flip();
+        if (timestamps.length < count) {
+            timestamps = new long[count];
+            for (int i = 0; i < value_count; ++i) columns[i] = new float[count];
+        }
+        block.asLongBuffer().get(timestamps, 0, count);
+        block.position(count * Long.BYTES);
+        for (float[] column : columns) {
+            block.asFloatBuffer().get(column, 0, count);
+            block.position(block.position() + count * Float.BYTES);
+        }
+        ++blocks_read;
+        return count;
+    }
+
+    public String getSensorName() {
+        return sensor_name;
+    }
+
+    public int getValueCount() {
+        return value_count;
+    }
+
+    public long getSampleCount() {
+        return sample_count;
+    }
+
+    public int getBlockCount() {
+        return block_count;
+    }
+
+    public long getMinTimestamp() {
+        return min_timestamp;
+    }
+
+    public long getMaxTimestamp() {
+        return max_timestamp;
+    }
+
+    public boolean hasVideoStart() {
+        return video_start_time != ColumnarIMUFormat.NO_VIDEO_START;
+    }
+
+    public long getVideoStartTime() {
+        return video_start_time;
+    }
+
+    public long getVideoLatency() {
+        return video_latency;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,90 @@
+package com.nyu.video_imu_recorder.converter;
+
+import com.nyu.video_imu_recorder.core.IMURecordFormat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+// Writes one sensor's samples as a columnar IMU file (see ColumnarIMUFormat), holding no more than one block in memory
+public class ColumnarIMUWriter implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteBuffer block;
+    private final long[] timestamps = new long[ColumnarIMUFormat.BLOCK_SAMPLES];
+    private final float[][] columns = new float[IMURecordFormat.VALUE_COUNT][ColumnarIMUFormat.BLOCK_SAMPLES];
+    private int block_size = 0, block_count = 0;
+    private long sample_count = 0, min_timestamp = Long.MAX_VALUE, max_timestamp = Long.MIN_VALUE;
+    private long block_min, block_max;
+    private long video_start_time = ColumnarIMUFormat.NO_VIDEO_START, video_latency = 0;
+
+    public ColumnarIMUWriter(File file, String sensor_name) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        block = ByteBuffer.allocateDirect(Math.max(ColumnarIMUFormat.FOOTER_SIZE, ColumnarIMUFormat.BLOCK_HEADER_SIZE
+                + ColumnarIMUFormat.BLOCK_SAMPLES * (Long.BYTES + IMURecordFormat.VALUE_COUNT * Float.BYTES)));
+        byte[] name = sensor_name.getBytes(StandardCharsets.UTF_8);
+        block.putInt(ColumnarIMUFormat.MAGIC).putShort(ColumnarIMUFormat.VERSION)
+                .putShort((short) IMURecordFormat.VALUE_COUNT).putShort((short) name.length).put(name);
+        write();
+    }
+
+    public void append(long timestamp, float[] values) throws IOException {
+        if (block_size == 0) block_min = block_max = timestamp;
+        else if (timestamp < block_min) block_min = timestamp;
+        else if (timestamp > block_max) block_max = timestamp;
+        timestamps[block_size] = timestamp;
+        for (int i = 0; i < columns.length; ++i) columns[i][block_size] = values[i];
+        if (++block_size == ColumnarIMUFormat.BLOCK_SAMPLES) flushBlock();
+    }
+
+    public void setVideoStart(long video_start_time, long latency) {
+        this.video_start_time = video_start_time;
+        video_latency = latency;
+    }
+
+    private void flushBlock() throws IOException {
+        if (block_size == 0) return;
+        block.putInt(block_size).putLong(block_min).putLong(block_max);
+        // Bulk puts through typed views copy whole columns at once instead of value by value
+        block.asLongBuffer().put(timestamps, 0, block_size);
+        block.position(block.position() + block_size * Long.BYTES);
+        for (float[] column : columns) {
+            block.asFloatBuffer().put(column, 0, block_size);
+            block.position(block.position() + block_size * Float.BYTES);
+        }
+        write();
+        sample_count += block_size;
+        ++block_count;
+        min_timestamp = Math.min(min_timestamp, block_min);
+        max_timestamp = Math.max(max_timestamp, block_max);
+        block_size = 0;
+    }
+
+    private void write() throws IOException {
+        block.flip();
+        while (block.hasRemaining()) channel.write(block);
+        block.clear();
+    }
+
+    public long getSampleCount() {
+        return sample_count + block_size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBlock();
+            block.putInt(0).putLong(sample_count).putInt(block_count)
+                    .putLong(sample_count > 0 ? min_timestamp : 0).putLong(sample_count > 0 ? max_timestamp : 0)
+                    .putLong(video_start_time).putLong(video_latency).putInt(ColumnarIMUFormat.MAGIC);
+            write();
+        } finally {
+            channel.close();
+        }
+    }
+}
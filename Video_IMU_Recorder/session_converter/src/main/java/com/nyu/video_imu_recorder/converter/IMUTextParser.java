@@ -0,0 +1,229 @@
+package com.nyu.video_imu_recorder.converter;
+
+import com.nyu.video_imu_recorder.core.IMURecordFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Streams the original text IMU format ("<ns> <sensor name> [x, y, z]" per sample, plus the line written when video
+// recording started) byte by byte out of one fixed buffer. Numbers are parsed in place and sensor names are matched
+// against the ones seen before, so nothing is allocated per line; a String is only made the first time a sensor appears.
+public class IMUTextParser {
+
+    public interface Handler {
+        // sensor is the index of the sensor in order of first appearance (see getSensorName); values are reused afterwards
+        void onSample(long timestamp, int sensor, float[] values) throws IOException;
+
+        // latency is negative if the IMU started sooner, as in the video start marker of binary IMU data files
+        void onVideoStart(long video_start_time, long latency) throws IOException;
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final byte[] VIDEO_START = ascii(" video recording started. Latency between IMU and camera: ");
+    private static final byte[] IMU_SOONER = ascii(" (IMU"), SEPARATOR = ascii(", "), NAN = ascii("NaN"),
+            INFINITY = ascii("Infinity");
+    // Beyond this the mantissa cannot take another digit without overflowing; the digit only shifts the exponent instead
+    private static final long MANTISSA_LIMIT = 100_000_000_000_000_000L;
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; ++i) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final InputStream input;
+    private final byte[] buffer;
+    private int position = 0, limit = 0;
+    private boolean end_of_stream = false;
+    private final List<byte[]> sensor_name_bytes = new ArrayList<>();
+    private final List<String> sensor_names = new ArrayList<>();
+    private final float[] values = new float[IMURecordFormat.VALUE_COUNT];
+    private long line_count = 0, skipped_lines = 0;
+    // Value of the number most recently parsed
+    private long parsed_long;
+    private float parsed_float;
+
+    public IMUTextParser(InputStream input) {
+        this(input, DEFAULT_BUFFER_SIZE);
+    }
+
+    // buffer_size bounds the memory used and the longest line that can be parsed
+    public IMUTextParser(InputStream input, int buffer_size) {
+        this.input = input;
+        buffer = new byte[buffer_size];
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Parses every line of the stream, handing samples and video starts to handler; any other line is counted and skipped
+    public void parse(Handler handler) throws IOException {
+        for (int end = findLineEnd(); end >= 0; end = findLineEnd()) {
+            ++line_count;
+            if (!parseLine(position, end, handler)) ++skipped_lines;
+            position = end + 1;
+        }
+    }
+
+    // Index of the newline ending the line at position, reading more of the stream as needed; the last line may end at limit
+    private int findLineEnd() throws IOException {
+        int scan = position;
+        while (true) {
+            for (; scan < limit; ++scan) {
+                if (buffer[scan] == '\n') return scan;
+            }
+            if (end_of_stream) return position < limit ? limit : -1;
+            if (position == 0 && limit == buffer.length) {
+                throw new IOException("Line " + (line_count + 1) + " is longer than " + buffer.length + " bytes");
+            }
+            // Move the partial line to the front and read more after it
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            scan -= position;
+            limit -= position;
+            position = 0;
+            int read = input.read(buffer, limit, buffer.length - limit);
+            if (read < 0) end_of_stream = true;
+            else limit += read;
+        }
+    }
+
+    private boolean parseLine(int start, int end, Handler handler) throws IOException {
+        if (end > start && buffer[end - 1] == '\r') --end;
+        int i = parseLong(start, end);
+        if (i < 0 || i >= end || buffer[i] != ' ') return false;
+        long timestamp = parsed_long;
+        if (matches(i, end, VIDEO_START)) {
+            i = parseLong(i + VIDEO_START.length, end);
+            if (i < 0) return false;
+            handler.onVideoStart(timestamp, matches(i, end, IMU_SOONER) ? -parsed_long : parsed_long);
+            return true;
+        }
+        // The sensor name runs up to the " [" opening the values and may itself contain spaces
+        int name_start = i + 1, bracket = name_start;
+        while (bracket < end && buffer[bracket] != '[') ++bracket;
+        if (bracket >= end || bracket - 1 <= name_start || buffer[bracket - 1] != ' ') return false;
+        i = bracket + 1;
+        for (int v = 0; v < values.length; ++v) {
+            if (v > 0) {
+                if (!matches(i, end, SEPARATOR)) return false;
+                i += SEPARATOR.length;
+            }
+            i = parseFloat(i, end);
+            if (i < 0) return false;
+            values[v] = parsed_float;
+        }
+        if (i >= end || buffer[i] != ']') return false;
+        handler.onSample(timestamp, sensorIndex(name_start, bracket - 1), values);
+        return true;
+    }
+
+    private boolean matches(int i, int end, byte[] expected) {
+        if (end - i < expected.length) return false;
+        for (int j = 0; j < expected.length; ++j) {
+            if (buffer[i + j] != expected[j]) return false;
+        }
+        return true;
+    }
+
+    private int sensorIndex(int start, int end) {
+        int length = end - start;
+        for (int sensor = 0; sensor < sensor_name_bytes.size(); ++sensor) {
+            byte[] name = sensor_name_bytes.get(sensor);
+            if (name.length != length) continue;
+            int j = 0;
+            while (j < length && name[j] == buffer[start + j]) ++j;
+            if (j == length) return sensor;
+        }
+        byte[] name = new byte[length];
+        System.arraycopy(buffer, start, name, 0, length);
+        sensor_name_bytes.add(name);
+        sensor_names.add(new String(name, StandardCharsets.UTF_8));
+        return sensor_names.size() - 1;
+    }
+
+    // Parses a decimal integer into parsed_long, returning the index after it or -1 if there is none
+    private int parseLong(int i, int end) {
+        boolean negative = i < end && buffer[i] == '-';
+        if (negative) ++i;
+        int digits_start = i;
+        long value = 0;
+        for (; i < end && buffer[i] >= '0' && buffer[i] <= '9'; ++i) value = value * 10 + (buffer[i] - '0');
+        if (i == digits_start) return -1;
+        parsed_long = negative ? -value : value;
+        return i;
+    }
+
+    // Parses a number as Float.toString writes it into parsed_float, returning the index after it or -1 if there is none
+    private int parseFloat(int i, int end) {
+        boolean negative = i < end && buffer[i] == '-';
+        if (negative) ++i;
+        if (matches(i, end, NAN)) {
+            parsed_float = Float.NaN;
+            return i + NAN.length;
+        }
+        if (matches(i, end, INFINITY)) {
+            parsed_float = negative ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+            return i + INFINITY.length;
+        }
+        long mantissa = 0;
+        int exponent = 0, digits = 0;
+        for (; i < end && buffer[i] >= '0' && buffer[i] <= '9'; ++i, ++digits) {
+            if (mantissa < MANTISSA_LIMIT) mantissa = mantissa * 10 + (buffer[i] - '0');
+            else ++exponent;
+        }
+        if (i < end && buffer[i] == '.') {
+            for (++i; i < end && buffer[i] >= '0' && buffer[i] <= '9'; ++i, ++digits) {
+                if (mantissa < MANTISSA_LIMIT) {
+                    mantissa = mantissa * 10 + (buffer[i] - '0');
+                    --exponent;
+                }
+            }
+        }
+        if (digits == 0) return -1;
+        if (i < end && (buffer[i] == 'E' || buffer[i] == 'e')) {
+            i = parseLong(i + 1 < end && buffer[i + 1] == '+' ? i + 2 : i + 1, end);
+            if (i < 0) return -1;
+            exponent += (int) Math.max(-1000, Math.min(1000, parsed_long));
+        }
+        float value = toFloat(mantissa, exponent);
+        parsed_float = negative ? -value : value;
+        return i;
+    }
+
+    // Correctly rounded mantissa * 10^exponent
+    static float toFloat(long mantissa, int exponent) {
+        if (mantissa == 0) return 0;
+        if (mantissa < 1L << 53 && Math.abs(exponent) < POWERS_OF_TEN.length) {
+            // Both operands are exact doubles, so the product or quotient is rounded once to a double and once more to a
+            // float. That second rounding can only go wrong when the first one landed exactly halfway between two floats.
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            if ((Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) != 0x10000000L && value >= Float.MIN_NORMAL) {
+                return (float) value;
+            }
+        }
+        return new BigDecimal(BigInteger.valueOf(mantissa), -exponent).floatValue();
+    }
+
+    public String getSensorName(int sensor) {
+        return sensor_names.get(sensor);
+    }
+
+    public int getSensorCount() {
+        return sensor_names.size();
+    }
+
+    public long getLineCount() {
+        return line_count;
+    }
+
+    // Lines that were neither a sample nor a video start, such as the sampling and clock lines of converted binary files
+    public long getSkippedLineCount() {
+        return skipped_lines;
+    }
+}
@@ -0,0 +1,133 @@
+package com.nyu.video_imu_recorder.converter;
+
+import com.nyu.video_imu_recorder.core.IMURecordFormat;
+import com.nyu.video_imu_recorder.core.IMURecordReader;
+import com.nyu.video_imu_recorder.core.IMUStreamFormat;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Converts one recorded session, in the original text format or as a binary IMU data file, into a columnar IMU file per
+// sensor named <session>.<sensor>.imuc. Memory use is one parser buffer plus one block per sensor, whatever the file size.
+public class SessionConversion implements IMUTextParser.Handler {
+
+    private final File session, output_dir;
+    private final String base_name;
+    private final List<ColumnarIMUWriter> writers = new ArrayList<>();
+    private final List<File> outputs = new ArrayList<>();
+    private IMUTextParser parser;
+    private long video_start_time = ColumnarIMUFormat.NO_VIDEO_START, video_latency = 0;
+    private long sample_count = 0, skipped_lines = 0;
+
+    public SessionConversion(File session, File output_dir) {
+        this.session = session;
+        this.output_dir = output_dir;
+        String name = session.getName();
+        int dot = name.lastIndexOf('.');
+        base_name = dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    public SessionConversion run() throws IOException {
+        try (InputStream input = new FileInputStream(session)) {
+            if (isBinary()) {
+                convertBinary(input);
+            } else {
+                parser = new IMUTextParser(input);
+                parser.parse(this);
+                skipped_lines = parser.getSkippedLineCount();
+            }
+        } finally {
+            IOException failure = null;
+            for (ColumnarIMUWriter writer : writers) {
+                writer.setVideoStart(video_start_time, video_latency);
+                try {
+                    writer.close();
+                } catch (IOException exception) {
+                    if (failure == null) failure = exception;
+                }
+            }
+            if (failure != null) throw failure;
+        }
+        return this;
+    }
+
+    private boolean isBinary() throws IOException {
+        try (InputStream input = new FileInputStream(session)) {
+            byte[] magic = new byte[Integer.BYTES];
+            if (input.readNBytes(magic, 0, magic.length) < magic.length) return false;
+            int value = (magic[0] & 0xFF) << 24 | (magic[1] & 0xFF) << 16 | (magic[2] & 0xFF) << 8 | (magic[3] & 0xFF);
+            return value == IMURecordFormat.MAGIC || value == IMUStreamFormat.MAGIC;
+        }
+    }
+
+    private void convertBinary(InputStream input) throws IOException {
+        IMURecordReader reader = new IMURecordReader(new BufferedInputStream(input));
+        Map<Short, Integer> sensors = new HashMap<>();
+        while (reader.next()) {
+            if (reader.sensor_id == IMURecordFormat.VIDEO_START_ID) {
+                onVideoStart(reader.timestamp, reader.marker_payload);
+            } else if (reader.isMarker()) {
+                ++skipped_lines;
+            } else {
+                Integer sensor = sensors.get(reader.sensor_id);
+                if (sensor == null) {
+                    sensor = sensors.size();
+                    sensors.put(reader.sensor_id, sensor);
+                    openWriter(reader.getSensorName(reader.sensor_id));
+                }
+                writers.get(sensor).append(reader.timestamp, reader.values);
+                ++sample_count;
+            }
+        }
+    }
+
+    @Override
+    public void onSample(long timestamp, int sensor, float[] values) throws IOException {
+        // Sensors are numbered in order of first appearance, so a new one is always the next index
+        if (sensor == writers.size()) openWriter(parser.getSensorName(sensor));
+        writers.get(sensor).append(timestamp, values);
+        ++sample_count;
+    }
+
+    @Override
+    public void onVideoStart(long video_start_time, long latency) {
+        this.video_start_time = video_start_time;
+        video_latency = latency;
+    }
+
+    private void openWriter(String sensor_name) throws IOException {
+        File output = new File(output_dir, base_name + '.' + ColumnarIMUFormat.sensorFileName(sensor_name)
+                + ColumnarIMUFormat.EXTENSION);
+        writers.add(new ColumnarIMUWriter(output, sensor_name));
+        outputs.add(output);
+    }
+
+    public File getSession() {
+        return session;
+    }
+
+    public List<File> getOutputs() {
+        return outputs;
+    }
+
+    public long getSampleCount() {
+        return sample_count;
+    }
+
+    public long getSkippedLineCount() {
+        return skipped_lines;
+    }
+
+    @Override
+    public String toString() {
+        return session.getName() + ": " + sample_count + " samples of " + writers.size() + " sensors"
+                + (skipped_lines > 0 ? ", " + skipped_lines + " other lines skipped" : "");
+    }
+}
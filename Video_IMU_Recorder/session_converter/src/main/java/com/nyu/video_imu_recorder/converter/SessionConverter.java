@@ -0,0 +1,127 @@
+package com.nyu.video_imu_recorder.converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Converts many recorded sessions into columnar IMU files in parallel on a fork-join pool. Each session streams through
+// its own SessionConversion, so memory use grows with the number of threads rather than with the size of the archive.
+public class SessionConverter {
+
+    // Sessions are named <date>_IMU_data_<count>.txt by the original recorder and .imu by the binary one
+    private static final String SESSION_NAME = "_IMU_data_";
+
+    // Totals of a range of sessions, combined as the tasks converting them join
+    public static class Summary {
+        public int converted = 0, failed = 0;
+        public long samples = 0;
+
+        Summary add(Summary other) {
+            converted += other.converted;
+            failed += other.failed;
+            samples += other.samples;
+            return this;
+        }
+    }
+
+    private static class ConvertTask extends RecursiveTask<Summary> {
+
+        private static final long serialVersionUID = 1L;
+        private final List<File> sessions;
+        private final File output_dir;
+        private final int from, to;
+
+        ConvertTask(List<File> sessions, File output_dir, int from, int to) {
+            this.sessions = sessions;
+            this.output_dir = output_dir;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Summary compute() {
+            if (to - from > 1) {
+                // Split until each task holds one session, so idle threads can steal whole sessions from busy ones
+                int middle = (from + to) >>> 1;
+                ConvertTask second = new ConvertTask(sessions, output_dir, middle, to);
+                second.fork();
+                return new ConvertTask(sessions, output_dir, from, middle).compute().add(second.join());
+            }
+            Summary summary = new Summary();
+            if (to == from) return summary;
+            File session = sessions.get(from);
+            try {
+                SessionConversion conversion = new SessionConversion(session, output_dir).run();
+                System.out.println(conversion);
+                summary.converted = 1;
+                summary.samples = conversion.getSampleCount();
+            } catch (IOException exception) {
+                System.err.println(session.getName() + " failed to convert: " + exception.getMessage());
+                summary.failed = 1;
+            }
+            return summary;
+        }
+    }
+
+    public static Summary convert(List<File> sessions, File output_dir, ForkJoinPool pool) {
+        return pool.invoke(new ConvertTask(sessions, output_dir, 0, sessions.size()));
+    }
+
+    // Session files given directly are converted whatever their name; directories are searched for recorded sessions
+    public static List<File> findSessions(List<File> paths) {
+        List<File> sessions = new ArrayList<>();
+        for (File path : paths) {
+            if (path.isDirectory()) {
+                File[] children = path.listFiles();
+                if (children == null) continue;
+                Arrays.sort(children);
+                for (File child : children) {
+                    if (child.isDirectory()) sessions.addAll(findSessions(List.of(child)));
+                    else if (child.getName().contains(SESSION_NAME)
+                            && !child.getName().endsWith(ColumnarIMUFormat.EXTENSION)) sessions.add(child);
+                }
+            } else {
+                sessions.add(path);
+            }
+        }
+        return sessions;
+    }
+
+    // Usage: SessionConverter [-j threads] <output dir> <session files or directories...>
+    public static void main(String[] args) {
+        int argument = 0, threads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 1 && args[0].equals("-j")) {
+            threads = Integer.parseInt(args[1]);
+            argument = 2;
+        }
+        if (args.length - argument < 2) {
+            System.err.println("Usage: SessionConverter [-j threads] <output dir> <session files or directories...>");
+            System.exit(1);
+        }
+        File output_dir = new File(args[argument]);
+        if (!output_dir.isDirectory() && !output_dir.mkdirs()) {
+            System.err.println("Output directory " + output_dir + " cannot be created");
+            System.exit(1);
+        }
+        List<File> paths = new ArrayList<>();
+        for (int i = argument + 1; i < args.length; ++i) paths.add(new File(args[i]));
+        List<File> sessions = findSessions(paths);
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Summary summary;
+        try {
+            summary = convert(sessions, output_dir, pool);
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d sessions converted (%d failed), %d samples in %.1f s (%.0f samples/s) on %d threads%n",
+                summary.converted, summary.failed, summary.samples, seconds, summary.samples / seconds, threads);
+        if (summary.failed > 0) System.exit(2);
+    }
+}
@@ -0,0 +1,110 @@
+package com.nyu.video_imu_recorder.converter;
+
+import com.nyu.video_imu_recorder.core.IMURecordFormat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Byte-level parsing of the original text IMU format, including lines split across buffer refills.
+ */
+public class IMUTextParserTest {
+
+    private static class Collector implements IMUTextParser.Handler {
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Integer> sensors = new ArrayList<>();
+        final List<float[]> values = new ArrayList<>();
+        long video_start_time, latency;
+
+        @Override
+        public void onSample(long timestamp, int sensor, float[] sample_values) {
+            timestamps.add(timestamp);
+            sensors.add(sensor);
+            values.add(sample_values.clone());
+        }
+
+        @Override
+        public void onVideoStart(long video_start_time, long latency) {
+            this.video_start_time = video_start_time;
+            this.latency = latency;
+        }
+    }
+
+    private static IMUTextParser parse(String text, int buffer_size, Collector collector) throws IOException {
+        IMUTextParser parser = new IMUTextParser(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), buffer_size);
+        parser.parse(collector);
+        return parser;
+    }
+
+    @Test
+    public void parsesSamplesAndVideoStart() throws IOException {
+        String text = IMURecordFormat.sampleToText(1578699792815L, "Goldfish 3-axis Gyroscope", new float[] {0, -0.5f, 1e-5f})
+                + IMURecordFormat.videoStartToText(1578699800000L, -12_345)
+                + "1578699792820 LSM6DSO Linear Acceleration [NaN, -Infinity, 3.4028235E38]\r\n"
+                + IMURecordFormat.sensorRateToText(1578699792825L, "Goldfish 3-axis Gyroscope", 5000, 0, 199.5f)
+                + "garbage\n"
+                + "1578699792830 Goldfish 3-axis Gyroscope [1.0, 2.0]\n"
+                + "1578699792835 Goldfish 3-axis Gyroscope [1.0, 2.0, 3.0]";
+        Collector collector = new Collector();
+        IMUTextParser parser = parse(text, IMUTextParser.DEFAULT_BUFFER_SIZE, collector);
+        assertEquals(3, collector.timestamps.size());
+        assertEquals(2, parser.getSensorCount());
+        assertEquals("Goldfish 3-axis Gyroscope", parser.getSensorName(0));
+        assertEquals("LSM6DSO Linear Acceleration", parser.getSensorName(1));
+        assertEquals(1578699792815L, (long) collector.timestamps.get(0));
+        assertArrayEquals(new float[] {0, -0.5f, 1e-5f}, collector.values.get(0), 0);
+        assertArrayEquals(new float[] {Float.NaN, Float.NEGATIVE_INFINITY, Float.MAX_VALUE}, collector.values.get(1), 0);
+        // The last line has no newline; the unterminated one before it has too few values
+        assertEquals(0, (int) collector.sensors.get(2));
+        assertEquals(1578699800000L, collector.video_start_time);
+        assertEquals(-12_345, collector.latency);
+        assertEquals(7, parser.getLineCount());
+        assertEquals(3, parser.getSkippedLineCount());
+    }
+
+    @Test
+    public void floatsRoundTripExactly() throws IOException {
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder();
+        float[][] expected = new float[20_000][3];
+        for (float[] sample : expected) {
+            for (int i = 0; i < 3; ++i) {
+                // Every bit pattern, from subnormals to the largest floats, as well as typical sensor readings
+                sample[i] = i == 0 ? Float.intBitsToFloat(random.nextInt()) : (float) random.nextGaussian() * 10;
+                if (Float.isNaN(sample[i])) sample[i] = 0;
+            }
+            text.append(IMURecordFormat.sampleToText(1, "s", sample));
+        }
+        // A small buffer makes lines straddle refills
+        Collector collector = new Collector();
+        parse(text.toString(), 100, collector);
+        for (int i = 0; i < expected.length; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                assertEquals(expected[i][j] + " read as " + collector.values.get(i)[j],
+                        Float.floatToIntBits(expected[i][j]), Float.floatToIntBits(collector.values.get(i)[j]));
+            }
+        }
+    }
+
+    @Test
+    public void correctlyRoundsDecimalsOfAnyLength() {
+        assertEquals(Float.parseFloat("0.1"), IMUTextParser.toFloat(1, -1), 0);
+        assertEquals(Float.parseFloat("1.00000017881393432617187499"),
+                IMUTextParser.toFloat(100000017881393432L, -17), 0);
+        assertEquals(Float.parseFloat("1e-45"), IMUTextParser.toFloat(1, -45), 0);
+        assertEquals(Float.POSITIVE_INFINITY, IMUTextParser.toFloat(1, 39), 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void lineLongerThanBufferFails() throws IOException {
+        parse("1 s [1.0, 2.0, 3.0]\n", 8, new Collector());
+    }
+}
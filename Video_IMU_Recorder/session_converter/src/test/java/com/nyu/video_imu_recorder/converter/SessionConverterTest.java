@@ -0,0 +1,112 @@
+package com.nyu.video_imu_recorder.converter;
+
+import com.nyu.video_imu_recorder.core.ChannelIMUStorage;
+import com.nyu.video_imu_recorder.core.IMURecordFormat;
+import com.nyu.video_imu_recorder.core.IMURecordWriter;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Text and binary sessions converted in parallel and read back from their columnar files.
+ */
+public class SessionConverterTest {
+
+    private static final int SAMPLES = 3 * ColumnarIMUFormat.BLOCK_SAMPLES + 100;
+
+    private static float[] sample(int i) {
+        return new float[] {i, -i / 8f, i * 1e-3f};
+    }
+
+    private static void writeTextSession(File file) throws IOException {
+        try (Writer text = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < SAMPLES; ++i) {
+                text.write(IMURecordFormat.sampleToText(1_000_000L + i * 5000L, "Goldfish 3-axis Gyroscope", sample(i)));
+                text.write(IMURecordFormat.sampleToText(1_002_500L + i * 5000L, "Goldfish 3-axis Accelerometer", sample(i)));
+                if (i == 100) text.write(IMURecordFormat.videoStartToText(1_500_000L, 42_000));
+            }
+        }
+    }
+
+    private static void writeBinarySession(File file, boolean compressed) throws IOException {
+        try (IMURecordWriter writer = new IMURecordWriter(new ChannelIMUStorage(file), new short[] {4},
+                new String[] {"Goldfish 3-axis Gyroscope"}, compressed)) {
+            writer.writeSensorRate(0, (short) 4, 5000, 0, Float.NaN);
+            for (int i = 0; i < SAMPLES; ++i) writer.writeSample(1_000_000L + i * 5000L, (short) 4, sample(i), 3);
+            writer.writeVideoStart(1_500_000L, -7_000);
+        }
+    }
+
+    private static void assertColumns(File file, String sensor_name, long first_timestamp, long video_latency)
+            throws IOException {
+        try (ColumnarIMUReader reader = new ColumnarIMUReader(file)) {
+            assertEquals(sensor_name, reader.getSensorName());
+            assertEquals(SAMPLES, reader.getSampleCount());
+            assertEquals(4, reader.getBlockCount());
+            assertEquals(first_timestamp, reader.getMinTimestamp());
+            assertEquals(first_timestamp + (SAMPLES - 1) * 5000L, reader.getMaxTimestamp());
+            assertTrue(reader.hasVideoStart());
+            assertEquals(1_500_000L, reader.getVideoStartTime());
+            assertEquals(video_latency, reader.getVideoLatency());
+            int i = 0;
+            for (int count = reader.nextBlock(); count > 0; count = reader.nextBlock()) {
+                assertEquals(reader.timestamps[0], reader.block_min);
+                for (int j = 0; j < count; ++j, ++i) {
+                    assertEquals(first_timestamp + i * 5000L, reader.timestamps[j]);
+                    float[] expected = sample(i);
+                    for (int v = 0; v < expected.length; ++v) assertEquals(expected[v], reader.columns[v][j], 0);
+                }
+            }
+            assertEquals(SAMPLES, i);
+        }
+    }
+
+    @Test
+    public void convertsTextAndBinarySessionsInParallel() throws IOException {
+        File archive = Files.createTempDirectory("archive").toFile(), output = Files.createTempDirectory("columnar").toFile();
+        File day = new File(archive, "Jan_10_2020");
+        assertTrue(day.mkdir());
+        for (int i = 0; i < 4; ++i) writeTextSession(new File(day, "Jan_10_2020_IMU_data_" + i + ".txt"));
+        writeBinarySession(new File(archive, "Jun_01_2023_IMU_data_0.imu"), false);
+        writeBinarySession(new File(archive, "Jun_02_2023_IMU_data_0.imu"), true);
+        new File(archive, "Jan_10_2020_media_0.mp4").createNewFile();
+
+        List<File> sessions = SessionConverter.findSessions(List.of(archive));
+        assertEquals(6, sessions.size());
+        SessionConverter.Summary summary = SessionConverter.convert(sessions, output, new ForkJoinPool(3));
+        assertEquals(6, summary.converted);
+        assertEquals(0, summary.failed);
+        assertEquals(10L * SAMPLES, summary.samples);
+
+        assertColumns(new File(output, "Jan_10_2020_IMU_data_3.goldfish_3_axis_gyroscope.imuc"),
+                "Goldfish 3-axis Gyroscope", 1_000_000L, 42_000);
+        assertColumns(new File(output, "Jan_10_2020_IMU_data_3.goldfish_3_axis_accelerometer.imuc"),
+                "Goldfish 3-axis Accelerometer", 1_002_500L, 42_000);
+        assertColumns(new File(output, "Jun_01_2023_IMU_data_0.goldfish_3_axis_gyroscope.imuc"),
+                "Goldfish 3-axis Gyroscope", 1_000_000L, -7_000);
+        assertColumns(new File(output, "Jun_02_2023_IMU_data_0.goldfish_3_axis_gyroscope.imuc"),
+                "Goldfish 3-axis Gyroscope", 1_000_000L, -7_000);
+    }
+
+    @Test
+    public void failedSessionDoesNotStopTheOthers() throws IOException {
+        File archive = Files.createTempDirectory("archive").toFile(), output = Files.createTempDirectory("columnar").toFile();
+        writeTextSession(new File(archive, "Jan_10_2020_IMU_data_0.txt"));
+        Files.write(new File(archive, "Jan_10_2020_IMU_data_1.txt").toPath(), new byte[IMUTextParser.DEFAULT_BUFFER_SIZE + 1]);
+        SessionConverter.Summary summary = SessionConverter.convert(SessionConverter.findSessions(List.of(archive)), output,
+                new ForkJoinPool(2));
+        assertEquals(1, summary.converted);
+        assertEquals(1, summary.failed);
+    }
+}